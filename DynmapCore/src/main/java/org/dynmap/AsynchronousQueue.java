@@ -1,16 +1,19 @@
 package org.dynmap;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.PriorityQueue;
 
 public class AsynchronousQueue<T> {
     private Object lock = new Object();
+    private Object qlock = new Object();    /* Guards queue and set */
     private Thread thread;
-    private LinkedBlockingQueue<T> queue = new LinkedBlockingQueue<T>();
-    private Set<T> set = new HashSet<T>();
+    private PriorityQueue<Entry<T>> queue = new PriorityQueue<Entry<T>>(64, new EntryComparator<T>());
+    private LinkedHashMap<T, Entry<T>> set = new LinkedHashMap<T, Entry<T>>();
+    private long nextseq;
+    private Prioritizer<T> prioritizer;
     private Handler<T> handler;
     private int dequeueTime;
     private int accelDequeueTime;
@@ -29,32 +32,117 @@ public class AsynchronousQueue<T> {
         this.normalprio = normalprio;
     }
 
+    /**
+     * Priority source for queued items: lower values are handled first
+     */
+    public interface Prioritizer<T> {
+        /**
+         * Get priority of item
+         * @param t - item
+         * @param enqueued - time item was queued (msec)
+         * @return priority (lower is handled sooner)
+         */
+        long getPriority(T t, long enqueued);
+    }
+
+    private static class Entry<T> {
+        final T t;
+        final long seq;
+        final long enqueued;
+        long priority;
+        Entry(T t, long seq) {
+            this.t = t;
+            this.seq = seq;
+            this.enqueued = System.currentTimeMillis();
+        }
+    }
+
+    private static class EntryComparator<T> implements Comparator<Entry<T>> {
+        @Override
+        public int compare(Entry<T> a, Entry<T> b) {
+            if (a.priority != b.priority) {
+                return (a.priority < b.priority) ? -1 : 1;
+            }
+            return (a.seq < b.seq) ? -1 : ((a.seq == b.seq) ? 0 : 1);   /* FIFO for equal priority */
+        }
+    }
+
+    /**
+     * Set prioritizer - without one, queue is FIFO
+     * @param p - prioritizer
+     */
+    public void setPrioritizer(Prioritizer<T> p) {
+        prioritizer = p;
+        reprioritize();
+    }
+
+    /**
+     * Recompute priorities of queued items (call when inputs to prioritizer have changed).  Priorities are computed
+     * on a snapshot of the queue, without holding the queue lock, so pushes and pops are only held up while the
+     * queue is reordered.
+     */
+    public void reprioritize() {
+        ArrayList<Entry<T>> ents;
+        synchronized (qlock) {
+            if (queue.isEmpty()) return;
+            ents = new ArrayList<Entry<T>>(queue);
+        }
+        long[] prio = new long[ents.size()];
+        for (int i = 0; i < prio.length; i++) {
+            prio[i] = getPriority(ents.get(i));
+        }
+        synchronized (qlock) {
+            for (int i = 0; i < prio.length; i++) {
+                Entry<T> e = ents.get(i);
+                if (set.get(e.t) == e) {    /* Skip items handled or removed since snapshot */
+                    e.priority = prio[i];
+                }
+            }
+            ents = new ArrayList<Entry<T>>(queue);
+            queue.clear();
+            queue.addAll(ents);
+        }
+    }
+
+    private long getPriority(Entry<T> e) {
+        Prioritizer<T> p = prioritizer;
+        return (p != null) ? p.getPriority(e.t, e.enqueued) : 0;
+    }
+
     public boolean push(T t) {
-        synchronized (lock) {
-            if (!set.add(t)) {
+        synchronized (qlock) {
+            if (set.containsKey(t)) {
                 return false;
             }
+            Entry<T> e = new Entry<T>(t, nextseq++);
+            e.priority = getPriority(e);
+            set.put(t, e);
+            queue.offer(e);
+            qlock.notifyAll();
         }
-        queue.offer(t);
         return true;
     }
 
     private T pop() {
         try {
-            T t = queue.take();
-            synchronized (lock) {
-                set.remove(t);
+            synchronized (qlock) {
+                while (queue.isEmpty()) {
+                    qlock.wait();
+                }
+                Entry<T> e = queue.poll();
+                set.remove(e.t);
+                return e.t;
             }
-            return t;
         } catch (InterruptedException ix) {
             return null;
         }
     }
     
     public boolean remove(T t) {
-        synchronized (lock) {
-            if (set.remove(t)) {
-                queue.remove(t);
+        synchronized (qlock) {
+            Entry<T> e = set.remove(t);
+            if (e != null) {
+                queue.remove(e);
             	return true;
             }
         }
@@ -65,10 +153,21 @@ public class AsynchronousQueue<T> {
         return set.size();
     }
 
+    /**
+     * Set limit on items handled at once
+     * @param limit - limit (at least 1)
+     */
+    public void setPendingLimit(int limit) {
+        synchronized (lock) {
+            pendinglimit = Math.max(1, limit);
+            lock.notifyAll();
+        }
+    }
+
     public List<T> popAll() {
         List<T> s;
-        synchronized(lock) {
-            s = new ArrayList<T>(queue);
+        synchronized(qlock) {
+            s = new ArrayList<T>(set.keySet());     /* In order queued */
             queue.clear();
             set.clear();
         }
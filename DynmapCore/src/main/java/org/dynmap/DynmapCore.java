@@ -41,8 +41,9 @@ import org.dynmap.common.DynmapServerInterface;
 import org.dynmap.debug.Debug;
 import org.dynmap.debug.Debugger;
 import org.dynmap.exporter.DynmapExpCommands;
-import org.dynmap.hdmap.HDBlockModels;
+import org.dynmap.hdmap.DefinitionCache;
 import org.dynmap.hdmap.HDBlockStateTextureMap;
+import org.dynmap.hdmap.RenderProfiler;
 import org.dynmap.hdmap.TexturePack;
 import org.dynmap.markers.MarkerAPI;
 import org.dynmap.markers.impl.MarkerAPIImpl;
@@ -132,6 +133,7 @@ public class DynmapCore implements DynmapCommonAPI {
     private boolean persist_ids_by_ip = false;
     private int snapshotcachesize;
     private boolean snapshotsoftref;
+    private int snapshotcachememory;
     private String[] biomenames = new String[0];
     private Map<String, Integer> blockmap = null;
     private Map<String, Integer> itemmap = null;
@@ -440,12 +442,15 @@ public class DynmapCore implements DynmapCommonAPI {
         smoothlighting = configuration.getBoolean("smooth-lighting", false);
         ctmsupport = configuration.getBoolean("ctm-support", true);
         customcolorssupport = configuration.getBoolean("custom-colors-support", true);
+        RenderProfiler.setSampleRate(configuration.getInteger("render-profile-sample-rate", 16));
         Log.verbose = configuration.getBoolean("verbose", true);
         deftemplatesuffix = configuration.getString("deftemplatesuffix", "");
         /* Get snapshot cache size */
         snapshotcachesize = configuration.getInteger("snapshotcachesize", 500);
         /* Get soft ref flag for cache (weak=false, soft=true) */
         snapshotsoftref = configuration.getBoolean("soft-ref-cache", true);
+        /* Get memory budget (MB) for off-heap snapshot cache - 0 to use soft/weak reference cache */
+        snapshotcachememory = configuration.getInteger("snapshotcache-memory", 128);
         /* Default better-grass */
         bettergrass = configuration.getBoolean("better-grass", false);
         /* Load full render processing player limit */
@@ -474,12 +479,9 @@ public class DynmapCore implements DynmapCommonAPI {
        
         /* Process mod support */
         ModSupportImpl.complete(this.dataDirectory);
-        /* Load block models */
-        Log.verboseinfo("Loading models...");
-        HDBlockModels.loadModels(this, configuration);
-        /* Load texture mappings */
-        Log.verboseinfo("Loading texture mappings...");
-        TexturePack.loadTextureMapping(this, configuration);
+        /* Load block models and texture mappings (from definition cache, if still valid) */
+        Log.verboseinfo("Loading models and texture mappings...");
+        DefinitionCache.loadDefinitions(this, configuration);
         
         /* Now, process worlds.txt - merge it in as an override of existing values (since it is only user supplied values) */
         File f = new File(dataDirectory, "worlds.txt");
@@ -871,6 +873,9 @@ public class DynmapCore implements DynmapCommonAPI {
         
         addServlet("/up/configuration", new ClientConfigurationServlet(this));
         addServlet("/standalone/config.js", new ConfigJSServlet(this));
+        if (configuration.getBoolean("render-profile-web", false)) {
+            addServlet("/up/renderprofile", new RenderProfileServlet(this));
+        }
         if(authmgr != null) {
             LoginServlet login = new LoginServlet(this);
             addServlet("/up/login", login);
@@ -1042,6 +1047,8 @@ public class DynmapCore implements DynmapCommonAPI {
         "stats",
         "triggerstats",
         "resetstats",
+        "memory",
+        "profile",
         "sendtoweb",
         "pause",
         "purgequeue",
@@ -1104,6 +1111,10 @@ public class DynmapCore implements DynmapCommonAPI {
         new CommandInfo("dynmap", "stats", "Show render statistics."),
         new CommandInfo("dynmap", "triggerstats", "Show render update trigger statistics."),
         new CommandInfo("dynmap", "resetstats", "Reset render statistics."),
+        new CommandInfo("dynmap", "memory", "Show memory use of caches and render state."),
+        new CommandInfo("dynmap", "profile", "Show render profile: render time by block state and renderer."),
+        new CommandInfo("dynmap", "profile", "<count>", "Show render profile, listing <count> block states."),
+        new CommandInfo("dynmap", "profile", "<start|stop|reset>", "Start (or resume), stop or clear render profile."),
         new CommandInfo("dynmap", "sendtoweb", "<msg>", "Send message <msg> to web users."),
         new CommandInfo("dynmap", "purgequeue", "Empty all pending tile updates from update queue."),
         new CommandInfo("dynmap", "purgequeue", "<world>", "Empty all pending tile updates from update queue for world <world>."),
@@ -1465,6 +1476,7 @@ public class DynmapCore implements DynmapCommonAPI {
                 }
             } else if (c.equals("reload") && checkPlayerPermission(sender, "reload")) {
                 sender.sendMessage("Reloading Dynmap...");
+                mapManager.clearTileFingerprints();
                 getServer().reload();
                 sender.sendMessage("Dynmap reloaded");
             } else if (c.equals("stats") && checkPlayerPermission(sender, "stats")) {
@@ -1474,6 +1486,36 @@ public class DynmapCore implements DynmapCommonAPI {
                     mapManager.printStats(sender, args[1]);
             } else if (c.equals("triggerstats") && checkPlayerPermission(sender, "stats")) {
                 mapManager.printTriggerStats(sender);
+            } else if (c.equals("memory") && checkPlayerPermission(sender, "stats")) {
+                mapManager.printMemory(sender);
+            } else if (c.equals("profile") && (args.length > 1) && (args[1].equals("start") || args[1].equals("stop") || args[1].equals("reset"))) {
+                if (checkPlayerPermission(sender, "resetstats")) {
+                    if (args[1].equals("start")) {
+                        RenderProfiler.start();
+                        sender.sendMessage("Render profile started - results add to any kept since last reset");
+                    }
+                    else if (args[1].equals("stop")) {
+                        RenderProfiler.stop();
+                        sender.sendMessage("Render profile stopped");
+                    }
+                    else {
+                        RenderProfiler.reset();
+                        sender.sendMessage("Render profile cleared");
+                    }
+                }
+            } else if (c.equals("profile") && checkPlayerPermission(sender, "stats")) {
+                int max = 20;
+                if (args.length > 1) {
+                    try {
+                        max = Integer.parseInt(args[1]);
+                    } catch (NumberFormatException nfx) {
+                        sender.sendMessage("Invalid count: " + args[1]);
+                        return true;
+                    }
+                }
+                for (String line : RenderProfiler.getReport(max)) {
+                    sender.sendMessage(line);
+                }
             } else if (c.equals("pause") && checkPlayerPermission(sender, "pause")) {
                 if(args.length == 1) {
                 }
@@ -2140,6 +2182,7 @@ public class DynmapCore implements DynmapCommonAPI {
         wname = DynmapWorld.normalizeWorldName(wname);
         saveWorldConfig();
         if(mapManager != null) {
+            mapManager.clearTileFingerprints(); /* Maps may render differently now */
             mapManager.deactivateWorld(wname);  /* Clean it up */
             DynmapWorld w = getServer().getWorldByName(wname);  /* Get new instance */
             if(w != null)
@@ -2164,6 +2207,8 @@ public class DynmapCore implements DynmapCommonAPI {
 
     public boolean useSoftRefInSnapShotCache() { return snapshotsoftref; }
 
+    public int getSnapShotCacheMemory() { return snapshotcachememory; }
+
     public String getDefImageFormat() { return def_image_format; }
     
     public void webChat(final String name, final String message) {
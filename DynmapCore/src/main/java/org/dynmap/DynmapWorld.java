@@ -2,9 +2,12 @@ package org.dynmap;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.dynmap.MapType.ImageEncoding;
 import org.dynmap.hdmap.TexturePack;
@@ -39,6 +42,8 @@ public abstract class DynmapWorld {
     public boolean sendhealth;
     public boolean showborder;
     private int extrazoomoutlevels;  /* Number of additional zoom out levels to generate */
+    private final HashMap<String, CountDownLatch> zoomOutBuilds = new HashMap<String, CountDownLatch>();  /* Lazy zoom out builds in progress */
+    private static final long ZOOMOUT_BUILD_WAIT = 30000;
     private boolean cancelled;
     private final String wname;
     private final int hashcode;
@@ -96,12 +101,28 @@ public abstract class DynmapWorld {
     public void enqueueZoomOutUpdate(MapStorageTile tile) {
         MapTypeState mts = getMapState(tile.map);
         if (mts != null) {
-            mts.setZoomOutInv(tile.x, tile.y, tile.zoom);
+            MapManager mm = MapManager.mapman;
+            if ((mm != null) && mm.getLazyZoomOut()) {
+                markZoomOutStale(mts, tile);
+            }
+            else {
+                mts.setZoomOutInv(tile.x, tile.y, tile.zoom);
+            }
+        }
+    }
+
+    /* Mark zoomed out tiles containing tile as stale - stops at first already stale, since its parents are too */
+    private void markZoomOutStale(MapTypeState mts, MapStorageTile tile) {
+        MapStorageTile ztile = tile.getZoomOutTile();
+        while (mts.setZoomOutStale(ztile.x, ztile.y, ztile.zoom)) {
+            ztile = ztile.getZoomOutTile();
         }
     }
          
     public void freshenZoomOutFiles() {
         MapTypeState.ZoomOutCoord c = new MapTypeState.ZoomOutCoord();
+        MapManager mm = MapManager.mapman;
+        boolean lazy = (mm != null) && mm.getLazyZoomOut();
         for (MapTypeState mts : mapstate) {
             if (cancelled) return;
             MapType mt = mts.type;
@@ -109,6 +130,10 @@ public abstract class DynmapWorld {
             mts.startZoomOutIter(); // Start iterator
             while (mts.nextZoomOutInv(c)) {
                 if(cancelled) return;
+                if (lazy) { // Left over from eager processing - just mark stale, for building when requested
+                    markZoomOutStale(mts, storage.getTile(this, mt, c.x, c.y, c.zoomlevel, var[0]));
+                    continue;
+                }
                 for (int varIdx = 0; varIdx < var.length; varIdx++) {
                     MapStorageTile tile = storage.getTile(this, mt, c.x, c.y, c.zoomlevel, var[varIdx]);
                     processZoomFile(mts, tile, varIdx == 0);
@@ -116,6 +141,64 @@ public abstract class DynmapWorld {
             }
         }
     }
+
+    /**
+     * Build requested zoomed out tile, if it is stale (lazy zoom out), along with the stale tiles it is built from.
+     * Concurrent requests for the same tile wait for a single build.
+     * @param tile - requested tile
+     */
+    public void freshenZoomOutTile(MapStorageTile tile) {
+        MapManager mm = MapManager.mapman;
+        if ((mm == null) || (!mm.getLazyZoomOut()) || (tile.zoom < 1)) {
+            return;
+        }
+        MapTypeState mts = getMapState(tile.map);
+        if (mts != null) {
+            buildStaleZoomOut(mts, tile.map, tile.x, tile.y, tile.zoom);
+        }
+    }
+
+    private void buildStaleZoomOut(MapTypeState mts, MapType mt, int x, int y, int zoom) {
+        if (!mts.isZoomOutStale(x, y, zoom)) {
+            return;
+        }
+        String key = mt.getPrefix() + "/" + zoom + "/" + x + "_" + y;
+        CountDownLatch done;
+        synchronized(zoomOutBuilds) {
+            done = zoomOutBuilds.get(key);
+            if (done == null) {
+                zoomOutBuilds.put(key, new CountDownLatch(1));
+            }
+        }
+        if (done != null) { // Already being built - wait for it
+            try {
+                done.await(ZOOMOUT_BUILD_WAIT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        try {
+            // Build stale tiles this one is made from first - writing them marks this one stale again
+            int step = 1 << (zoom - 1);
+            for (int i = 0; (zoom > 1) && (i < 4); i++) {
+                buildStaleZoomOut(mts, mt, x + step * (i & 1), y - step * (i >> 1), zoom - 1);
+            }
+            // Clear just before building, so that updates while we build mark it stale again
+            if (mts.clearZoomOutStale(x, y, zoom)) {
+                MapType.ImageVariant var[] = mt.getVariants();
+                for (int varIdx = 0; varIdx < var.length; varIdx++) {
+                    MapStorageTile tile = storage.getTile(this, mt, x, y, zoom - 1, var[varIdx]);
+                    processZoomFile(mts, tile, varIdx == 0);
+                }
+            }
+        } finally {
+            synchronized(zoomOutBuilds) {
+                done = zoomOutBuilds.remove(key);
+            }
+            done.countDown();
+        }
+    }
     
     public void cancelZoomOutFreshen() {
         cancelled = true;
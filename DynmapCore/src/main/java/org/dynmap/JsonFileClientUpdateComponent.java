@@ -109,7 +109,7 @@ public class JsonFileClientUpdateComponent extends ClientUpdateComponent {
             files_to_write.remove(ftw);
             files_to_write.add(ftw);
             if(didadd) {
-                MapManager.scheduleDelayedJob(new FileProcessor(), 0);
+                MapManager.scheduleDelayedJob(MapManager.JobLane.STORAGE, new FileProcessor(), 0);
             }
         }
     }
@@ -265,7 +265,7 @@ public class JsonFileClientUpdateComponent extends ClientUpdateComponent {
         sb.append("'\n }\n};\n");
         
         byte[] outputBytes = sb.toString().getBytes(cs_utf8);
-        MapManager.scheduleDelayedJob(new Runnable() {
+        MapManager.scheduleDelayedJob(MapManager.JobLane.STORAGE, new Runnable() {
         	public void run() {
                 File f = new File(baseStandaloneDir, "config.js");
                 FileOutputStream fos = null;
@@ -461,7 +461,7 @@ public class JsonFileClientUpdateComponent extends ClientUpdateComponent {
     }
     
     protected void handleWebChat() {
-    	MapManager.scheduleDelayedJob(new Runnable() {
+    	MapManager.scheduleDelayedJob(MapManager.JobLane.STORAGE, new Runnable() {
     		public void run() {
     			BufferInputStream bis = storage.getStandaloneFile("dynmap_webchat.json");
     			if (bis != null && lastTimestamp != 0) {
@@ -1,11 +1,14 @@
 package org.dynmap;
 
 import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -23,7 +26,6 @@ import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -32,16 +34,23 @@ import org.dynmap.common.DynmapPlayer;
 import org.dynmap.common.DynmapListenerManager.EventType;
 import org.dynmap.debug.Debug;
 import org.dynmap.exporter.OBJExport;
+import org.dynmap.hdmap.HDMap;
 import org.dynmap.hdmap.HDMapManager;
+import org.dynmap.hdmap.HDMapTile;
+import org.dynmap.hdmap.HDPerspective;
+import org.dynmap.hdmap.TilePixelCache;
 import org.dynmap.markers.EnterExitMarker;
 import org.dynmap.markers.EnterExitMarker.EnterExitText;
 import org.dynmap.markers.impl.MarkerAPIImpl;
 import org.dynmap.renderer.DynmapBlockState;
 import org.dynmap.storage.MapStorage;
 import org.dynmap.storage.MapStorageBaseTileEnumCB;
-import org.dynmap.storage.MapStorageTileSearchEndCB;
 import org.dynmap.storage.MapStorageTile;
+import org.dynmap.storage.TileLockManager;
+import org.dynmap.utils.ChunkOrder;
+import org.dynmap.utils.LRULinkedHashMap;
 import org.dynmap.utils.MapChunkCache;
+import org.dynmap.utils.MemoryManager;
 import org.dynmap.utils.Polygon;
 import org.dynmap.utils.TileFlags;
 
@@ -50,6 +59,8 @@ public class MapManager {
 
     private static final int DEFAULT_CHUNKS_PER_TICK = 200;
     private static final int DEFAULT_ZOOMOUT_PERIOD = 60;
+    private static final long MEMORY_CHECK_PERIOD = 10000;  /* Msec between memory limit checks */
+    private static final long LOAD_CHECK_PERIOD = 5000;     /* Msec between render load adjustments */
     public List<DynmapWorld> worlds = new CopyOnWriteArrayList<DynmapWorld>();
     private List<String> disabled_worlds = new ArrayList<String>();
     public Map<String, DynmapWorld> worldsLookup = new HashMap<String, DynmapWorld>();
@@ -57,6 +68,8 @@ public class MapManager {
     private long timeslice_int = 0; /* In milliseconds */
     private int max_chunk_loads_per_tick = DEFAULT_CHUNKS_PER_TICK;
     private int parallelrendercnt = 0;
+    private RenderLoadController loadcontrol;   /* Adaptive render load control - null if disabled */
+    private ChunkOrder.Curve fullrender_order = null;   /* Chunk order for full renders - null for flood fill */
     private int progressinterval = 100;
     private int tileupdatedelay = 30;
     private int savependingperiod = 15 * 60; // every 15 minutes, by default
@@ -76,6 +89,7 @@ public class MapManager {
     private boolean tpspauseupdaterenders = false;
     private boolean tpspausefullrenders = false;
     private boolean tpspausezoomout = false;
+    private boolean lazyzoomout = false;    /* Build zoomed out tiles when requested, rather than in background */
 
     // User enter/exit processing
     private static final int DEFAULT_ENTEREXIT_PERIOD = 1000;	// 1 second
@@ -110,6 +124,132 @@ public class MapManager {
     /* Which fullrenders are active */
     private HashMap<String, FullWorldRenderState> active_renders = new HashMap<String, FullWorldRenderState>();
 
+    /* Fingerprints of chunk content used for last render of each tile - lets update renders skip unchanged tiles */
+    private LRULinkedHashMap<MapTile, Long> tile_fingerprints;
+    private static final long FINGERPRINT_ENTRY_SIZE = 120;  /* Estimate: entry, key tile and value */
+    /* Memory accounting for our own state */
+    private final MemoryManager.MemoryUser fingerprintmem = new MemoryManager.MemoryUser() {
+        @Override
+        public String getMemoryUserName() {
+            return "Tile fingerprints";
+        }
+        @Override
+        public long getMemoryUsed() {
+            if (tile_fingerprints == null) {
+                return 0;
+            }
+            synchronized(tile_fingerprints) {
+                return FINGERPRINT_ENTRY_SIZE * tile_fingerprints.size();
+            }
+        }
+        @Override
+        public long releaseMemory(long bytes) {
+            if (tile_fingerprints == null) {
+                return 0;
+            }
+            /* Drop least recently used entries, until about enough is released */
+            long cnt = (bytes + FINGERPRINT_ENTRY_SIZE - 1) / FINGERPRINT_ENTRY_SIZE;
+            long removed = 0;
+            synchronized(tile_fingerprints) {
+                for (Iterator<MapTile> iter = tile_fingerprints.keySet().iterator(); (removed < cnt) && iter.hasNext(); ) {
+                    iter.next();
+                    iter.remove();
+                    removed++;
+                }
+            }
+            return FINGERPRINT_ENTRY_SIZE * removed;
+        }
+    };
+    private final MemoryManager.MemoryUser renderstatemem = new MemoryManager.MemoryUser() {
+        @Override
+        public String getMemoryUserName() {
+            return "Full render state";
+        }
+        @Override
+        public long getMemoryUsed() {
+            long used = 0;
+            synchronized(lock) {
+                for (FullWorldRenderState rs : active_renders.values()) {
+                    if (rs.found == null) continue;
+                    used += rs.found.getMemoryUsed() + rs.rendered.getMemoryUsed();
+                    HashMap<String, TileFlags> st = rs.storedtiles;
+                    if (st != null) {
+                        for (TileFlags tf : st.values()) {
+                            synchronized(tf) {
+                                used += tf.getMemoryUsed();
+                            }
+                        }
+                    }
+                    used += 64L * rs.renderQueue.size();
+                }
+            }
+            return used;
+        }
+        @Override
+        public long releaseMemory(long bytes) {
+            return 0;
+        }
+    };
+    private final MemoryManager.MemoryUser updatequeuemem = new MemoryManager.MemoryUser() {
+        @Override
+        public String getMemoryUserName() {
+            return "Web update queues";
+        }
+        @Override
+        public long getMemoryUsed() {
+            long used = 0;
+            for (DynmapWorld w : worlds) {
+                used += 160L * w.updates.size();    /* Queue record and typical update */
+            }
+            return used;
+        }
+        @Override
+        public long releaseMemory(long bytes) {
+            return 0;
+        }
+    };
+    AtomicInteger tiles_unchanged_skipped = new AtomicInteger(0);
+    private boolean prioritizeupdates;
+
+    /* Update render priority: tiles near players, or recently requested by web viewers, are rendered first */
+    private static final int PRIORITY_MAX_DIST = 64;      // Tile distance beyond which all tiles count as far away
+    private static final long PRIORITY_AGE_MSEC = 2000;   // Time queued that is worth one tile of distance
+    private static final long TILE_VIEW_EXPIRE = 30000;   // How long a web tile request counts as a viewer position
+    private static final int TILE_VIEW_MAX = 128;
+    private volatile HashMap<String, int[]> tileFocus = new HashMap<String, int[]>();   // world/perspective -> tile x,y pairs
+    private final ArrayDeque<TileView> tileViews = new ArrayDeque<TileView>();
+
+    private static class TileView {
+        final String key;
+        final int x, y;
+        final long time;
+        TileView(String key, int x, int y) {
+            this.key = key;
+            this.x = x;
+            this.y = y;
+            this.time = System.currentTimeMillis();
+        }
+    }
+
+    private class TileProximity implements AsynchronousQueue.Prioritizer<MapTile> {
+        @Override
+        public long getPriority(MapTile t, long enqueued) {
+            int dist = PRIORITY_MAX_DIST;
+            if (t instanceof HDMapTile) {
+                HDMapTile ht = (HDMapTile) t;
+                int[] pts = tileFocus.get(getFocusKey(ht.getDynmapWorld().getName(), ht.perspective.getName()));
+                if (pts != null) {
+                    for (int i = 0; i < pts.length; i += 2) {
+                        int d = Math.max(Math.abs(pts[i] - ht.tx), Math.abs(pts[i+1] - ht.ty));
+                        if (d < dist) dist = d;
+                    }
+                }
+            }
+            /* Near tiles first, but far tiles gain on them as they wait */
+            return (dist * PRIORITY_AGE_MSEC) + enqueued;
+        }
+    }
+    
     /* Chunk load performance numbers */
     AtomicInteger chunk_caches_created = new AtomicInteger(0);
     AtomicInteger chunks_read[];
@@ -121,9 +261,40 @@ public class MapManager {
     public static MapManager mapman;    /* Our singleton */
     public HDMapManager hdmapman;
     
-    /* Thread pool for processing renders */
-    private DynmapScheduledThreadPoolExecutor render_pool;
-    private static final int POOL_SIZE = 3;    
+    /**
+     * Job lanes - each lane has its own thread pool, so a long job in one lane (zoom-out pass, marker save)
+     * does not hold up jobs in the others (update renders, web file writes).  A lane that can share is given
+     * no threads by default, and runs in the pool of the lane it shares - so the default total thread count
+     * stays at the old single pool's 3 + parallelrendercnt.
+     */
+    public enum JobLane {
+        UPDATE("Update render", "updaterender", 1, Thread.MIN_PRIORITY + 2, null),
+        FULLRENDER("Full render", "fullrender", 1, Thread.MIN_PRIORITY, null),
+        STORAGE("Storage I/O", "storage", 1, Thread.MIN_PRIORITY + 1, null),
+        ZOOMOUT("Zoom-out", "zoomout", 0, Thread.MIN_PRIORITY, FULLRENDER),
+        MAINTENANCE("Maintenance", "maintenance", 0, Thread.MIN_PRIORITY + 1, STORAGE);
+
+        private final String label;
+        private final String cfgprefix;     /* Settings are <prefix>-threads and <prefix>-priority */
+        private final int defthreads;
+        private final int defpriority;      /* Unless using normal priority */
+        private final JobLane shared;       /* Lane whose pool is used if this one has no threads */
+
+        JobLane(String label, String cfgprefix, int defthreads, int defpriority, JobLane shared) {
+            this.label = label;
+            this.cfgprefix = cfgprefix;
+            this.defthreads = defthreads;
+            this.defpriority = defpriority;
+            this.shared = shared;
+        }
+        public String getLabel() {
+            return label;
+        }
+    }
+    /* Thread pools for processing jobs, by lane (shared lanes refer to the same pool) */
+    private DynmapScheduledThreadPoolExecutor[] job_pools;
+    private int[] lane_threads = new int[JobLane.values().length];
+    private int[] lane_priority = new int[JobLane.values().length];    /* 0 = leave at normal priority */
 
     /* Touch event queues */
     private static class TouchEvent {
@@ -191,26 +362,64 @@ public class MapManager {
     }
 
     private static class OurThreadFactory implements ThreadFactory {
+        private final JobLane lane;
+        OurThreadFactory(JobLane lane) {
+            this.lane = lane;
+        }
         @Override
         public Thread newThread(Runnable r) {
             Thread t = new Thread(r);
             t.setDaemon(true);
-            if(!mapman.usenormalpriority)
-                t.setPriority(Thread.MIN_PRIORITY);
-            t.setName("Dynmap Render Thread");
+            int pri = mapman.lane_priority[lane.ordinal()];
+            if(pri > 0)
+                t.setPriority(pri);
+            t.setName((lane == JobLane.FULLRENDER) ? "Dynmap Render Thread" : ("Dynmap " + lane.label + " Thread"));
             return t;
         }
     }
     
     private class DynmapScheduledThreadPoolExecutor extends ScheduledThreadPoolExecutor {
-        DynmapScheduledThreadPoolExecutor() {
-            super(POOL_SIZE + parallelrendercnt);
-            this.setThreadFactory(new OurThreadFactory());
+        final JobLane lane;
+        /* Lane statistics */
+        final AtomicLong jobsrun = new AtomicLong();
+        final AtomicLong waittime = new AtomicLong();   /* Total msec jobs waited past their due time */
+        final AtomicLong maxwait = new AtomicLong();
+        final AtomicLong runtime = new AtomicLong();    /* Total msec running jobs */
+
+        DynmapScheduledThreadPoolExecutor(JobLane lane, int threads) {
+            super(threads);
+            this.lane = lane;
+            this.setThreadFactory(new OurThreadFactory(lane));
             /* Set shutdown policy to stop everything */
             setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
             setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
         }
 
+        /* Run job, accounting for time waited since it was due */
+        private void runJob(Runnable r, long due) {
+            long start = System.currentTimeMillis();
+            long wait = Math.max(0, start - due);
+            waittime.addAndGet(wait);
+            long mx;
+            while((wait > (mx = maxwait.get())) && (!maxwait.compareAndSet(mx, wait))) {}
+            try {
+                r.run();
+            } catch (Exception x) {
+                Log.severe("Exception during render job: " + r);
+                x.printStackTrace();                        
+            } finally {
+                jobsrun.incrementAndGet();
+                runtime.addAndGet(System.currentTimeMillis() - start);
+            }
+        }
+
+        void resetStats() {
+            jobsrun.set(0);
+            waittime.set(0);
+            maxwait.set(0);
+            runtime.set(0);
+        }
+
         protected void afterExecute(Runnable r, Throwable x) {
             if(r instanceof FullWorldRenderState) {
                 ((FullWorldRenderState)r).cleanup();
@@ -222,15 +431,11 @@ public class MapManager {
         }
         @Override
         public void execute(final Runnable r) {
+            final long due = System.currentTimeMillis();
             try {
                 super.execute(new Runnable() {
                     public void run() {
-                        try {
-                            r.run();
-                        } catch (Exception x) {
-                            Log.severe("Exception during render job: " + r);
-                            x.printStackTrace();                        
-                        }
+                        runJob(r, due);
                     }
                 });
             } catch (RejectedExecutionException rxe) {  /* Pool shutdown - nominal for reload or unload */
@@ -238,15 +443,11 @@ public class MapManager {
         }
         @Override
         public ScheduledFuture<?> schedule(final Runnable command, long delay, TimeUnit unit) {
+            final long due = System.currentTimeMillis() + unit.toMillis(delay);
             try {
                 return super.schedule(new Runnable() {
                     public void run() {
-                        try {
-                            command.run();
-                        } catch (Exception x) {
-                            Log.severe("Exception during render job: " + command);
-                            x.printStackTrace();                        
-                        }
+                        runJob(command, due);
                     }
                 }, delay, unit);
             } catch (RejectedExecutionException rxe) {
@@ -289,7 +490,12 @@ public class MapManager {
         AtomicLong total_render_ns = new AtomicLong(0L);
         AtomicInteger rendercalls = new AtomicInteger(0);
         long lastPendingSaveTS = 0; // Timestamp of last pending state save (msec)
-        HashSet<String> storedTileIds = new HashSet<>();
+        volatile HashMap<String, TileFlags> storedtiles = null;  /* Tiles already in storage, by map name (resume only) */
+        ChunkOrder chunkorder;      /* If set, tiles are queued by chunk, in curve order, instead of by flood fill */
+        boolean chunkorderchecked = false;
+        final TileFlags.TileCoord nextchunk = new TileFlags.TileCoord();
+        AtomicLong chunkreads = new AtomicLong(0L);
+        AtomicLong chunkcachehits = new AtomicLong(0L);
 
         /* Full world, all maps render */
         FullWorldRenderState(DynmapWorld dworld, DynmapLocation l, DynmapCommandSender sender, String mapname, boolean updaterender, boolean resume) {
@@ -302,31 +508,8 @@ public class MapManager {
                 rendertype = RENDERTYPE_FULLRENDER;
             }
             this.resume = resume;
-
-            final CountDownLatch latch = new CountDownLatch(1);
-
-            if (resume) { // if resume render
-                final MapStorage ms = world.getMapStorage();
-                ms.enumMapBaseTiles(world, map, new MapStorageBaseTileEnumCB() {
-                    @Override
-                    public void tileFound(MapStorageTile tile, MapType.ImageEncoding enc) {
-                        String tileId = String.format("%s_%s_%d_%d", tile.world.getName(), tile.map.getName(), tile.x, tile.y);
-                        //sender.sendMessage("Tile found: " + tileId);
-                        storedTileIds.add(tileId);
-                    }
-                }, new MapStorageTileSearchEndCB() {
-                    @Override
-                    public void searchEnded() {
-                        latch.countDown();
-                    }
-                });
-
-                try {
-                    latch.await(10, TimeUnit.SECONDS);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    sender.sendMessage(e.toString());
-                }
+            if (resume) {
+                startStoredTileScan();
             }
         }
         
@@ -432,6 +615,10 @@ public class MapManager {
             mapname = n.getString("mapname", null);
             player = n.getString("player", "");
             updaterender = rendertype.equals(RENDERTYPE_UPDATERENDER);
+            resume = n.getBoolean("resume", false);
+            if (resume) {   /* Stored tiles aren't saved - just scan again */
+                startStoredTileScan();
+            }
             sender = null;
             if(player.length() > 0) {
                 sender = core.getServer().getPlayer(player);
@@ -479,6 +666,8 @@ public class MapManager {
             if(mapname != null)
                 v.put("mapname", mapname);
             v.put("player", player);
+            if (resume)
+                v.put("resume", true);
             return v;
         }
         
@@ -506,6 +695,85 @@ public class MapManager {
                 savePending(this.world, true);    // Save the pending data for the given world
             }
         }
+
+        /* Scan storage for tiles already rendered, on a storage thread: rendering starts right away, and skips tiles once found */
+        private void startStoredTileScan() {
+            final HashMap<String, TileFlags> st = new HashMap<String, TileFlags>();
+            for (MapType mt : world.maps) {
+                st.put(mt.getName(), new TileFlags());
+            }
+            storedtiles = st;
+            scheduleDelayedJob(JobLane.STORAGE, new Runnable() {
+                public void run() {
+                    final AtomicInteger cnt = new AtomicInteger(0);
+                    world.getMapStorage().enumMapBaseTiles(world, null, new MapStorageBaseTileEnumCB() {
+                        @Override
+                        public void tileFound(MapStorageTile tile, MapType.ImageEncoding enc) {
+                            TileFlags tf = st.get(tile.map.getName());
+                            if (tf != null) {
+                                synchronized(tf) {
+                                    tf.setFlag(tile.x, tile.y, true);
+                                }
+                                cnt.incrementAndGet();
+                            }
+                        }
+                    }, null);
+                    Log.info("Found " + cnt.get() + " stored tiles for resume of " + rendertype + " of '" + world.getName() + "'");
+                }
+            }, 0);
+        }
+
+        /* Test if tile is already in storage for the map being rendered */
+        private boolean isTileStored(MapTile tile) {
+            HashMap<String, TileFlags> st = storedtiles;    /* Cleared if cancelled */
+            TileFlags tf = (st != null) ? st.get(map.getName()) : null;
+            if (tf == null) {
+                return false;
+            }
+            synchronized(tf) {
+                return tf.getFlag(tile.tileOrdinalX(), tile.tileOrdinalY());
+            }
+        }
+
+        /* Build chunk order for locality ordered traversal, if enabled and the world can list its chunks */
+        private void initChunkOrder() {
+            chunkorderchecked = true;
+            if ((fullrender_order == null) || updaterender) {
+                return;
+            }
+            TileFlags chunkmap = new TileFlags();
+            int cnt;
+            try {
+                cnt = world.getChunkMap(chunkmap);
+            } catch (RuntimeException x) {
+                Log.warning("Unable to list chunks of world '" + world.getName() + "': " + x);
+                cnt = -1;
+            }
+            if (cnt < 0) {
+                Log.info(rendertype + " of world '" + world.getName() + "' using flood fill order - chunk list not available");
+                return;
+            }
+            chunkorder = new ChunkOrder(chunkmap, fullrender_order, cxmin, czmin, cxmax, czmax);
+        }
+
+        /* Queue tiles for the next chunks in order, until enough are queued: tiles sharing chunks are queued together */
+        private void fillOrderedQueue() {
+            int target = 4 * Math.max(1, parallelrendercnt);
+            while ((renderQueue.size() < target) && chunkorder.next(nextchunk)) {
+                int x = nextchunk.x << 4, z = nextchunk.y << 4;
+                for (TileFlags.TileCoord tc : map.getTileCoords(world, x, 0, z, x + 15, world.worldheight - 1, z + 15)) {
+                    if (!found.getFlag(tc.x, tc.y)) {
+                        found.setFlag(tc.x, tc.y, true);
+                        map.addMapTiles(renderQueue, world, tc.x, tc.y);
+                    }
+                }
+            }
+        }
+
+        /* Single tile (triggered update) renders go in the interactive lane, others are bulk */
+        JobLane getLane() {
+            return (tile0 != null) ? JobLane.UPDATE : JobLane.FULLRENDER;
+        }
         
         public void run() {
             long tstart = System.currentTimeMillis();
@@ -525,7 +793,7 @@ public class MapManager {
                     lastPendingSaveTS = System.currentTimeMillis();
                 }
                 if(pausefullrenders || tpspausefullrenders) {    /* Update renders are paused? */
-                    scheduleDelayedJob(this, 20*5); /* Delay 5 seconds and retry */
+                    scheduleDelayedJob(getLane(), this, 20*5); /* Delay 5 seconds and retry */
                     return;
                 }
                 else if(world.isLoaded() == false) {    /* Update renders are paused? */
@@ -533,13 +801,19 @@ public class MapManager {
                         pausedforworld = true;
                         Log.info("Paused " + rendertype + " for world '" + world.getName() + "' - world unloaded");
                     }
-                    scheduleDelayedJob(this, 20*5); /* Delay 5 seconds and retry */
+                    scheduleDelayedJob(getLane(), this, 20*5); /* Delay 5 seconds and retry */
                     return;
                 }
                 else if(pausedforworld) {
                     pausedforworld = false;
                     Log.info("Unpaused " + rendertype + " for world '" + world.getName() + "' - world reloaded");
                 }
+                if(!chunkorderchecked) {
+                    initChunkOrder();
+                }
+                if((chunkorder != null) && (map != null)) {
+                    fillOrderedQueue();
+                }
                 /* If render queue is empty, start next map */
                 if(renderQueue.isEmpty()) {
                     if(map_index >= 0) { /* Finished a map? */
@@ -563,9 +837,18 @@ public class MapManager {
                                 sendMessage(String.format("%s of map '%s' of '%s' completed - %d tiles rendered (%.2f msec/map-tile, %.2f msec per render)",
                                     rendertype, activemaps, world.getName(), rendercnt, msecpertile, rendtime));
                         }
+                        long reads = chunkreads.get();
+                        if(reads > 0) {
+                            sendMessage(String.format("  Chunk snapshot cache hit rate: %.1f%% of %d chunk reads (%s order)",
+                                100.0 * chunkcachehits.get() / reads, reads, (chunkorder != null) ? chunkorder.getCurve().name().toLowerCase() : "flood fill"));
+                        }
                         skipcnt = 0;
-                        /* Now, if fullrender, use the render bitmap to purge obsolete tiles */
-                        if(rendertype.equals(RENDERTYPE_FULLRENDER)) {
+                        /* Now, if fullrender, use the render bitmap to purge obsolete tiles - not if chunk ordered, as
+                         * chunks not saved to region files yet were not rendered */
+                        if(rendertype.equals(RENDERTYPE_FULLRENDER) && (chunkorder != null)) {
+                            Log.info("Skipped purge of obsolete tiles for map '" + map.getName() + "' of '" + world.getName() + "' - rendered in chunk order");
+                        }
+                        else if(rendertype.equals(RENDERTYPE_FULLRENDER)) {
                             if(activemapcnt == 1) {
                                 map.purgeOldTiles(world, rendered);
                             }
@@ -582,6 +865,8 @@ public class MapManager {
                     timeaccum = 0;
                     total_render_ns.set(0);
                     rendercalls.set(0);
+                    chunkreads.set(0);
+                    chunkcachehits.set(0);
                     /* Advance to next unrendered map */
                     while(map_index < world.maps.size()) {
                         map_index++;    /* Move to next one */
@@ -624,13 +909,19 @@ public class MapManager {
                     renderedmaps.addAll(map.getMapsSharingRender(world));
 
                     /* Now, prime the render queue */
-                    for (MapTile mt : map.getTiles(world, (int)loc.x, (int)loc.y, (int)loc.z)) {
-                        if (!found.getFlag(mt.tileOrdinalX(), mt.tileOrdinalY())) {
-                            found.setFlag(mt.tileOrdinalX(), mt.tileOrdinalY(), true);
-                            renderQueue.add(mt);
+                    if(chunkorder != null) {
+                        chunkorder.rewind();
+                        fillOrderedQueue();
+                    }
+                    else {
+                        for (MapTile mt : map.getTiles(world, (int)loc.x, (int)loc.y, (int)loc.z)) {
+                            if (!found.getFlag(mt.tileOrdinalX(), mt.tileOrdinalY())) {
+                                found.setFlag(mt.tileOrdinalX(), mt.tileOrdinalY(), true);
+                                renderQueue.add(mt);
+                            }
                         }
                     }
-                    if(!updaterender) { /* Only add other seed points for fullrender */
+                    if((!updaterender) && (chunkorder == null)) { /* Only add other seed points for fullrender */
                         /* Add spawn location too (helps with some worlds where 0,64,0 may not be generated */
                         DynmapLocation sloc = world.getSpawnLocation();
                         for (MapTile mt : map.getTiles(world, (int)sloc.x, (int)sloc.y, (int)sloc.z)) {
@@ -651,9 +942,10 @@ public class MapManager {
                         }
                     }
                 }
-                if(parallelrendercnt > 1) { /* Doing parallel renders? */
+                int pcnt = getParallelRenderCount();
+                if(pcnt > 1) { /* Doing parallel renders? */
                     tileset = new ArrayList<MapTile>();
-                    for(int i = 0; i < parallelrendercnt; i++) {
+                    for(int i = 0; i < pcnt; i++) {
                         tile = renderQueue.pollFirst();
                         if(tile != null)
                             tileset.add(tile);
@@ -665,7 +957,7 @@ public class MapManager {
             }
             else {    /* Else, single tile render */
                 if(pauseupdaterenders || tpspauseupdaterenders) {
-                    scheduleDelayedJob(this, 5*20); /* Retry after 5 seconds */
+                    scheduleDelayedJob(getLane(), this, 5*20); /* Retry after 5 seconds */
                     return;
                 }
                 tile = tile0;
@@ -679,9 +971,9 @@ public class MapManager {
                 final int cnt = tileset.size();
                 for(int i = 1; i < cnt; i++) {   /* Do all but first on other threads */
                     final MapTile mt = tileset.get(i);
-                    if((mapman != null) && (mapman.render_pool != null)) {
+                    if((mapman != null) && (mapman.job_pools != null)) {
                         final long ts = tstart;
-                        Future<Boolean> future = mapman.render_pool.submit(new Callable<Boolean>() {
+                        Future<Boolean> future = mapman.job_pools[JobLane.FULLRENDER.ordinal()].submit(new Callable<Boolean>() {
                             public Boolean call() {
                                 return processTile(mt, ts, cnt);
                             }
@@ -727,10 +1019,10 @@ public class MapManager {
                 if(tile0 == null) {    /* fullrender */
                     long tend = System.currentTimeMillis();
                     if(timeslice_int > (tend-tstart)) { /* We were fast enough */
-                        scheduleDelayedJob(this, timeslice_int - (tend-tstart));
+                        scheduleDelayedJob(getLane(), this, timeslice_int - (tend-tstart));
                     }
                     else {  /* Schedule to run ASAP */
-                        scheduleDelayedJob(this, 0);
+                        scheduleDelayedJob(getLane(), this, 0);
                     }
                 }
                 else {
@@ -762,6 +1054,7 @@ public class MapManager {
                                                       tile.isHightestBlockYDataNeeded(), tile.isBiomeDataNeeded(), 
                                                       tile.isRawBiomeDataNeeded());
             if(cache == null) {
+                tile.dropDirtyBounds((tile0 != null) ? null : mapname);
                 /* If world unloaded, don't cancel */
                 if(world.isLoaded() == false) {
                     return true;
@@ -774,19 +1067,30 @@ public class MapManager {
                 chunks_read[cs.ordinal()].addAndGet(cache.getChunksLoaded(cs));
                 chunks_read_times[cs.ordinal()].addAndGet(cache.getTotalRuntimeNanos(cs));
             }
+            int hits = cache.getChunksLoaded(MapChunkCache.ChunkStats.CACHED_SNAPSHOT_HIT);
+            chunkcachehits.addAndGet(hits);
+            chunkreads.addAndGet(hits + cache.getChunksLoaded(MapChunkCache.ChunkStats.LOADED_CHUNKS) +
+                cache.getChunksLoaded(MapChunkCache.ChunkStats.UNLOADED_CHUNKS));
 
             boolean skipTile = false;
             if (resume) {
-                String tileId = String.format("%s_%s_%d_%d", tile.world.getName(), map.getName(), tile.tileOrdinalX(), tile.tileOrdinalY());
-                skipTile = storedTileIds.contains(tileId);
+                skipTile = isTileStored(tile);
             }
 
             if(tile0 != null) {    /* Single tile? */
-                if(cache.isEmpty() == false) {
-                    if (skipTile) {
-                        skipcnt++;
+                if(cache.isEmpty()) {
+                    tile.dropDirtyBounds(null);
+                } else if (skipTile) {
+                    skipcnt++;
+                    tile.dropDirtyBounds(null);
+                } else {
+                    long fingerprint = getTileFingerprint(cache, requiredChunks);
+                    if (isTileUnchanged(tile, fingerprint)) {
+                        tiles_unchanged_skipped.incrementAndGet();
+                        tile.dropDirtyBounds(null);
                     } else {
                         tile.render(cache, null);
+                        setTileFingerprint(tile, fingerprint);
                     }
                 }
             }
@@ -799,15 +1103,24 @@ public class MapManager {
                     if (skipTile) {
                         upd = false;
                         skipcnt++;
+                        tile.dropDirtyBounds(mapname);
                     } else {
                         long rt0 = System.nanoTime();
                         upd = tile.render(cache, mapname);
-                        total_render_ns.addAndGet(System.nanoTime()-rt0);
+                        if (mapname == null) {  // Only track tiles rendered for all maps sharing the render
+                            setTileFingerprint(tile, getTileFingerprint(cache, requiredChunks));
+                        }
+                        long rt = System.nanoTime()-rt0;
+                        total_render_ns.addAndGet(rt);
                         rendercalls.incrementAndGet();
+                        RenderLoadController lc = loadcontrol;
+                        if (lc != null) {
+                            lc.tileRendered(rt);
+                        }
                     }
                     synchronized(lock) {
                         rendered.setFlag(tile.tileOrdinalX(), tile.tileOrdinalY(), true);
-                        if(upd || (!updaterender)) {    /* If updated or not an update render */
+                        if((chunkorder == null) && (upd || (!updaterender))) {    /* If flood fill, and updated or not an update render */
                             /* Add adjacent unrendered tiles to queue */
                             for (MapTile adjTile : map.getAdjecentTiles(tile)) {
                                 if (!found.getFlag(adjTile.tileOrdinalX(),adjTile.tileOrdinalY())) {
@@ -818,6 +1131,9 @@ public class MapManager {
                         }
                     }
                 }
+                else {
+                    tile.dropDirtyBounds(mapname);
+                }
                 synchronized(lock) {
                     if(!cache.isEmpty()) {
                         rendercnt++;
@@ -855,7 +1171,7 @@ public class MapManager {
         
         public void cancelRender() {
         	cancelled = true;
-        	storedTileIds.clear();
+        	storedtiles = null;
         }
 
         public void shutdownRender() {
@@ -872,6 +1188,61 @@ public class MapManager {
         }
     }
 
+    /**
+     * Get combined fingerprint of the chunks required for a tile
+     * @return fingerprint, or 0 if not available for all chunks
+     */
+    private long getTileFingerprint(MapChunkCache cache, List<DynmapChunk> requiredChunks) {
+        if ((tile_fingerprints == null) || requiredChunks.isEmpty()) {
+            return 0;
+        }
+        long fp = requiredChunks.size();
+        for (DynmapChunk c : requiredChunks) {
+            long cfp = cache.getChunkFingerprint(c.x, c.z);
+            if (cfp == 0) {
+                return 0;
+            }
+            fp = MapChunkCache.mixFingerprint(fp, cfp);
+        }
+        return fp;
+    }
+    
+    private boolean isTileUnchanged(MapTile tile, long fingerprint) {
+        if ((tile_fingerprints == null) || (fingerprint == 0)) {
+            return false;
+        }
+        synchronized(tile_fingerprints) {
+            Long v = tile_fingerprints.get(tile);
+            return (v != null) && (v.longValue() == fingerprint);
+        }
+    }
+    
+    private void setTileFingerprint(MapTile tile, long fingerprint) {
+        if (tile_fingerprints == null) {
+            return;
+        }
+        synchronized(tile_fingerprints) {
+            if (fingerprint != 0) {
+                tile_fingerprints.put(tile, fingerprint);
+            }
+            else {
+                tile_fingerprints.remove(tile);
+            }
+        }
+    }
+    
+    /**
+     * Forget fingerprints of rendered tiles - needed when anything other than chunk content changes what tiles
+     * render to (reload, map configuration or texture pack change)
+     */
+    public void clearTileFingerprints() {
+        if (tile_fingerprints != null) {
+            synchronized(tile_fingerprints) {
+                tile_fingerprints.clear();
+            }
+        }
+    }
+
     private class ProcessOBJExport implements Runnable {
         private OBJExport exp;
         private DynmapCommandSender sender;
@@ -927,7 +1298,7 @@ public class MapManager {
             } catch (Exception ix) {
                 Log.severe(ix);
             }
-            scheduleDelayedJob(this, 5000);
+            scheduleDelayedJob(JobLane.MAINTENANCE, this, 5000);
         }
     }
     
@@ -940,17 +1311,125 @@ public class MapManager {
                     w.freshenZoomOutFiles();
                 }
                 Debug.debug("DoZoomOutProcessing finished");
-                scheduleDelayedJob(this, zoomout_period*1000);
+                scheduleDelayedJob(JobLane.ZOOMOUT, this, zoomout_period*1000);
             }
             else {
-                scheduleDelayedJob(this, 5*1000);
+                scheduleDelayedJob(JobLane.ZOOMOUT, this, 5*1000);
             }
         }
     }
     
+    private static String getFocusKey(String world, String perspective) {
+        return world + "/" + perspective;
+    }
+
+    /**
+     * Record web request for tile, so that update renders near it are prioritized
+     * @param w - world
+     * @param tile - requested tile
+     */
+    public void recordTileView(DynmapWorld w, MapStorageTile tile) {
+        if (!(tile.map instanceof HDMap)) return;
+        int half = (1 << tile.zoom) >> 1;   // Zoomed out tiles extend toward +x and -y
+        TileView tv = new TileView(getFocusKey(w.getName(), ((HDMap) tile.map).getPerspective().getName()), tile.x + half, tile.y - half);
+        synchronized (tileViews) {
+            tileViews.addLast(tv);
+            if (tileViews.size() > TILE_VIEW_MAX) {
+                tileViews.removeFirst();
+            }
+        }
+    }
+
+    /* Rebuild tile positions of players and web viewers, and reorder update queue if they changed */
+    private void updateTileFocus() {
+        HashMap<String, ArrayList<Integer>> pts = new HashMap<String, ArrayList<Integer>>();
+        DynmapPlayer[] pl = core.playerList.getOnlinePlayers();
+        for (DynmapPlayer player : pl) {
+            if (player == null) continue;
+            DynmapLocation dl = player.getLocation();
+            if (dl == null) continue;
+            DynmapWorld w = getWorld(dl.world);
+            if (w == null) continue;
+            HashSet<HDPerspective> done = new HashSet<HDPerspective>();
+            for (MapType mt : w.maps) {
+                if (!(mt instanceof HDMap)) continue;
+                HDPerspective p = ((HDMap) mt).getPerspective();
+                if (!done.add(p)) continue;
+                String key = getFocusKey(w.getName(), p.getName());
+                for (TileFlags.TileCoord tc : p.getTileCoords(w, (int) dl.x, (int) dl.y, (int) dl.z)) {
+                    addFocus(pts, key, tc.x, tc.y);
+                }
+            }
+        }
+        long now = System.currentTimeMillis();
+        synchronized (tileViews) {
+            while ((!tileViews.isEmpty()) && ((now - tileViews.peekFirst().time) > TILE_VIEW_EXPIRE)) {
+                tileViews.removeFirst();
+            }
+            for (TileView tv : tileViews) {
+                addFocus(pts, tv.key, tv.x, tv.y);
+            }
+        }
+        HashMap<String, int[]> newfocus = new HashMap<String, int[]>();
+        for (Map.Entry<String, ArrayList<Integer>> e : pts.entrySet()) {
+            ArrayList<Integer> l = e.getValue();
+            int[] v = new int[l.size()];
+            for (int i = 0; i < v.length; i++) {
+                v[i] = l.get(i);
+            }
+            newfocus.put(e.getKey(), v);
+        }
+        HashMap<String, int[]> oldfocus = tileFocus;
+        boolean changed = !oldfocus.keySet().equals(newfocus.keySet());
+        for (Map.Entry<String, int[]> e : newfocus.entrySet()) {
+            if (changed) break;
+            changed = !Arrays.equals(e.getValue(), oldfocus.get(e.getKey()));
+        }
+        if (changed) {
+            tileFocus = newfocus;
+            tileQueue.reprioritize();
+        }
+    }
+
+    private static void addFocus(HashMap<String, ArrayList<Integer>> pts, String key, int x, int y) {
+        ArrayList<Integer> l = pts.get(key);
+        if (l == null) {
+            l = new ArrayList<Integer>();
+            pts.put(key, l);
+        }
+        l.add(x);
+        l.add(y);
+    }
+
+    /* Check memory use against limits, and have caches give some back if needed */
+    private class CheckMemory implements Runnable {
+        public void run() {
+            MemoryManager.checkLimits();
+            scheduleDelayedJob(JobLane.MAINTENANCE, this, MEMORY_CHECK_PERIOD);
+        }
+    }
+
+    /* Adjust render load to server TPS and queued work */
+    private class CheckRenderLoad implements Runnable {
+        public void run() {
+            int fullqueued = 0;
+            synchronized(lock) {
+                for (FullWorldRenderState rs : active_renders.values()) {
+                    fullqueued += rs.renderQueue.size();
+                }
+            }
+            loadcontrol.update(fullqueued, tileQueue.size());
+            tileQueue.setPendingLimit(loadcontrol.getUpdateRenders());
+            scheduleDelayedJob(JobLane.MAINTENANCE, this, LOAD_CHECK_PERIOD);
+        }
+    }
+
     private class DoTouchProcessing implements Runnable {
         public void run() {
             processTouchEvents();
+            if (prioritizeupdates) {
+                updateTileFocus();
+            }
             /* Try to keep update queue above accelerate level, if we have enough */
             int cnt = 2*tileQueue.accelDequeueThresh;
             if(cnt < 100) cnt = 100;
@@ -958,7 +1437,7 @@ public class MapManager {
             if(cnt > 0) {
                 addNextTilesToUpdate(cnt);
             }
-            scheduleDelayedJob(this, 1000); /* Once per second */
+            scheduleDelayedJob(JobLane.MAINTENANCE, this, 1000); /* Once per second */
         }
     }
     
@@ -1052,7 +1531,7 @@ public class MapManager {
         		}
         	}			
         	if (enterexitperiod > 0) {
-        		scheduleDelayedJob(this, enterexitperiod);
+        		scheduleDelayedJob(JobLane.MAINTENANCE, this, enterexitperiod);
         	}
         }
     }
@@ -1126,7 +1605,34 @@ public class MapManager {
         hdmapman.loadHDShaders(core);
         hdmapman.loadHDPerspectives(core);
         hdmapman.loadHDLightings(core);
+        int pixelcachesize = configuration.getInteger("partial-render-cache-size", 256);
+        if (pixelcachesize > 0) {
+            hdmapman.pixelcache = new TilePixelCache(pixelcachesize);
+        }
         parallelrendercnt = configuration.getInteger("parallelrendercnt", 0);
+        String order = configuration.getString("fullrender-order", "flood");
+        if (order.equalsIgnoreCase("hilbert")) {
+            fullrender_order = ChunkOrder.Curve.HILBERT;
+        }
+        else if (order.equalsIgnoreCase("zorder")) {
+            fullrender_order = ChunkOrder.Curve.ZORDER;
+        }
+        else {
+            fullrender_order = null;
+        }
+        for(JobLane lane : JobLane.values()) {
+            int cnt = configuration.getInteger(lane.cfgprefix + "-threads", lane.defthreads);
+            if(cnt < 0) cnt = 0;
+            if((cnt == 0) && (lane.shared == null)) cnt = 1;
+            if(lane == JobLane.FULLRENDER) {
+                cnt += parallelrendercnt;   /* Full render steps wait on parallel tile renders in same lane */
+            }
+            lane_threads[lane.ordinal()] = cnt;
+            int pri = configuration.getInteger(lane.cfgprefix + "-priority", usenormalpriority ? 0 : lane.defpriority);
+            if(pri > Thread.MAX_PRIORITY) pri = Thread.MAX_PRIORITY;
+            if(pri < 0) pri = 0;
+            lane_priority[lane.ordinal()] = pri;
+        }
         progressinterval = configuration.getInteger("progressloginterval", 100);
         if(progressinterval < 100) progressinterval = 100;
         saverestorepending = configuration.getBoolean("saverestorepending", true);
@@ -1149,28 +1655,53 @@ public class MapManager {
         savependingperiod = configuration.getInteger("save-pending-period", 900);
         if ((savependingperiod > 0) && (savependingperiod < 60)) savependingperiod = 60;
         
+        int updaterendercnt = configuration.getInteger("tiles-rendered-at-once", (Runtime.getRuntime().availableProcessors()+1)/2);
         this.tileQueue = new AsynchronousQueue<MapTile>(
                 new Handler<MapTile>() {
                 @Override
                 public void handle(MapTile t) {
                     FullWorldRenderState job = new FullWorldRenderState(t);
-                    if(!scheduleDelayedJob(job, 0))
+                    if(!scheduleDelayedJob(JobLane.UPDATE, job, 0))
                         job.cleanup();
                 }
             }, 
             (int) (configuration.getDouble("renderinterval", 0.5) * 1000),
             configuration.getInteger("renderacceleratethreshold", 30),
             (int)(configuration.getDouble("renderaccelerateinterval", 0.2) * 1000), 
-            configuration.getInteger("tiles-rendered-at-once", (Runtime.getRuntime().availableProcessors()+1)/2),
+            updaterendercnt,
             usenormalpriority);
 
+        prioritizeupdates = configuration.getBoolean("prioritize-update-renders", true);
+        if (prioritizeupdates) {
+            tileQueue.setPrioritizer(new TileProximity());
+        }
+
+        MemoryManager.setLimits(configuration.getInteger("memory-budget-mb", 0) * 1048576L,
+            configuration.getInteger("memory-heap-limit", 85) / 100.0);
+
+        int fpcachesize = configuration.getInteger("tile-fingerprint-cache-size", 50000);
+        if (fpcachesize > 0) {
+            tile_fingerprints = new LRULinkedHashMap<MapTile, Long>(fpcachesize);
+        }
+
         /* On dedicated thread, so default to no delays */
         timeslice_int = (long)(configuration.getDouble("timesliceinterval", 0.0) * 1000);
         max_chunk_loads_per_tick = configuration.getInteger("maxchunkspertick", DEFAULT_CHUNKS_PER_TICK);
         if(max_chunk_loads_per_tick < 5) max_chunk_loads_per_tick = 5;
+        if (configuration.getBoolean("adaptive-render", true)) {
+            double targettps = configuration.getDouble("adaptive-render-tps", 19.0);
+            if (targettps > 19.5) targettps = 19.5;
+            loadcontrol = new RenderLoadController(parallelrendercnt, updaterendercnt, max_chunk_loads_per_tick, targettps);
+        }
         /* Get zoomout processing periond in seconds */
         zoomout_period = configuration.getInteger("zoomoutperiod", DEFAULT_ZOOMOUT_PERIOD);
         if(zoomout_period < 5) zoomout_period = 5;
+        lazyzoomout = configuration.getBoolean("lazy-zoomout", false);
+        if (lazyzoomout && configuration.getBoolean("disable-webserver", false)) {
+            /* Stale zoom-out tiles are only built when the internal web server serves them */
+            Log.warning("lazy-zoomout needs the internal web server - zoom-out tiles will be built in the background");
+            lazyzoomout = false;
+        }
         
         tileQueue.start();
     }
@@ -1193,7 +1724,7 @@ public class MapManager {
             active_renders.put(wname, rndr);    /* Add to active table */
         }
         /* Schedule first tile to be worked */
-        scheduleDelayedJob(rndr, 0);
+        scheduleDelayedJob(rndr.getLane(), rndr, 0);
 
         if(update)
             sender.sendMessage("Update render starting on world '" + wname + "'...");
@@ -1221,7 +1752,7 @@ public class MapManager {
             active_renders.put(wname, rndr);    /* Add to active table */
         }
         /* Schedule first tile to be worked */
-        scheduleDelayedJob(rndr, 0);
+        scheduleDelayedJob(rndr.getLane(), rndr, 0);
         sender.sendMessage("Render of " + radius + " block radius starting on world '" + wname + "'...");
     }
     
@@ -1229,7 +1760,7 @@ public class MapManager {
         ProcessOBJExport e = new ProcessOBJExport();
         e.exp = exp;
         e.sender = sender;
-        scheduleDelayedJob(e, 0);
+        scheduleDelayedJob(JobLane.FULLRENDER, e, 0);
     }
 
     void cancelRender(String w, DynmapCommandSender sender) {
@@ -1311,6 +1842,11 @@ public class MapManager {
             return;
         }
         final MapType mtf = mt;
+        clearTileFingerprints();
+        MapTypeState mts = world.getMapState(mt);
+        if (mts != null) {
+            mts.clearDirtyBounds();
+        }
         Runnable purgejob = new Runnable() {
             public void run() {
                 world.purgeMap(mtf);
@@ -1318,7 +1854,7 @@ public class MapManager {
             }
         };
         /* Schedule first tile to be worked */
-        scheduleDelayedJob(purgejob, 0);
+        scheduleDelayedJob(JobLane.STORAGE, purgejob, 0);
 
         sender.sendMessage("Map tile purge starting on map '" + mapname + "' for world '" + worldname + "'...");
     }
@@ -1333,6 +1869,7 @@ public class MapManager {
         cancelRender(worldname, sender);
         // And purge update queue for world
         purgeQueue(sender, worldname);
+        clearTileFingerprints();
         
         Runnable purgejob = new Runnable() {
             public void run() {
@@ -1341,7 +1878,7 @@ public class MapManager {
             }
         };
         /* Schedule first tile to be worked */
-        scheduleDelayedJob(purgejob, 0);
+        scheduleDelayedJob(JobLane.STORAGE, purgejob, 0);
 
         sender.sendMessage("World purge starting on world '" + worldname + "'...");
     }
@@ -1461,6 +1998,16 @@ public class MapManager {
                     }
                 }
             }
+            /* Get stale zoom out tiles (lazy zoom out) */
+            invmap = cn.getNode("staleZoomOut");
+            if (invmap != null) {
+                for(MapTypeState mts : w.mapstate) {
+                    List<List<String>> v = invmap.getList(mts.type.getPrefix());
+                    if (v != null) {
+                        mts.restoreZoomOutStale(v);
+                    }
+                }
+            }
             /* Get saved render job, if any */
             ConfigurationNode job = cn.getNode("job");
             if((job != null) && (active_renders.get(wname) == null)) {
@@ -1468,7 +2015,7 @@ public class MapManager {
                     FullWorldRenderState j = new FullWorldRenderState(job);
                     active_renders.put(wname, j);
                     if(did_start)   /* Past initial start */
-                        scheduleDelayedJob(j, 5000);
+                        scheduleDelayedJob(j.getLane(), j, 5000);
                     Log.info(j.rendertype + " for world '" + wname + "' restored");
                 } catch (Exception x) {
                     Log.info("Unable to restore render job for world '" + wname + "' - map configuration changed");
@@ -1526,6 +2073,17 @@ public class MapManager {
         if (!invzooms.isEmpty()) {
             saved.put("invZoomOut", invzooms);
         }
+        /* Save stale zoom out tiles (lazy zoom out) */
+        HashMap<String, List<List<String>>> stalezooms = new HashMap<String,List<List<String>>>();
+        for(MapTypeState mts : w.mapstate) {
+            List<List<String>> szo = mts.saveZoomOutStale();
+            if (szo != null) {
+                stalezooms.put(mts.type.getPrefix(), szo);
+            }
+        }
+        if (!stalezooms.isEmpty()) {
+            saved.put("staleZoomOut", stalezooms);
+        }
         
         FullWorldRenderState job = active_renders.get(w.getName());
         if(job != null) {
@@ -1573,12 +2131,31 @@ public class MapManager {
 //        return tileQueue.push(tile);
 //    }
 
+    /**
+     * Schedule job in maintenance lane
+     * @param job - job to run
+     * @param delay_in_msec - delay before running (0 = as soon as possible)
+     * @return true if scheduled, false if job pools not running
+     */
     public static boolean scheduleDelayedJob(Runnable job, long delay_in_msec) {
-        if((mapman != null) && (mapman.render_pool != null)) {
+        return scheduleDelayedJob(JobLane.MAINTENANCE, job, delay_in_msec);
+    }
+
+    /**
+     * Schedule job in given lane
+     * @param lane - job lane
+     * @param job - job to run
+     * @param delay_in_msec - delay before running (0 = as soon as possible)
+     * @return true if scheduled, false if job pools not running
+     */
+    public static boolean scheduleDelayedJob(JobLane lane, Runnable job, long delay_in_msec) {
+        MapManager mm = mapman;
+        DynmapScheduledThreadPoolExecutor[] pools = (mm != null) ? mm.job_pools : null;
+        if(pools != null) {
             if(delay_in_msec > 0)
-                mapman.render_pool.schedule(job, delay_in_msec, TimeUnit.MILLISECONDS);
+                pools[lane.ordinal()].schedule(job, delay_in_msec, TimeUnit.MILLISECONDS);
             else
-                mapman.render_pool.execute(job);
+                pools[lane.ordinal()].execute(job);
             return true;
         }
         else
@@ -1586,19 +2163,33 @@ public class MapManager {
     }
                                                                        
     public void startRendering() {
-        render_pool = new DynmapScheduledThreadPoolExecutor();
+        DynmapScheduledThreadPoolExecutor[] pools = new DynmapScheduledThreadPoolExecutor[lane_threads.length];
+        for(JobLane lane : JobLane.values()) {
+            if(lane_threads[lane.ordinal()] > 0)
+                pools[lane.ordinal()] = new DynmapScheduledThreadPoolExecutor(lane, lane_threads[lane.ordinal()]);
+            else
+                pools[lane.ordinal()] = pools[lane.shared.ordinal()];   /* Shared lanes come after the lane they share */
+        }
+        job_pools = pools;
         tileQueue.start();
-        scheduleDelayedJob(new DoZoomOutProcessing(), 60000);
-        scheduleDelayedJob(new CheckWorldTimes(), 5000);
-        scheduleDelayedJob(new DoTouchProcessing(), 1000);
+        scheduleDelayedJob(JobLane.ZOOMOUT, new DoZoomOutProcessing(), 60000);
+        scheduleDelayedJob(JobLane.MAINTENANCE, new CheckWorldTimes(), 5000);
+        scheduleDelayedJob(JobLane.MAINTENANCE, new DoTouchProcessing(), 1000);
+        MemoryManager.register(fingerprintmem, MemoryManager.PRIORITY_CACHE);
+        MemoryManager.register(renderstatemem, MemoryManager.PRIORITY_NONE);
+        MemoryManager.register(updatequeuemem, MemoryManager.PRIORITY_NONE);
+        scheduleDelayedJob(JobLane.MAINTENANCE, new CheckMemory(), MEMORY_CHECK_PERIOD);
+        if (loadcontrol != null) {
+            scheduleDelayedJob(JobLane.MAINTENANCE, new CheckRenderLoad(), LOAD_CHECK_PERIOD);
+        }
         // If enabled, start enter/exit processing
         if (enterexitperiod > 0) {
         	Log.info("Starting enter/exit processing");
-        	scheduleDelayedJob(new DoUserMoveProcessing(), enterexitperiod);
+        	scheduleDelayedJob(JobLane.MAINTENANCE, new DoUserMoveProcessing(), enterexitperiod);
         }
         /* Resume pending jobs */
         for(FullWorldRenderState job : active_renders.values()) {
-            scheduleDelayedJob(job, 5000);
+            scheduleDelayedJob(job.getLane(), job, 5000);
             Log.info("Resumed render starting on world '" + job.world.getName() + "'...");
         }
         did_start = true;
@@ -1619,12 +2210,25 @@ public class MapManager {
                 }
             }
         }
-        // Shutdown render pool
-        render_pool.shutdown();
+        // Shutdown job pools
+        for(DynmapScheduledThreadPoolExecutor pool : job_pools) {
+            pool.shutdown();
+        }
+        long deadline = System.currentTimeMillis() + 5000;
         try {
-            render_pool.awaitTermination(5, TimeUnit.SECONDS);
+            for(DynmapScheduledThreadPoolExecutor pool : job_pools) {
+                pool.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
         } catch (InterruptedException ix) {
         }
+        /* Write anything storage is holding, once renders have stopped */
+        MapStorage storage = core.getDefaultMapStorage();
+        if (storage != null) {
+            storage.flush();
+        }
+        MemoryManager.unregister(fingerprintmem);
+        MemoryManager.unregister(renderstatemem);
+        MemoryManager.unregister(updatequeuemem);
         mapman = null;
         hdmapman = null;
         did_start = false;
@@ -1679,6 +2283,15 @@ public class MapManager {
                 ms.transparentcnt++;
         }
     }
+    /**
+     * Print memory usage report
+     * @param sender - command sender
+     */
+    public void printMemory(DynmapCommandSender sender) {
+        for (String line : MemoryManager.getReport()) {
+            sender.sendMessage(line);
+        }
+    }
     /**
      * Print statistics command
      * @param sender - command sender
@@ -1713,9 +2326,36 @@ public class MapManager {
         for(String wn : active_renders.keySet())
         	act += wn + " ";
         sender.sendMessage(String.format("  Active render jobs: %s", act));
+        if (loadcontrol != null) {
+            sender.sendMessage("  Render load: " + loadcontrol.getStatus());
+        }
+        sender.sendMessage(String.format("  Unchanged tiles skipped: %d", tiles_unchanged_skipped.get()));
+        TileLockManager tlm = MapStorage.getLockManager();
+        sender.sendMessage(String.format("  Tile lock waits: %d (%d msec total), timeouts: %d", tlm.getWaitCount(), tlm.getWaitTime(), tlm.getTimeoutCount()));
+        /* Job lane stats */
+        DynmapScheduledThreadPoolExecutor[] pools = job_pools;
+        if(pools != null) {
+            sender.sendMessage("Job Lane Statistics:");
+            for(JobLane lane : JobLane.values()) {
+                DynmapScheduledThreadPoolExecutor pool = pools[lane.ordinal()];
+                if(pool.lane != lane) {
+                    sender.sendMessage(String.format("  %s: runs in %s lane", lane.getLabel(), pool.lane.getLabel()));
+                    continue;
+                }
+                long cnt = pool.jobsrun.get();
+                long div = (cnt > 0) ? cnt : 1;
+                sender.sendMessage(String.format("  %s: threads=%d, active=%d, queued=%d, run=%d, avg wait=%d msec, max wait=%d msec, avg run=%d msec",
+                        pool.lane.getLabel(), pool.getCorePoolSize(), pool.getActiveCount(), pool.getQueue().size(), cnt,
+                        pool.waittime.get() / div, pool.maxwait.get(), pool.runtime.get() / div));
+            }
+        }
         /* Chunk load stats */
         sender.sendMessage("Chunk Loading Statistics:");
         sender.sendMessage(String.format("  Cache hit rate: %.2f%%", core.getServer().getCacheHitRate()));
+        String cachestats = core.getServer().getCacheStats();
+        if (cachestats != null) {
+            sender.sendMessage("  Cache: " + cachestats);
+        }
         for (MapChunkCache.ChunkStats cs : MapChunkCache.ChunkStats.values()) {
             int cnt = chunks_read[cs.ordinal()].get();
             if (cnt == 0) cnt = 1;
@@ -1760,6 +2400,13 @@ public class MapManager {
                 ts.tilesqueued = 0;
             }
             chunk_caches_created.set(0);
+            tiles_unchanged_skipped.set(0);
+            MapStorage.getLockManager().resetStats();
+            if(job_pools != null) {
+                for(DynmapScheduledThreadPoolExecutor pool : job_pools) {
+                    pool.resetStats();
+                }
+            }
             for (int i = 0; i < chunks_read.length; i++) {
                 chunks_read[i].set(0);
                 chunks_read_times[i].set(0);
@@ -1865,6 +2512,8 @@ public class MapManager {
         }
         DynmapWorld world = null;
         String wname = "";
+        HDMapManager hdm = hdmapman;
+        boolean trackbounds = (hdm != null) && (hdm.pixelcache != null);   /* Record dirty bounds for partial renders */
 
         /* If any touch events, process them */
         if(te != null) {
@@ -1878,7 +2527,11 @@ public class MapManager {
                 if(world == null) continue;
                 for (MapTypeState mts : world.mapstate) {
                     List<TileFlags.TileCoord> tiles = mts.type.getTileCoords(world, evt.x, evt.y, evt.z);
-                    invalidates += mts.invalidateTiles(tiles);
+                    int[] bounds = null;
+                    if (trackbounds) {
+                        bounds = mts.type.getDirtyBounds(world, evt.x, evt.y, evt.z, evt.x, evt.y, evt.z);
+                    }
+                    invalidates += mts.invalidateTiles(tiles, bounds);
                 }
                 if(evt.reason != null) {
                     synchronized(lock) {
@@ -1910,7 +2563,11 @@ public class MapManager {
                 int invalidates = 0;
                 for (MapTypeState mts : world.mapstate) {
                     List<TileFlags.TileCoord> tiles = mts.type.getTileCoords(world, evt.xmin, evt.ymin, evt.zmin, evt.xmax, evt.ymax, evt.zmax);
-                    invalidates += mts.invalidateTiles(tiles);
+                    int[] bounds = null;
+                    if (trackbounds) {
+                        bounds = mts.type.getDirtyBounds(world, evt.xmin, evt.ymin, evt.zmin, evt.xmax, evt.ymax, evt.zmax);
+                    }
+                    invalidates += mts.invalidateTiles(tiles, bounds);
                 }
                 if(evt.reason != null) {
                     synchronized(lock) {
@@ -1933,10 +2590,21 @@ public class MapManager {
     }
     
     public int getMaxChunkLoadsPerTick() {
-        return max_chunk_loads_per_tick;
+        RenderLoadController lc = loadcontrol;
+        return (lc != null) ? lc.getChunkLoadsPerTick() : max_chunk_loads_per_tick;
+    }
+
+    /* Tiles rendered at once by full render steps */
+    private int getParallelRenderCount() {
+        RenderLoadController lc = loadcontrol;
+        return (lc != null) ? Math.min(parallelrendercnt, lc.getParallelRenders()) : parallelrendercnt;
     }
     
     public void updateTPS(double tps) {
+        RenderLoadController lc = loadcontrol;
+        if (lc != null) {
+            lc.setTPS(tps);
+        }
         // Pause if needed for update renders
         tpspauseupdaterenders = (tps < tpslimit_updaterenders);
         // Pause if needed for fullrenders
@@ -1954,6 +2622,9 @@ public class MapManager {
     public boolean getTPSZoomOutPause() {
         return tpspausezoomout;
     }
+    public boolean getLazyZoomOut() {
+        return lazyzoomout;
+    }
     public void setJobsQuiet(DynmapCommandSender sender) {
         DynmapPlayer player = null;
         if (sender instanceof DynmapPlayer) {
@@ -34,6 +34,13 @@ public abstract class MapTile {
 
     public abstract int tileOrdinalX();
     public abstract int tileOrdinalY();
+
+    /**
+     * Drop dirty bounds recorded for tile, when it is skipped rather than rendered
+     * @param mapname - map the tile was to be rendered for, or null for all maps sharing the tile
+     */
+    public void dropDirtyBounds(String mapname) {
+    }
     
     public ConfigurationNode saveTile() {
         ConfigurationNode cn = new ConfigurationNode();
@@ -100,6 +100,21 @@ public abstract class MapType {
 
     public abstract List<TileFlags.TileCoord> getTileCoords(DynmapWorld w, int minx, int miny, int minz, int maxx, int maxy, int maxz);
 
+    /**
+     * Get bounds of the part of the map affected by a change in the given volume, for partial re-rendering of tiles
+     * @param w - world
+     * @param minx - minimum X of volume
+     * @param miny - minimum Y of volume
+     * @param minz - minimum Z of volume
+     * @param maxx - maximum X of volume
+     * @param maxy - maximum Y of volume
+     * @param maxz - maximum Z of volume
+     * @return {minx, miny, maxx, maxy} in map pixel coordinates, or null if not supported (whole tiles re-rendered)
+     */
+    public int[] getDirtyBounds(DynmapWorld w, int minx, int miny, int minz, int maxx, int maxy, int maxz) {
+        return null;
+    }
+
     public abstract MapTile[] getAdjecentTiles(MapTile tile);
 
     public abstract List<DynmapChunk> getRequiredChunks(MapTile tile);
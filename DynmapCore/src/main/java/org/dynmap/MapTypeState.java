@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import org.dynmap.utils.DynLongHashMap;
 import org.dynmap.utils.TileFlags;
 
 public class MapTypeState {
@@ -22,6 +23,14 @@ public class MapTypeState {
     private TileFlags.Iterator zoomOutInvIter = null;
     private int zoomOutInvIterLevel = -1;
     private final int zoomOutLevels;
+    /* Stale zoomed out tiles, by zoom level - 1 (lazy zoom out: built when requested) */
+    private ArrayList<TileFlags> zoomOutStale = new ArrayList<TileFlags>();
+    /* Dirty bounds (map pixel coordinates) of invalidated tiles, pending render, and tiles needing full render */
+    private static final int MAX_DIRTY_BOUNDS = 16384;
+    /** Returned by takeDirtyBounds for tiles invalidated as a whole */
+    public static final int[] DIRTY_FULL = new int[0];
+    private DynLongHashMap dirtyBounds = new DynLongHashMap();
+    private TileFlags fullDirtyTiles = new TileFlags();
     
     public MapTypeState(DynmapWorld world, MapType mt) {
         type = mt;
@@ -31,6 +40,7 @@ public class MapTypeState {
         for (int i = 0; i < zoomOutLevels; i++) {
             zoomOutInv.add(null);
             zoomOutInvAccum.add(null);
+            zoomOutStale.add(null);
         }
     }
     public void setInvalidatePeriod(long inv_per_in_secs) {
@@ -41,22 +51,93 @@ public class MapTypeState {
         boolean done;
         synchronized(invTileLock) {
             done = !pendingInvTiles.setFlag(tx, ty, true);
+            addDirtyBounds(tx, ty, null);
         }
         return done;
     }
 
     public int invalidateTiles(List<TileFlags.TileCoord> coords) {
+        return invalidateTiles(coords, null);
+    }
+
+    /**
+     * Invalidate tiles, recording the part of the map that changed
+     * @param coords - tiles to invalidate
+     * @param bounds - changed area, in map pixel coordinates ({minx, miny, maxx, maxy}), or null if whole tiles
+     * @return number of tiles newly invalidated
+     */
+    public int invalidateTiles(List<TileFlags.TileCoord> coords, int[] bounds) {
         int cnt = 0;
         synchronized(invTileLock) {
             for(TileFlags.TileCoord c : coords) {
                 if(!pendingInvTiles.setFlag(c.x, c.y, true)) {
                     cnt++;
                 }
+                addDirtyBounds(c.x, c.y, bounds);
             }
         }
         return cnt;
     }
 
+    /* Pack tile coordinate - low word mixes both, as it is what the map hashes on */
+    private static long tileKey(int tx, int ty) {
+        return (((long) ty) << 32) | ((tx ^ (ty * 0x9E3779B9)) & 0xFFFFFFFFL);
+    }
+
+    /* Merge bounds into dirty bounds for tile - must hold invTileLock */
+    private void addDirtyBounds(int tx, int ty, int[] bounds) {
+        if (fullDirtyTiles.getFlag(tx, ty)) {
+            return;
+        }
+        long key = tileKey(tx, ty);
+        int[] cur = (int[]) dirtyBounds.get(key);
+        if (bounds == null) {
+            if (cur != null) {
+                dirtyBounds.remove(key);
+            }
+            fullDirtyTiles.setFlag(tx, ty, true);
+        }
+        else if (cur != null) {
+            cur[0] = Math.min(cur[0], bounds[0]);
+            cur[1] = Math.min(cur[1], bounds[1]);
+            cur[2] = Math.max(cur[2], bounds[2]);
+            cur[3] = Math.max(cur[3], bounds[3]);
+        }
+        else if (dirtyBounds.size() < MAX_DIRTY_BOUNDS) {
+            dirtyBounds.put(key, bounds.clone());
+        }
+        else {  /* Too many pending - fall back to whole tile */
+            fullDirtyTiles.setFlag(tx, ty, true);
+        }
+    }
+
+    /**
+     * Get and clear the dirty bounds recorded for a tile, as it is about to be rendered - or dropped without rendering
+     * @param tx - tile X
+     * @param ty - tile Y
+     * @return {minx, miny, maxx, maxy} in map pixel coordinates, DIRTY_FULL if whole tile was invalidated, or null if
+     *  tile was not invalidated since last taken
+     */
+    public int[] takeDirtyBounds(int tx, int ty) {
+        synchronized(invTileLock) {
+            int[] bounds = (int[]) dirtyBounds.remove(tileKey(tx, ty));
+            if (fullDirtyTiles.setFlag(tx, ty, false)) {
+                bounds = DIRTY_FULL;
+            }
+            return bounds;
+        }
+    }
+
+    /**
+     * Drop dirty bounds of all tiles (queue or map purged)
+     */
+    public void clearDirtyBounds() {
+        synchronized(invTileLock) {
+            dirtyBounds.clear();
+            fullDirtyTiles.clear();
+        }
+    }
+
     public void tickMapTypeState(long now_nano) {
         if(nextInvTS < now_nano) {
             synchronized(invTileLock) {
@@ -191,6 +272,8 @@ public class MapTypeState {
     public void clear() {
         synchronized(invTileLock) {
             invTiles.clear();
+            dirtyBounds.clear();
+            fullDirtyTiles.clear();
         }
     }
     // Set to zoom out accum
@@ -272,4 +355,91 @@ public class MapTypeState {
         }
         return false;
     }
+
+    /**
+     * Mark zoomed out tile as stale (lazy zoom out)
+     * @param x - tile X
+     * @param y - tile Y
+     * @param zoom - zoom level of tile (1 or more)
+     * @return true if newly marked, false if already stale or beyond zoom out levels
+     */
+    public boolean setZoomOutStale(int x, int y, int zoom) {
+        if ((zoom < 1) || (zoom > zoomOutLevels)) {
+            return false;
+        }
+        synchronized(invTileLock) {
+            TileFlags tf = zoomOutStale.get(zoom - 1);
+            if (tf == null) {
+                tf = new TileFlags();
+                zoomOutStale.set(zoom - 1, tf);
+            }
+            return !tf.setFlag(x >> zoom, y >> zoom, true);
+        }
+    }
+    /**
+     * Test if zoomed out tile is stale (lazy zoom out)
+     * @param x - tile X
+     * @param y - tile Y
+     * @param zoom - zoom level of tile
+     * @return true if stale
+     */
+    public boolean isZoomOutStale(int x, int y, int zoom) {
+        if ((zoom < 1) || (zoom > zoomOutLevels)) {
+            return false;
+        }
+        synchronized(invTileLock) {
+            TileFlags tf = zoomOutStale.get(zoom - 1);
+            return (tf != null) && tf.getFlag(x >> zoom, y >> zoom);
+        }
+    }
+    /**
+     * Clear stale mark on zoomed out tile, as it is about to be built (lazy zoom out)
+     * @param x - tile X
+     * @param y - tile Y
+     * @param zoom - zoom level of tile
+     * @return true if tile was stale
+     */
+    public boolean clearZoomOutStale(int x, int y, int zoom) {
+        if ((zoom < 1) || (zoom > zoomOutLevels)) {
+            return false;
+        }
+        synchronized(invTileLock) {
+            TileFlags tf = zoomOutStale.get(zoom - 1);
+            return (tf != null) && tf.setFlag(x >> zoom, y >> zoom, false);
+        }
+    }
+    public List<List<String>> saveZoomOutStale() {
+        ArrayList<List<String>> rslt = new ArrayList<List<String>>();
+        synchronized(invTileLock) {
+            boolean empty = true;
+            for (TileFlags tf : zoomOutStale) {
+                List<String> val = (tf != null) ? tf.save() : null;
+                if ((val == null) || val.isEmpty()) {
+                    val = Collections.emptyList();
+                }
+                else {
+                    empty = false;
+                }
+                rslt.add(val);
+            }
+            if (empty) {
+                rslt = null;
+            }
+        }
+        return rslt;
+    }
+    public void restoreZoomOutStale(List<List<String>> dat) {
+        synchronized(invTileLock) {
+            int cnt = Math.min(dat.size(), zoomOutStale.size());
+            for (int i = 0; i < cnt; i++) {
+                List<String> lst = dat.get(i);
+                TileFlags tf = null;
+                if ((lst != null) && (lst.size() > 0)) {
+                    tf = new TileFlags();
+                    tf.load(lst);
+                }
+                zoomOutStale.set(i, tf);
+            }
+        }
+    }
 }
@@ -302,7 +302,7 @@ public class PlayerFaces {
             public void playerEvent(DynmapPlayer p) {
                 Runnable job = new LoadPlayerImages(p.getName(), p.getSkinURL(), p.getUUID(), core.skinUrlProvider);
                 if(fetchskins)
-                    MapManager.scheduleDelayedJob(job, 0);
+                    MapManager.scheduleDelayedJob(MapManager.JobLane.STORAGE, job, 0);
                 else
                     job.run();
             }
@@ -0,0 +1,158 @@
+package org.dynmap;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Feedback control of render load: adjusts the number of tiles rendered at once by full renders and update renders,
+ * and the chunk loads per server tick, between 1 (or a floor, for chunk loads) and the configured settings.
+ *
+ * Each period, if server TPS has dropped below the target, all three are cut back by a fraction of their value; if
+ * TPS is at the target, each one with more work queued than it allows grows by a step.  A step up in full render
+ * tiles is kept only if the measured cost per tile shows that it raised throughput - otherwise (the CPU is already
+ * busy) it is undone, and growth waits a few periods.  The existing TPS pause limits still apply below this.
+ */
+class RenderLoadController {
+    private static final double TPS_MARGIN = 0.5;       /* TPS below target by more than this is under load */
+    private static final double TPS_HEAVY = 2.0;        /* TPS below target by more than this is heavy load */
+    private static final double SHRINK = 0.75;          /* Multiplier under load */
+    private static final double SHRINK_HEAVY = 0.5;     /* Multiplier under heavy load */
+    private static final double MIN_GAIN = 1.05;        /* Throughput gain needed to keep a step up in tiles at once */
+    private static final int HOLD_PERIODS = 3;          /* Periods to wait after cutting back, before growing again */
+    private static final double COST_SMOOTH = 0.3;      /* Weight of latest period in smoothed tile cost */
+
+    private final int maxparallel, maxupdates, maxchunks, minchunks;
+    private final double targettps;
+
+    private volatile double tps = 20.0;
+    private final AtomicLong tile_ns = new AtomicLong(0);
+    private final AtomicInteger tilecnt = new AtomicInteger(0);
+
+    /* Guarded by this */
+    private double parallel, updates, chunks;   /* Current settings - fractional, so cut backs are smooth */
+    private double tilecost;                    /* Smoothed msec per tile, 0 if not known */
+    private int grewfrom;                       /* Tiles at once before last step up, 0 if not being checked */
+    private double costbefore;                  /* Tile cost before last step up */
+    private int hold;
+
+    /**
+     * @param maxparallel - configured tiles at once for full renders
+     * @param maxupdates - configured tiles at once for update renders
+     * @param maxchunks - configured chunk loads per tick
+     * @param targettps - TPS to keep server at
+     */
+    RenderLoadController(int maxparallel, int maxupdates, int maxchunks, double targettps) {
+        this.maxparallel = Math.max(1, maxparallel);
+        this.maxupdates = Math.max(1, maxupdates);
+        this.maxchunks = maxchunks;
+        this.minchunks = Math.min(maxchunks, Math.max(5, maxchunks / 10));
+        this.targettps = targettps;
+        /* Start at configured settings - cut back if the server can't keep up */
+        parallel = this.maxparallel;
+        updates = this.maxupdates;
+        chunks = maxchunks;
+    }
+
+    /**
+     * Record current server TPS - called each tick
+     * @param tps - TPS
+     */
+    void setTPS(double tps) {
+        this.tps = tps;
+    }
+
+    /**
+     * Record tile render time
+     * @param ns - render time, in nanoseconds
+     */
+    void tileRendered(long ns) {
+        tile_ns.addAndGet(ns);
+        tilecnt.incrementAndGet();
+    }
+
+    /**
+     * Update settings - called periodically
+     * @param fullqueued - tiles queued for full renders
+     * @param updatequeued - tiles queued for update renders
+     */
+    synchronized void update(int fullqueued, int updatequeued) {
+        int cnt = tilecnt.getAndSet(0);
+        long ns = tile_ns.getAndSet(0);
+        double cost = (cnt > 0) ? (ns / 1000000.0 / cnt) : 0;
+        if (cost > 0) {
+            tilecost = (tilecost > 0) ? ((tilecost * (1.0 - COST_SMOOTH)) + (cost * COST_SMOOTH)) : cost;
+        }
+        double curtps = tps;
+        if (curtps < (targettps - TPS_MARGIN)) {    /* Under load - cut back */
+            double mult = (curtps < (targettps - TPS_HEAVY)) ? SHRINK_HEAVY : SHRINK;
+            parallel = Math.max(1.0, parallel * mult);
+            updates = Math.max(1.0, updates * mult);
+            chunks = Math.max(minchunks, chunks * mult);
+            grewfrom = 0;
+            hold = HOLD_PERIODS;
+            return;
+        }
+        if (curtps < targettps) {   /* Close to target - hold steady */
+            return;
+        }
+        if (hold > 0) {
+            hold--;
+            return;
+        }
+        if (grewfrom > 0) {     /* Check if last step up paid off */
+            if (cost > 0) {
+                /* Throughput is tiles at once / cost per tile */
+                if ((cost * grewfrom * MIN_GAIN) > (costbefore * (grewfrom + 1))) {
+                    parallel = grewfrom;
+                    hold = HOLD_PERIODS;
+                }
+                grewfrom = 0;
+            }
+        }
+        else if ((fullqueued > (int) parallel) && (parallel < maxparallel)) {
+            grewfrom = (int) parallel;
+            costbefore = tilecost;
+            parallel = grewfrom + 1;
+            if (costbefore <= 0) {  /* Nothing to compare with */
+                grewfrom = 0;
+            }
+        }
+        if ((updatequeued > (int) updates) && (updates < maxupdates)) {
+            updates = Math.min(maxupdates, Math.floor(updates) + 1);
+        }
+        chunks = Math.min(maxchunks, chunks + Math.max(1, maxchunks / 8));
+    }
+
+    /**
+     * Get tiles to render at once, for full renders
+     * @return tile count
+     */
+    synchronized int getParallelRenders() {
+        return (int) parallel;
+    }
+
+    /**
+     * Get tiles to render at once, for update renders
+     * @return tile count
+     */
+    synchronized int getUpdateRenders() {
+        return (int) updates;
+    }
+
+    /**
+     * Get chunk loads per tick
+     * @return chunk loads
+     */
+    synchronized int getChunkLoadsPerTick() {
+        return (int) chunks;
+    }
+
+    /**
+     * Get status, for stats
+     * @return status
+     */
+    synchronized String getStatus() {
+        return String.format("tiles at once=%d/%d (update %d/%d), chunk loads per tick=%d/%d, TPS=%.1f (target %.1f), tile cost=%.1f msec",
+            (int) parallel, maxparallel, (int) updates, maxupdates, (int) chunks, maxchunks, tps, targettps, tilecost);
+    }
+}
@@ -50,6 +50,16 @@ public class UpdateQueue {
         }
     }
     
+    /**
+     * Get number of queued updates
+     * @return count
+     */
+    public int size() {
+        synchronized (lock) {
+            return updateSet.size();
+        }
+    }
+
     public void pushUpdate(Client.Update obj) {
         synchronized (lock) {
             /* Do inside lock - prevent delay between time and actual work */
@@ -109,6 +109,13 @@ public abstract class DynmapServerInterface {
      * Reset cache stats
      */
     public abstract void resetCacheStats();
+    /**
+     * Get snapshot cache statistics summary
+     * @return summary, or null if not supported
+     */
+    public String getCacheStats() {
+        return null;
+    }
     /**
      * Get world by name
      * @param wname - world name
@@ -5,13 +5,20 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -37,6 +44,11 @@ import org.dynmap.utils.MapIterator;
 import org.dynmap.utils.PatchDefinition;
 import org.dynmap.utils.PatchDefinitionFactory;
 
+/**
+ * OBJ file export.  Blocks of 4x4 chunks are meshed in parallel by worker threads, and the resulting meshes are
+ * written to the ZIP in order as they complete, with a bounded number in flight - so memory use does not grow
+ * with the size of the exported area.
+ */
 public class OBJExport {
     private final File destZipFile;     // Destination ZIP file
     private final HDShader shader;      // Shader to be used for textures
@@ -52,39 +64,35 @@ public class OBJExport {
     private boolean centerOrigin = true;    // Center at origin
     private PatchDefinition[] defaultPathces;   // Default patches for solid block, indexed by BlockStep.ordinal()
     private HashSet<String> matIDs = new HashSet<String>();     // Set of defined material ids for RP
-    
-    private static class Face {
-        String groupLine;
-        String faceLine;
-    }
-    
-    private HashMap<String, List<Face>> facesByTexture = new HashMap<String, List<Face>>();
+    private final int threadcnt;        // Number of meshing threads
+
     private static final int MODELSCALE = 16;
     private static final double BLKSIZE = 1.0 / (double) MODELSCALE;
-    
+    private static final int OUTPUT_FLUSH_SIZE = 65536;
+
     // Index of group settings
     public static final int GROUP_CHUNK = 0;
     public static final int GROUP_TEXTURE = 1;
     public static final int GROUP_BLOCKID = 2;
     public static final int GROUP_BLOCKIDMETA = 3;
     public static final int GROUP_COUNT = 4;
-    private String[] group = new String[GROUP_COUNT];
     private boolean[] enabledGroups = new boolean[GROUP_COUNT];
-    private String groupline = null;
-    
-    // Vertex set
+
+    // Vertex set - global indexes, written as added (only used on writing thread)
     private IndexedVector3DList vertices;
     // UV set
     private IndexedVector3DList uvs;
+    // Pending output text for current file (only used on writing thread)
+    private final StringBuilder out = new StringBuilder();
     // Scaled models
     private HDScaledBlockModels models;
-    
+
     public static final int ROT0 = 0;
     public static final int ROT90 = 1;
     public static final int ROT180 = 2;
     public static final int ROT270 = 3;
     public static final int HFLIP = 4;
-    
+
     private static final double[][] pp = {
         { 0, 0, 0, 1, 0, 0, 0, 0, 1 },
         { 0, 1, 1, 1, 1, 1, 0, 1, 0 },
@@ -93,7 +101,93 @@ public class OBJExport {
         { 0, 0, 0, 0, 0, 1, 0, 1, 0 },
         { 1, 0, 1, 1, 0, 0, 1, 1, 1 }
     };
-    
+
+    /**
+     * Deduplicated list of vertices (or UVs, with z = 0) for one mesh, in a flat array
+     */
+    private static class VertexBuffer {
+        double[] xyz = new double[3 * 256];
+        int cnt;
+        private int[] table = new int[1024];    // Open addressing: vertex index + 1, or 0 if empty
+
+        private static int hash(double x, double y, double z) {
+            /* Adding 0.0 makes -0.0 hash like 0.0, since they compare equal */
+            long v = Double.doubleToLongBits(x + 0.0) * 31 + Double.doubleToLongBits(y + 0.0);
+            v = v * 31 + Double.doubleToLongBits(z + 0.0);
+            v ^= (v >>> 32);
+            return (int) (v ^ (v >>> 16));
+        }
+        /**
+         * Get index of given vector, adding it if new
+         * @return index (0-based)
+         */
+        int getIndex(double x, double y, double z) {
+            int mask = table.length - 1;
+            int h = hash(x, y, z) & mask;
+            int e;
+            while ((e = table[h]) != 0) {
+                int off = 3 * (e - 1);
+                if ((xyz[off] == x) && (xyz[off+1] == y) && (xyz[off+2] == z)) {
+                    return e - 1;
+                }
+                h = (h + 1) & mask;
+            }
+            int idx = cnt++;
+            if ((3 * cnt) > xyz.length) {
+                xyz = Arrays.copyOf(xyz, 2 * xyz.length);
+            }
+            xyz[3*idx] = x;
+            xyz[3*idx+1] = y;
+            xyz[3*idx+2] = z;
+            table[h] = idx + 1;
+            if ((2 * cnt) > table.length) {     // Keep at most half full
+                table = new int[2 * table.length];
+                mask = table.length - 1;
+                for (int i = 0; i < cnt; i++) {
+                    h = hash(xyz[3*i], xyz[3*i+1], xyz[3*i+2]) & mask;
+                    while (table[h] != 0) {
+                        h = (h + 1) & mask;
+                    }
+                    table[h] = i + 1;
+                }
+            }
+            return idx;
+        }
+    }
+
+    /**
+     * Face lines for one material in a mesh: 8 local indexes (v0, uv0, ... v3, uv3) and the group line for each
+     */
+    private static class FaceList {
+        int[] idx = new int[8 * 32];
+        String[] groupLines = new String[32];
+        int cnt;
+
+        void add(String groupLine, int v0, int uv0, int v1, int uv1, int v2, int uv2, int v3, int uv3) {
+            if (cnt == groupLines.length) {
+                groupLines = Arrays.copyOf(groupLines, 2 * cnt);
+                idx = Arrays.copyOf(idx, 16 * cnt);
+            }
+            groupLines[cnt] = groupLine;
+            int off = 8 * cnt;
+            idx[off] = v0; idx[off+1] = uv0;
+            idx[off+2] = v1; idx[off+3] = uv1;
+            idx[off+4] = v2; idx[off+5] = uv2;
+            idx[off+6] = v3; idx[off+7] = uv3;
+            cnt++;
+        }
+    }
+
+    /**
+     * Mesh for one block of chunks
+     */
+    private static class ChunkBlockMesh {
+        final VertexBuffer vertices = new VertexBuffer();
+        final VertexBuffer uvs = new VertexBuffer();
+        final LinkedHashMap<String, FaceList> facesByTexture = new LinkedHashMap<String, FaceList>();
+        int maxx, maxz;     // Exclusive limit of area covered, for trimming global vertex set
+    }
+
     /**
      * Constructor for OBJ file export
      * @param dest - destination file (ZIP)
@@ -118,32 +212,37 @@ public class OBJExport {
         vertices = new IndexedVector3DList(new IndexedVector3DList.ListCallback() {
             @Override
             public void elementAdded(IndexedVector3DList list, IndexedVector3D newElement) {
-                try {
-                    /* Minecraft XYZ maps to OBJ YZX */
-                    addStringToExportedFile(String.format(Locale.US, "v %.4f %.4f %.4f\n", 
-                            (newElement.x - originX) * scale,
-                            (newElement.y - originY) * scale,
-                            (newElement.z - originZ) * scale
-                            ));
-                } catch (IOException iox) {
-                }
+                /* Minecraft XYZ maps to OBJ YZX */
+                out.append("v ");
+                appendFixed4(out, (newElement.x - originX) * scale);
+                out.append(' ');
+                appendFixed4(out, (newElement.y - originY) * scale);
+                out.append(' ');
+                appendFixed4(out, (newElement.z - originZ) * scale);
+                out.append('\n');
             }
         });
         uvs = new IndexedVector3DList(new IndexedVector3DList.ListCallback() {
             @Override
             public void elementAdded(IndexedVector3DList list, IndexedVector3D newElement) {
-                try {
-                    addStringToExportedFile(String.format(Locale.US, "vt %.4f %.4f\n", newElement.x, newElement.y));
-                } catch (IOException iox) {
-                }
+                out.append("vt ");
+                appendFixed4(out, newElement.x);
+                out.append(' ');
+                appendFixed4(out, newElement.y);
+                out.append('\n');
             }
         });
         // Get models
         models = HDBlockModels.getModelsForScale(MODELSCALE);
+        int threads = (core.configuration != null) ? core.configuration.getInteger("export-threads", 0) : 0;
+        if (threads <= 0) {
+            threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        }
+        threadcnt = threads;
     }
     /**
      * Set render bounds
-     * 
+     *
      * @param minx - minimum X coord
      * @param miny - minimum Y coord
      * @param minz - minimum Z coord
@@ -199,100 +298,49 @@ public class OBJExport {
     }
     /**
      * Process export
-     * 
+     *
      * @param sender - command sender: use for feedback messages
      * @return true if successful, false if not
      */
     public boolean processExport(DynmapCommandSender sender) {
         boolean good = false;
+        ExecutorService workers = Executors.newFixedThreadPool(threadcnt, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Dynmap OBJ Export Thread");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
         try {
             // Open ZIP file destination
             zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(destZipFile)));
-            
-            List<DynmapChunk> requiredChunks = new ArrayList<DynmapChunk>();
+
             int mincx = (minX >> 4);
             int maxcx = (maxX + 15) >> 4;
             int mincz = (minZ >> 4);
             int maxcz = (maxZ + 15) >> 4;
-            boolean[] edgebits = new boolean[6];
 
             startExportedFile(basename + ".obj");
             // Add material library
-            addStringToExportedFile("mtllib " + basename + ".mtl\n");
+            out.append("mtllib ").append(basename).append(".mtl\n");
 
-            // Loop through - do 8x8 chunks at a time (plus 1 border each way)
+            // Loop through - do 4x4 chunks at a time (plus 1 border each way), meshing ahead on the worker threads
+            ArrayDeque<Future<ChunkBlockMesh>> pending = new ArrayDeque<Future<ChunkBlockMesh>>();
+            int maxpending = 2 * threadcnt;
             for (int cx = mincx; cx <= maxcx; cx += 4) {
                 for (int cz = mincz; cz <= maxcz; cz += 4) {
-                    // Build chunk cache for block of chunks
-                    requiredChunks.clear();
-                    for (int i = -1; i < 5; i++) {
-                        for (int j = -1; j < 5; j++) {
-                            if (((cx+i) <= maxcx) && ((cz+j) <= maxcz) && ((cx+i) >= mincx) && ((cz+j) >= mincz)) {
-                                requiredChunks.add(new DynmapChunk(cx + i, cz + j));
-                            }
-                        }
-                    }
-                    // Get the chunk buffer
-                    MapChunkCache cache = core.getServer().createMapChunkCache(world, requiredChunks, true, false, true, false);
-                    if (cache == null) {
-                        throw new IOException("Error loading chunk cache");
-                    }
-                    MapIterator iter = cache.getIterator(minX, minY, minZ);
-                    for (int x = cx * 16; (x < (cx * 16 + 64)) && (x <= maxX); x++) {
-                        if (x < minX) x = minX;
-                        edgebits[BlockStep.X_PLUS.ordinal()] = (x == minX);
-                        edgebits[BlockStep.X_MINUS.ordinal()] = (x == maxX);
-                        for (int z = cz * 16; (z < (cz * 16 + 64)) && (z <= maxZ); z++) {
-                            if (z < minZ) z = minZ;
-                            edgebits[BlockStep.Z_PLUS.ordinal()] = (z == minZ);
-                            edgebits[BlockStep.Z_MINUS.ordinal()] = (z == maxZ);
-                            iter.initialize(x, minY, z);
-                            updateGroup(GROUP_CHUNK, "chunk" + (x >> 4) + "_" + (z >> 4));
-                            // Do first (bottom)
-                            edgebits[BlockStep.Y_MINUS.ordinal()] = true;
-                            edgebits[BlockStep.Y_PLUS.ordinal()] = false;
-                            DynmapBlockState blk = iter.getBlockType();
-                            if (blk.isNotAir()) {  // Not air
-                                handleBlock(blk, iter, edgebits);
-                            }
-                            // Do middle
-                            edgebits[BlockStep.Y_MINUS.ordinal()] = false;
-                            for (int y = minY + 1; y < maxY; y++) {
-                                iter.setY(y);
-                                blk = iter.getBlockType();
-                                if (blk.isNotAir()) {  // Not air
-                                    handleBlock(blk, iter, edgebits);
-                                }
-                            }
-                            // Do top
-                            edgebits[BlockStep.Y_PLUS.ordinal()] = true;
-                            iter.setY(maxY);
-                            blk = iter.getBlockType();
-                            if (blk.isNotAir()) {  // Not air
-                                handleBlock(blk, iter, edgebits);
-                            }
-                        }
-                    }
-                    // Output faces by texture
-                    String grp = "";
-                    for (String material : facesByTexture.keySet()) {
-                        List<Face> faces = facesByTexture.get(material);
-                        matIDs.add(material);   // Record material use
-                        addStringToExportedFile(String.format("usemtl %s\n", material)); 
-                        for (Face face : faces) {
-                            if ((face.groupLine != null) && (!face.groupLine.equals(grp))) {
-                                grp = face.groupLine;
-                                addStringToExportedFile(grp);
-                            }
-                            addStringToExportedFile(face.faceLine);
-                        }
+                    pending.add(workers.submit(new BlockMesher(cx, cz, mincx, mincz, maxcx, maxcz)));
+                    if (pending.size() >= maxpending) {
+                        writeMesh(getMesh(pending.poll()));
                     }
-                    // Clear face table
-                    facesByTexture.clear();
-                    // Clean up vertices we've moved past
-                    vertices.resetSet(minX, minY, minZ, cx * 16 + 64, maxY, cz * 16 + 64);
                 }
             }
+            while (!pending.isEmpty()) {
+                writeMesh(getMesh(pending.poll()));
+            }
+            flushOutput();
             finishExportedFile();
             // If shader provided, add shader content to ZIP
             if (shader != null) {
@@ -309,6 +357,8 @@ public class OBJExport {
         } catch (IOException iox) {
             sender.sendMessage("Export failed: " + iox.getMessage());
         } finally {
+            workers.shutdownNow();
+            out.setLength(0);
             if (zos != null) {
                 try { zos.close(); } catch (IOException e) {}
                 zos = null;
@@ -317,6 +367,84 @@ public class OBJExport {
         }
         return good;
     }
+    /* Wait for mesh from worker */
+    private static ChunkBlockMesh getMesh(Future<ChunkBlockMesh> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException ix) {
+            throw new IOException("Export interrupted");
+        } catch (ExecutionException x) {
+            Throwable cause = x.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Error meshing chunks - " + cause, cause);
+        }
+    }
+    /**
+     * Write mesh for block of chunks to OBJ file - vertices and UVs are merged into the global sets, so each is only
+     * written once, and then faces are written by material
+     */
+    private void writeMesh(ChunkBlockMesh mesh) throws IOException {
+        VertexBuffer vb = mesh.vertices;
+        int[] vmap = new int[vb.cnt];
+        for (int i = 0; i < vb.cnt; i++) {
+            vmap[i] = vertices.getVectorIndex(vb.xyz[3*i], vb.xyz[3*i+1], vb.xyz[3*i+2]);
+        }
+        VertexBuffer ub = mesh.uvs;
+        int[] uvmap = new int[ub.cnt];
+        for (int i = 0; i < ub.cnt; i++) {
+            uvmap[i] = uvs.getVectorIndex(ub.xyz[3*i], ub.xyz[3*i+1], ub.xyz[3*i+2]);
+        }
+        // Output faces by texture
+        String grp = "";
+        for (Map.Entry<String, FaceList> me : mesh.facesByTexture.entrySet()) {
+            String material = me.getKey();
+            FaceList faces = me.getValue();
+            matIDs.add(material);   // Record material use
+            out.append("usemtl ").append(material).append('\n');
+            for (int f = 0; f < faces.cnt; f++) {
+                String groupLine = faces.groupLines[f];
+                if ((groupLine != null) && (!groupLine.equals(grp))) {
+                    grp = groupLine;
+                    out.append(grp);
+                }
+                int off = 8 * f;
+                out.append('f');
+                for (int i = 0; i < 4; i++) {
+                    out.append(' ').append(vmap[faces.idx[off + 2*i]]).append('/').append(uvmap[faces.idx[off + 2*i + 1]]);
+                }
+                out.append('\n');
+                if (out.length() >= OUTPUT_FLUSH_SIZE) {
+                    flushOutput();
+                }
+            }
+        }
+        flushOutput();
+        // Clean up vertices we've moved past
+        vertices.resetSet(minX, minY, minZ, mesh.maxx, maxY, mesh.maxz);
+    }
+    /* Write pending output text to current file */
+    private void flushOutput() throws IOException {
+        if (out.length() > 0) {
+            addStringToExportedFile(out.toString());
+            out.setLength(0);
+        }
+    }
+    /* Append value with 4 decimal places, as %.4f would */
+    private static void appendFixed4(StringBuilder sb, double v) {
+        long scaled = Math.round(v * 10000.0);
+        if (scaled < 0) {
+            sb.append('-');
+            scaled = -scaled;
+        }
+        sb.append(scaled / 10000).append('.');
+        int frac = (int) (scaled % 10000);
+        if (frac < 1000) sb.append('0');
+        if (frac < 100) sb.append('0');
+        if (frac < 10) sb.append('0');
+        sb.append(frac);
+    }
     /**
      * Start adding file to export
      * @param fname - path/name of file in destination zip
@@ -352,196 +480,250 @@ public class OBJExport {
     public void finishExportedFile() throws IOException {
         zos.closeEntry();
     }
+
     /**
-     * Handle block at current iterator coord
-     * @param id - block ID
-     * @param iter - iterator
-     * @param edgebits - bit N corresponds to side N being an endge (forge render)
+     * Meshes one block of 4x4 chunks - run on worker thread, with its own group state and output mesh
      */
-    private void handleBlock(DynmapBlockState blk, MapIterator map, boolean[] edgebits) throws IOException {
-        BlockStep[] steps = BlockStep.values();
-        int[] txtidx = null;
-        // See if the block has a patch model
-        RenderPatch[] patches = models.getPatchModel(blk);
-        /* If no patches, see if custom model */
-        if(patches == null) {
-            CustomBlockModel cbm = models.getCustomBlockModel(blk);
-            if(cbm != null) {   /* If so, get our meshes */
-                patches = cbm.getMeshForBlock(map);
-            }
+    private class BlockMesher implements Callable<ChunkBlockMesh> {
+        private final int cx, cz;
+        private final int mincx, mincz, maxcx, maxcz;
+        private final String[] group = new String[GROUP_COUNT];
+        private String groupline = null;
+        private final boolean[] edgebits = new boolean[6];
+        private final ChunkBlockMesh mesh = new ChunkBlockMesh();
+
+        BlockMesher(int cx, int cz, int mincx, int mincz, int maxcx, int maxcz) {
+            this.cx = cx;
+            this.cz = cz;
+            this.mincx = mincx;
+            this.mincz = mincz;
+            this.maxcx = maxcx;
+            this.maxcz = maxcz;
         }
-        if (patches != null) {
-            steps = new BlockStep[patches.length];
-            txtidx = new int[patches.length];
-            for (int i = 0; i < txtidx.length; i++) {
-                txtidx[i] = ((PatchDefinition) patches[i]).getTextureIndex();
-                steps[i] = ((PatchDefinition) patches[i]).step;
+
+        @Override
+        public ChunkBlockMesh call() throws IOException {
+            // Build chunk cache for block of chunks
+            List<DynmapChunk> requiredChunks = new ArrayList<DynmapChunk>();
+            for (int i = -1; i < 5; i++) {
+                for (int j = -1; j < 5; j++) {
+                    if (((cx+i) <= maxcx) && ((cz+j) <= maxcz) && ((cx+i) >= mincx) && ((cz+j) >= mincz)) {
+                        requiredChunks.add(new DynmapChunk(cx + i, cz + j));
+                    }
+                }
             }
-        }
-        else {  // See if volumetric
-            short[] smod = models.getScaledModel(blk);
-            if (smod != null) {
-                patches = getScaledModelAsPatches(smod);
+            // Get the chunk buffer
+            MapChunkCache cache = core.getServer().createMapChunkCache(world, requiredChunks, true, false, true, false);
+            if (cache == null) {
+                throw new IOException("Error loading chunk cache");
+            }
+            MapIterator iter = cache.getIterator(minX, minY, minZ);
+            for (int x = cx * 16; (x < (cx * 16 + 64)) && (x <= maxX); x++) {
+                if (x < minX) x = minX;
+                edgebits[BlockStep.X_PLUS.ordinal()] = (x == minX);
+                edgebits[BlockStep.X_MINUS.ordinal()] = (x == maxX);
+                for (int z = cz * 16; (z < (cz * 16 + 64)) && (z <= maxZ); z++) {
+                    if (z < minZ) z = minZ;
+                    edgebits[BlockStep.Z_PLUS.ordinal()] = (z == minZ);
+                    edgebits[BlockStep.Z_MINUS.ordinal()] = (z == maxZ);
+                    iter.initialize(x, minY, z);
+                    updateGroup(GROUP_CHUNK, "chunk" + (x >> 4) + "_" + (z >> 4));
+                    // Do first (bottom)
+                    edgebits[BlockStep.Y_MINUS.ordinal()] = true;
+                    edgebits[BlockStep.Y_PLUS.ordinal()] = false;
+                    DynmapBlockState blk = iter.getBlockType();
+                    if (blk.isNotAir()) {  // Not air
+                        handleBlock(blk, iter);
+                    }
+                    // Do middle
+                    edgebits[BlockStep.Y_MINUS.ordinal()] = false;
+                    for (int y = minY + 1; y < maxY; y++) {
+                        iter.setY(y);
+                        blk = iter.getBlockType();
+                        if (blk.isNotAir()) {  // Not air
+                            handleBlock(blk, iter);
+                        }
+                    }
+                    // Do top
+                    edgebits[BlockStep.Y_PLUS.ordinal()] = true;
+                    iter.setY(maxY);
+                    blk = iter.getBlockType();
+                    if (blk.isNotAir()) {  // Not air
+                        handleBlock(blk, iter);
+                    }
+                }
+            }
+            cache.unloadChunks();
+            mesh.maxx = cx * 16 + 64;
+            mesh.maxz = cz * 16 + 64;
+            return mesh;
+        }
+        /**
+         * Handle block at current iterator coord
+         * @param blk - block state
+         * @param map - iterator
+         */
+        private void handleBlock(DynmapBlockState blk, MapIterator map) {
+            BlockStep[] steps = BlockStep.values();
+            int[] txtidx = null;
+            // See if the block has a patch model
+            RenderPatch[] patches = models.getPatchModel(blk);
+            /* If no patches, see if custom model */
+            if(patches == null) {
+                CustomBlockModel cbm = models.getCustomBlockModel(blk);
+                if(cbm != null) {   /* If so, get our meshes */
+                    patches = cbm.getMeshForBlock(map);
+                }
+            }
+            if (patches != null) {
                 steps = new BlockStep[patches.length];
                 txtidx = new int[patches.length];
-                for (int i = 0; i < patches.length; i++) {
-                    PatchDefinition pd = (PatchDefinition) patches[i];
-                    steps[i] = pd.step;
-                    txtidx[i] = pd.getTextureIndex();
+                for (int i = 0; i < txtidx.length; i++) {
+                    txtidx[i] = ((PatchDefinition) patches[i]).getTextureIndex();
+                    steps[i] = ((PatchDefinition) patches[i]).step;
                 }
             }
-        }
-        // Set block ID and ID+meta groups
-        updateGroup(GROUP_BLOCKID, "blk" + blk.baseState.globalStateIndex);
-        updateGroup(GROUP_BLOCKIDMETA, "blk" + blk.globalStateIndex);
+            else {  // See if volumetric
+                short[] smod = models.getScaledModel(blk);
+                if (smod != null) {
+                    patches = getScaledModelAsPatches(smod);
+                    steps = new BlockStep[patches.length];
+                    txtidx = new int[patches.length];
+                    for (int i = 0; i < patches.length; i++) {
+                        PatchDefinition pd = (PatchDefinition) patches[i];
+                        steps[i] = pd.step;
+                        txtidx[i] = pd.getTextureIndex();
+                    }
+                }
+            }
+            // Set block ID and ID+meta groups
+            updateGroup(GROUP_BLOCKID, "blk" + blk.baseState.globalStateIndex);
+            updateGroup(GROUP_BLOCKIDMETA, "blk" + blk.globalStateIndex);
 
-        // Get materials for patches
-        String[] mats = shader.getCurrentBlockMaterials(blk, map, txtidx, steps);
-        
-        if (patches != null) {  // Patch based model?
-            for (int i = 0; i < patches.length; i++) {
-                addPatch((PatchDefinition) patches[i], map.getX(), map.getY(), map.getZ(), mats[i]);
+            // Get materials for patches
+            String[] mats = shader.getCurrentBlockMaterials(blk, map, txtidx, steps);
+
+            if (patches != null) {  // Patch based model?
+                for (int i = 0; i < patches.length; i++) {
+                    addPatch((PatchDefinition) patches[i], map.getX(), map.getY(), map.getZ(), mats[i]);
+                }
             }
-        }
-        else {
-            boolean opaque = HDBlockStateTextureMap.getTransparency(blk) == BlockTransparency.OPAQUE;
-            for (int face = 0; face < 6; face++) {
-                DynmapBlockState blk2 = map.getBlockTypeAt(BlockStep.oppositeValues[face]);  // Get block in direction
-                // If we're not solid, or adjacent block is not solid, draw side
-                if ((!opaque) || blk2.isAir() || edgebits[face] || (HDBlockStateTextureMap.getTransparency(blk2) != BlockTransparency.OPAQUE)) {
-                    addPatch(defaultPathces[face], map.getX(), map.getY(), map.getZ(), mats[face]);
+            else {
+                boolean opaque = HDBlockStateTextureMap.getTransparency(blk) == BlockTransparency.OPAQUE;
+                for (int face = 0; face < 6; face++) {
+                    DynmapBlockState blk2 = map.getBlockTypeAt(BlockStep.oppositeValues[face]);  // Get block in direction
+                    // If we're not solid, or adjacent block is not solid, draw side
+                    if ((!opaque) || blk2.isAir() || edgebits[face] || (HDBlockStateTextureMap.getTransparency(blk2) != BlockTransparency.OPAQUE)) {
+                        addPatch(defaultPathces[face], map.getX(), map.getY(), map.getZ(), mats[face]);
+                    }
                 }
             }
         }
-    }
-    private int[] getTextureUVs(PatchDefinition pd, int rot) {
-        int[] uv = new int[4];
-        if (rot == ROT0) {
-            uv[0] = uvs.getVectorIndex(pd.umin, pd.vmin, 0);
-            uv[1] = uvs.getVectorIndex(pd.umax, pd.vmin, 0);
-            uv[2] = uvs.getVectorIndex(pd.umax, pd.vmax, 0);
-            uv[3] = uvs.getVectorIndex(pd.umin, pd.vmax, 0);
-        }
-        else if (rot == ROT90) {    // 90 degrees on texture
-            uv[0] = uvs.getVectorIndex(1.0 - pd.vmin, pd.umin, 0);
-            uv[1] = uvs.getVectorIndex(1.0 - pd.vmin, pd.umax, 0);
-            uv[2] = uvs.getVectorIndex(1.0 - pd.vmax, pd.umax, 0);
-            uv[3] = uvs.getVectorIndex(1.0 - pd.vmax, pd.umin, 0);
-        }
-        else if (rot == ROT180) {    // 180 degrees on texture
-            uv[0] = uvs.getVectorIndex(1.0 - pd.umin, 1.0 - pd.vmin, 0);
-            uv[1] = uvs.getVectorIndex(1.0 - pd.umax, 1.0 - pd.vmin, 0);
-            uv[2] = uvs.getVectorIndex(1.0 - pd.umax, 1.0 - pd.vmax, 0);
-            uv[3] = uvs.getVectorIndex(1.0 - pd.umin, 1.0 - pd.vmax, 0);
-        }
-        else if (rot == ROT270) {    // 270 degrees on texture
-            uv[0] = uvs.getVectorIndex(pd.vmin, 1.0 - pd.umin, 0);
-            uv[1] = uvs.getVectorIndex(pd.vmin, 1.0 - pd.umax, 0);
-            uv[2] = uvs.getVectorIndex(pd.vmax, 1.0 - pd.umax, 0);
-            uv[3] = uvs.getVectorIndex(pd.vmax, 1.0 - pd.umin, 0);
-        }
-        else if (rot == HFLIP) {
-            uv[0] = uvs.getVectorIndex(1.0 - pd.umin, pd.vmin, 0);
-            uv[1] = uvs.getVectorIndex(1.0 - pd.umax, pd.vmin, 0);
-            uv[2] = uvs.getVectorIndex(1.0 - pd.umax, pd.vmax, 0);
-            uv[3] = uvs.getVectorIndex(1.0 - pd.umin, pd.vmax, 0);
-        }
-        else {
-            uv[0] = uvs.getVectorIndex(pd.umin, pd.vmin, 0);
-            uv[1] = uvs.getVectorIndex(pd.umax, pd.vmin, 0);
-            uv[2] = uvs.getVectorIndex(pd.umax, pd.vmax, 0);
-            uv[3] = uvs.getVectorIndex(pd.umin, pd.vmax, 0);
-        }
-        return uv;
-    }
-    /**
-     * Add patch as face to output
-     */
-    private void addPatch(PatchDefinition pd, double x, double y, double z, String material) throws IOException {
-        // No material?  No face
-        if (material == null) {
-            return;
-        }
-        int rot = 0;
-        int rotidx = material.indexOf('@'); // Check for rotation modifier
-        if (rotidx >= 0) {
-            rot = material.charAt(rotidx+1) - '0';  // 0-3
-            material = material.substring(0, rotidx);
-        }
-        int[] v = new int[4];
-        int[] uv = getTextureUVs(pd, rot);
-        // Get offsets for U and V from origin
-        double ux = pd.xu - pd.x0;
-        double uy = pd.yu - pd.y0;
-        double uz = pd.zu - pd.z0;
-        double vx = pd.xv - pd.x0;
-        double vy = pd.yv - pd.y0;
-        double vz = pd.zv - pd.z0;
-        // Offset to origin corner
-        x = x + pd.x0;
-        y = y + pd.y0;
-        z = z + pd.z0;
-        // Origin corner, offset by umin, vmin
-        v[0] = vertices.getVectorIndex(x + ux*pd.umin + vx*pd.vmin, y + uy*pd.umin + vy*pd.vmin, z + uz*pd.umin + vz*pd.vmin);
-        uv[0] = uvs.getVectorIndex(pd.umin, pd.vmin, 0);
-        // Second is end of U (umax, vmin)
-        v[1] = vertices.getVectorIndex(x + ux*pd.umax + vx*pd.vmin, y + uy*pd.umax + vy*pd.vmin, z + uz*pd.umax + vz*pd.vmin);
-        uv[1] = uvs.getVectorIndex(pd.umax, pd.vmin, 0);
-        // Third is end of U+V (umax, vmax)
-        v[2] = vertices.getVectorIndex(x + ux*pd.umax + vx*pd.vmax, y + uy*pd.umax + vy*pd.vmax, z + uz*pd.umax + vz*pd.vmax);
-        uv[2] = uvs.getVectorIndex(pd.umax, pd.vmax, 0);
-        // Forth is end of V (umin, vmax)
-        v[3] = vertices.getVectorIndex(x + ux*pd.umin + vx*pd.vmax, y + uy*pd.umin + vy*pd.vmax, z + uz*pd.umin + vz*pd.vmax);
-        uv[3] = uvs.getVectorIndex(pd.umin, pd.vmax, 0);
-        // Add patch to file
-        addPatchToFile(v, uv, pd.sidevis, material, rot);
-    }
-    private void addPatchToFile(int[] v, int[] uv, SideVisible sv, String material, int rot) throws IOException {
-        List<Face> faces = facesByTexture.get(material);
-        if (faces == null) {
-            faces = new ArrayList<Face>();
-            facesByTexture.put(material, faces);
-        }
-        // If needed, rotate the UV sequence
-        if (rot == HFLIP) { // Flip horizonntal
-            int newuv[] = new int[uv.length];
-            for (int i = 0; i < uv.length; i++) {
-                newuv[i] = uv[i ^ 1];
+        /**
+         * Add patch as face to mesh
+         */
+        private void addPatch(PatchDefinition pd, double x, double y, double z, String material) {
+            // No material?  No face
+            if (material == null) {
+                return;
+            }
+            int rot = 0;
+            int rotidx = material.indexOf('@'); // Check for rotation modifier
+            if (rotidx >= 0) {
+                rot = material.charAt(rotidx+1) - '0';  // 0-3
+                material = material.substring(0, rotidx);
+            }
+            VertexBuffer verts = mesh.vertices;
+            VertexBuffer uvb = mesh.uvs;
+            int[] v = new int[4];
+            int[] uv = new int[4];
+            // Get offsets for U and V from origin
+            double ux = pd.xu - pd.x0;
+            double uy = pd.yu - pd.y0;
+            double uz = pd.zu - pd.z0;
+            double vx = pd.xv - pd.x0;
+            double vy = pd.yv - pd.y0;
+            double vz = pd.zv - pd.z0;
+            // Offset to origin corner
+            x = x + pd.x0;
+            y = y + pd.y0;
+            z = z + pd.z0;
+            // Origin corner, offset by umin, vmin
+            v[0] = verts.getIndex(x + ux*pd.umin + vx*pd.vmin, y + uy*pd.umin + vy*pd.vmin, z + uz*pd.umin + vz*pd.vmin);
+            uv[0] = uvb.getIndex(pd.umin, pd.vmin, 0);
+            // Second is end of U (umax, vmin)
+            v[1] = verts.getIndex(x + ux*pd.umax + vx*pd.vmin, y + uy*pd.umax + vy*pd.vmin, z + uz*pd.umax + vz*pd.vmin);
+            uv[1] = uvb.getIndex(pd.umax, pd.vmin, 0);
+            // Third is end of U+V (umax, vmax)
+            v[2] = verts.getIndex(x + ux*pd.umax + vx*pd.vmax, y + uy*pd.umax + vy*pd.vmax, z + uz*pd.umax + vz*pd.vmax);
+            uv[2] = uvb.getIndex(pd.umax, pd.vmax, 0);
+            // Forth is end of V (umin, vmax)
+            v[3] = verts.getIndex(x + ux*pd.umin + vx*pd.vmax, y + uy*pd.umin + vy*pd.vmax, z + uz*pd.umin + vz*pd.vmax);
+            uv[3] = uvb.getIndex(pd.umin, pd.vmax, 0);
+            // Add patch to mesh
+            addPatchToMesh(v, uv, pd.sidevis, material, rot);
+        }
+        private void addPatchToMesh(int[] v, int[] uv, SideVisible sv, String material, int rot) {
+            FaceList faces = mesh.facesByTexture.get(material);
+            if (faces == null) {
+                faces = new FaceList();
+                mesh.facesByTexture.put(material, faces);
+            }
+            // If needed, rotate the UV sequence
+            if (rot == HFLIP) { // Flip horizonntal
+                int newuv[] = new int[uv.length];
+                for (int i = 0; i < uv.length; i++) {
+                    newuv[i] = uv[i ^ 1];
+                }
+                uv = newuv;
+            }
+            else if (rot != ROT0) {
+                int newuv[] = new int[uv.length];
+                for (int i = 0; i < uv.length; i++) {
+                    newuv[i] = uv[(i+4-rot) % uv.length];
+                }
+                uv = newuv;
+            }
+            String grp = updateGroup(GROUP_TEXTURE, material);
+            switch (sv) {
+                case TOP:
+                    faces.add(grp, v[0], uv[0], v[1], uv[1], v[2], uv[2], v[3], uv[3]);
+                    break;
+                case BOTTOM:
+                    faces.add(grp, v[3], uv[3], v[2], uv[2], v[1], uv[1], v[0], uv[0]);
+                    break;
+                case BOTH:
+                    faces.add(grp, v[0], uv[0], v[1], uv[1], v[2], uv[2], v[3], uv[3]);
+                    faces.add(grp, v[3], uv[3], v[2], uv[2], v[1], uv[1], v[0], uv[0]);
+                    break;
+                case FLIP:
+                    faces.add(grp, v[0], uv[0], v[1], uv[1], v[2], uv[2], v[3], uv[3]);
+                    faces.add(grp, v[3], uv[2], v[2], uv[3], v[1], uv[0], v[0], uv[1]);
+                    break;
             }
-            uv = newuv;
         }
-        else if (rot != ROT0) {
-            int newuv[] = new int[uv.length];
-            for (int i = 0; i < uv.length; i++) {
-                newuv[i] = uv[(i+4-rot) % uv.length];
+        private String updateGroup(int grpIndex, String newgroup) {
+            if (enabledGroups[grpIndex]) {
+                if (!newgroup.equals(group[grpIndex])) {
+                    group[grpIndex] = newgroup;
+                    StringBuilder newline = new StringBuilder("g");
+                    for (int i = 0; i < GROUP_COUNT; i++) {
+                        if (enabledGroups[i]) {
+                            newline.append(' ').append(group[i]);
+                        }
+                    }
+                    newline.append('\n');
+                    groupline = newline.toString();
+                }
             }
-            uv = newuv;
-        }
-        Face f = new Face();
-        f.groupLine = updateGroup(GROUP_TEXTURE, material);
-        switch (sv) {
-            case TOP:
-                f.faceLine = String.format("f %d/%d %d/%d %d/%d %d/%d\n", v[0], uv[0], v[1], uv[1], v[2], uv[2], v[3], uv[3]); 
-                break;
-            case BOTTOM:
-                f.faceLine = String.format("f %d/%d %d/%d %d/%d %d/%d\n", v[3], uv[3], v[2], uv[2], v[1], uv[1], v[0], uv[0]); 
-                break;
-            case BOTH:
-                f.faceLine = String.format("f %d/%d %d/%d %d/%d %d/%d\n", v[0], uv[0], v[1], uv[1], v[2], uv[2], v[3], uv[3]); 
-                f.faceLine += String.format("f %d/%d %d/%d %d/%d %d/%d\n", v[3], uv[3], v[2], uv[2], v[1], uv[1], v[0], uv[0]); 
-                break;
-            case FLIP:
-                f.faceLine = String.format("f %d/%d %d/%d %d/%d %d/%d\n", v[0], uv[0], v[1], uv[1], v[2], uv[2], v[3], uv[3]); 
-                f.faceLine += String.format("f %d/%d %d/%d %d/%d %d/%d\n", v[3], uv[2], v[2], uv[3], v[1], uv[0], v[0], uv[1]); 
-                break;
-        }
-        faces.add(f);
+            return groupline;
+        }
     }
-    
+
     public Set<String> getMaterialIDs() {
         return matIDs;
     }
-    
+
     private static final boolean getSubblock(short[] mod, int x, int y, int z) {
         if ((x >= 0) && (x < MODELSCALE) && (y >= 0) && (y < MODELSCALE) && (z >= 0) && (z < MODELSCALE)) {
             return mod[MODELSCALE*MODELSCALE*y + MODELSCALE*z + x] != 0;
@@ -549,15 +731,15 @@ public class OBJExport {
         return false;
     }
     // Scan along X axis
-    private int scanX(short[] tmod, int x, int y, int z) {
+    private static int scanX(short[] tmod, int x, int y, int z) {
         int xlen = 0;
-        while (getSubblock(tmod, x+xlen, y, z)) { 
+        while (getSubblock(tmod, x+xlen, y, z)) {
             xlen++;
         }
         return xlen;
     }
     // Scan along Z axis for rows matching given x length
-    private int scanZ(short[] tmod, int x, int y, int z, int xlen) {
+    private static int scanZ(short[] tmod, int x, int y, int z, int xlen) {
         int zlen = 0;
         while (scanX(tmod, x, y, z+zlen) >= xlen) {
             zlen++;
@@ -565,23 +747,23 @@ public class OBJExport {
         return zlen;
     }
     // Scan along Y axis for layers matching given X and Z lengths
-    private int scanY(short[] tmod, int x, int y, int z, int xlen, int zlen) {
+    private static int scanY(short[] tmod, int x, int y, int z, int xlen, int zlen) {
         int ylen = 0;
         while (scanZ(tmod, x, y+ylen, z, xlen) >= zlen) {
             ylen++;
         }
         return ylen;
     }
-    private void addSubblock(short[] tmod, int x, int y, int z, List<RenderPatch> list) {
+    private static void addSubblock(short[] tmod, int x, int y, int z, List<RenderPatch> list) {
         // Find dimensions of cuboid
         int xlen = scanX(tmod, x, y, z);
         int zlen = scanZ(tmod, x, y, z, xlen);
         int ylen = scanY(tmod, x, y, z, xlen, zlen);
         // Add equivalent of boxblock
-        CustomRenderer.addBox(HDBlockModels.getPatchDefinitionFactory(), list, 
-                BLKSIZE * x, BLKSIZE * (x+xlen), 
+        CustomRenderer.addBox(HDBlockModels.getPatchDefinitionFactory(), list,
+                BLKSIZE * x, BLKSIZE * (x+xlen),
                 BLKSIZE * y, BLKSIZE * (y+ylen),
-                BLKSIZE * z, BLKSIZE * (z+zlen), 
+                BLKSIZE * z, BLKSIZE * (z+zlen),
                 HDBlockModels.boxPatchList);
         // And remove blocks from model (since we have them covered)
         for (int xx = 0; xx < xlen; xx++) {
@@ -592,7 +774,7 @@ public class OBJExport {
             }
         }
     }
-    private PatchDefinition[] getScaledModelAsPatches(short[] mod) {
+    private static PatchDefinition[] getScaledModelAsPatches(short[] mod) {
         ArrayList<RenderPatch> list = new ArrayList<RenderPatch>();
         short[] tmod = Arrays.copyOf(mod, mod.length);  // Make copy
         for (int y = 0; y < MODELSCALE; y++) {
@@ -610,24 +792,7 @@ public class OBJExport {
         }
         return pd;
     }
-    
-    private String updateGroup(int grpIndex, String newgroup) {
-        if (enabledGroups[grpIndex]) {
-            if (!newgroup.equals(group[grpIndex])) {
-                group[grpIndex] = newgroup;
-                String newline = "g";
-                for (int i = 0; i < GROUP_COUNT; i++) {
-                    if (enabledGroups[i]) {
-                        newline += " " + group[i];
-                    }
-                }
-                newline += "\n";
-                groupline = newline;
-            }
-        }
-        return groupline;
-    }
-    
+
     public boolean getGroupEnabled(int grpIndex) {
         if (grpIndex < enabledGroups.length) {
             return enabledGroups[grpIndex];
@@ -30,6 +30,9 @@ public class CTMTexturePack {
     private TexturePackLoader tpl;
     private CTMProps[][] bytilelist;
     private CTMProps[][] bybaseblockstatelist;
+    /* Same rule lists, split by face entered so face tests are done once at load (index = [tile or state][face]) */
+    private CTMProps[][][] bytilelistbyface;
+    private CTMProps[][][] bybaseblockstatebyface;  /* Also without rules not matching state's metadata */
     private BitSet mappedtiles;
     private BitSet mappedblocks;
     private String[] biomenames;
@@ -953,6 +956,42 @@ public class CTMTexturePack {
         return list;
     }
     
+    /**
+     * Split rule lists by face entered
+     * @param lists - rule lists, by tile or block state index
+     * @param bystate - if true, lists are by global block state index, and rules not matching its metadata are dropped
+     * @return lists, by index then face (null if no rules)
+     */
+    private static CTMProps[][][] compileByFace(CTMProps[][] lists, boolean bystate) {
+        CTMProps[][][] rslt = new CTMProps[lists.length][][];
+        ArrayList<CTMProps> lst = new ArrayList<CTMProps>();
+        for (int i = 0; i < lists.length; i++) {
+            if (lists[i] == null) continue;
+            int meta = -1;
+            if (bystate) {
+                DynmapBlockState bs = DynmapBlockState.getStateByGlobalIndex(i);
+                if (bs != null) {
+                    meta = bs.stateIndex;
+                }
+            }
+            CTMProps[][] byface = new CTMProps[6][];
+            for (int face = 0; face < 6; face++) {
+                lst.clear();
+                for (CTMProps p : lists[i]) {
+                    if (p == null) continue;
+                    if ((p.faces != FACE_ALL) && ((p.faces & (1 << face)) == 0)) continue;
+                    if ((meta >= 0) && (p.metadata != -1) && ((p.metadata & (1 << meta)) == 0)) continue;
+                    lst.add(p);
+                }
+                if (lst.size() > 0) {
+                    byface[face] = lst.toArray(new CTMProps[lst.size()]);
+                }
+            }
+            rslt[i] = byface;
+        }
+        return rslt;
+    }
+
     /**
      * Process property files
      */
@@ -995,6 +1034,8 @@ public class CTMTexturePack {
                 }
             }
         }
+        bytilelistbyface = compileByFace(bytilelist, false);
+        bybaseblockstatebyface = compileByFace(bybaseblockstatelist, true);
 //        for (int i = 0; i < bybaseblockstatelist.length; i++) {
 //        	CTMProps[] p = bybaseblockstatelist[i];
 //        	if (p != null) {
@@ -1102,64 +1143,67 @@ public class CTMTexturePack {
         }
     }
     
+    /* Get rules for tile, for given face entered (null if none) */
+    private CTMProps[] getTileRules(int textid, int face) {
+        if ((textid >= 0) && (textid < bytilelistbyface.length) && (bytilelistbyface[textid] != null)) {
+            return bytilelistbyface[textid][face];
+        }
+        return null;
+    }
+
     public int mapTexture(MapIterator mapiter, DynmapBlockState blk, BlockStep laststep, int textid, HDShaderState ss) {
         int newtext = -1;
         int gidx = blk.globalStateIndex;
         if ((!this.mappedblocks.get(gidx)) && ((textid < 0) || (!this.mappedtiles.get(textid)))) {
             return textid;
         }
-        // See if cached result
+        int face = laststep.getFaceEntered();
+        CTMProps[] tilerules = getTileRules(textid, face);
+        CTMProps[] staterules = null;
+        if ((gidx < bybaseblockstatebyface.length) && (bybaseblockstatebyface[gidx] != null)) {
+            staterules = bybaseblockstatebyface[gidx][face];
+        }
+        if ((tilerules == null) && (staterules == null)) {  /* No rules for this face */
+            return textid;
+        }
+        // See if cached result: value is { texture in, texture out }
         DynLongHashMap cache = null;
         long idx = 0;
+        int[] memo = null;
         if (ss != null) {
             cache = ss.getCTMTextureCache();
             idx = (mapiter.getBlockKey() << 8) | laststep.ordinal();
-            Integer val = (Integer) cache.get(idx);
-            if (val != null) {
-                return val.intValue();
+            memo = (int[]) cache.get(idx);
+            if ((memo != null) && (memo[0] == textid)) {
+                return memo[1];
             }
         }
+        int intextid = textid;
             
         Context ctx = new Context(mapiter, blk, laststep, textid);
 
         /* Check for first match */
-        if ((textid >= 0) && (textid < bytilelist.length)) {
-            newtext = mapTextureByList(bytilelist[textid], ctx);
+        newtext = mapTextureByList(tilerules, ctx);
+        if (newtext < 0) {
+            newtext = mapTextureByList(staterules, ctx);
         }
-        if ((newtext < 0) && (gidx < bybaseblockstatelist.length)) {
-            newtext = mapTextureByList(bybaseblockstatelist[gidx], ctx);
+        /* If matched, check for up to three more matches - only tiles for recursive checks */
+        for (int pass = 0; (pass < 3) && (newtext >= 0); pass++) {
+            textid = newtext;   // Switch to new texture
+            ctx.textid = newtext;
+            newtext = mapTextureByList(getTileRules(textid, face), ctx);
         }
-        /* If matched, check for second match */
         if (newtext >= 0) {
             textid = newtext;   // Switch to new texture
-            ctx.textid = newtext;
-            // Only do tiles for recursive checks
-            if ((textid >= 0) && (textid < bytilelist.length)) {
-                newtext = mapTextureByList(bytilelist[textid], ctx);
-            }
-            /* If matched, check for third match */
-            if (newtext >= 0) {
-                textid = newtext;   // Switch to new texture
-                ctx.textid = newtext;
-                if ((textid >= 0) && (textid < bytilelist.length)) {
-                    newtext = mapTextureByList(bytilelist[textid], ctx);
-                }
-                /* If matched, check for last match */
-                if (newtext >= 0) {
-                    textid = newtext;   // Switch to new texture
-                    ctx.textid = newtext;
-                    if ((textid >= 0) && (textid < bytilelist.length)) {
-                        newtext = mapTextureByList(bytilelist[textid], ctx);
-                    }
-                    if (newtext >= 0) {
-                        textid = newtext;   // Switch to new texture
-                    }
-                }
-            }
         }
         // Add result to cache 
         if (cache != null) {
-            cache.put(idx, textid);
+            if (memo == null) {
+                memo = new int[2];
+                cache.put(idx, memo);
+            }
+            memo[0] = intextid;
+            memo[1] = textid;
         }
         return textid;
     }
@@ -1179,14 +1223,7 @@ public class CTMTexturePack {
     }
 
     private int mapTextureByProp(CTMProps p, Context ctx) {
-        // Test if right face
-        if ((ctx.laststep != null) && (p.faces != FACE_ALL)) {
-            int face = ctx.laststep.getFaceEntered();
-            // If not handled side
-            if ((p.faces & (1 << face)) == 0) {
-                return -1;
-            }
-        }
+        // Face was tested when rule lists were compiled
         // Test if right metadata
         if (p.metadata != -1) {
             int meta = ctx.blk.stateIndex;
@@ -135,6 +135,14 @@ public class CaveHDShader implements HDShader {
                 lightingTable = null;
             }
         }
+        /**
+         * Reuse state for new tile
+         */
+        @Override
+        public boolean resetForTile(MapChunkCache cache, MapIterator mapiter) {
+            this.mapiter = mapiter;
+            return true;
+        }
         /**
          * Get our shader
          */
@@ -242,6 +250,7 @@ public class CaveHDShader implements HDShader {
          */
         @Override
         public void cleanup() {
+            mapiter = null;     /* Don't hold on to chunk cache between tiles */
         }
         @Override
         public DynLongHashMap getCTMTextureCache() {
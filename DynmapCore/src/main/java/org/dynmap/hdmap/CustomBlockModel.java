@@ -8,12 +8,24 @@ import org.dynmap.renderer.CustomRenderer;
 import org.dynmap.renderer.DynmapBlockState;
 import org.dynmap.renderer.MapDataContext;
 import org.dynmap.renderer.RenderPatch;
+import org.dynmap.utils.PatchDefinition;
 
 public class CustomBlockModel extends HDBlockModel {
     public CustomRenderer render;
+    /* Creation parameters - kept for the definition cache */
+    final DynmapBlockState bstate;
+    final BitSet databits;
+    final String classname;
+    final Map<String,String> classparm;
+    Map<String, PatchDefinition> patchnames;    /* Named patches of model file, if any */
+    int patchnamecnt;   /* Number of named patches defined when created */
 
     public CustomBlockModel(DynmapBlockState bstate, BitSet databits, String classname, Map<String,String> classparm, String blockset) {
         super(bstate, databits, blockset);
+        this.bstate = bstate;
+        this.databits = (BitSet) databits.clone();
+        this.classname = classname;
+        this.classparm = classparm;
         try {
             Class<?> cls = Class.forName(classname);   /* Get class */
             render = (CustomRenderer) cls.newInstance();
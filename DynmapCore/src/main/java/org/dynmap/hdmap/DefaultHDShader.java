@@ -111,6 +111,14 @@ public class DefaultHDShader implements HDShader {
                 lightingTable = null;
             }
         }
+        /**
+         * Reuse state for new tile
+         */
+        @Override
+        public boolean resetForTile(MapChunkCache cache, MapIterator mapiter) {
+            this.mapiter = mapiter;
+            return true;
+        }
         /**
          * Get our shader
          */
@@ -236,6 +244,7 @@ public class DefaultHDShader implements HDShader {
          * Clean up state object - called after last ray completed
          */
         public void cleanup() {
+            mapiter = null;     /* Don't hold on to chunk cache between tiles */
         }
         @Override
         public DynLongHashMap getCTMTextureCache() {
@@ -0,0 +1,708 @@
+package org.dynmap.hdmap;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import org.dynmap.ConfigurationNode;
+import org.dynmap.DynmapCore;
+import org.dynmap.Log;
+import org.dynmap.renderer.DynmapBlockState;
+
+/**
+ * Cache of parsed block model and texture mapping definitions, so that startup and reload don't need to parse every
+ * models and texture file again.
+ *
+ * The cache file holds a snapshot of the HDBlockModels and TexturePack definition tables, as left by a full parse,
+ * under a key made from the content of every source file, the block state registry, the mod list, the Dynmap and
+ * platform versions and the leaf transparency setting.  Other inputs the parsers read as they go (settings, mod
+ * versions and IDs, mod config files, texture maps used by custom renderers) are recorded with their values, and
+ * checked again before the snapshot is used.  If anything differs, or a custom renderer or color multiplier can't be
+ * created again by class name, the files are parsed as before and a new snapshot saved.
+ *
+ * Scaled volumetric models are added as they are first built, in one file per scale alongside the snapshot.  Like
+ * TextureImageCache, files are memory-mapped for reading, and each save writes a new generation rather than
+ * replacing a file that may still be mapped; older generations are removed on a later open.
+ */
+public class DefinitionCache {
+    private static final int MAGIC = 0x44594E44;   /* 'DYND' */
+    private static final int SCALED_MAGIC = 0x44594E53; /* 'DYNS' */
+    private static final int VERSION = 1;
+    private static final int HASHLEN = 20;
+    private static final String PREFIX = "definitions.";
+    private static final String SUFFIX = ".bin";
+    private static final String SCALED = ".scale";
+    private static final long MAX_SCALED_SIZE = 64L * 1024 * 1024;  /* Don't cache scaled models bigger than this */
+
+    /* Types of recorded parse input */
+    private static final char DEP_BOOLEAN = 'B';        /* Boolean setting */
+    private static final char DEP_INTEGER = 'I';        /* Integer setting, with default */
+    private static final char DEP_MODVERSION = 'M';     /* Mod version */
+    private static final char DEP_MODIDS = 'U';         /* Mod block and item unique IDs */
+    private static final char DEP_FILE = 'F';           /* Mod config file */
+    private static final char DEP_TEXTUREMAP = 'T';     /* Texture map index, by key */
+    private static final char DEP_TEXTUREMAPLEN = 'L';  /* Texture map length */
+
+    private static class Dep {
+        final char type;
+        final String name, arg, value;
+
+        Dep(char type, String name, String arg, String value) {
+            this.type = type;
+            this.name = name;
+            this.arg = arg;
+            this.value = value;
+        }
+    }
+
+    /* Parse inputs, while recording - only for loading thread */
+    private static volatile Thread recthread;
+    private static Map<String, Dep> deps;
+    private static String uncacheable;
+
+    private static volatile DefinitionCache current;   /* Cache behind loaded definitions, if any */
+
+    private final File dir;
+    private int generation;
+    private List<HDBlockVolumetricModel> volmodels;    /* Volumetric models, in cached order */
+    private final Set<Integer> scales = new HashSet<Integer>();    /* Scales already in cache */
+
+    /**
+     * Definition source file
+     */
+    static class Source {
+        final String name;      /* Path, for messages */
+        final String blockset;  /* ID of block set defined */
+        final boolean modfile;  /* Supplied by mod itself */
+        final boolean tileset;  /* Tile set file, rather than texture file */
+        final byte[] data;
+
+        Source(String name, String blockset, boolean modfile, boolean tileset, byte[] data) {
+            this.name = name;
+            this.blockset = blockset;
+            this.modfile = modfile;
+            this.tileset = tileset;
+            this.data = data;
+        }
+    }
+
+    private DefinitionCache(File dir) {
+        this.dir = dir;
+        File[] files = dir.listFiles();
+        generation = 0;
+        if (files != null) {
+            /* Find newest generation */
+            for (File f : files) {
+                int gen = getGeneration(f);
+                if ((gen > generation) && f.getName().equals(PREFIX + gen + SUFFIX)) {
+                    generation = gen;
+                }
+            }
+            /* Clean up older ones - may fail if still mapped, in which case we'll try again next time */
+            for (File f : files) {
+                int gen = getGeneration(f);
+                if ((gen > 0) && (gen != generation)) {
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    private static int getGeneration(File f) {
+        String n = f.getName();
+        if (n.startsWith(PREFIX)) {
+            int end = n.indexOf('.', PREFIX.length());
+            if (end > 0) {
+                try {
+                    return Integer.parseInt(n.substring(PREFIX.length(), end));
+                } catch (NumberFormatException nfx) {
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Load block models and texture mappings - from cache, if still valid, else by parsing the definition files
+     * @param core - core object
+     * @param config - configuration for models and texture mappings
+     */
+    public static void loadDefinitions(DynmapCore core, ConfigurationNode config) {
+        current = null;
+        List<Source> models = HDBlockModels.getModelSources(core);
+        List<Source> textures = TexturePack.getTextureSources(core);
+        if (!config.getBoolean("texture-cache", true)) {
+            HDBlockModels.loadModels(core, config, models);
+            TexturePack.loadTextureMapping(core, config, textures);
+            return;
+        }
+        DefinitionCache dc = new DefinitionCache(new File(core.getDataFolder(), "texturecache"));
+        byte[] key = getKey(core, models, textures);
+        if (dc.restore(core, config, key)) {
+            current = dc;
+            return;
+        }
+        /* Parse, recording what the parsers read besides the source files */
+        Map<String, Dep> rec = new LinkedHashMap<String, Dep>();
+        deps = rec;
+        uncacheable = null;
+        recthread = Thread.currentThread();
+        try {
+            HDBlockModels.loadModels(core, config, models);
+            TexturePack.loadTextureMapping(core, config, textures);
+        } finally {
+            recthread = null;
+            deps = null;
+        }
+        if (uncacheable != null) {
+            Log.verboseinfo("Definitions not cached - " + uncacheable);
+            return;
+        }
+        if (dc.save(key, rec)) {
+            current = dc;
+        }
+    }
+
+    /* Make key for definitions, from everything the parsers use that doesn't need recording */
+    private static byte[] getKey(DynmapCore core, List<Source> models, List<Source> textures) {
+        MessageDigest md = getDigest();
+        DataOutputStream out = new DataOutputStream(new DigestOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) { }
+            @Override
+            public void write(byte[] b, int off, int len) { }
+        }, md));
+        try {
+            out.writeInt(VERSION);
+            writeString(out, core.getDynmapCoreVersion());
+            writeString(out, core.getDynmapPluginVersion());
+            writeString(out, core.getDynmapPluginPlatformVersion());
+            out.writeBoolean(core.getLeafTransparency());
+            /* Block state registry */
+            int max = DynmapBlockState.getGlobalIndexMax();
+            out.writeInt(max);
+            for (int gidx = 0; gidx < max; gidx++) {
+                DynmapBlockState bs = DynmapBlockState.getStateByGlobalIndex(gidx);
+                if (bs == null) {
+                    writeString(out, null);
+                    continue;
+                }
+                writeString(out, bs.blockName);
+                writeString(out, bs.stateName);
+                writeString(out, bs.material);
+                out.writeInt(bs.stateIndex);
+                out.writeInt(bs.legacyBlockID);
+                out.writeInt((bs.isAir() ? 1 : 0) | (bs.isWater() ? 2 : 0) | (bs.isSnow() ? 4 : 0) | (bs.isLog() ? 8 : 0) |
+                    (bs.isGrass() ? 16 : 0) | (bs.isWaterlogged() ? 32 : 0) | (bs.isLeaves() ? 64 : 0) | (bs.isSolid() ? 128 : 0));
+            }
+            /* Mod list */
+            List<String> mods = core.getServer().getModList();
+            out.writeInt(mods.size());
+            for (String mod : mods) {
+                writeString(out, mod);
+                writeString(out, core.getServer().getModVersion(mod));
+            }
+            /* Source files, in load order */
+            for (List<Source> sources : Arrays.asList(models, textures)) {
+                out.writeInt(sources.size());
+                for (Source src : sources) {
+                    writeString(out, src.name);
+                    writeString(out, src.blockset);
+                    out.writeBoolean(src.modfile);
+                    out.writeBoolean(src.tileset);
+                    out.writeInt(src.data.length);
+                    out.write(src.data);
+                }
+            }
+            out.close();
+        } catch (IOException iox) {   /* Can't happen - nothing is written */
+        }
+        return md.digest();
+    }
+
+    /* Restore definitions from cache, if present and valid */
+    private boolean restore(DynmapCore core, ConfigurationNode config, byte[] key) {
+        if (generation == 0) {
+            return false;
+        }
+        File f = new File(dir, PREFIX + generation + SUFFIX);
+        ByteBuffer buf;
+        try {
+            buf = map(f);
+        } catch (IOException iox) {
+            return false;
+        }
+        if ((buf.limit() < (8 + HASHLEN)) || (buf.getInt() != MAGIC) || (buf.getInt() != VERSION)) {
+            return false;
+        }
+        byte[] k = new byte[HASHLEN];
+        buf.get(k);
+        if (!Arrays.equals(k, key)) {
+            Log.verboseinfo("Definition cache out of date - definition files, blocks, mods or versions changed");
+            return false;
+        }
+        try {
+            int cnt = buf.getInt();
+            for (int i = 0; i < cnt; i++) {
+                Dep d = new Dep((char) buf.getShort(), readString(buf), readString(buf), readString(buf));
+                if (!d.value.equals(evaluate(core, config, d))) {
+                    Log.verboseinfo("Definition cache out of date - " + d.name + " changed");
+                    return false;
+                }
+            }
+            final ByteBuffer mbuf = slice(buf, buf.getInt());
+            final ByteBuffer tbuf = slice(buf, buf.getInt());
+            /* Texture definitions don't depend on models until installed, so read them at the same time */
+            FutureTask<TexturePack.Definitions> tex = new FutureTask<TexturePack.Definitions>(new Callable<TexturePack.Definitions>() {
+                @Override
+                public TexturePack.Definitions call() throws IOException {
+                    return TexturePack.readDefinitions(tbuf);
+                }
+            });
+            Thread t = new Thread(tex, "Dynmap definition cache");
+            t.setDaemon(true);
+            t.start();
+            HDBlockModels.Definitions md;
+            try {
+                md = HDBlockModels.readDefinitions(mbuf);
+            } finally {
+                t.join();
+            }
+            TexturePack.Definitions td = tex.get();
+            md.install();
+            td.install(core);
+            volmodels = md.volmodels;
+        } catch (Exception x) {
+            Log.warning("Error reading definition cache " + f.getPath() + " - ignored: " + x);
+            return false;
+        }
+        /* Add scaled models cached for this generation */
+        File[] files = dir.listFiles();
+        if (files != null) {
+            String pfx = PREFIX + generation + SCALED;
+            for (File sf : files) {
+                String n = sf.getName();
+                if (!n.startsWith(pfx) || !n.endsWith(SUFFIX)) continue;
+                try {
+                    readScaled(sf, Integer.parseInt(n.substring(pfx.length(), n.length() - SUFFIX.length())));
+                } catch (Exception x) {
+                    Log.verboseinfo("Scaled model cache " + sf.getPath() + " ignored: " + x);
+                }
+            }
+        }
+        Log.verboseinfo("Loaded block models and texture mappings from definition cache (" + volmodels.size() +
+            " volumetric models, scales " + scales + ")");
+        return true;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int len) {
+        ByteBuffer b = buf.slice();
+        b.limit(len);
+        buf.position(buf.position() + len);
+        return b;
+    }
+
+    private static MappedByteBuffer map(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel fc = raf.getChannel();
+            return fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        } finally {
+            raf.close();    /* Mapping stays valid */
+        }
+    }
+
+    /* Save definitions just parsed, with recorded inputs */
+    private boolean save(byte[] key, Map<String, Dep> rec) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.warning("Cannot create texture cache directory " + dir.getPath());
+            return false;
+        }
+        File f = new File(dir, PREFIX + (generation + 1) + SUFFIX);
+        File tmp = new File(dir, PREFIX + (generation + 1) + ".tmp");
+        try {
+            ByteArrayOutputStream mbuf = new ByteArrayOutputStream();
+            DataOutputStream mout = new DataOutputStream(mbuf);
+            List<HDBlockVolumetricModel> vm = HDBlockModels.writeDefinitions(mout);
+            mout.close();
+            ByteArrayOutputStream tbuf = new ByteArrayOutputStream();
+            DataOutputStream tout = new DataOutputStream(tbuf);
+            TexturePack.writeDefinitions(tout);
+            tout.close();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.write(key);
+                out.writeInt(rec.size());
+                for (Dep d : rec.values()) {
+                    out.writeShort(d.type);
+                    writeString(out, d.name);
+                    writeString(out, d.arg);
+                    writeString(out, d.value);
+                }
+                out.writeInt(mbuf.size());
+                mbuf.writeTo(out);
+                out.writeInt(tbuf.size());
+                tbuf.writeTo(out);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(f)) {
+                tmp.delete();
+                Log.warning("Error saving definition cache " + f.getPath());
+                return false;
+            }
+            generation++;
+            volmodels = vm;
+            Log.verboseinfo("Definition cache saved - " + rec.size() + " settings checked");
+            return true;
+        } catch (IOException iox) {
+            tmp.delete();
+            Log.warning("Error saving definition cache " + f.getPath() + ": " + iox.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Add scaled volumetric models to the cache, if not there already
+     * @param scale - scale just built
+     */
+    static void saveScaledModels(int scale) {
+        DefinitionCache dc = current;
+        if (dc != null) {
+            dc.saveScaled(scale);
+        }
+    }
+
+    private synchronized void saveScaled(int scale) {
+        if (scales.contains(scale)) {
+            return;
+        }
+        scales.add(scale);
+        if ((2L * scale * scale * scale * volmodels.size()) > MAX_SCALED_SIZE) {
+            return;
+        }
+        File f = new File(dir, PREFIX + generation + SCALED + scale + SUFFIX);
+        File tmp = new File(dir, PREFIX + generation + SCALED + scale + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+            try {
+                out.writeInt(SCALED_MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(scale);
+                out.writeInt(volmodels.size());
+                for (HDBlockVolumetricModel vm : volmodels) {
+                    for (short v : vm.getScaledMap(scale)) {
+                        out.writeShort(v);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(f)) {
+                tmp.delete();
+            }
+        } catch (IOException iox) {
+            tmp.delete();
+            Log.warning("Error saving scaled model cache " + f.getPath() + ": " + iox.getMessage());
+        }
+    }
+
+    private synchronized void readScaled(File f, int scale) throws IOException {
+        ByteBuffer buf = map(f);
+        int len = scale * scale * scale;
+        if ((buf.limit() < 16) || (buf.getInt() != SCALED_MAGIC) || (buf.getInt() != VERSION) ||
+            (buf.getInt() != scale) || (buf.getInt() != volmodels.size()) ||
+            (buf.remaining() != (2L * len * volmodels.size()))) {
+            throw new IOException("bad format");
+        }
+        ShortBuffer sb = buf.slice().asShortBuffer();
+        for (HDBlockVolumetricModel vm : volmodels) {
+            short[] map = new short[len];
+            sb.get(map);
+            vm.setScaledMap(scale, map);
+        }
+        scales.add(scale);
+    }
+
+    /* Get current value of recorded input */
+    private static String evaluate(DynmapCore core, ConfigurationNode config, Dep d) {
+        switch (d.type) {
+            case DEP_BOOLEAN:
+                return String.valueOf(config.getBoolean(d.name, false));
+            case DEP_INTEGER:
+                return String.valueOf(config.getInteger(d.name, Integer.parseInt(d.arg)));
+            case DEP_MODVERSION:
+                return String.valueOf(core.getServer().getModVersion(d.name));
+            case DEP_MODIDS:
+                HashMap<String, Integer> ids = new HashMap<String, Integer>();
+                core.addModBlockItemIDs(d.name, ids);
+                return getDigest(ids);
+            case DEP_FILE:
+                return getFileDigest(new File(d.name));
+            case DEP_TEXTUREMAP:
+                return String.valueOf(TexturePack.getTextureIndexFromTextureMap(d.name, Integer.parseInt(d.arg)));
+            case DEP_TEXTUREMAPLEN:
+                return String.valueOf(TexturePack.getTextureMapLength(d.name));
+        }
+        return null;
+    }
+
+    private static boolean isRecording() {
+        return recthread == Thread.currentThread();
+    }
+
+    private static void record(char type, String name, String arg, String value) {
+        deps.put(type + "\n" + name + "\n" + arg, new Dep(type, name, arg, value));
+    }
+
+    /**
+     * Read boolean setting for definition files (false if not set)
+     */
+    static boolean getBoolean(ConfigurationNode config, String key) {
+        boolean v = config.getBoolean(key, false);
+        if (isRecording()) {
+            record(DEP_BOOLEAN, key, "", String.valueOf(v));
+        }
+        return v;
+    }
+
+    /**
+     * Read integer setting for definition files
+     */
+    static int getInteger(ConfigurationNode config, String key, int def) {
+        int v = config.getInteger(key, def);
+        if (isRecording()) {
+            record(DEP_INTEGER, key, String.valueOf(def), String.valueOf(v));
+        }
+        return v;
+    }
+
+    /**
+     * Get version of mod, for definition files
+     */
+    static String getModVersion(DynmapCore core, String mod) {
+        String v = core.getServer().getModVersion(mod);
+        if (isRecording()) {
+            record(DEP_MODVERSION, mod, "", String.valueOf(v));
+        }
+        return v;
+    }
+
+    /**
+     * Add block and item unique IDs of mod to definition file variables
+     */
+    static void addModBlockItemIDs(DynmapCore core, String mod, Map<String, Integer> vals) {
+        HashMap<String, Integer> ids = new HashMap<String, Integer>();
+        core.addModBlockItemIDs(mod, ids);
+        vals.putAll(ids);
+        if (isRecording()) {
+            record(DEP_MODIDS, mod, "", getDigest(ids));
+        }
+    }
+
+    /**
+     * Note file read by definition file (mod config file)
+     */
+    static void useFile(File f) {
+        if (isRecording()) {
+            record(DEP_FILE, f.getPath(), "", getFileDigest(f));
+        }
+    }
+
+    /**
+     * Note texture map lookup, during load (by custom renderers)
+     */
+    static void useTextureMap(String id, int key, int idx) {
+        if (isRecording()) {
+            record(DEP_TEXTUREMAP, id, String.valueOf(key), String.valueOf(idx));
+        }
+    }
+
+    /**
+     * Note texture map length lookup, during load (by custom renderers)
+     */
+    static void useTextureMapLength(String id, int len) {
+        if (isRecording()) {
+            record(DEP_TEXTUREMAPLEN, id, "", String.valueOf(len));
+        }
+    }
+
+    /**
+     * Mark definitions being loaded as not cacheable
+     * @param reason - reason, for log
+     */
+    static void notCacheable(String reason) {
+        if (isRecording() && (uncacheable == null)) {
+            uncacheable = reason;
+        }
+    }
+
+    private static MessageDigest getDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsax) {
+            throw new IllegalStateException("SHA-1 not available");
+        }
+    }
+
+    private static String toHex(byte[] hash) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : hash) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    private static String getDigest(Map<String, Integer> vals) {
+        MessageDigest md = getDigest();
+        for (Map.Entry<String, Integer> ent : new TreeMap<String, Integer>(vals).entrySet()) {
+            md.update((ent.getKey() + "=" + ent.getValue() + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        return toHex(md.digest());
+    }
+
+    private static String getFileDigest(File f) {
+        if (!f.isFile()) {
+            return "-";
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(f);
+            return toHex(getDigest().digest(TextureImageCache.readAll(in)));
+        } catch (IOException iox) {
+            return "-";
+        } finally {
+            if (in != null) {
+                try { in.close(); } catch (IOException iox) {}
+            }
+        }
+    }
+
+    /**
+     * Read all of definition source, and close it
+     * @param in - source stream
+     * @return content
+     * @throws IOException if error reading
+     */
+    static byte[] readSource(InputStream in) throws IOException {
+        try {
+            return TextureImageCache.readAll(in);
+        } finally {
+            try { in.close(); } catch (IOException iox) {}
+        }
+    }
+
+    /* Snapshot encoding helpers - strings may be null */
+    static void writeString(DataOutput out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        }
+        else {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    static String readString(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] b = new byte[len];
+        buf.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    static void writeStrings(DataOutput out, Collection<String> strs) throws IOException {
+        out.writeInt(strs.size());
+        for (String s : strs) {
+            writeString(out, s);
+        }
+    }
+
+    static List<String> readStrings(ByteBuffer buf) {
+        int cnt = buf.getInt();
+        List<String> strs = new ArrayList<String>(cnt);
+        for (int i = 0; i < cnt; i++) {
+            strs.add(readString(buf));
+        }
+        return strs;
+    }
+
+    static void writeInts(DataOutput out, int[] v) throws IOException {
+        if (v == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(v.length);
+        for (int i : v) {
+            out.writeInt(i);
+        }
+    }
+
+    static int[] readInts(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0) {
+            return null;
+        }
+        int[] v = new int[len];
+        buf.asIntBuffer().get(v);
+        buf.position(buf.position() + 4 * len);
+        return v;
+    }
+
+    static void writeBitSet(DataOutput out, BitSet bits) throws IOException {
+        if (bits == null) {
+            out.writeInt(-1);
+            return;
+        }
+        long[] v = bits.toLongArray();
+        out.writeInt(v.length);
+        for (long l : v) {
+            out.writeLong(l);
+        }
+    }
+
+    static BitSet readBitSet(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0) {
+            return null;
+        }
+        long[] v = new long[len];
+        buf.asLongBuffer().get(v);
+        buf.position(buf.position() + 8 * len);
+        return BitSet.valueOf(v);
+    }
+}
@@ -1,18 +1,25 @@
 package org.dynmap.hdmap;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
@@ -27,6 +34,7 @@ import org.dynmap.renderer.DynmapBlockState;
 import org.dynmap.renderer.RenderPatch;
 import org.dynmap.renderer.RenderPatchFactory.SideVisible;
 import org.dynmap.utils.ForgeConfigFile;
+import org.dynmap.utils.MemoryManager;
 import org.dynmap.utils.PatchDefinition;
 import org.dynmap.utils.PatchDefinitionFactory;
 
@@ -115,6 +123,29 @@ public class HDBlockModels {
         }
         return null;
     }
+    /* Scaled models are held by perspectives and shaders, so they are only reported */
+    private static final MemoryManager.MemoryUser memuser = new MemoryManager.MemoryUser() {
+        @Override
+        public String getMemoryUserName() {
+            return "Scaled block models";
+        }
+        @Override
+        public long getMemoryUsed() {
+            long used = 0;
+            for (HDScaledBlockModels m : new ArrayList<HDScaledBlockModels>(scaled_models_by_scale.values())) {
+                used += m.getMemoryUsed();
+            }
+            return used;
+        }
+        @Override
+        public long releaseMemory(long bytes) {
+            return 0;
+        }
+    };
+    static {
+        MemoryManager.register(memuser, MemoryManager.PRIORITY_NONE);
+    }
+
     /**
      * Get scaled set of models for all modelled blocks 
      * @param scale - scale
@@ -125,6 +156,7 @@ public class HDBlockModels {
         if(model == null) {
             model = new HDScaledBlockModels(scale);
             scaled_models_by_scale.put(scale, model);
+            DefinitionCache.saveScaledModels(scale);
         }
         return model;
     }
@@ -158,17 +190,16 @@ public class HDBlockModels {
      * @param config - model configuration data
      */
     public static void loadModels(DynmapCore core, ConfigurationNode config) {
+        loadModels(core, config, getModelSources(core));
+    }
+    /**
+     * Read model files, in load order
+     * @param core - core object
+     * @return model file sources
+     */
+    static List<DefinitionCache.Source> getModelSources(DynmapCore core) {
         File datadir = core.getDataFolder();
-        max_patches = 6;    /* Reset to default */
-        /* Reset models-by-ID-Data cache */
-        models_by_id_data.clear();
-        /* Reset scaled models by scale cache */
-        scaled_models_by_scale.clear();
-        /* Reset change-ignored flags */
-        changeIgnoredBlocks.clear();
-        /* Reset model list */
-        loadedmods.clear();
-        
+        ArrayList<DefinitionCache.Source> sources = new ArrayList<DefinitionCache.Source>();
         /* Load block models */
         int i = 0;
         boolean done = false;
@@ -177,8 +208,12 @@ public class HDBlockModels {
         while (!done) {
             in = TexturePack.class.getResourceAsStream("/models_" + i + ".txt");
             if(in != null) {
-                loadModelFile(in, "models_" + i + ".txt", config, core, "core");
-                try { in.close(); } catch (IOException iox) {} in = null;
+                try {
+                    sources.add(new DefinitionCache.Source("models_" + i + ".txt", "core", false, false, DefinitionCache.readSource(in)));
+                } catch (IOException iox) {
+                    Log.severe("Error loading models_" + i + ".txt");
+                }
+                in = null;
             }
             else {
                 done = true;
@@ -190,23 +225,16 @@ public class HDBlockModels {
             File f = core.getServer().getModContainerFile(modid);   // Get mod file
             if ((f != null) && f.isFile()) {
                 zf = null;
-                in = null;
                 try {
                     zf = new ZipFile(f);
                     String fn = "assets/" + modid.toLowerCase() + "/dynmap-models.txt";
                     ZipEntry ze = zf.getEntry(fn);
                     if (ze != null) {
-                        in = zf.getInputStream(ze);
-                        loadModelFile(in, fn, config, core, modid);
-                        loadedmods.add(modid);  // Add to set: prevent others definitions for same mod
+                        sources.add(new DefinitionCache.Source(fn, modid, true, false, DefinitionCache.readSource(zf.getInputStream(ze))));
                     }
                 } catch (ZipException e) {
                 } catch (IOException e) {
                 } finally {
-                    if (in != null) {
-                        try { in.close(); } catch (IOException e) { }
-                        in = null;
-                    }
                     if (zf != null) {
                         try { zf.close(); } catch (IOException e) { }
                         zf = null;
@@ -222,15 +250,9 @@ public class HDBlockModels {
             File custom = new File(customdir, fn);
             if(custom.canRead()) {
                 try {
-                    in = new FileInputStream(custom);
-                    loadModelFile(in, custom.getPath(), config, core, getModIDFromFileName(fn));
+                    sources.add(new DefinitionCache.Source(custom.getPath(), getModIDFromFileName(fn), false, false, DefinitionCache.readSource(new FileInputStream(custom))));
                 } catch (IOException iox) {
                     Log.severe("Error loading " + custom.getPath());
-                } finally {
-                    if(in != null) { 
-                        try { in.close(); } catch (IOException iox) {}
-                        in = null;
-                    }
                 }
             }
         }
@@ -246,22 +268,317 @@ public class HDBlockModels {
                 if (!n.endsWith("-models.txt")) continue;
                 in = zf.getInputStream(ze);
                 if (in != null) {
-                    loadModelFile(in, n, config, core, getModIDFromFileName(n));
-                    try { in.close(); } catch (IOException x) { in = null; }
+                    sources.add(new DefinitionCache.Source(n, getModIDFromFileName(n), false, false, DefinitionCache.readSource(in)));
+                    in = null;
                 }
             }
         } catch (IOException iox) {
             Log.severe("Error processing nodel files");
         } finally {
-            if (in != null) {
-                try { in.close(); } catch (IOException iox) {}
-                in = null;
-            }
             if (zf != null) {
                 try { zf.close(); } catch (IOException iox) {}
                 zf = null;
             }
         }
+        return sources;
+    }
+    /**
+     * Load models from model files
+     * @param core - core object
+     * @param config - model configuration data
+     * @param sources - model files, in load order
+     */
+    static void loadModels(DynmapCore core, ConfigurationNode config, List<DefinitionCache.Source> sources) {
+        max_patches = 6;    /* Reset to default */
+        /* Reset models-by-ID-Data cache */
+        models_by_id_data.clear();
+        /* Reset scaled models by scale cache */
+        scaled_models_by_scale.clear();
+        /* Reset change-ignored flags */
+        changeIgnoredBlocks.clear();
+        /* Reset model list */
+        loadedmods.clear();
+        
+        for (DefinitionCache.Source src : sources) {
+            loadModelFile(new ByteArrayInputStream(src.data), src.name, config, core, src.blockset);
+            if (src.modfile) {
+                loadedmods.add(src.blockset);  // Add to set: prevent others definitions for same mod
+            }
+        }
+    }
+    
+    /**
+     * Model definitions read from definition cache, ready to install
+     */
+    static class Definitions {
+        private int maxpatches;
+        private List<String> mods;
+        private BitSet tiledata;
+        private BitSet ignored;
+        private int[] gidx;
+        private HDBlockModel[] models;
+        List<HDBlockVolumetricModel> volmodels = new ArrayList<HDBlockVolumetricModel>();
+
+        /**
+         * Replace loaded models with these
+         */
+        void install() {
+            max_patches = maxpatches;
+            models_by_id_data.clear();
+            for (int i = 0; i < gidx.length; i++) {
+                models_by_id_data.put(gidx[i], models[i]);
+            }
+            scaled_models_by_scale.clear();
+            customModelsRequestingTileData.clear();
+            customModelsRequestingTileData.or(tiledata);
+            changeIgnoredBlocks.clear();
+            changeIgnoredBlocks.or(ignored);
+            loadedmods.clear();
+            loadedmods.addAll(mods);
+        }
+    }
+    
+    private static final int MODEL_VOLUMETRIC = 0;
+    private static final int MODEL_PATCH = 1;
+    private static final int MODEL_CUSTOM = 2;
+    
+    private static void addPatch(PatchDefinition pd, IdentityHashMap<PatchDefinition, Integer> patchids, List<PatchDefinition> patches) {
+        if ((pd != null) && !patchids.containsKey(pd)) {
+            patchids.put(pd, patches.size());
+            patches.add(pd);
+        }
+    }
+    
+    /**
+     * Write loaded models, for definition cache
+     * @param out - output stream
+     * @return volumetric models, in order written
+     * @throws IOException if error writing, or models can't be written
+     */
+    static List<HDBlockVolumetricModel> writeDefinitions(DataOutputStream out) throws IOException {
+        /* Find distinct models, in order of first state using them, and the patches they use */
+        TreeMap<Integer, HDBlockModel> bygidx = new TreeMap<Integer, HDBlockModel>(models_by_id_data);
+        IdentityHashMap<HDBlockModel, Integer> modelids = new IdentityHashMap<HDBlockModel, Integer>();
+        ArrayList<HDBlockModel> models = new ArrayList<HDBlockModel>();
+        ArrayList<Integer> firstgidx = new ArrayList<Integer>();
+        IdentityHashMap<PatchDefinition, Integer> patchids = new IdentityHashMap<PatchDefinition, Integer>();
+        ArrayList<PatchDefinition> patches = new ArrayList<PatchDefinition>();
+        IdentityHashMap<Map<String, PatchDefinition>, Integer> nameids = new IdentityHashMap<Map<String, PatchDefinition>, Integer>();
+        ArrayList<Map<String, PatchDefinition>> names = new ArrayList<Map<String, PatchDefinition>>();
+        ArrayList<HDBlockVolumetricModel> volmodels = new ArrayList<HDBlockVolumetricModel>();
+        for (Map.Entry<Integer, HDBlockModel> ent : bygidx.entrySet()) {
+            HDBlockModel m = ent.getValue();
+            if (modelids.containsKey(m)) continue;
+            modelids.put(m, models.size());
+            models.add(m);
+            firstgidx.add(ent.getKey());
+            if (m instanceof HDBlockVolumetricModel) {
+                volmodels.add((HDBlockVolumetricModel) m);
+            }
+            else if (m instanceof HDBlockPatchModel) {
+                for (PatchDefinition pd : ((HDBlockPatchModel) m).getPatches()) {
+                    addPatch(pd, patchids, patches);
+                }
+            }
+            else if (m instanceof CustomBlockModel) {
+                CustomBlockModel cbm = (CustomBlockModel) m;
+                if ((cbm.patchnames != null) && !nameids.containsKey(cbm.patchnames)) {
+                    nameids.put(cbm.patchnames, names.size());
+                    names.add(cbm.patchnames);
+                    for (PatchDefinition pd : cbm.patchnames.values()) {
+                        addPatch(pd, patchids, patches);
+                    }
+                }
+            }
+            else {
+                throw new IOException("unsupported model " + m.getClass().getName());
+            }
+        }
+        out.writeInt(patches.size());
+        for (PatchDefinition pd : patches) {
+            for (double v : new double[] { pd.x0, pd.y0, pd.z0, pd.xu, pd.yu, pd.zu, pd.xv, pd.yv, pd.zv,
+                pd.umin, pd.umax, pd.vmin, pd.vmax, pd.vminatumax, pd.vmaxatumax }) {
+                out.writeDouble(v);
+            }
+            out.writeInt(pd.sidevis.ordinal());
+            out.writeInt(pd.textureindex);
+        }
+        out.writeInt(names.size());
+        for (Map<String, PatchDefinition> nm : names) {
+            out.writeInt(nm.size());
+            for (Map.Entry<String, PatchDefinition> ent : nm.entrySet()) {
+                DefinitionCache.writeString(out, ent.getKey());
+                out.writeInt(patchids.get(ent.getValue()));
+            }
+        }
+        out.writeInt(models.size());
+        for (int i = 0; i < models.size(); i++) {
+            HDBlockModel m = models.get(i);
+            DefinitionCache.writeString(out, m.getBlockSet());
+            if (m instanceof HDBlockVolumetricModel) {
+                HDBlockVolumetricModel vm = (HDBlockVolumetricModel) m;
+                out.writeInt(MODEL_VOLUMETRIC);
+                out.writeInt(firstgidx.get(i));
+                out.writeInt(vm.getNativeRes());
+                long[] flags = vm.getBlockFlags();
+                out.writeInt(flags.length);
+                for (long v : flags) {
+                    out.writeLong(v);
+                }
+            }
+            else if (m instanceof HDBlockPatchModel) {
+                PatchDefinition[] pds = ((HDBlockPatchModel) m).getPatches();
+                out.writeInt(MODEL_PATCH);
+                out.writeInt(firstgidx.get(i));
+                out.writeInt(pds.length);
+                for (PatchDefinition pd : pds) {
+                    out.writeInt((pd != null) ? patchids.get(pd) : -1);
+                }
+            }
+            else {
+                CustomBlockModel cbm = (CustomBlockModel) m;
+                out.writeInt(MODEL_CUSTOM);
+                out.writeInt(cbm.bstate.globalStateIndex);
+                DefinitionCache.writeString(out, cbm.classname);
+                if (cbm.classparm == null) {
+                    out.writeInt(-1);
+                }
+                else {
+                    out.writeInt(cbm.classparm.size());
+                    for (Map.Entry<String, String> ent : cbm.classparm.entrySet()) {
+                        DefinitionCache.writeString(out, ent.getKey());
+                        DefinitionCache.writeString(out, ent.getValue());
+                    }
+                }
+                DefinitionCache.writeBitSet(out, cbm.databits);
+                out.writeInt((cbm.patchnames != null) ? nameids.get(cbm.patchnames) : -1);
+                out.writeInt(cbm.patchnamecnt);
+                out.writeBoolean(cbm.render != null);
+            }
+        }
+        out.writeInt(bygidx.size());
+        for (Map.Entry<Integer, HDBlockModel> ent : bygidx.entrySet()) {
+            out.writeInt(ent.getKey());
+            out.writeInt(modelids.get(ent.getValue()));
+        }
+        out.writeInt(max_patches);
+        DefinitionCache.writeStrings(out, loadedmods);
+        DefinitionCache.writeBitSet(out, customModelsRequestingTileData);
+        DefinitionCache.writeBitSet(out, changeIgnoredBlocks);
+        return volmodels;
+    }
+    
+    /**
+     * Read models from definition cache.  Custom renderers are created again, so this must be done before texture
+     * mappings are installed, as it would be when parsing.
+     * @param buf - buffer
+     * @return definitions, to be installed
+     * @throws IOException if models can't be created as they were
+     */
+    static Definitions readDefinitions(ByteBuffer buf) throws IOException {
+        Definitions d = new Definitions();
+        PatchDefinition[] patches = new PatchDefinition[buf.getInt()];
+        for (int i = 0; i < patches.length; i++) {
+            double[] v = new double[15];
+            for (int j = 0; j < v.length; j++) {
+                v[j] = buf.getDouble();
+            }
+            SideVisible sidevis = SideVisible.values()[buf.getInt()];
+            int txtidx = buf.getInt();
+            patches[i] = pdf.getPatch(v[0], v[1], v[2], v[3], v[4], v[5], v[6], v[7], v[8], v[9], v[10], v[11], v[12], sidevis, txtidx, v[13], v[14]);
+            if (patches[i] == null) {
+                throw new IOException("invalid patch");
+            }
+        }
+        ArrayList<LinkedHashMap<String, PatchDefinition>> names = new ArrayList<LinkedHashMap<String, PatchDefinition>>();
+        int cnt = buf.getInt();
+        for (int i = 0; i < cnt; i++) {
+            LinkedHashMap<String, PatchDefinition> nm = new LinkedHashMap<String, PatchDefinition>();
+            int ncnt = buf.getInt();
+            for (int j = 0; j < ncnt; j++) {
+                String n = DefinitionCache.readString(buf);
+                nm.put(n, patches[buf.getInt()]);
+            }
+            names.add(nm);
+        }
+        HDBlockModel[] models = new HDBlockModel[buf.getInt()];
+        for (int i = 0; i < models.length; i++) {
+            String blockset = DefinitionCache.readString(buf);
+            int type = buf.getInt();
+            DynmapBlockState bs = DynmapBlockState.getStateByGlobalIndex(buf.getInt());
+            BitSet databits = new BitSet();
+            databits.set(bs.stateIndex);    /* Just enough to create it - state mapping is set on install */
+            if (type == MODEL_VOLUMETRIC) {
+                int nativeres = buf.getInt();
+                long[] flags = new long[buf.getInt()];
+                for (int j = 0; j < flags.length; j++) {
+                    flags[j] = buf.getLong();
+                }
+                HDBlockVolumetricModel vm = new HDBlockVolumetricModel(bs, databits, nativeres, flags, blockset);
+                d.volmodels.add(vm);
+                models[i] = vm;
+            }
+            else if (type == MODEL_PATCH) {
+                PatchDefinition[] pds = new PatchDefinition[buf.getInt()];
+                for (int j = 0; j < pds.length; j++) {
+                    int idx = buf.getInt();
+                    pds[j] = (idx >= 0) ? patches[idx] : null;
+                }
+                models[i] = new HDBlockPatchModel(bs, databits, pds, blockset);
+            }
+            else if (type == MODEL_CUSTOM) {
+                String classname = DefinitionCache.readString(buf);
+                Map<String, String> classparm = null;
+                int pcnt = buf.getInt();
+                if (pcnt >= 0) {
+                    classparm = new HashMap<String, String>();
+                    for (int j = 0; j < pcnt; j++) {
+                        classparm.put(DefinitionCache.readString(buf), DefinitionCache.readString(buf));
+                    }
+                }
+                BitSet bits = DefinitionCache.readBitSet(buf);
+                int nameidx = buf.getInt();
+                int namecnt = buf.getInt();
+                boolean ok = (buf.get() != 0);
+                /* Named patches of model file, as they were when the model was created */
+                LinkedHashMap<String, PatchDefinition> allnames = (nameidx >= 0) ? names.get(nameidx) : null;
+                LinkedHashMap<String, PatchDefinition> nm = null;
+                if (allnames != null) {
+                    nm = new LinkedHashMap<String, PatchDefinition>();
+                    for (Map.Entry<String, PatchDefinition> ent : allnames.entrySet()) {
+                        if (nm.size() >= namecnt) break;
+                        nm.put(ent.getKey(), ent.getValue());
+                    }
+                }
+                CustomBlockModel cbm;
+                pdf.setPatchNameMape(nm);
+                try {
+                    cbm = new CustomBlockModel(bs, bits, classname, classparm, blockset);
+                } finally {
+                    pdf.setPatchNameMape(null);
+                }
+                if (ok && (cbm.render == null)) {
+                    throw new IOException("cannot create custom renderer " + classname);
+                }
+                cbm.patchnames = allnames;
+                cbm.patchnamecnt = namecnt;
+                models[i] = cbm;
+            }
+            else {
+                throw new IOException("bad model type " + type);
+            }
+        }
+        d.gidx = new int[buf.getInt()];
+        d.models = new HDBlockModel[d.gidx.length];
+        for (int i = 0; i < d.gidx.length; i++) {
+            d.gidx[i] = buf.getInt();
+            d.models[i] = models[buf.getInt()];
+        }
+        d.maxpatches = buf.getInt();
+        d.mods = DefinitionCache.readStrings(buf);
+        d.tiledata = DefinitionCache.readBitSet(buf);
+        d.ignored = DefinitionCache.readBitSet(buf);
+        return d;
     }
     
     private static Integer getIntValue(Map<String,Integer> vars, String val) throws NumberFormatException {
@@ -337,7 +654,7 @@ public class HDBlockModels {
             ArrayList<HDBlockVolumetricModel> modlist = new ArrayList<HDBlockVolumetricModel>();
             ArrayList<HDBlockPatchModel> pmodlist = new ArrayList<HDBlockPatchModel>();
             HashMap<String,Integer> varvals = new HashMap<String,Integer>();
-            HashMap<String, PatchDefinition> patchdefs = new HashMap<String, PatchDefinition>();
+            LinkedHashMap<String, PatchDefinition> patchdefs = new LinkedHashMap<String, PatchDefinition>();
             pdf.setPatchNameMape(patchdefs);
             int layerbits = 0;
             int rownum = 0;
@@ -586,7 +903,7 @@ public class HDBlockModels {
                         return; /* Quit */
                     }
                     /* If setting is not defined or false, quit */
-                    else if(config.getBoolean(line, false) == false) {
+                    else if(DefinitionCache.getBoolean(config, line) == false) {
                         return;
                     }
                     else {
@@ -604,7 +921,7 @@ public class HDBlockModels {
                         }
                         try {
                             int val = Integer.valueOf(v[1]);    /* Parse default value */
-                            int parmval = config.getInteger(v[0], val); /* Read value, with applied default */
+                            int parmval = DefinitionCache.getInteger(config, v[0], val); /* Read value, with applied default */
                             varvals.put(v[0], parmval); /* And save value */
                         } catch (NumberFormatException nfx) {
                             Log.severe("Format error - line " + rdr.getLineNumber() + " of " + fname);
@@ -615,6 +932,7 @@ public class HDBlockModels {
                 else if(line.startsWith("cfgfile:")) { /* If config file */
                     File cfgfile = new File(line.substring(8).trim());
                     ForgeConfigFile cfg = new ForgeConfigFile(cfgfile);
+                    DefinitionCache.useFile(cfgfile);
                     if (!mod_cfg_loaded) {
                         need_mod_cfg = true;
                     }
@@ -722,7 +1040,10 @@ public class HDBlockModels {
                     if(patchid != null) {
                         PatchDefinition pd = pdf.getPatch(p_x0, p_y0, p_z0, p_xu, p_yu, p_zu, p_xv, p_yv, p_zv, p_umin, p_umax, p_vmin, p_vminatumax, p_vmax, p_vmaxatumax, p_sidevis, 0);
                         if(pd != null) {
-                            patchdefs.put(patchid,  pd);
+                            PatchDefinition prev = patchdefs.put(patchid,  pd);
+                            if ((prev != null) && (prev != pd)) {  /* Custom models before here saw the old one */
+                                DefinitionCache.notCacheable("patch " + patchid + " redefined in " + fname);
+                            }
                         }
                     }
                 }
@@ -1005,7 +1326,10 @@ public class HDBlockModels {
                         for (String nm : blknames) {
                             DynmapBlockState bs = DynmapBlockState.getBaseStateByName(nm);
                             if (bs.isNotAir()) {
+                                int npatch = patchdefs.size();
                                 CustomBlockModel cbm = new CustomBlockModel(bs, databits, cls, custargs, blockset);
+                                cbm.patchnames = patchdefs;
+                                cbm.patchnamecnt = npatch;
                                 if(cbm.render == null) {
                                     Log.severe("Custom block model failed to initialize = line " + rdr.getLineNumber() + " of " + fname);
                                 }
@@ -1041,7 +1365,7 @@ public class HDBlockModels {
                         if (loadedmods.contains(n)) {   // Already supplied by mod itself?
                             return;
                         }
-                        String modver = core.getServer().getModVersion(n);
+                        String modver = DefinitionCache.getModVersion(core, n);
                         if((modver != null) && ((rng == null) || checkVersionRange(modver, rng))) {
                             found = true;
                             Log.info(n + "[" + modver + "] models enabled");
@@ -1049,7 +1373,7 @@ public class HDBlockModels {
                             modversion = modver;
                             loadedmods.add(n);  // Add to loaded mods
                             // Prime values from block and item unique IDs
-                            core.addModBlockItemIDs(modname, varvals);
+                            DefinitionCache.addModBlockItemIDs(core, modname, varvals);
                             break;
                         }
                     }
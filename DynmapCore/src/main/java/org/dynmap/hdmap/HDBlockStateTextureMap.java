@@ -176,6 +176,20 @@ public class HDBlockStateTextureMap {
         }
         return m;
     }
+    // Get block set and color mapping (for definition cache)
+    final String getBlockSet() {
+        return blockset;
+    }
+    final Integer getColorMapping() {
+        return colorMapping;
+    }
+    // Get or replace whole table (for definition cache)
+    static HDBlockStateTextureMap[] getTable() {
+        return texmaps;
+    }
+    static void setTable(HDBlockStateTextureMap[] tbl) {
+        texmaps = tbl;
+    }
     // Get state by index
     public final HDBlockStateTextureMap getStateMap(DynmapBlockState blk, int stateid) {
     	return getByGlobalIndex(blk.getState(stateid).globalStateIndex);
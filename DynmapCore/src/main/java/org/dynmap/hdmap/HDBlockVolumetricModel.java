@@ -183,6 +183,21 @@ public class HDBlockVolumetricModel extends HDBlockModel {
         }
         return map;
     }
+    /**
+     * Set scaled map of block, as previously built by getScaledMap (from definition cache)
+     * @param res - scale of map
+     * @param map - array of alpha values
+     */
+    void setScaledMap(int res, short[] map) {
+        if(scaledblocks == null) { scaledblocks = new HashMap<Integer, short[]>(); }
+        scaledblocks.put(Integer.valueOf(res), map);
+    }
+    final int getNativeRes() {
+        return nativeres;
+    }
+    final long[] getBlockFlags() {
+        return blockflags;
+    }
     @Override
     public int getTextureCount() {
         return 6;
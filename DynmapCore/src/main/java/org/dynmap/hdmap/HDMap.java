@@ -196,6 +196,11 @@ public class HDMap extends MapType {
         return perspective.getTileCoords(w, minx, miny, minz, maxx, maxy, maxz);
     }
 
+    @Override
+    public int[] getDirtyBounds(DynmapWorld w, int minx, int miny, int minz, int maxx, int maxy, int maxz) {
+        return perspective.getDirtyBounds(w, minx, miny, minz, maxx, maxy, maxz);
+    }
+
     @Override
     public MapTile[] getAdjecentTiles(MapTile tile) {
         return perspective.getAdjecentTiles(tile);
@@ -11,6 +11,7 @@ import org.dynmap.DynmapWorld;
 import org.dynmap.Log;
 import org.dynmap.MapManager;
 import org.dynmap.MapType;
+import org.dynmap.MapTypeState;
 import org.dynmap.utils.MapChunkCache;
 import org.dynmap.utils.MapIterator;
 
@@ -20,6 +21,12 @@ public class HDMapManager {
     public HashMap<String, HDLighting> lightings = new HashMap<String, HDLighting>();
     public HashSet<HDMap> maps = new HashSet<HDMap>();
     public HashMap<String, ArrayList<HDMap>> maps_by_world_perspective = new HashMap<String, ArrayList<HDMap>>();
+    /* Pixels of recently rendered tiles, for partial re-rendering (null if disabled) */
+    public TilePixelCache pixelcache;
+
+    public HDMapManager() {
+        shaderstategen++;   /* New maps (reload) - render threads drop shader states of old ones */
+    }
  
     public void loadHDShaders(DynmapCore core) {
         Log.verboseinfo("Loading shaders...");
@@ -107,6 +114,26 @@ public class HDMapManager {
         Log.info("Loaded " + lightings.size() + " lightings.");
     }
 
+    /* Shader states of render thread, reused from tile to tile (a thread renders one tile at a time) */
+    private static final int MAX_CACHED_SHADER_STATES = 64;
+    private static volatile int shaderstategen;
+    private static class CachedShaderState {
+        int scale;
+        HDShaderState state;
+    }
+    private static class ShaderStateCache {
+        final HashMap<HDMap, CachedShaderState> states = new HashMap<HDMap, CachedShaderState>();
+        final ArrayList<HDShaderState> list = new ArrayList<HDShaderState>();
+        HDShaderState[] last = new HDShaderState[0];
+        int gen = -1;
+    }
+    private static final ThreadLocal<ShaderStateCache> shaderstates = new ThreadLocal<ShaderStateCache>() {
+        @Override
+        protected ShaderStateCache initialValue() {
+            return new ShaderStateCache();
+        }
+    };
+
     /**
      * Initialize shader states for all shaders for given tile
      * 
@@ -122,7 +149,14 @@ public class HDMapManager {
         if(w == null) {
             return new HDShaderState[0];
         }
-        ArrayList<HDShaderState> shaders = new ArrayList<HDShaderState>();
+        ShaderStateCache ssc = shaderstates.get();
+        if(ssc.gen != shaderstategen) {    /* Reloaded since last tile - drop states of old maps */
+            ssc.states.clear();
+            ssc.last = new HDShaderState[0];
+            ssc.gen = shaderstategen;
+        }
+        ArrayList<HDShaderState> shaders = ssc.list;
+        shaders.clear();
         for(MapType map : w.maps) {
             if(map instanceof HDMap) {
                 HDMap hdmap = (HDMap)map;
@@ -130,11 +164,34 @@ public class HDMapManager {
                     /* If limited to one map, and this isn't it, skip */
                     if((mapname != null) && (!hdmap.getName().equals(mapname)))
                         continue;
-                    shaders.add(hdmap.getShader().getStateInstance(hdmap, cache, mapiter, scale));
+                    /* Reuse this thread's state from last tile of map, if possible */
+                    CachedShaderState css = ssc.states.get(hdmap);
+                    if((css == null) || (css.scale != scale) || (!css.state.resetForTile(cache, mapiter))) {
+                        if(css == null) {
+                            css = new CachedShaderState();
+                            ssc.states.put(hdmap, css);
+                        }
+                        css.scale = scale;
+                        css.state = hdmap.getShader().getStateInstance(hdmap, cache, mapiter, scale);
+                    }
+                    shaders.add(css.state);
                 }
             }
         }
-        return shaders.toArray(new HDShaderState[shaders.size()]);
+        if(ssc.states.size() > MAX_CACHED_SHADER_STATES) {    /* Too many maps - start over */
+            ssc.states.clear();
+        }
+        /* Same states as last tile? Reuse the array too */
+        HDShaderState[] rslt = ssc.last;
+        boolean match = (rslt.length == shaders.size());
+        for(int i = 0; match && (i < rslt.length); i++) {
+            match = (rslt[i] == shaders.get(i));
+        }
+        if(!match) {
+            rslt = ssc.last = shaders.toArray(new HDShaderState[shaders.size()]);
+        }
+        shaders.clear();
+        return rslt;
     }
     
     private static final int BIOMEDATAFLAG = 0;
@@ -157,6 +214,27 @@ public class HDMapManager {
     public boolean isBlockTypeDataNeeded(HDMapTile t) {
         return getCachedFlags(t)[BLOCKTYPEFLAG];
     }
+
+    /**
+     * Drop dirty bounds recorded for tile on the maps it is rendered for, when it is skipped rather than rendered
+     * @param tile - tile
+     * @param mapname - map the tile was to be rendered for, or null for all maps sharing the tile
+     */
+    public void dropDirtyBounds(HDMapTile tile, String mapname) {
+        DynmapWorld w = tile.getDynmapWorld();
+        for(MapType map : w.maps) {
+            if(map instanceof HDMap) {
+                HDMap hdmap = (HDMap)map;
+                if((hdmap.getPerspective() == tile.perspective) && (hdmap.getBoostZoom() == tile.boostzoom) &&
+                        ((mapname == null) || hdmap.getName().equals(mapname))) {
+                    MapTypeState mts = w.getMapState(hdmap);
+                    if(mts != null) {
+                        mts.takeDirtyBounds(tile.tx, tile.ty);
+                    }
+                }
+            }
+        }
+    }
     
     private HashMap<String, boolean[]> cached_data_flags_by_world_perspective = new HashMap<String, boolean[]>();
     
@@ -170,6 +248,7 @@ public class HDMapManager {
         cached_data_flags_by_world_perspective.put(k, flags);
         DynmapWorld dw = MapManager.mapman.worldsLookup.get(w);
         if(dw == null) return flags;
+        flags[HIGHESTZFLAG] = t.perspective.isHightestBlockYDataNeeded();
 
         for(MapType map : dw.maps) {
             if(map instanceof HDMap) {
@@ -87,6 +87,11 @@ public class HDMapTile extends MapTile {
         return perspective.getAdjecentTiles(this);
     }
     
+    @Override
+    public void dropDirtyBounds(String mapname) {
+        MapManager.mapman.hdmapman.dropDirtyBounds(this, mapname);
+    }
+    
     public int tileOrdinalX() { return tx; }
     public int tileOrdinalY() { return ty; }
 
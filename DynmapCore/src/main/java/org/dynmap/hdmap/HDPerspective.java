@@ -17,6 +17,8 @@ public interface HDPerspective {
     List<TileFlags.TileCoord> getTileCoords(DynmapWorld w, int x, int y, int z);
     /* Get tiles invalidated by change at given volume, defined by 2 opposite corner locations */
     List<TileFlags.TileCoord> getTileCoords(DynmapWorld w, int minx, int miny, int minz, int maxx, int maxy, int maxz);
+    /* Get bounds, in map pixel coordinates, of area affected by change at given volume ({minx, miny, maxx, maxy}, or null if unknown) */
+    int[] getDirtyBounds(DynmapWorld w, int minx, int miny, int minz, int maxx, int maxy, int maxz);
     /* Get tiles adjacent to given tile */
     MapTile[] getAdjecentTiles(MapTile tile);
     /* Get chunks needed for given tile */
@@ -0,0 +1,81 @@
+package org.dynmap.hdmap;
+
+import org.dynmap.renderer.DynmapBlockState;
+import org.dynmap.utils.PatchDefinition;
+
+/**
+ * Compiled, immutable per-block-state model data for a given model scale.
+ * Structure-of-arrays indexed by DynmapBlockState.globalStateIndex, built once model
+ * definitions are loaded, so the ray tracer's per-block model lookup is flat array reads.
+ */
+public class HDRenderStateTable {
+    /* Model types */
+    public static final byte MODEL_NONE = 0;        // Simple cube (or air)
+    public static final byte MODEL_VOLUMETRIC = 1;  // Scaled volumetric model
+    public static final byte MODEL_PATCH = 2;       // Patch model
+    public static final byte MODEL_CUSTOM = 3;      // Custom renderer model
+
+    private final int cnt;
+    private final byte[] modeltype;
+    private final short[][] volmodels;
+    private final PatchDefinition[][] patches;
+    private final CustomBlockModel[] custom;
+    private final DynmapBlockState[] liquidstates;
+
+    HDRenderStateTable(short[][] volmodels, PatchDefinition[][] patches, CustomBlockModel[] custom) {
+        cnt = DynmapBlockState.getGlobalIndexMax();
+        modeltype = new byte[cnt];
+        liquidstates = new DynmapBlockState[cnt];
+        this.volmodels = new short[cnt][];
+        this.patches = new PatchDefinition[cnt][];
+        this.custom = new CustomBlockModel[cnt];
+        for (int gidx = 0; gidx < cnt; gidx++) {
+            DynmapBlockState bs = DynmapBlockState.getStateByGlobalIndex(gidx);
+            if (bs == null) {
+                continue;
+            }
+            liquidstates[gidx] = bs.getLiquidState();
+            /* Same precedence as the ray tracer: patches, then custom, then volumetric */
+            if ((gidx < patches.length) && (patches[gidx] != null)) {
+                modeltype[gidx] = MODEL_PATCH;
+                this.patches[gidx] = patches[gidx];
+            }
+            else if ((gidx < custom.length) && (custom[gidx] != null)) {
+                modeltype[gidx] = MODEL_CUSTOM;
+                this.custom[gidx] = custom[gidx];
+            }
+            else if ((gidx < volmodels.length) && (volmodels[gidx] != null)) {
+                modeltype[gidx] = MODEL_VOLUMETRIC;
+                this.volmodels[gidx] = volmodels[gidx];
+            }
+        }
+    }
+    /**
+     * Test if block state is covered by table (states registered after table was built are not)
+     * @param blk - block state
+     * @return true if in table
+     */
+    public final boolean isInTable(DynmapBlockState blk) {
+        return blk.globalStateIndex < cnt;
+    }
+    /**
+     * Get model type for state
+     * @param gidx - global state index (must be in table)
+     * @return MODEL_* value
+     */
+    public final byte getModelType(int gidx) {
+        return modeltype[gidx];
+    }
+    public final short[] getVolumetricModel(int gidx) {
+        return volmodels[gidx];
+    }
+    public final PatchDefinition[] getPatchModel(int gidx) {
+        return patches[gidx];
+    }
+    public final CustomBlockModel getCustomBlockModel(int gidx) {
+        return custom[gidx];
+    }
+    public final DynmapBlockState getLiquidState(int gidx) {
+        return liquidstates[gidx];
+    }
+}
@@ -7,6 +7,7 @@ public class HDScaledBlockModels {
     private short[][] modelvectors;
     private PatchDefinition[][] patches;
     private CustomBlockModel[] custom;
+    private final HDRenderStateTable statetable;
 
     public HDScaledBlockModels(int scale) {
         short[][] blockmodels = new short[DynmapBlockState.getGlobalIndexMax()][];
@@ -46,6 +47,29 @@ public class HDScaledBlockModels {
         this.modelvectors = blockmodels;
         this.patches = patches;
         this.custom = custom;
+        this.statetable = new HDRenderStateTable(blockmodels, patches, custom);
+    }
+    
+    /**
+     * Estimate memory used by scaled models
+     * @return bytes
+     */
+    public long getMemoryUsed() {
+        long used = 24L * modelvectors.length;   /* Three reference arrays */
+        for (short[] m : modelvectors) {
+            if (m != null) {
+                used += 2L * m.length;
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Get compiled render state table for this scale
+     * @return render state table
+     */
+    public final HDRenderStateTable getRenderStateTable() {
+        return statetable;
     }
     
     public final short[] getScaledModel(DynmapBlockState blk) {
@@ -3,6 +3,8 @@ package org.dynmap.hdmap;
 import org.dynmap.Color;
 import org.dynmap.renderer.DynmapBlockState;
 import org.dynmap.utils.DynLongHashMap;
+import org.dynmap.utils.MapChunkCache;
+import org.dynmap.utils.MapIterator;
 
 /**
  * This interface is used to define the operational state of a renderer during raytracing
@@ -46,6 +48,15 @@ public interface HDShaderState {
      * @param index - index of color to request (renderer specific - 0=default, 1=day for night/day renderer
      */
     void getRayColor(Color c, int index);
+    /**
+     * Prepare state object for rendering another tile of the same map, at the same scale, instead of allocating a new one
+     * @param cache - chunk cache containing data for new tile
+     * @param mapiter - iterator used when traversing rays in new tile
+     * @return true if state was reset, false if it cannot be reused (new instance needed)
+     */
+    default boolean resetForTile(MapChunkCache cache, MapIterator mapiter) {
+        return false;
+    }
     /**
      * Clean up state object - called after last ray completed
      */
@@ -0,0 +1,21 @@
+package org.dynmap.hdmap;
+
+import org.dynmap.ConfigurationNode;
+import org.dynmap.DynmapCore;
+
+/**
+ * Top-down (inclination 90) surface perspective: each pixel looks up the top block of its column in the chunk height
+ * map, and shades it as a full cube seen from above (continuing down only through blocks the shaders see through),
+ * with no ray tracing or block models.  Colours, lighting and biome shading come from the map's shader as usual, and
+ * tiles, storage and zoom-out are shared with other HD maps, so it can be used as a cheap overview map of large worlds.
+ *
+ * Blocks above the height map are not seen: on servers whose height map only counts light blocking blocks, this
+ * can leave out glass, plants and the like on the surface.  Nether worlds (where the top block is the roof) are
+ * traced as for an iso_*_90 view.
+ */
+public class HeightmapHDPerspective extends IsoHDPerspective {
+
+    public HeightmapHDPerspective(DynmapCore core, ConfigurationNode configuration) {
+        super(core, configuration, true);
+    }
+}
@@ -120,6 +120,13 @@ public class InhabitedHDShader implements HDShader {
                 lightingTable = null;
             }
         }
+        /**
+         * Reuse state for new tile
+         */
+        @Override
+        public boolean resetForTile(MapChunkCache cache, MapIterator mapiter) {
+            return true;
+        }
         /**
          * Get our shader
          */
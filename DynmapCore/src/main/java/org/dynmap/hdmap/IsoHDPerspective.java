@@ -27,6 +27,7 @@ import org.dynmap.renderer.RenderPatchFactory.SideVisible;
 import org.dynmap.storage.MapStorage;
 import org.dynmap.storage.MapStorageTile;
 import org.dynmap.utils.BlockStep;
+import org.dynmap.utils.BrickOccupancyMap;
 import org.dynmap.hdmap.TexturePack.BlockTransparency;
 import org.dynmap.utils.DynmapBufferedImage;
 import org.dynmap.utils.LightLevels;
@@ -76,6 +77,11 @@ public class IsoHDPerspective implements HDPerspective {
     
     private boolean need_biomedata = false;
     private boolean need_rawbiomedata = false;
+    /* Start top-down rays at the chunk height map, rather than tracing down from the top of the world */
+    private final boolean useheightmap;
+
+    /* Farthest a change in a block can change light level, in blocks */
+    private static final int LIGHT_RADIUS = 15;
 
     private static final BlockStep [] semi_steps = { BlockStep.Y_PLUS, BlockStep.X_MINUS, BlockStep.X_PLUS, BlockStep.Z_MINUS, BlockStep.Z_PLUS };
     
@@ -89,8 +95,9 @@ public class IsoHDPerspective implements HDPerspective {
         BlockStep stepx, stepy, stepz;
 
         /* Scaled models for non-cube blocks */
-        private final HDScaledBlockModels scalemodels;
-        private final int modscale;
+        private HDScaledBlockModels scalemodels;
+        private HDRenderStateTable statetable;
+        private int modscale;
 
         /* Section-level raytrace variables */
         int sx, sy, sz;
@@ -132,31 +139,59 @@ public class IsoHDPerspective implements HDPerspective {
         double cur_patch_t;
         
         int[] subblock_xyz = new int[3];
-        final MapIterator mapiter;
-        final boolean isnether;
+        MapIterator mapiter;
+        boolean isnether;
         boolean skiptoair;
-        final int worldheight;
-        final int heightmask;
+        BrickOccupancyMap occupancy;
+        int worldheight;
+        int heightmask;
         final LightLevels llcache[];
+        /* Render profiler counters, if profiling, and whether current ray is sampled */
+        RenderProfiler.Counters profile;
+        boolean sampled;
         
         /* Cache for custom model patch lists */
         private final DynLongHashMap custom_meshes;
         private final DynLongHashMap custom_fluid_meshes;
 
         public OurPerspectiveState(MapIterator mi, boolean isnether, int scaled) {
+            llcache = new LightLevels[4];
+            for(int i = 0; i < llcache.length; i++)
+                llcache[i] = new LightLevels();
+            custom_meshes = new DynLongHashMap();
+            custom_fluid_meshes = new DynLongHashMap();
+            reset(mi, isnether, scaled);
+        }
+
+        /**
+         * Reset state for rendering a new tile
+         */
+        void reset(MapIterator mi, boolean isnether, int scaled) {
             mapiter = mi;
             this.isnether = isnether;
             worldheight = mapiter.getWorldHeight();
             int shift;
             for(shift = 0; (1<<shift) < worldheight; shift++) {}
             heightmask = (1<<shift) - 1;
-            llcache = new LightLevels[4];
-            for(int i = 0; i < llcache.length; i++)
-                llcache[i] = new LightLevels();
-            custom_meshes = new DynLongHashMap();
-            custom_fluid_meshes = new DynLongHashMap();
+            /* Cached patch lists are by block position */
+            custom_meshes.clear();
+            custom_fluid_meshes.clear();
             modscale = basemodscale << scaled;
             scalemodels = HDBlockModels.getModelsForScale(basemodscale << scaled);
+            statetable = scalemodels.getRenderStateTable();
+            blocktype = lastblocktype = DynmapBlockState.AIR;
+            laststep = BlockStep.Y_MINUS;
+            cur_patch = -1;
+        }
+
+        /**
+         * Drop references to tile data once tile is done
+         */
+        void release() {
+            mapiter = null;
+            custom_meshes.clear();
+            custom_fluid_meshes.clear();
+            occupancy.clear();
         }
         
         private final void updateSemitransparentLight(LightLevels ll) {
@@ -375,6 +410,7 @@ public class IsoHDPerspective implements HDPerspective {
             }
             /* Walk through scene */
             laststep = BlockStep.Y_MINUS; /* Last step is down into map */
+            blocktype = lastblocktype = DynmapBlockState.AIR;   /* Nothing hit yet on this ray */
             nonairhit = false;
             skiptoair = isnether;
         }
@@ -559,26 +595,43 @@ public class IsoHDPerspective implements HDPerspective {
             RenderPatch[] patches = scalemodels.getPatchModel(bt);
             /* If no patches, see if custom model */
             if (patches == null) {
-                CustomBlockModel cbm = scalemodels.getCustomBlockModel(bt);
-                if (cbm != null) {   /* If found, see if cached already */
-                    if (isFluid) {
-                        patches = this.getCustomFluidMesh();
-                        if (patches == null) {
-                            patches = cbm.getMeshForBlock(mapiter);
-                            this.setCustomFluidMesh(patches);
-                        }
+                patches = getCustomPatches(scalemodels.getCustomBlockModel(bt), isFluid);
+            }
+            return patches;
+        }
+        private RenderPatch[] getCustomPatches(CustomBlockModel cbm, boolean isFluid) {
+            RenderPatch[] patches = null;
+            if (cbm != null) {   /* If found, see if cached already */
+                if (isFluid) {
+                    patches = this.getCustomFluidMesh();
+                    if (patches == null) {
+                        patches = cbm.getMeshForBlock(mapiter);
+                        this.setCustomFluidMesh(patches);
                     }
-                    else {
-                        patches = this.getCustomMesh();
-                        if (patches == null) {
-                            patches = cbm.getMeshForBlock(mapiter);
-                            this.setCustomMesh(patches);
-                        }
+                }
+                else {
+                    patches = this.getCustomMesh();
+                    if (patches == null) {
+                        patches = cbm.getMeshForBlock(mapiter);
+                        this.setCustomMesh(patches);
                     }
                 }
             }
             return patches;
         }
+        /**
+         * Get patches for given block, using compiled render state table
+         */
+        private RenderPatch[] getPatches(int gidx, boolean isFluid) {
+            switch (statetable.getModelType(gidx)) {
+                case HDRenderStateTable.MODEL_PATCH:
+                    return statetable.getPatchModel(gidx);
+                case HDRenderStateTable.MODEL_CUSTOM:
+                    return getCustomPatches(statetable.getCustomBlockModel(gidx), isFluid);
+                default:
+                    return null;
+            }
+        }
         /**
          * Process visit of ray to block
          */
@@ -591,19 +644,37 @@ public class IsoHDPerspective implements HDPerspective {
                 }
             }
             else if(nonairhit || blocktype.isNotAir()) {
-                short[] model;
-                RenderPatch[] patches = getPatches(blocktype, false);
+                short[] model = null;
+                RenderPatch[] patches;
+                DynmapBlockState fluidstate;
+                if (statetable.isInTable(blocktype)) {  /* Fast path: compiled state table */
+                    int gidx = blocktype.globalStateIndex;
+                    if (statetable.getModelType(gidx) == HDRenderStateTable.MODEL_VOLUMETRIC) {
+                        patches = null;
+                        model = statetable.getVolumetricModel(gidx);
+                    }
+                    else {
+                        patches = getPatches(gidx, false);
+                    }
+                    fluidstate = statetable.getLiquidState(gidx);
+                }
+                else {  /* State registered after table was built */
+                    patches = getPatches(blocktype, false);
+                    if (patches == null) {
+                        model = scalemodels.getScaledModel(blocktype);
+                    }
+                    fluidstate = blocktype.getLiquidState();
+                }
                 /* Look up to see if block is modelled */
                 if(patches != null) {
                     RenderPatch[] fluidpatches = null;
                     // If so, check for waterlogged
-                    DynmapBlockState fluidstate = blocktype.getLiquidState();
                     if (fluidstate != null) {
-                        fluidpatches = getPatches(fluidstate, true);
+                        fluidpatches = statetable.isInTable(fluidstate) ? getPatches(fluidstate.globalStateIndex, true) : getPatches(fluidstate, true);
                     }
                     return handlePatches(patches, shaderstate, shaderdone, fluidstate, fluidpatches);
                 }
-                else if ((model = scalemodels.getScaledModel(blocktype)) != null) {
+                else if (model != null) {
                     return handleSubModel(model, shaderstate, shaderdone);
                 }
                 else {
@@ -625,6 +696,16 @@ public class IsoHDPerspective implements HDPerspective {
             return false;
         }
         
+        /**
+         * Process visit of ray to block, timed for render profiler
+         */
+        private final boolean visit_block_sampled(HDShaderState[] shaderstate, boolean[] shaderdone) {
+            long t0 = System.nanoTime();
+            boolean done = visit_block(shaderstate, shaderdone);
+            profile.record(blocktype, System.nanoTime() - t0);
+            return done;
+        }
+        
         /* Skip empty : return false if exited */
         private final boolean raytraceSkipEmpty(MapChunkCache cache) {
             while(cache.isEmptySection(sx, sy, sz)) {
@@ -659,13 +740,21 @@ public class IsoHDPerspective implements HDPerspective {
          * Step block iterator: false if done
          */
         private final boolean raytraceStepIterator() {
+            boolean rslt = raytraceStep();
+            mapiter.stepPosition(laststep);
+            return rslt;
+        }
+        
+        /**
+         * Step ray position, without moving block iterator: false if done
+         */
+        private final boolean raytraceStep() {
             /* If Y step is next best */
             if ((t_next_y <= t_next_x) && (t_next_y <= t_next_z)) {
                 y += y_inc;
                 t = t_next_y;
                 t_next_y += dt_dy;
                 laststep = stepy;
-                mapiter.stepPosition(laststep);
                 /* If outside 0-(height-1) range */
                 if((y & (~heightmask)) != 0) {
                     return false;
@@ -677,7 +766,6 @@ public class IsoHDPerspective implements HDPerspective {
                 t = t_next_x;
                 t_next_x += dt_dx;
                 laststep = stepx;
-                mapiter.stepPosition(laststep);
             }
             /* Else, Z step is next best */
             else {
@@ -685,7 +773,6 @@ public class IsoHDPerspective implements HDPerspective {
                 t = t_next_z;
                 t_next_z += dt_dz;
                 laststep = stepz;
-                mapiter.stepPosition(laststep);
             }
             return true;
         }
@@ -706,10 +793,84 @@ public class IsoHDPerspective implements HDPerspective {
             if (y < 0)
                 return;
             
+            raytraceBlocks(shaderstate, shaderdone);
+        }
+
+        /**
+         * Shade the column under the ray from the top block in the chunk height map, seeing every block as a full
+         * cube viewed from above: one height map lookup, then one visit per block down to the first the shaders
+         * can't see through - no ray traversal or block models.  Only for top-down (inclination 90) views; falls back
+         * to a full trace if no height map is available, or in the nether (where the top block is the roof).
+         */
+        private final void surfacetrace(MapChunkCache cache, HDShaderState[] shaderstate, boolean[] shaderdone) {
+            x = fastFloor(top.x);
+            z = fastFloor(top.z);
+            mapiter.initialize(x, 0, z);
+            int hy = mapiter.getHighestBlockY();
+            if ((hy < 0) || isnether) {
+                raytrace(cache, shaderstate, shaderdone);
+                return;
+            }
+            dy = Math.abs(top.y - bottom.y);
+            int ymin = fastFloor(bottom.y) + 1;
+            /* Height maps differ on whether they give the top block or the air above it, so start above both */
+            y = Math.min(hy + 1, worldheight - 1);
             mapiter.initialize(x, y, z);
+            blocktype = lastblocktype = DynmapBlockState.AIR;
+            laststep = BlockStep.Y_MINUS;   /* Every hit is on a top face */
+            subalpha = -1;
+            nonairhit = false;
+            while (true) {
+                lastblocktype = blocktype;
+                blocktype = mapiter.getBlockType();
+                if (blocktype.isNotAir()) {
+                    long t0 = sampled ? System.nanoTime() : 0;
+                    t = (top.y - (y + 1)) / dy;     /* Top face of block */
+                    boolean done = true;
+                    for (int i = 0; i < shaderstate.length; i++) {
+                        if (!shaderdone[i]) {
+                            shaderdone[i] = shaderstate[i].processBlock(this);
+                            shaderstate[i].setLastBlockState(blocktype);
+                        }
+                        done = done && shaderdone[i];
+                    }
+                    if (sampled) {
+                        profile.record(blocktype, System.nanoTime() - t0);
+                    }
+                    if (done) {
+                        return;
+                    }
+                    nonairhit = true;
+                }
+                if (y <= ymin) {
+                    return;
+                }
+                y--;
+                mapiter.stepPosition(BlockStep.Y_MINUS);
+            }
+        }
+
+        /**
+         * Visit blocks along ray, from current position
+         */
+        private final void raytraceBlocks(HDShaderState[] shaderstate, boolean[] shaderdone) {
+            boolean iterstale = true;
             
             for (; n > 0; --n) {
-        		if (visit_block(shaderstate, shaderdone)) {
+                /* Until first non-air hit, skip known air (above terrain, or in empty brick) without visiting */
+                if ((!nonairhit) && (!skiptoair) && (occupancy != null) && occupancy.isAir(x, y, z)) {
+                    blocktype = DynmapBlockState.AIR;   /* So next block visited sees air as last block */
+                    if (!raytraceStep()) {
+                        return;
+                    }
+                    iterstale = true;
+                    continue;
+                }
+                if (iterstale) {
+                    mapiter.initialize(x, y, z);
+                    iterstale = false;
+                }
+        		if (sampled ? visit_block_sampled(shaderstate, shaderdone) : visit_block(shaderstate, shaderdone)) {
                     return;
                 }
         		if (!raytraceStepIterator()) {
@@ -953,6 +1114,17 @@ public class IsoHDPerspective implements HDPerspective {
     }
     
     public IsoHDPerspective(DynmapCore core, ConfigurationNode configuration) {
+        this(core, configuration, false);
+    }
+
+    /**
+     * @param core - core
+     * @param configuration - perspective definition
+     * @param useheightmap - if true, view is forced to be top-down (inclination 90) and each pixel is shaded from the
+     *  chunk height map, without tracing the ray
+     */
+    protected IsoHDPerspective(DynmapCore core, ConfigurationNode configuration, boolean useheightmap) {
+        this.useheightmap = useheightmap;
         name = configuration.getString("name", null);
         if(name == null) {
             Log.severe("Perspective definition missing name - must be defined and unique");
@@ -968,6 +1140,7 @@ public class IsoHDPerspective implements HDPerspective {
         azimuth = az;
         double inc;
         inc = configuration.getDouble("inclination", 60.0);
+        if(useheightmap) inc = MAX_INCLINATION;
         if(inc > MAX_INCLINATION) inc = MAX_INCLINATION;
         if(inc < MIN_INCLINATION) inc = MIN_INCLINATION;
         inclination = inc;
@@ -1076,6 +1249,35 @@ public class IsoHDPerspective implements HDPerspective {
         return tiles;
     }
 
+    @Override
+    public int[] getDirtyBounds(DynmapWorld world, int minx, int miny, int minz, int maxx, int maxy, int maxz) {
+        /* Pad by the reach of block light, since placing or removing a light source (or a block in its way) changes
+         * light that far away, and extend down to the bottom of the rendered range, since sky light below a change
+         * can change too */
+        double[] xs = { minx - LIGHT_RADIUS, maxx + 1 + LIGHT_RADIUS };
+        double[] ys = { Math.min(miny - LIGHT_RADIUS, minheight), maxy + 1 + LIGHT_RADIUS };
+        double[] zs = { minz - LIGHT_RADIUS, maxz + 1 + LIGHT_RADIUS };
+        Vector3D corner = new Vector3D();
+        Vector3D tcorner = new Vector3D();
+        double mapminx = Double.MAX_VALUE, mapmaxx = -Double.MAX_VALUE;
+        double mapminy = Double.MAX_VALUE, mapmaxy = -Double.MAX_VALUE;
+        for(int i = 0; i < 2; i++) {
+            corner.x = xs[i];
+            for(int j = 0; j < 2; j++) {
+                corner.y = ys[j];
+                for(int k = 0; k < 2; k++) {
+                    corner.z = zs[k];
+                    world_to_map.transform(corner, tcorner);  /* Get map coordinate of corner */
+                    if(mapminx > tcorner.x) mapminx = tcorner.x;
+                    if(mapmaxx < tcorner.x) mapmaxx = tcorner.x;
+                    if(mapminy > tcorner.y) mapminy = tcorner.y;
+                    if(mapmaxy < tcorner.y) mapmaxy = tcorner.y;
+                }
+            }
+        }
+        return new int[] { fastFloor(mapminx), fastFloor(mapminy), fastFloor(mapmaxx) + 1, fastFloor(mapmaxy) + 1 };
+    }
+
     @Override
     public MapTile[] getAdjecentTiles(MapTile tile) {
         HDMapTile t = (HDMapTile) tile;
@@ -1176,11 +1378,67 @@ public class IsoHDPerspective implements HDPerspective {
         return chunks;
     }
 
+    /* Working state for render(), kept per render thread and reused from tile to tile */
+    private class RenderContext {
+        OurPerspectiveState ps;
+        final Color rslt = new Color();
+        final Vector3D top = new Vector3D();
+        final Vector3D bottom = new Vector3D();
+        final Vector3D direction = new Vector3D();
+        final int[] dirty = new int[4];
+        /* Per-shader arrays - sized for largest shader count seen */
+        DynmapBufferedImage im[] = new DynmapBufferedImage[0];
+        DynmapBufferedImage dayim[] = new DynmapBufferedImage[0];
+        int[][] argb_buf = new int[0][];
+        int[][] day_argb_buf = new int[0][];
+        boolean isjpg[] = new boolean[0];
+        int bgday[] = new int[0];
+        int bgnight[] = new int[0];
+        boolean shaderdone[] = new boolean[0];
+        boolean rendered[] = new boolean[0];
+
+        /* Prepare per-shader arrays for given number of shaders */
+        void initShaders(int numshaders) {
+            if(im.length < numshaders) {
+                im = new DynmapBufferedImage[numshaders];
+                dayim = new DynmapBufferedImage[numshaders];
+                argb_buf = new int[numshaders][];
+                day_argb_buf = new int[numshaders][];
+                isjpg = new boolean[numshaders];
+                bgday = new int[numshaders];
+                bgnight = new int[numshaders];
+                shaderdone = new boolean[numshaders];
+                rendered = new boolean[numshaders];
+            }
+            else {
+                for(int i = 0; i < numshaders; i++) {
+                    dayim[i] = null;
+                    day_argb_buf[i] = null;
+                    shaderdone[i] = false;
+                    rendered[i] = false;
+                }
+            }
+        }
+        /* Drop references to tile data, and to images returned to pool */
+        void release(int numshaders) {
+            ps.release();
+            for(int i = 0; i < numshaders; i++) {
+                im[i] = dayim[i] = null;
+                argb_buf[i] = day_argb_buf[i] = null;
+            }
+        }
+    }
+    private final ThreadLocal<RenderContext> rendercontext = new ThreadLocal<RenderContext>() {
+        @Override
+        protected RenderContext initialValue() {
+            return new RenderContext();
+        }
+    };
+
     @Override
     public boolean render(MapChunkCache cache, HDMapTile tile, String mapname) {
-        Color rslt = new Color();
+        RenderContext ctx = rendercontext.get();
         MapIterator mapiter = cache.getIterator(0, 0, 0);
-        DynmapWorld world = tile.getDynmapWorld();
         int scaled = 0;
         if ((tile.boostzoom > 0) && MarkerAPIImpl.testTileForBoostMarkers(cache.getWorld(), this, tile.tx * tileWidth, tile.ty * tileHeight, tileWidth)) {
             scaled = tile.boostzoom;
@@ -1192,46 +1450,105 @@ public class IsoHDPerspective implements HDPerspective {
         int numshaders = shaderstate.length;
         if(numshaders == 0)
             return false;
+        try {
+            return renderTile(ctx, cache, tile, mapiter, shaderstate, scaled);
+        } finally {
+            /* Even if render failed, so shader states and context don't keep tile data */
+            for(int i = 0; i < numshaders; i++) {
+                shaderstate[i].cleanup();
+            }
+            ctx.release(numshaders);
+        }
+    }
+
+    /* Render tile for given shaders - caller cleans up shader states and context */
+    private boolean renderTile(RenderContext ctx, MapChunkCache cache, HDMapTile tile, MapIterator mapiter, HDShaderState[] shaderstate, int scaled) {
+        Color rslt = ctx.rslt;
+        DynmapWorld world = tile.getDynmapWorld();
+        int sizescale = 1 << scaled;
+        int numshaders = shaderstate.length;
         /* Check if nether world */
         boolean isnether = world.isNether();
         /* Create buffered image for each */
-        DynmapBufferedImage im[] = new DynmapBufferedImage[numshaders];
-        DynmapBufferedImage dayim[] = new DynmapBufferedImage[numshaders];
-        int[][] argb_buf = new int[numshaders][];
-        int[][] day_argb_buf = new int[numshaders][];
-        boolean isjpg[] = new boolean[numshaders];
-        int bgday[] = new int[numshaders];
-        int bgnight[] = new int[numshaders];
+        ctx.initShaders(numshaders);
+        DynmapBufferedImage im[] = ctx.im;
+        DynmapBufferedImage dayim[] = ctx.dayim;
+        int[][] argb_buf = ctx.argb_buf;
+        int[][] day_argb_buf = ctx.day_argb_buf;
+        boolean isjpg[] = ctx.isjpg;
+        int bgday[] = ctx.bgday;
+        int bgnight[] = ctx.bgnight;
         
         for(int i = 0; i < numshaders; i++) {
             HDLighting lighting = shaderstate[i].getLighting();
-            im[i] = DynmapBufferedImage.allocateBufferedImage(tileWidth * sizescale, tileHeight * sizescale);
+            im[i] = DynmapBufferedImage.allocateBufferedImage(tileWidth * sizescale, tileHeight * sizescale, false); /* We set every pixel */
             argb_buf[i] = im[i].argb_buf;
             if(lighting.isNightAndDayEnabled()) {
-                dayim[i] = DynmapBufferedImage.allocateBufferedImage(tileWidth * sizescale, tileHeight * sizescale);
+                dayim[i] = DynmapBufferedImage.allocateBufferedImage(tileWidth * sizescale, tileHeight * sizescale, false);
                 day_argb_buf[i] = dayim[i].argb_buf;
             }
             isjpg[i] = shaderstate[i].getMap().getImageFormat() != ImageFormat.FORMAT_PNG;
             bgday[i] = shaderstate[i].getMap().getBackgroundARGBDay();
             bgnight[i] = shaderstate[i].getMap().getBackgroundARGBNight();
         }
-        // Mark the tiles we're going to render as validated
+        // Mark the tiles we're going to render as validated, and collect what changed since they were last rendered
+        int[] dirty = ctx.dirty;
+        dirty[0] = dirty[1] = Integer.MAX_VALUE;
+        dirty[2] = dirty[3] = Integer.MIN_VALUE;
+        boolean changed = false;    /* Rendered for a change - keep pixels, for partial render of later changes */
         for (int i = 0; i < numshaders; i++) {
             MapTypeState mts = world.getMapState(shaderstate[i].getMap());
             if (mts != null) {
                 mts.validateTile(tile.tx, tile.ty);
+                int[] b = mts.takeDirtyBounds(tile.tx, tile.ty);
+                if (b != null) {
+                    changed = true;
+                }
+                if ((b != null) && (b != MapTypeState.DIRTY_FULL) && (dirty != null)) {
+                    dirty[0] = Math.min(dirty[0], b[0]); dirty[1] = Math.min(dirty[1], b[1]);
+                    dirty[2] = Math.max(dirty[2], b[2]); dirty[3] = Math.max(dirty[3], b[3]);
+                }
+                else {
+                    dirty = null;
+                }
+            }
+            else {
+                dirty = null;
             }
         }
-        /* Create perspective state object */
-        OurPerspectiveState ps = new OurPerspectiveState(mapiter, isnether, scaled);        
-        
-        ps.top = new Vector3D();
-        ps.bottom = new Vector3D();
-        ps.direction = new Vector3D();
+        /* Reset (or create) perspective state object */
+        OurPerspectiveState ps = ctx.ps;
+        if(ps == null) {
+            ps = ctx.ps = new OurPerspectiveState(mapiter, isnether, scaled);
+            ps.occupancy = new BrickOccupancyMap(cache, ps.worldheight);
+            ps.top = ctx.top;
+            ps.bottom = ctx.bottom;
+            ps.direction = ctx.direction;
+        }
+        else {
+            ps.reset(mapiter, isnether, scaled);
+            ps.occupancy.reset(cache, ps.worldheight);
+        }
         double xbase = tile.tx * tileWidth;
         double ybase = tile.ty * tileHeight;
-        boolean shaderdone[] = new boolean[numshaders];
-        boolean rendered[] = new boolean[numshaders];
+        boolean shaderdone[] = ctx.shaderdone;
+        boolean rendered[] = ctx.rendered;
+        MapStorage storage = world.getMapStorage();
+        TilePixelCache pixelcache = MapManager.mapman.hdmapman.pixelcache;
+        /* Range of pixels to trace - if only part of the tile changed, and we have its last render, just that part */
+        int xmin = 0, xmax = tileWidth * sizescale - 1;
+        int ymin = 0, ymax = tileHeight * sizescale - 1;
+        if ((dirty != null) && (pixelcache != null) &&
+                loadCachedPixels(pixelcache, storage, tile, shaderstate, argb_buf, day_argb_buf)) {
+            /* Ray for pixel x is at map X xbase + x/sizescale + 0.5: keep those that can cross dirty area */
+            xmin = Math.max(xmin, fastFloor((dirty[0] - xbase - 1) * sizescale));
+            xmax = Math.min(xmax, fastFloor((dirty[2] - xbase) * sizescale) + 1);
+            ymin = Math.max(ymin, fastFloor((dirty[1] - ybase - 1) * sizescale));
+            ymax = Math.min(ymax, fastFloor((dirty[3] - ybase) * sizescale) + 1);
+            for (int i = 0; i < numshaders; i++) {
+                rendered[i] = true;     /* Only rendered tiles are cached */
+            }
+        }
         double height = maxheight;
         if(height < 0) {    /* Not set - assume world height - 1 */
             if (isnether)
@@ -1240,9 +1557,10 @@ public class IsoHDPerspective implements HDPerspective {
                 height = tile.getDynmapWorld().worldheight - 1;
         }
         
-        for(int x = 0; x < tileWidth * sizescale; x++) {
+        RenderProfiler.Counters profile = ps.profile = RenderProfiler.getCounters(ps.scalemodels);
+        for(int x = xmin; x <= xmax; x++) {
             ps.px = x;
-            for(int y = 0; y < tileHeight * sizescale; y++) {
+            for(int y = ymin; y <= ymax; y++) {
                 ps.top.x = ps.bottom.x = xbase + ((double)x)/sizescale + 0.5;    /* Start at center of pixel at Y=height+0.5, bottom at Y=-0.5 */
                 ps.top.y = ps.bottom.y = ybase + ((double)y)/sizescale + 0.5;
                 ps.top.z = height + 0.5; ps.bottom.z = minheight - 0.5;
@@ -1254,8 +1572,12 @@ public class IsoHDPerspective implements HDPerspective {
                 for(int i = 0; i < numshaders; i++) {
                     shaderstate[i].reset(ps);
                 }
+                ps.sampled = (profile != null) && profile.sampleRay();
                 try {
-                    ps.raytrace(cache, shaderstate, shaderdone);
+                    if(useheightmap)
+                        ps.surfacetrace(cache, shaderstate, shaderdone);
+                    else
+                        ps.raytrace(cache, shaderstate, shaderdone);
                 } catch (Exception ex) {
                     Log.severe("Error while raytracing tile: perspective=" + this.name + ", coord=" + mapiter.getX() + "," + mapiter.getY() + "," + mapiter.getZ() + ", blockid=" + mapiter.getBlockType() + ", lighting=" + mapiter.getBlockSkyLight() + ":" + mapiter.getBlockEmittedLight() + ", biome=" + mapiter.getBiome().toString(), ex);
                 }
@@ -1292,7 +1614,6 @@ public class IsoHDPerspective implements HDPerspective {
 
         boolean renderone = false;
         /* Test to see if we're unchanged from older tile */
-        MapStorage storage = world.getMapStorage();
         for(int i = 0; i < numshaders; i++) {
             long crc = MapStorage.calculateImageHashCode(argb_buf[i], 0, argb_buf[i].length);
             boolean tile_update = false;
@@ -1302,6 +1623,12 @@ public class IsoHDPerspective implements HDPerspective {
 
             mtile.getWriteLock();
             try {
+                if (pixelcache != null) {
+                    if (rendered[i] && changed)
+                        pixelcache.put(tile, shaderstate[i].getMap(), MapType.ImageVariant.STANDARD, argb_buf[i], crc);
+                    else
+                        pixelcache.remove(tile, shaderstate[i].getMap(), MapType.ImageVariant.STANDARD);
+                }
                 if(mtile.matchesHashCode(crc) == false) {
                     /* Wrap buffer as buffered image */
                     if(rendered[i]) {   
@@ -1333,6 +1660,12 @@ public class IsoHDPerspective implements HDPerspective {
                 mtile.getWriteLock();
                 tile_update = false;
                 try {
+                    if (pixelcache != null) {
+                        if (rendered[i] && changed)
+                            pixelcache.put(tile, shaderstate[i].getMap(), MapType.ImageVariant.DAY, day_argb_buf[i], crc);
+                        else
+                            pixelcache.remove(tile, shaderstate[i].getMap(), MapType.ImageVariant.DAY);
+                    }
                     if(mtile.matchesHashCode(crc) == false) {
                         /* Wrap buffer as buffered image */
                         if(rendered[i]) {
@@ -1360,6 +1693,47 @@ public class IsoHDPerspective implements HDPerspective {
         return renderone;
     }
 
+    /* Load pixels of last render of tile into frame buffers, if cached for all shaders and still matching stored tiles */
+    private static boolean loadCachedPixels(TilePixelCache pixelcache, MapStorage storage, HDMapTile tile, HDShaderState[] shaderstate,
+            int[][] argb_buf, int[][] day_argb_buf) {
+        int numshaders = shaderstate.length;
+        TilePixelCache.TilePixels[] px = new TilePixelCache.TilePixels[numshaders];
+        TilePixelCache.TilePixels[] daypx = new TilePixelCache.TilePixels[numshaders];
+        for (int i = 0; i < numshaders; i++) {
+            HDMap map = shaderstate[i].getMap();
+            px[i] = pixelcache.get(tile, map, MapType.ImageVariant.STANDARD, argb_buf[i].length);
+            if ((px[i] == null) || (!storedTileMatches(storage, tile, map, MapType.ImageVariant.STANDARD, px[i].crc))) {
+                return false;
+            }
+            if (day_argb_buf[i] != null) {
+                daypx[i] = pixelcache.get(tile, map, MapType.ImageVariant.DAY, day_argb_buf[i].length);
+                if ((daypx[i] == null) || (!storedTileMatches(storage, tile, map, MapType.ImageVariant.DAY, daypx[i].crc))) {
+                    return false;
+                }
+            }
+        }
+        for (int i = 0; i < numshaders; i++) {
+            System.arraycopy(px[i].argb, 0, argb_buf[i], 0, argb_buf[i].length);
+            if (daypx[i] != null) {
+                System.arraycopy(daypx[i].argb, 0, day_argb_buf[i], 0, day_argb_buf[i].length);
+            }
+        }
+        return true;
+    }
+
+    /* Test if stored tile is still the one with the given hash code */
+    private static boolean storedTileMatches(MapStorage storage, HDMapTile tile, HDMap map, MapType.ImageVariant var, long crc) {
+        MapStorageTile mtile = storage.getTile(tile.getDynmapWorld(), map, tile.tx, tile.ty, 0, var);
+        if (!mtile.getReadLock()) {
+            return false;
+        }
+        try {
+            return mtile.matchesHashCode(crc);
+        } finally {
+            mtile.releaseReadLock();
+        }
+    }
+
     @Override
     public boolean isBiomeDataNeeded() {
         return need_biomedata;
@@ -1372,7 +1746,7 @@ public class IsoHDPerspective implements HDPerspective {
 
     @Override
     public boolean isHightestBlockYDataNeeded() {
-        return false;
+        return useheightmap;
     }
     
     @Override
@@ -0,0 +1,341 @@
+package org.dynmap.hdmap;
+
+import static org.dynmap.JSONUtils.s;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import org.dynmap.renderer.DynmapBlockState;
+import org.dynmap.utils.PatchDefinition;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Sampling profiler for the HD ray tracer: while active, one ray in every 'sample rate' has each block visit timed,
+ * and the time and visit count are added up by block state.  Reports scale the samples back up to estimates for all
+ * rays, and also add them up by how the block is modelled - custom renderer class, patch model, scaled (volumetric)
+ * model or plain cube.  Block visit time covers model tracing and shading (texture lookup, CTM, biome colors), but
+ * not stepping the ray between blocks.
+ *
+ * Each render thread adds to its own counters, so sampled rays cost two clock reads per block and nothing is shared;
+ * counters are only added together for reports.  Each thread notes how a block state is modelled when it first
+ * visits it, so states modelled differently by different maps (resource packs, scales) are reported as 'mixed'.
+ */
+public class RenderProfiler {
+    private static final int DEFAULT_SAMPLE_RATE = 16;
+
+    private static volatile boolean active;
+    private static volatile int generation;     /* Bumped on reset - stale thread counters are cleared on next use */
+    private static int samplerate = DEFAULT_SAMPLE_RATE;
+    private static long starttime, runtime;     /* Start of current run, and msec of previous runs since reset */
+    private static final ArrayList<Counters> counters = new ArrayList<Counters>();   /* Counters of all threads */
+
+    /**
+     * Block visit counters for one render thread
+     */
+    static class Counters {
+        private long[] ns = new long[0];
+        private long[] visits = new long[0];
+        private String[] renderer = new String[0];  /* How block state is modelled, from first visit */
+        private int gen = -1;
+        private HDScaledBlockModels models;     /* Models of current tile */
+        private int raycnt;
+
+        /**
+         * Check if next ray is to be sampled
+         * @return true if sampled
+         */
+        final boolean sampleRay() {
+            if (++raycnt >= samplerate) {
+                raycnt = 0;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Record block visit
+         * @param bs - block state
+         * @param elapsed - time for visit, in nanoseconds
+         */
+        final void record(DynmapBlockState bs, long elapsed) {
+            int idx = bs.globalStateIndex;
+            if (idx >= ns.length) {
+                synchronized (this) {
+                    int len = Math.max(idx + 1, DynmapBlockState.getGlobalIndexMax());
+                    long[] newns = new long[len];
+                    long[] newvisits = new long[len];
+                    String[] newrenderer = new String[len];
+                    System.arraycopy(ns, 0, newns, 0, ns.length);
+                    System.arraycopy(visits, 0, newvisits, 0, visits.length);
+                    System.arraycopy(renderer, 0, newrenderer, 0, renderer.length);
+                    ns = newns;
+                    visits = newvisits;
+                    renderer = newrenderer;
+                }
+            }
+            if (renderer[idx] == null) {
+                renderer[idx] = bs.isAir() ? "air" : getRenderer(models, bs);
+            }
+            ns[idx] += elapsed;
+            visits[idx]++;
+        }
+    }
+
+    private static final ThreadLocal<Counters> threadcounters = new ThreadLocal<Counters>() {
+        @Override
+        protected Counters initialValue() {
+            return new Counters();
+        }
+    };
+
+    /**
+     * Get counters for calling render thread, for the next tile
+     * @param models - scaled models used by tile
+     * @return counters, or null if profiler is not active
+     */
+    static Counters getCounters(HDScaledBlockModels models) {
+        if (!active) {
+            return null;
+        }
+        Counters c = threadcounters.get();
+        if (c.gen != generation) {
+            synchronized (counters) {
+                synchronized (c) {
+                    c.ns = new long[DynmapBlockState.getGlobalIndexMax()];
+                    c.visits = new long[c.ns.length];
+                    c.renderer = new String[c.ns.length];
+                    c.gen = generation;
+                }
+                counters.add(c);
+            }
+        }
+        c.models = models;
+        return c;
+    }
+
+    /**
+     * Set sample rate
+     * @param rate - one ray in 'rate' is sampled
+     */
+    public static void setSampleRate(int rate) {
+        samplerate = Math.max(1, rate);
+    }
+
+    /**
+     * Start (or resume) profiling
+     */
+    public static synchronized void start() {
+        if (!active) {
+            starttime = System.currentTimeMillis();
+            active = true;
+        }
+    }
+
+    /**
+     * Stop profiling - results are kept until reset
+     */
+    public static synchronized void stop() {
+        if (active) {
+            runtime += System.currentTimeMillis() - starttime;
+            active = false;
+        }
+    }
+
+    /**
+     * Clear results
+     */
+    public static synchronized void reset() {
+        synchronized (counters) {
+            counters.clear();
+            generation++;
+        }
+        runtime = 0;
+        starttime = System.currentTimeMillis();
+    }
+
+    /**
+     * Test if profiling
+     * @return true if active
+     */
+    public static boolean isActive() {
+        return active;
+    }
+
+    private static synchronized long getRunTime() {
+        return runtime + (active ? (System.currentTimeMillis() - starttime) : 0);
+    }
+
+    /* Totals for a block state or a renderer */
+    private static class Total {
+        final String name;
+        String renderer;
+        long ns, visits;
+        Total(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final Comparator<Total> byTime = new Comparator<Total>() {
+        @Override
+        public int compare(Total a, Total b) {
+            return Long.compare(b.ns, a.ns);
+        }
+    };
+
+    /* How block is modelled */
+    private static String getRenderer(HDScaledBlockModels models, DynmapBlockState bs) {
+        if (models == null) {
+            return "unknown";
+        }
+        CustomBlockModel cbm = models.getCustomBlockModel(bs);
+        if ((cbm != null) && (cbm.render != null)) {
+            return cbm.render.getClass().getSimpleName();
+        }
+        PatchDefinition[] p = models.getPatchModel(bs);
+        if (p != null) {
+            return "patch model";
+        }
+        if (models.getScaledModel(bs) != null) {
+            return "scaled model";
+        }
+        return "cube";
+    }
+
+    /* Add up counters of all threads: [0] by block state, [1] by renderer - each sorted by time */
+    private static List<List<Total>> getTotals() {
+        long[] ns = new long[0];
+        long[] visits = new long[0];
+        String[] renderer = new String[0];
+        int rate = samplerate;
+        HashMap<String, Total> byrenderer = new HashMap<String, Total>();
+        synchronized (counters) {
+            for (Counters c : counters) {
+                synchronized (c) {
+                    if (c.ns.length > ns.length) {
+                        long[] newns = new long[c.ns.length];
+                        long[] newvisits = new long[c.ns.length];
+                        String[] newrenderer = new String[c.ns.length];
+                        System.arraycopy(ns, 0, newns, 0, ns.length);
+                        System.arraycopy(visits, 0, newvisits, 0, visits.length);
+                        System.arraycopy(renderer, 0, newrenderer, 0, renderer.length);
+                        ns = newns;
+                        visits = newvisits;
+                        renderer = newrenderer;
+                    }
+                    for (int i = 0; i < c.ns.length; i++) {
+                        if (c.visits[i] == 0) continue;
+                        ns[i] += c.ns[i];
+                        visits[i] += c.visits[i];
+                        /* Renderer totals use this thread's view of how the state is modelled */
+                        String r = (c.renderer[i] != null) ? c.renderer[i] : "unknown";
+                        if (renderer[i] == null) {
+                            renderer[i] = r;
+                        }
+                        else if (!renderer[i].equals(r)) {
+                            renderer[i] = "mixed";
+                        }
+                        Total rt = byrenderer.get(r);
+                        if (rt == null) {
+                            rt = new Total(r);
+                            byrenderer.put(r, rt);
+                        }
+                        rt.ns += c.ns[i] * rate;
+                        rt.visits += c.visits[i] * rate;
+                    }
+                }
+            }
+        }
+        ArrayList<Total> bystate = new ArrayList<Total>();
+        for (int i = 0; i < ns.length; i++) {
+            if (visits[i] == 0) continue;
+            DynmapBlockState bs = DynmapBlockState.getStateByGlobalIndex(i);
+            Total t = new Total(bs.toString());
+            t.renderer = renderer[i];
+            t.ns = ns[i] * rate;
+            t.visits = visits[i] * rate;
+            bystate.add(t);
+        }
+        Collections.sort(bystate, byTime);
+        ArrayList<Total> renderers = new ArrayList<Total>(byrenderer.values());
+        Collections.sort(renderers, byTime);
+        List<List<Total>> rslt = new ArrayList<List<Total>>();
+        rslt.add(bystate);
+        rslt.add(renderers);
+        return rslt;
+    }
+
+    private static long getTotalTime(List<Total> totals) {
+        long tot = 0;
+        for (Total t : totals) {
+            tot += t.ns;
+        }
+        return tot;
+    }
+
+    /**
+     * Get report of block states and renderers with highest render time
+     * @param max - maximum block states to list
+     * @return report lines
+     */
+    public static List<String> getReport(int max) {
+        List<List<Total>> totals = getTotals();
+        List<Total> bystate = totals.get(0);
+        List<Total> byrenderer = totals.get(1);
+        long tot = Math.max(1, getTotalTime(byrenderer));
+        ArrayList<String> lines = new ArrayList<String>();
+        lines.add(String.format("Render profile: %s, %d sec, 1 in %d rays sampled, est. %.1f sec of block visits",
+            active ? "active" : "stopped", getRunTime() / 1000, samplerate, tot / 1E9));
+        lines.add("By renderer:");
+        for (Total t : byrenderer) {
+            lines.add(String.format("  %s: %.1f%%, %d visits, %.0f ns/visit", t.name, 100.0 * t.ns / tot, t.visits,
+                (double) t.ns / t.visits));
+        }
+        lines.add("By block state:");
+        for (int i = 0; (i < bystate.size()) && (i < max); i++) {
+            Total t = bystate.get(i);
+            lines.add(String.format("  %s (%s): %.1f%%, %d visits, %.0f ns/visit", t.name, t.renderer, 100.0 * t.ns / tot,
+                t.visits, (double) t.ns / t.visits));
+        }
+        return lines;
+    }
+
+    /**
+     * Get report of block states and renderers with highest render time, as JSON
+     * @param max - maximum block states to list
+     * @return report
+     */
+    @SuppressWarnings("unchecked")
+    public static JSONObject getJSONReport(int max) {
+        List<List<Total>> totals = getTotals();
+        JSONObject json = new JSONObject();
+        s(json, "active", active);
+        s(json, "runtime", getRunTime());
+        s(json, "samplerate", samplerate);
+        JSONArray renderers = new JSONArray();
+        for (Total t : totals.get(1)) {
+            JSONObject o = new JSONObject();
+            s(o, "renderer", t.name);
+            s(o, "ns", t.ns);
+            s(o, "visits", t.visits);
+            renderers.add(o);
+        }
+        json.put("renderers", renderers);
+        JSONArray states = new JSONArray();
+        List<Total> bystate = totals.get(0);
+        for (int i = 0; (i < bystate.size()) && (i < max); i++) {
+            Total t = bystate.get(i);
+            JSONObject o = new JSONObject();
+            s(o, "state", t.name);
+            s(o, "renderer", t.renderer);
+            s(o, "ns", t.ns);
+            s(o, "visits", t.visits);
+            states.add(o);
+        }
+        json.put("states", states);
+        return json;
+    }
+}
@@ -0,0 +1,331 @@
+package org.dynmap.hdmap;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+import org.dynmap.Log;
+
+/**
+ * Cache of decoded texture images, so that texture pack loads don't need to decode every PNG again.
+ *
+ * Images are keyed by the SHA-1 of their PNG bytes, so a changed file in a resource pack or mod simply misses the
+ * cache.  The cache file is memory-mapped for reading, and lookups are thread safe, so images can be decoded in
+ * parallel.  Each save writes a new generation of the file, with the images used by the last load first, followed
+ * by images carried forward from the previous generation (for other texture packs) up to a size limit, so the
+ * least recently used ones drop out.  The previous file is left alone - it may still be mapped - to be removed on a
+ * later open.
+ *
+ * File format: magic, version, entry count, then for each entry the 20 byte hash, width, height and ARGB pixels.
+ */
+class TextureImageCache {
+    private static final int MAGIC = 0x44594E54;   /* 'DYNT' */
+    private static final int VERSION = 1;
+    private static final int HASHLEN = 20;
+    private static final String PREFIX = "images.";
+    private static final String SUFFIX = ".bin";
+    private static final long MAX_FILE_SIZE = 256L * 1024 * 1024;   /* Stop carrying forward old images past this */
+
+    private final File dir;
+    private int generation;
+    private MappedByteBuffer buf;       /* Current cache file, if any */
+    private final Map<ByteBuffer, Integer> offsets = new LinkedHashMap<ByteBuffer, Integer>();  /* Offset of entry, by hash - in file order */
+    private final Set<ByteBuffer> used = new LinkedHashSet<ByteBuffer>();   /* Cached images used since open */
+    private final Map<ByteBuffer, Image> added = new LinkedHashMap<ByteBuffer, Image>();  /* Images decoded since open - never handed out */
+    private int hits, misses;
+    private boolean dirty;
+
+    /**
+     * Decoded image
+     */
+    static class Image {
+        final int width, height;
+        final int[] argb;
+
+        Image(int width, int height, int[] argb) {
+            this.width = width;
+            this.height = height;
+            this.argb = argb;
+        }
+    }
+
+    /**
+     * Open cache in given directory
+     * @param dir - cache directory
+     */
+    TextureImageCache(File dir) {
+        this.dir = dir;
+        File[] files = dir.listFiles();
+        File cur = null;
+        generation = 0;
+        if (files != null) {
+            /* Find newest generation */
+            for (File f : files) {
+                int gen = getGeneration(f);
+                if (gen > generation) {
+                    generation = gen;
+                    cur = f;
+                }
+            }
+            /* Clean up older ones - may fail if still mapped, in which case we'll try again next time */
+            for (File f : files) {
+                if ((f != cur) && (getGeneration(f) > 0)) {
+                    f.delete();
+                }
+            }
+        }
+        if (cur != null) {
+            try {
+                open(cur);
+            } catch (IOException iox) {
+                Log.warning("Error reading texture cache " + cur.getPath() + " - ignored: " + iox.getMessage());
+                buf = null;
+                offsets.clear();
+            }
+        }
+    }
+
+    private static int getGeneration(File f) {
+        String n = f.getName();
+        if (n.startsWith(PREFIX) && n.endsWith(SUFFIX)) {
+            try {
+                return Integer.parseInt(n.substring(PREFIX.length(), n.length() - SUFFIX.length()));
+            } catch (NumberFormatException nfx) {
+            }
+        }
+        return 0;
+    }
+
+    private void open(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel fc = raf.getChannel();
+            buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        } finally {
+            raf.close();    /* Mapping stays valid */
+        }
+        if ((buf.limit() < 12) || (buf.getInt(0) != MAGIC) || (buf.getInt(4) != VERSION)) {
+            buf = null;     /* Old or foreign format - start over */
+            return;
+        }
+        int cnt = buf.getInt(8);
+        int off = 12;
+        for (int i = 0; i < cnt; i++) {
+            if ((off + HASHLEN + 8) > buf.limit()) {
+                throw new IOException("truncated");
+            }
+            byte[] hash = new byte[HASHLEN];
+            ByteBuffer b = buf.duplicate();
+            b.position(off);
+            b.get(hash);
+            long pixels = (long) buf.getInt(off + HASHLEN) * buf.getInt(off + HASHLEN + 4);
+            if ((pixels < 0) || ((off + HASHLEN + 8 + 4 * pixels) > buf.limit())) {
+                throw new IOException("truncated");
+            }
+            offsets.put(ByteBuffer.wrap(hash), off);
+            off += getEntryLength(off);
+        }
+    }
+
+    /**
+     * Read and decode image, using cached copy if there is one
+     * @param is - stream for PNG file (closed by caller)
+     * @return image
+     * @throws IOException if error reading or decoding image
+     */
+    Image getImage(InputStream is) throws IOException {
+        return getImage(readAll(is));
+    }
+
+    /**
+     * Decode image, using cached copy if there is one
+     * @param png - PNG file content
+     * @return image
+     * @throws IOException if error decoding image
+     */
+    Image getImage(byte[] png) throws IOException {
+        ByteBuffer key = ByteBuffer.wrap(hash(png));
+        Image img;
+        synchronized (this) {
+            Integer off = offsets.get(key);
+            if (off != null) {
+                used.add(key);
+                hits++;
+                return readEntry(off);
+            }
+            img = added.get(key);
+            if (img != null) {
+                hits++;
+                return copy(img);
+            }
+        }
+        img = decode(png);
+        synchronized (this) {
+            if (!added.containsKey(key)) {
+                added.put(key, img);
+                misses++;
+                dirty = true;
+            }
+        }
+        return copy(img);
+    }
+
+    private int getEntryLength(int off) {
+        return HASHLEN + 8 + 4 * (buf.getInt(off + HASHLEN) * buf.getInt(off + HASHLEN + 4));
+    }
+
+    private Image readEntry(int off) {
+        int w = buf.getInt(off + HASHLEN);
+        int h = buf.getInt(off + HASHLEN + 4);
+        int[] argb = new int[w * h];
+        ByteBuffer b = buf.duplicate();
+        b.position(off + HASHLEN + 8);
+        IntBuffer ib = b.slice().asIntBuffer();
+        ib.get(argb);
+        return new Image(w, h, argb);
+    }
+
+    /* Callers may modify the pixels they get, so keep our own copy for saving */
+    private static Image copy(Image img) {
+        return new Image(img.width, img.height, img.argb.clone());
+    }
+
+    /**
+     * Decode PNG image, without cache
+     * @param png - PNG file content
+     * @return image
+     * @throws IOException if error decoding image
+     */
+    static Image decode(byte[] png) throws IOException {
+        ImageIO.setUseCache(false);
+        BufferedImage bimg = ImageIO.read(new ByteArrayInputStream(png));
+        if (bimg == null) { throw new FileNotFoundException(); }
+        int w = bimg.getWidth();
+        int h = bimg.getHeight();
+        int[] argb = new int[w * h];
+        bimg.getRGB(0, 0, w, h, argb, 0, w);
+        bimg.flush();
+        return new Image(w, h, argb);
+    }
+
+    private static byte[] hash(byte[] data) throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(data);
+        } catch (NoSuchAlgorithmException nsax) {
+            throw new IOException("SHA-1 not available");
+        }
+    }
+
+    static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] b = new byte[8192];
+        int len;
+        while ((len = is.read(b)) > 0) {
+            baos.write(b, 0, len);
+        }
+        return baos.toByteArray();
+    }
+
+    /* Copy entry from current cache file */
+    private void writeEntry(DataOutputStream out, int off) throws IOException {
+        ByteBuffer b = buf.duplicate();
+        b.position(off);
+        b.limit(off + getEntryLength(off));
+        byte[] data = new byte[8192];
+        while (b.hasRemaining()) {
+            int len = Math.min(data.length, b.remaining());
+            b.get(data, 0, len);
+            out.write(data, 0, len);
+        }
+    }
+
+    /**
+     * Save cache, if any images were added since it was opened
+     */
+    synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.warning("Cannot create texture cache directory " + dir.getPath());
+            return;
+        }
+        /* Images used by this load go first, then others from the current file while there is room */
+        long size = 12;
+        for (ByteBuffer key : used) {
+            size += getEntryLength(offsets.get(key));
+        }
+        for (Image img : added.values()) {
+            size += HASHLEN + 8 + 4L * img.argb.length;
+        }
+        ArrayList<Integer> carried = new ArrayList<Integer>();
+        for (Map.Entry<ByteBuffer, Integer> ent : offsets.entrySet()) {
+            if (used.contains(ent.getKey())) continue;
+            int len = getEntryLength(ent.getValue());
+            if ((size + len) > MAX_FILE_SIZE) continue;
+            carried.add(ent.getValue());
+            size += len;
+        }
+        int cnt = used.size() + added.size() + carried.size();
+        File f = new File(dir, PREFIX + (generation + 1) + SUFFIX);
+        File tmp = new File(dir, PREFIX + (generation + 1) + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(cnt);
+                for (ByteBuffer key : used) {
+                    writeEntry(out, offsets.get(key));
+                }
+                for (Map.Entry<ByteBuffer, Image> ent : added.entrySet()) {
+                    Image img = ent.getValue();
+                    out.write(ent.getKey().array());
+                    out.writeInt(img.width);
+                    out.writeInt(img.height);
+                    for (int v : img.argb) {
+                        out.writeInt(v);
+                    }
+                }
+                for (Integer off : carried) {
+                    writeEntry(out, off);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(f)) {
+                tmp.delete();
+                Log.warning("Error saving texture cache " + f.getPath());
+                return;
+            }
+            generation++;
+            dirty = false;
+            Log.verboseinfo("Texture cache saved - " + cnt + " images (" + hits + " cached, " + misses + " decoded, " +
+                carried.size() + " kept from other loads)");
+        } catch (IOException iox) {
+            tmp.delete();
+            Log.warning("Error saving texture cache " + f.getPath() + ": " + iox.getMessage());
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.dynmap.hdmap;
 
-import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -8,18 +9,26 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
@@ -41,6 +50,7 @@ import org.dynmap.utils.DynIntHashMap;
 import org.dynmap.utils.DynmapBufferedImage;
 import org.dynmap.utils.ForgeConfigFile;
 import org.dynmap.utils.MapIterator;
+import org.dynmap.utils.MemoryManager;
 
 /**
  * Loader and processor class for minecraft texture packs
@@ -61,6 +71,38 @@ public class TexturePack {
     /* Loaded texture packs */
     private static HashMap<String, TexturePack> packs = new HashMap<String, TexturePack>();
     private static Object packlock = new Object();
+    /* Loaded and scaled packs stay in use by shaders, so they are only reported */
+    private static final MemoryManager.MemoryUser memuser = new MemoryManager.MemoryUser() {
+        @Override
+        public String getMemoryUserName() {
+            return "Texture packs";
+        }
+        @Override
+        public long getMemoryUsed() {
+            IdentityHashMap<int[], Boolean> seen = new IdentityHashMap<int[], Boolean>();  /* Copies share tiles */
+            long used = 0;
+            synchronized(packlock) {
+                for (TexturePack tp : packs.values()) {
+                    used += tp.getMemoryUsed(seen);
+                    synchronized(tp.scaledlock) {
+                        if (tp.scaled_textures != null) {
+                            for (TexturePack stp : tp.scaled_textures.values()) {
+                                used += stp.getMemoryUsed(seen);
+                            }
+                        }
+                    }
+                }
+            }
+            return used;
+        }
+        @Override
+        public long releaseMemory(long bytes) {
+            return 0;
+        }
+    };
+    static {
+        MemoryManager.register(memuser, MemoryManager.PRIORITY_NONE);
+    }
 
     private static final String GRASSCOLOR_PNG = "misc/grasscolor.png";
     private static final String GRASSCOLOR_RP_PNG = "assets/minecraft/textures/colormap/grass.png";
@@ -350,6 +392,40 @@ public class TexturePack {
     // Mods supplying their own texture files
     private static HashSet<String> loadedmods = new HashSet<String>();
     
+    /* Biome settings from texture files - kept to be applied again when loaded from definition cache */
+    private static class BiomeOverride {
+        final int id, grassmult, foliagemult, watermult;
+        final double tmp, rain;
+        
+        BiomeOverride(int id, int grassmult, int foliagemult, int watermult, double tmp, double rain) {
+            this.id = id;
+            this.grassmult = grassmult;
+            this.foliagemult = foliagemult;
+            this.watermult = watermult;
+            this.tmp = tmp;
+            this.rain = rain;
+        }
+        
+        boolean apply() {
+            BiomeMap b = BiomeMap.byBiomeID(id); /* Find biome */
+            if(b == null) {
+                return false;
+            }
+            if(foliagemult != -1)
+                b.setFoliageColorMultiplier(foliagemult);
+            if(grassmult != -1)
+                b.setGrassColorMultiplier(grassmult);
+            if(watermult != -1)
+                b.setWaterColorMultiplier(watermult);
+            if(tmp != -1.0)
+                b.setTemperature(tmp);
+            if(rain != -1.0)
+                b.setRainfall(rain);
+            return true;
+        }
+    }
+    private static ArrayList<BiomeOverride> biomeoverrides = new ArrayList<BiomeOverride>();
+    
     private static String getBlockFileName(int idx) {
         if ((idx >= 0) && (idx < terrain_map.length) && (terrain_map[idx] != null)) {
             return "textures/blocks/" + terrain_map[idx] + ".png";
@@ -372,6 +448,8 @@ public class TexturePack {
         addonfiles.clear();
         addonfilesbyname.clear();
         loadedmods.clear();
+        textmap_by_id.clear();
+        biomeoverrides.clear();
         next_dynamic_tile = MAX_TILEINDEX+1;
         
         /* Now, load entries for vanilla v1.6.x RP files */
@@ -411,12 +489,16 @@ public class TexturePack {
     
     private int[][]   tile_argb;
     private int[] blank;
+    private int[] atlas_argb;   // Contiguous ARGB data for all tiles (resampled packs only - tile_argb is null)
+    private int[] atlas_offset; // Offset of each tile in atlas_argb, by tile index (0 = blank tile)
     private int native_scale;
     private CTMTexturePack ctm;
 //    private static BitSet hasBaseBlockColoring = new BitSet(); // Quick lookup - (blockID << 4) + blockMeta - set if custom colorizer
 //    private static DynIntHashMap baseBlockColoring = new DynIntHashMap();   // Base block coloring (RP independent)
     // Need copy, since RP can change this....
     private ColorizingData blockColoring = HDBlockStateTextureMap.getColorizingData();
+    private int[] blockColoringIdx;   // Compiled blockColoring by global state index (-1 = none) - resampled packs only
+    private TextureImageCache imgcache;   // Decoded image cache - only while loading
 
     private int colorMultBirch = 0x80a755;  /* From ColorizerFoliage.java in MCP */
     private int colorMultPine = 0x619961;   /* From ColorizerFoliage.java in MCP */
@@ -504,6 +586,9 @@ public class TexturePack {
      * @param buf - buffer to be set
      */
     public final void setTileARGB(int idx, int[] buf) {
+        if (atlas_argb != null) {   // Unpack atlas, if needed
+            unpackAtlas();
+        }
         if (idx >= tile_argb.length) {
             tile_argb = Arrays.copyOf(tile_argb, 3*idx/2);
         }
@@ -514,6 +599,9 @@ public class TexturePack {
      * @return length of tile list
      */
     public final int getTileARGBCount() {
+        if (atlas_argb != null) {
+            return atlas_offset.length;
+        }
         return tile_argb.length;
     }
     /**
@@ -522,6 +610,10 @@ public class TexturePack {
      * @return ARGB array for tile, or blank array if not found
      */
     public final int[] getTileARGB(int idx) {
+        if (atlas_argb != null) {   // If atlas, return copy of tile's data
+            int off = getAtlasOffset(idx);
+            return Arrays.copyOfRange(atlas_argb, off, off + (native_scale * native_scale));
+        }
         int[] rslt = blank;
         if (idx < tile_argb.length) {
             rslt = tile_argb[idx];
@@ -531,6 +623,90 @@ public class TexturePack {
         }
         return rslt;
     }
+    /**
+     * Get offset of tile in atlas
+     * @param idx - tile index
+     * @return offset of first pixel of tile in atlas, or offset of blank tile if not found
+     */
+    private final int getAtlasOffset(int idx) {
+        if ((idx >= 0) && (idx < atlas_offset.length)) {
+            return atlas_offset[idx];
+        }
+        return 0;
+    }
+    /**
+     * Pack tiles into single contiguous atlas array: identical tile buffers share one slot, and
+     * slot 0 is always the blank tile.  Once built, tile_argb is released.
+     */
+    private void buildAtlas() {
+        int tilesize = native_scale * native_scale;
+        if ((blank == null) || (blank.length != tilesize)) {
+            blank = new int[tilesize];
+        }
+        IdentityHashMap<int[], Integer> offsets = new IdentityHashMap<int[], Integer>();
+        List<int[]> tiles = new ArrayList<int[]>();
+        offsets.put(blank, 0);
+        tiles.add(blank);
+        int[] off = new int[tile_argb.length];
+        for (int idx = 0; idx < tile_argb.length; idx++) {
+            int[] t = tile_argb[idx];
+            if (t == null) t = blank;
+            Integer o = offsets.get(t);
+            if (o == null) {
+                o = tiles.size() * tilesize;
+                offsets.put(t, o);
+                tiles.add(t);
+            }
+            off[idx] = o;
+        }
+        int[] atlas = new int[tiles.size() * tilesize];
+        for (int i = 0; i < tiles.size(); i++) {
+            int[] t = tiles.get(i);
+            System.arraycopy(t, 0, atlas, i * tilesize, Math.min(t.length, tilesize));
+        }
+        atlas_offset = off;
+        atlas_argb = atlas;
+        tile_argb = null;
+        blank = null;
+    }
+    /**
+     * Restore per-tile arrays from atlas (only needed if tiles are modified after resample)
+     */
+    private void unpackAtlas() {
+        int[][] tiles = new int[atlas_offset.length][];
+        for (int idx = 0; idx < tiles.length; idx++) {
+            tiles[idx] = getTileARGB(idx);
+        }
+        blank = new int[native_scale * native_scale];
+        atlas_argb = null;
+        atlas_offset = null;
+        tile_argb = tiles;
+    }
+    /**
+     * Build flat lookup of block coloring image index, by global state index
+     */
+    private void compileBlockColoring() {
+        int[] idx = new int[DynmapBlockState.getGlobalIndexMax()];
+        for (int gidx = 0; gidx < idx.length; gidx++) {
+            DynmapBlockState bs = DynmapBlockState.getStateByGlobalIndex(gidx);
+            Integer v = (bs != null) ? blockColoring.getBlkStateValue(bs) : null;
+            idx[gidx] = (v != null) ? v.intValue() : -1;
+        }
+        blockColoringIdx = idx;
+    }
+    /**
+     * Get block coloring image index for given block state
+     * @param blk - block state
+     * @return image index, or -1 if none
+     */
+    private final int getBlockColoringIndex(DynmapBlockState blk) {
+        int[] idx = blockColoringIdx;
+        if ((idx != null) && (blk.globalStateIndex < idx.length)) {
+            return idx[blk.globalStateIndex];
+        }
+        Integer v = blockColoring.getBlkStateValue(blk);
+        return (v != null) ? v.intValue() : -1;
+    }
     /**
      * Add texture to texture map
      */
@@ -586,6 +762,7 @@ public class TexturePack {
                 idx = txtidx.intValue();
             }
         }
+        DefinitionCache.useTextureMap(id, key, idx);
         return idx;
     }
     /*
@@ -595,10 +772,12 @@ public class TexturePack {
      */
     public static int getTextureMapLength(String id) {
         TextureMap map = textmap_by_id.get(id);
+        int len = -1;
         if(map != null) {
-            return map.texture_ids.size();
+            len = map.texture_ids.size();
         }
-        return -1;
+        DefinitionCache.useTextureMapLength(id, len);
+        return len;
     }
     /** 
      * Get or load texture pack
@@ -614,6 +793,11 @@ public class TexturePack {
             try {
                 tp = new TexturePack(core, tpname);   /* Attempt to load pack */
                 packs.put(tpname, tp);
+                /* New or reloaded pack: tiles rendered before may not match it */
+                MapManager mm = MapManager.mapman;
+                if (mm != null) {
+                    mm.clearTileFingerprints();
+                }
                 return tp;
             } catch (FileNotFoundException fnfx) {
                 Log.severe("Error loading texture pack '" + tpname + "' - not found");
@@ -635,6 +819,9 @@ public class TexturePack {
         // Build loader
         TexturePackLoader tpl = new TexturePackLoader(f, core);
         InputStream is = null;
+        if ((core.configuration == null) || core.configuration.getBoolean("texture-cache", true)) {
+            imgcache = new TextureImageCache(new File(core.getDataFolder(), "texturecache"));
+        }
         try {
             boolean is_rp = false;
             /* Check if resource pack */
@@ -674,7 +861,8 @@ public class TexturePack {
                     processCustomColors(p);
                 }
             }
-            /* Loop through dynamic files */
+            /* Read dynamic files */
+            byte[][] pngs = new byte[addonfiles.size()][];
             for(int i = 0; i < addonfiles.size(); i++) {
                 DynamicTileFile dtf = addonfiles.get(i);
                 if (dtf.used == false) {    // Not used, skip it - save memory and avoid errors for downlevel mods and such
@@ -682,15 +870,27 @@ public class TexturePack {
                 }
                 is = tpl.openModTPResource(dtf.filename, dtf.modname);
                 try {
-                    if(dtf.format == TileFileFormat.BIOME) {
-                      loadBiomeShadingImage(is, i+IMG_CNT, dtf.filename, dtf.modname); /* Load image file */
+                    if (is != null) {
+                        pngs[i] = TextureImageCache.readAll(is);
                     }
-                    else
-                        loadImage(is, i+IMG_CNT, dtf.filename, dtf.modname); /* Load image file */
                 } finally {
                     tpl.closeResource(is);
                 }
             }
+            is = null;
+            /* Decode them in parallel, and load image files */
+            TextureImageCache.Image[] decoded = decodeImages(pngs);
+            for(int i = 0; i < addonfiles.size(); i++) {
+                DynamicTileFile dtf = addonfiles.get(i);
+                if (dtf.used == false) {
+                    continue;
+                }
+                if(dtf.format == TileFileFormat.BIOME) {
+                  loadBiomeShadingImage(decoded[i], i+IMG_CNT, dtf.filename, dtf.modname); /* Load image file */
+                }
+                else
+                    loadImage(decoded[i], i+IMG_CNT, dtf.filename, dtf.modname); /* Load image file */
+            }
             /* Find and load terrain */
             loadTerrain(is_rp);
             /* Try to find and load misc/grasscolor.png */
@@ -783,9 +983,13 @@ public class TexturePack {
                 DynamicTileFile dtf = addonfiles.get(i);
                 processDynamicImage(i, dtf.format);
             }
+            if (imgcache != null) {
+                imgcache.save();
+            }
         } catch (IOException iox) {
             Log.severe("Error loadling texture pack", iox);
         } finally {
+            imgcache = null;
             if (is != null) {
                 try { is.close(); } catch (IOException iox) {}
                 is = null;
@@ -1105,6 +1309,7 @@ public class TexturePack {
     /* Copy texture pack */
     private TexturePack(TexturePack tp) {
         this.tile_argb = Arrays.copyOf(tp.tile_argb, tp.tile_argb.length);
+        this.blank = tp.blank;
         this.native_scale = tp.native_scale;
         this.ctm = tp.ctm;
         this.imgs = tp.imgs;
@@ -1243,15 +1448,73 @@ public class TexturePack {
         Arrays.fill(buf, 0xFFFFFFFF);
     }
     
+    /* Read and decode image, through cache if enabled */
+    private TextureImageCache.Image readImage(InputStream is) throws IOException {
+        if (is == null) {
+            return null;
+        }
+        if (imgcache != null) {
+            return imgcache.getImage(is);
+        }
+        return TextureImageCache.decode(TextureImageCache.readAll(is));
+    }
+
+    /* Decode images (null for none) on worker threads */
+    private TextureImageCache.Image[] decodeImages(final byte[][] pngs) throws IOException {
+        TextureImageCache.Image[] rslt = new TextureImageCache.Image[pngs.length];
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+        ExecutorService exec = Executors.newFixedThreadPool(Math.max(threads, 1), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Dynmap Texture Load Thread");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            List<Future<TextureImageCache.Image>> futures = new ArrayList<Future<TextureImageCache.Image>>();
+            for (int i = 0; i < pngs.length; i++) {
+                final byte[] png = pngs[i];
+                if (png == null) {
+                    futures.add(null);
+                    continue;
+                }
+                futures.add(exec.submit(new Callable<TextureImageCache.Image>() {
+                    @Override
+                    public TextureImageCache.Image call() throws IOException {
+                        if (imgcache != null) {
+                            return imgcache.getImage(png);
+                        }
+                        return TextureImageCache.decode(png);
+                    }
+                }));
+            }
+            for (int i = 0; i < pngs.length; i++) {
+                Future<TextureImageCache.Image> fut = futures.get(i);
+                if (fut != null) {
+                    rslt[i] = fut.get();
+                }
+            }
+        } catch (InterruptedException ix) {
+            throw new IOException("Texture load interrupted");
+        } catch (ExecutionException x) {
+            if (x.getCause() instanceof IOException) {
+                throw (IOException) x.getCause();
+            }
+            throw new IOException("Error decoding texture - " + x.getCause(), x.getCause());
+        } finally {
+            exec.shutdownNow();
+        }
+        return rslt;
+    }
+
     /* Load image into image array */
     private void loadImage(InputStream is, int idx, String fname, String modid) throws IOException {
-        BufferedImage img = null;
-        /* Load image */
-        if(is != null) {
-            ImageIO.setUseCache(false);
-            img = ImageIO.read(is);
-            if(img == null) { throw new FileNotFoundException(); }
-        }
+        loadImage(readImage(is), idx, fname, modid);
+    }
+
+    /* Load decoded image (null for none) into image array */
+    private void loadImage(TextureImageCache.Image img, int idx, String fname, String modid) {
         if(idx >= imgs.length) {
             LoadedImage[] newimgs = new LoadedImage[idx+1];
             System.arraycopy(imgs, 0, newimgs, 0, imgs.length);
@@ -1259,11 +1522,9 @@ public class TexturePack {
         }
         imgs[idx] = new LoadedImage();
         if (img != null) {
-            imgs[idx].width = img.getWidth();
-            imgs[idx].height = img.getHeight();
-            imgs[idx].argb = new int[imgs[idx].width * imgs[idx].height];
-            img.getRGB(0, 0, imgs[idx].width, imgs[idx].height, imgs[idx].argb, 0, imgs[idx].width);
-            img.flush();
+            imgs[idx].width = img.width;
+            imgs[idx].height = img.height;
+            imgs[idx].argb = img.argb;
             imgs[idx].isLoaded = true;
         }
         else {  // Pad with blank image
@@ -1344,7 +1605,11 @@ public class TexturePack {
     }
     /* Load biome shading image into image array */
     private void loadBiomeShadingImage(InputStream is, int idx, String fname, String modid) throws IOException {
-        loadImage(is, idx, fname, modid); /* Get image */
+        loadBiomeShadingImage(readImage(is), idx, fname, modid);
+    }
+    /* Load decoded biome shading image (null for none) into image array */
+    private void loadBiomeShadingImage(TextureImageCache.Image img, int idx, String fname, String modid) {
+        loadImage(img, idx, fname, modid); /* Get image */
         LoadedImage li = imgs[idx];
         if (li.width != 256) {  /* Required to be 256 x 256 */
             int[] scaled = new int[256*256];
@@ -1391,6 +1656,29 @@ public class TexturePack {
         return new File(core.getDataFolder(), "texturepacks");
     }
 
+    /* Estimate memory used by pixel data not already counted */
+    private long getMemoryUsed(IdentityHashMap<int[], Boolean> seen) {
+        long used = 0;
+        if (tile_argb != null) {
+            for (int[] t : tile_argb) {
+                if ((t != null) && (seen.put(t, Boolean.TRUE) == null)) {
+                    used += 4L * t.length;
+                }
+            }
+        }
+        if ((atlas_argb != null) && (seen.put(atlas_argb, Boolean.TRUE) == null)) {
+            used += 4L * atlas_argb.length;
+        }
+        if (imgs != null) {
+            for (LoadedImage li : imgs) {
+                if ((li != null) && (li.argb != null) && (seen.put(li.argb, Boolean.TRUE) == null)) {
+                    used += 4L * li.argb.length;
+                }
+            }
+        }
+        return used;
+    }
+
     /**
      * Resample terrain pack for given scale, and return copy using that scale
      * @param scale - scale
@@ -1408,6 +1696,10 @@ public class TexturePack {
                 stp.native_scale = scale;
                 scaleTerrainPNG(stp);
             }
+            /* Pack tiles into atlas for rendering */
+            stp.buildAtlas();
+            /* Compile block coloring lookup */
+            stp.compileBlockColoring();
             /* Remember it */
             scaled_textures.put(scale, stp);
             return stp;
@@ -1575,11 +1867,16 @@ public class TexturePack {
      * @param config - configuration for texture mapping
      */
     public static void loadTextureMapping(DynmapCore core, ConfigurationNode config) {
+        loadTextureMapping(core, config, getTextureSources(core));
+    }
+    /**
+     * Read texture and tile set files, in load order
+     * @param core - core object
+     * @return texture file sources
+     */
+    static List<DefinitionCache.Source> getTextureSources(DynmapCore core) {
         File datadir = core.getDataFolder();
-        /* Start clean with texture packs - need to be loaded after mapping */
-        resetFiles(core);
-        /* Initialize map with blank map for all entries */
-        HDBlockStateTextureMap.initializeTable();
+        ArrayList<DefinitionCache.Source> sources = new ArrayList<DefinitionCache.Source>();
         /* Load block textures (0-N) */
         int i = 0;
         boolean done = false;
@@ -1587,8 +1884,12 @@ public class TexturePack {
         while (!done) {
             in = TexturePack.class.getResourceAsStream("/texture_" + i + ".txt");
             if(in != null) {
-                loadTextureFile(in, "texture_" + i + ".txt", config, core, "core");
-                if(in != null) { try { in.close(); } catch (IOException x) {} in = null; }
+                try {
+                    sources.add(new DefinitionCache.Source("texture_" + i + ".txt", "core", false, false, DefinitionCache.readSource(in)));
+                } catch (IOException iox) {
+                    Log.severe("Error reading texture_" + i + ".txt - " + iox.toString());
+                }
+                in = null;
             }
             else {
                 done = true;
@@ -1600,23 +1901,16 @@ public class TexturePack {
             File f = core.getServer().getModContainerFile(modid);   // Get mod file
             if ((f != null) && f.isFile()) {
                 ZipFile zf = null;
-                in = null;
                 try {
                     zf = new ZipFile(f);
                     String fn = "assets/" + modid.toLowerCase() + "/dynmap-texture.txt";
                     ZipEntry ze = zf.getEntry(fn);
                     if (ze != null) {
-                        in = zf.getInputStream(ze);
-                        loadTextureFile(in, fn, config, core, modid);
-                        loadedmods.add(modid);  // Add to set: prevent others definitions for same mod
+                        sources.add(new DefinitionCache.Source(fn, modid, true, false, DefinitionCache.readSource(zf.getInputStream(ze))));
                     }
                 } catch (ZipException e) {
                 } catch (IOException e) {
                 } finally {
-                    if (in != null) {
-                        try { in.close(); } catch (IOException e) { }
-                        in = null;
-                    }
                     if (zf != null) {
                         try { zf.close(); } catch (IOException e) { }
                         zf = null;
@@ -1633,12 +1927,9 @@ public class TexturePack {
             File custom = new File(renderdir, fname);
             if(custom.canRead()) {
                 try {
-                    in = new FileInputStream(custom);
-                    loadTileSetsFile(in, custom.getPath(), config, core, HDBlockModels.getModIDFromFileName(fname));
+                    sources.add(new DefinitionCache.Source(custom.getPath(), HDBlockModels.getModIDFromFileName(fname), false, true, DefinitionCache.readSource(new FileInputStream(custom))));
                 } catch (IOException iox) {
                     Log.severe("Error loading " + custom.getPath() + " - " + iox);
-                } finally {
-                    if(in != null) { try { in.close(); } catch (IOException x) {} in = null; }
                 }
             }
         }
@@ -1647,12 +1938,9 @@ public class TexturePack {
             File custom = new File(renderdir, fname);
             if(custom.canRead()) {
                 try {
-                    in = new FileInputStream(custom);
-                    loadTextureFile(in, custom.getPath(), config, core, HDBlockModels.getModIDFromFileName(fname));
+                    sources.add(new DefinitionCache.Source(custom.getPath(), HDBlockModels.getModIDFromFileName(fname), false, false, DefinitionCache.readSource(new FileInputStream(custom))));
                 } catch (IOException iox) {
                     Log.severe("Error loading " + custom.getPath() + " - " + iox);
-                } finally {
-                    if(in != null) { try { in.close(); } catch (IOException x) {} in = null; }
                 }
             }
         }
@@ -1669,22 +1957,43 @@ public class TexturePack {
                 if (!n.endsWith("-texture.txt")) continue;
                 in = zf.getInputStream(ze);
                 if (in != null) {
-                    loadTextureFile(in, n, config, core, HDBlockModels.getModIDFromFileName(n));
-                    try { in.close(); } catch (IOException x) { in = null; }
+                    sources.add(new DefinitionCache.Source(n, HDBlockModels.getModIDFromFileName(n), false, false, DefinitionCache.readSource(in)));
+                    in = null;
                 }
             }
         } catch (IOException iox) {
             Log.severe("Error processing texture files");
         } finally {
-            if (in != null) {
-                try { in.close(); } catch (IOException iox) {}
-                in = null;
-            }
             if (zf != null) {
                 try { zf.close(); } catch (IOException iox) {}
                 zf = null;
             }
         }
+        return sources;
+    }
+    /**
+     * Load texture pack mappings from texture and tile set files
+     * @param core - core object
+     * @param config - configuration for texture mapping
+     * @param sources - texture and tile set files, in load order
+     */
+    static void loadTextureMapping(DynmapCore core, ConfigurationNode config, List<DefinitionCache.Source> sources) {
+        /* Start clean with texture packs - need to be loaded after mapping */
+        resetFiles(core);
+        /* Initialize map with blank map for all entries */
+        HDBlockStateTextureMap.initializeTable();
+        for (DefinitionCache.Source src : sources) {
+            InputStream in = new ByteArrayInputStream(src.data);
+            if (src.tileset) {
+                loadTileSetsFile(in, src.name, config, core, src.blockset);
+            }
+            else {
+                loadTextureFile(in, src.name, config, core, src.blockset);
+                if (src.modfile) {
+                    loadedmods.add(src.blockset);  // Add to set: prevent others definitions for same mod
+                }
+            }
+        }
         /* Finish processing of texture maps */
         processTextureMaps();
         /* Check integrity of texture mappings versus models */
@@ -1701,7 +2010,11 @@ public class TexturePack {
                 tm.resizeFaces(cnt);
             }
         }
-        // Check to see if any blocks exist without corresponding mappings
+        reportMissingBlocks(core);
+    }
+
+    /* Check to see if any blocks exist without corresponding mappings */
+    private static void reportMissingBlocks(DynmapCore core) {
         if (core.dumpMissingBlocks()) {
             String missing = "";
             /* Check integrity of texture mappings versus models */
@@ -1727,6 +2040,291 @@ public class TexturePack {
         }
     }
 
+    /**
+     * Texture mapping definitions read from definition cache, ready to install
+     */
+    static class Definitions {
+        private ArrayList<DynamicTileFile> files = new ArrayList<DynamicTileFile>();
+        private int nexttile;
+        private List<String> mods;
+        private HashMap<String, TextureMap> textmaps = new HashMap<String, TextureMap>();
+        private int[] blankfaces;
+        private HDBlockStateTextureMap[] table;
+        private ArrayList<BiomeOverride> biomes = new ArrayList<BiomeOverride>();
+
+        /**
+         * Replace loaded texture mappings with these (after models are installed)
+         * @param core - core object
+         */
+        void install(DynmapCore core) {
+            synchronized(packlock) {
+                packs.clear();
+            }
+            addonfiles.clear();
+            addonfilesbyname.clear();
+            for (DynamicTileFile f : files) {
+                addonfiles.add(f);
+                addonfilesbyname.put(f.filename, f);
+            }
+            next_dynamic_tile = nexttile;
+            loadedmods.clear();
+            loadedmods.addAll(mods);
+            textmap_by_id.clear();
+            textmap_by_id.putAll(textmaps);
+            HDBlockStateTextureMap.BLANK.faces = blankfaces;
+            HDBlockStateTextureMap.setTable(table);
+            biomeoverrides.clear();
+            for (BiomeOverride bo : biomes) {
+                bo.apply();
+                biomeoverrides.add(bo);
+            }
+            reportMissingBlocks(core);
+        }
+    }
+
+    private static void addMultiplier(CustomColorMultiplier m, IdentityHashMap<CustomColorMultiplier, Integer> multids, List<CustomColorMultiplier> mults) {
+        if ((m != null) && !multids.containsKey(m)) {
+            multids.put(m, mults.size());
+            mults.add(m);
+        }
+    }
+
+    /**
+     * Write loaded texture mappings, for definition cache
+     * @param out - output stream
+     * @throws IOException if error writing
+     */
+    static void writeDefinitions(DataOutputStream out) throws IOException {
+        HDBlockStateTextureMap[] table = HDBlockStateTextureMap.getTable();
+        /* Custom color multipliers - created again by class name */
+        IdentityHashMap<CustomColorMultiplier, Integer> multids = new IdentityHashMap<CustomColorMultiplier, Integer>();
+        ArrayList<CustomColorMultiplier> mults = new ArrayList<CustomColorMultiplier>();
+        for (TextureMap tm : textmap_by_id.values()) {
+            addMultiplier(tm.custColorMult, multids, mults);
+        }
+        /* Face and layer arrays are shared by states copied from the same mapping */
+        IdentityHashMap<int[], Integer> faceids = new IdentityHashMap<int[], Integer>();
+        ArrayList<int[]> faces = new ArrayList<int[]>();
+        IdentityHashMap<byte[], Integer> layerids = new IdentityHashMap<byte[], Integer>();
+        ArrayList<byte[]> layers = new ArrayList<byte[]>();
+        for (HDBlockStateTextureMap m : table) {
+            if ((m == null) || (m == HDBlockStateTextureMap.BLANK)) continue;
+            addMultiplier(m.custColorMult, multids, mults);
+            if (!faceids.containsKey(m.faces)) {
+                faceids.put(m.faces, faces.size());
+                faces.add(m.faces);
+            }
+            if ((m.layers != null) && !layerids.containsKey(m.layers)) {
+                layerids.put(m.layers, layers.size());
+                layers.add(m.layers);
+            }
+        }
+        out.writeInt(mults.size());
+        for (CustomColorMultiplier m : mults) {
+            DefinitionCache.writeString(out, m.getClass().getName());
+        }
+        out.writeInt(addonfiles.size());
+        for (DynamicTileFile f : addonfiles) {
+            DefinitionCache.writeString(out, f.filename);
+            DefinitionCache.writeString(out, f.modname);
+            out.writeInt(f.tilecnt_x);
+            out.writeInt(f.tilecnt_y);
+            DefinitionCache.writeInts(out, f.tile_to_dyntile);
+            out.writeInt(f.format.ordinal());
+            out.writeInt((f.cust != null) ? f.cust.size() : -1);
+            if (f.cust != null) {
+                for (CustomTileRec rec : f.cust) {
+                    out.writeBoolean(rec != null);
+                    if (rec != null) {
+                        DefinitionCache.writeInts(out, new int[] { rec.srcx, rec.srcy, rec.width, rec.height, rec.targetx, rec.targety });
+                    }
+                }
+            }
+            out.writeInt((f.tilenames != null) ? f.tilenames.length : -1);
+            if (f.tilenames != null) {
+                for (String tn : f.tilenames) {
+                    DefinitionCache.writeString(out, tn);
+                }
+            }
+            out.writeBoolean(f.used);
+            out.writeInt((f.material != null) ? f.material.ordinal() : -1);
+        }
+        out.writeInt(next_dynamic_tile);
+        DefinitionCache.writeStrings(out, loadedmods);
+        out.writeInt(textmap_by_id.size());
+        for (Map.Entry<String, TextureMap> ent : textmap_by_id.entrySet()) {
+            TextureMap tm = ent.getValue();
+            DefinitionCache.writeString(out, ent.getKey());
+            out.writeInt(tm.key_to_index.size());
+            for (Map.Entry<Integer, Integer> k : tm.key_to_index.entrySet()) {
+                out.writeInt(k.getKey());
+                out.writeInt(k.getValue());
+            }
+            out.writeInt(tm.texture_ids.size());
+            for (Integer id : tm.texture_ids) {
+                out.writeInt(id);
+            }
+            DefinitionCache.writeStrings(out, tm.blocknames);
+            DefinitionCache.writeBitSet(out, tm.stateids);
+            out.writeInt(tm.trans.ordinal());
+            out.writeInt(tm.colorMult);
+            out.writeInt((tm.custColorMult != null) ? multids.get(tm.custColorMult) : -1);
+            DefinitionCache.writeString(out, tm.blockset);
+        }
+        DefinitionCache.writeInts(out, HDBlockStateTextureMap.BLANK.faces);
+        out.writeInt(faces.size());
+        for (int[] f : faces) {
+            DefinitionCache.writeInts(out, f);
+        }
+        out.writeInt(layers.size());
+        for (byte[] l : layers) {
+            out.writeInt(l.length);
+            out.write(l);
+        }
+        out.writeInt(table.length);
+        for (HDBlockStateTextureMap m : table) {
+            if (m == null) {
+                out.writeInt(-2);
+                continue;
+            }
+            if (m == HDBlockStateTextureMap.BLANK) {
+                out.writeInt(-1);
+                continue;
+            }
+            out.writeInt(faceids.get(m.faces));
+            out.writeInt((m.layers != null) ? layerids.get(m.layers) : -1);
+            DefinitionCache.writeString(out, m.getBlockSet());
+            out.writeInt(m.colorMult);
+            out.writeInt((m.custColorMult != null) ? multids.get(m.custColorMult) : -1);
+            out.writeBoolean(m.stdrotate);
+            Integer cm = m.getColorMapping();
+            out.writeBoolean(cm != null);
+            out.writeInt((cm != null) ? cm.intValue() : 0);
+            out.writeInt(m.trans.ordinal());
+        }
+        out.writeInt(biomeoverrides.size());
+        for (BiomeOverride bo : biomeoverrides) {
+            out.writeInt(bo.id);
+            out.writeInt(bo.grassmult);
+            out.writeInt(bo.foliagemult);
+            out.writeInt(bo.watermult);
+            out.writeDouble(bo.tmp);
+            out.writeDouble(bo.rain);
+        }
+    }
+
+    /**
+     * Read texture mappings from definition cache
+     * @param buf - buffer
+     * @return definitions, to be installed
+     * @throws IOException if mappings can't be created as they were
+     */
+    static Definitions readDefinitions(ByteBuffer buf) throws IOException {
+        Definitions d = new Definitions();
+        CustomColorMultiplier[] mults = new CustomColorMultiplier[buf.getInt()];
+        for (int i = 0; i < mults.length; i++) {
+            String cls = DefinitionCache.readString(buf);
+            try {
+                mults[i] = (CustomColorMultiplier) Class.forName(cls).newInstance();
+            } catch (Exception x) {
+                throw new IOException("cannot create custom color multiplier " + cls);
+            }
+        }
+        BlockTransparency[] transvals = BlockTransparency.values();
+        int cnt = buf.getInt();
+        for (int i = 0; i < cnt; i++) {
+            DynamicTileFile f = new DynamicTileFile();
+            f.idx = i;
+            f.filename = DefinitionCache.readString(buf);
+            f.modname = DefinitionCache.readString(buf);
+            f.tilecnt_x = buf.getInt();
+            f.tilecnt_y = buf.getInt();
+            f.tile_to_dyntile = DefinitionCache.readInts(buf);
+            f.format = TileFileFormat.values()[buf.getInt()];
+            int ccnt = buf.getInt();
+            if (ccnt >= 0) {
+                f.cust = new ArrayList<CustomTileRec>();
+                for (int j = 0; j < ccnt; j++) {
+                    CustomTileRec rec = null;
+                    if (buf.get() != 0) {
+                        int[] v = DefinitionCache.readInts(buf);
+                        rec = new CustomTileRec(v[0], v[1], v[2], v[3], v[4], v[5]);
+                    }
+                    f.cust.add(rec);
+                }
+            }
+            int ncnt = buf.getInt();
+            if (ncnt >= 0) {
+                f.tilenames = new String[ncnt];
+                for (int j = 0; j < ncnt; j++) {
+                    f.tilenames[j] = DefinitionCache.readString(buf);
+                }
+            }
+            f.used = (buf.get() != 0);
+            int mt = buf.getInt();
+            f.material = (mt >= 0) ? MaterialType.values()[mt] : null;
+            d.files.add(f);
+        }
+        d.nexttile = buf.getInt();
+        d.mods = DefinitionCache.readStrings(buf);
+        cnt = buf.getInt();
+        for (int i = 0; i < cnt; i++) {
+            String id = DefinitionCache.readString(buf);
+            TextureMap tm = new TextureMap();
+            int kcnt = buf.getInt();
+            for (int j = 0; j < kcnt; j++) {
+                int key = buf.getInt();
+                tm.key_to_index.put(key, buf.getInt());
+            }
+            int tcnt = buf.getInt();
+            for (int j = 0; j < tcnt; j++) {
+                tm.texture_ids.add(buf.getInt());
+            }
+            tm.blocknames = DefinitionCache.readStrings(buf);
+            tm.stateids = DefinitionCache.readBitSet(buf);
+            tm.trans = transvals[buf.getInt()];
+            tm.colorMult = buf.getInt();
+            int m = buf.getInt();
+            tm.custColorMult = (m >= 0) ? mults[m] : null;
+            tm.blockset = DefinitionCache.readString(buf);
+            d.textmaps.put(id, tm);
+        }
+        d.blankfaces = DefinitionCache.readInts(buf);
+        int[][] faces = new int[buf.getInt()][];
+        for (int i = 0; i < faces.length; i++) {
+            faces[i] = DefinitionCache.readInts(buf);
+        }
+        byte[][] layers = new byte[buf.getInt()][];
+        for (int i = 0; i < layers.length; i++) {
+            layers[i] = new byte[buf.getInt()];
+            buf.get(layers[i]);
+        }
+        d.table = new HDBlockStateTextureMap[buf.getInt()];
+        for (int i = 0; i < d.table.length; i++) {
+            int f = buf.getInt();
+            if (f == -2) continue;
+            if (f == -1) {
+                d.table[i] = HDBlockStateTextureMap.BLANK;
+                continue;
+            }
+            int l = buf.getInt();
+            String blockset = DefinitionCache.readString(buf);
+            int colorMult = buf.getInt();
+            int m = buf.getInt();
+            boolean stdrot = (buf.get() != 0);
+            boolean hascm = (buf.get() != 0);
+            int cm = buf.getInt();
+            BlockTransparency trans = transvals[buf.getInt()];
+            d.table[i] = new HDBlockStateTextureMap(faces[f], (l >= 0) ? layers[l] : null, colorMult, (m >= 0) ? mults[m] : null,
+                blockset, stdrot, hascm ? Integer.valueOf(cm) : null, trans);
+        }
+        cnt = buf.getInt();
+        for (int i = 0; i < cnt; i++) {
+            d.biomes.add(new BiomeOverride(buf.getInt(), buf.getInt(), buf.getInt(), buf.getInt(), buf.getDouble(), buf.getDouble()));
+        }
+        return d;
+    }
+
     private static String getBlockName(String modid, String val) throws NumberFormatException {
         char c = val.charAt(0);
         if(Character.isLetter(c) || (c == '%') || (c == '&')) {
@@ -2420,7 +3018,7 @@ public class TexturePack {
                         return; /* Quit */
                     }
                     /* If setting is not defined or false, quit */
-                    else if(config.getBoolean(line, false) == false) {
+                    else if(DefinitionCache.getBoolean(config, line) == false) {
                         return;
                     }
                     else {
@@ -2438,7 +3036,7 @@ public class TexturePack {
                         }
                         try {
                             int val = Integer.valueOf(v[1]);    /* Parse default value */
-                            int parmval = config.getInteger(v[0], val); /* Read value, with applied default */
+                            int parmval = DefinitionCache.getInteger(config, v[0], val); /* Read value, with applied default */
                             varvals.put(v[0], parmval); /* And save value */
                         } catch (NumberFormatException nfx) {
                             Log.severe("Format error - line " + rdr.getLineNumber() + " of " + txtname + ": " + nfx.getMessage());
@@ -2452,6 +3050,7 @@ public class TexturePack {
                     }
                     File cfgfile = new File(line.substring(8).trim());
                     ForgeConfigFile cfg = new ForgeConfigFile(cfgfile);
+                    DefinitionCache.useFile(cfgfile);
                     if(cfg.load()) {
                         cfg.addBlockIDs(varvals);
                         mod_cfg_needed = false;
@@ -2473,7 +3072,7 @@ public class TexturePack {
                         if (loadedmods.contains(n)) {
                             return;
                         }
-                        String modver = core.getServer().getModVersion(n);
+                        String modver = DefinitionCache.getModVersion(core, n);
                         if((modver != null) && ((rng == null) || HDBlockModels.checkVersionRange(modver, rng))) {
                             found = true;
                             Log.info(n + "[" + modver + "] textures enabled");
@@ -2482,7 +3081,7 @@ public class TexturePack {
                             if(texturemod == null) texturemod = modname;
                             loadedmods.add(n);
                             // Prime values from block and item unique IDs
-                            core.addModBlockItemIDs(modname, varvals);
+                            DefinitionCache.addModBlockItemIDs(core, modname, varvals);
                             break;
                         }
                     }
@@ -2532,21 +3131,12 @@ public class TexturePack {
                         }
                     }
                     if(id > 0) {
-                        BiomeMap b = BiomeMap.byBiomeID(id); /* Find biome */
-                        if(b == null) {
+                        BiomeOverride bo = new BiomeOverride(id, grasscolormult, foliagecolormult, watercolormult, tmp, rain);
+                        if(!bo.apply()) {
                             Log.severe("Format error - line " + rdr.getLineNumber() + " of " + txtname + ": " + id);
                         }
                         else {
-                            if(foliagecolormult != -1)
-                                b.setFoliageColorMultiplier(foliagecolormult);
-                            if(grasscolormult != -1)
-                                b.setGrassColorMultiplier(grasscolormult);
-                            if(watercolormult != -1)
-                                b.setWaterColorMultiplier(watercolormult);
-                            if(tmp != -1.0)
-                                b.setTemperature(tmp);
-                            if(rain != -1.0)
-                                b.setRainfall(rain);
+                            biomeoverrides.add(bo);
                         }
                     }
                 }
@@ -2649,13 +3239,15 @@ public class TexturePack {
             rslt.setTransparent();
             return;
         }
-        boolean hasblockcoloring = ss.do_biome_shading && this.blockColoring.hasBlkStateValue(blk);
+        int blkclridx = ss.do_biome_shading ? getBlockColoringIndex(blk) : -1;
+        boolean hasblockcoloring = (blkclridx >= 0);
         // Test if we have no texture modifications
         boolean simplemap = (textid < COLORMOD_MULT_INTERNAL) && (!hasblockcoloring);
         int[] xyz = null;
         
+        final int[] atlas = atlas_argb;
         if (simplemap) {    /* If simple mapping */
-            int[] texture = getTileARGB(textid);
+            int toff = getAtlasOffset(textid);
             /* Get texture coordinates (U=horizontal(left=0),V=vertical(top=0)) */
             int u = 0, v = 0;
             /* If not patch, compute U and V */
@@ -2697,16 +3289,10 @@ public class TexturePack {
                 u = fastFloor(ps.getPatchU() * native_scale);
                 v = native_scale - fastFloor(ps.getPatchV() * native_scale) - 1;
             }
-            /* Read color from texture */
-            try {
-                rslt.setARGB(texture[v*native_scale + u]);
-            } catch(ArrayIndexOutOfBoundsException aoobx) {
-                u = ((u < 0) ? 0 : ((u >= native_scale) ? (native_scale-1) : u));
-                v = ((v < 0) ? 0 : ((v >= native_scale) ? (native_scale-1) : v));
-                try {
-                    rslt.setARGB(texture[v*native_scale + u]);
-                } catch(ArrayIndexOutOfBoundsException oob2) { }
-            }
+            /* Read color from texture - clamp, since neighboring tiles share the atlas */
+            u = ((u < 0) ? 0 : ((u >= native_scale) ? (native_scale-1) : u));
+            v = ((v < 0) ? 0 : ((v >= native_scale) ? (native_scale-1) : v));
+            rslt.setARGB(atlas[toff + v*native_scale + u]);
             
             return;            
         }
@@ -2732,7 +3318,7 @@ public class TexturePack {
             }
         }
 
-        int[] texture = getTileARGB(textid);
+        int toff = getAtlasOffset(textid);
         /* Get texture coordinates (U=horizontal(left=0),V=vertical(top=0)) */
         int u = 0, v = 0, tmp;
         
@@ -2829,25 +3415,26 @@ public class TexturePack {
                 /* Check if snow above block */
                 if(mapiter.getBlockTypeAt(BlockStep.Y_PLUS).isSnow()) {
                     if(do_snow_side) {
-                        texture = getTileARGB(TILEINDEX_SNOW); /* Snow full side block */
+                        toff = getAtlasOffset(TILEINDEX_SNOW); /* Snow full side block */
                         textid = TILEINDEX_SNOW;
                     }
                     else {
-                        texture = getTileARGB(TILEINDEX_SNOWSIDE); /* Snow block */
+                        toff = getAtlasOffset(TILEINDEX_SNOWSIDE); /* Snow block */
                         textid = TILEINDEX_SNOWSIDE;
                     }
                     textop = 0;
                 }
                 else {  /* Else, check the grass color overlay */
                     if(do_grass_side) {
-                        texture = getTileARGB(TILEINDEX_GRASS); /* Grass block */
+                        toff = getAtlasOffset(TILEINDEX_GRASS); /* Grass block */
                         textid = TILEINDEX_GRASS;
                         textop = COLORMOD_GRASSTONED;   /* Force grass toning */
                     }
                     else {
-                        int ovclr = getTileARGB(TILEINDEX_GRASSMASK)[v*native_scale+u];
+                        int maskoff = getAtlasOffset(TILEINDEX_GRASSMASK);
+                        int ovclr = ((u >= 0) && (u < native_scale) && (v >= 0) && (v < native_scale)) ? atlas[maskoff + v*native_scale+u] : 0;
                         if((ovclr & 0xFF000000) != 0) { /* Hit? */
-                            texture = getTileARGB(TILEINDEX_GRASSMASK); /* Use it */
+                            toff = maskoff; /* Use it */
                             textop = COLORMOD_GRASSTONED;   /* Force grass toning */
                         }
                     }
@@ -2874,9 +3461,10 @@ public class TexturePack {
                 break;
         }
         /* Read color from texture */
-        try {
-            rslt.setARGB(texture[v*native_scale + u]);
-        } catch (ArrayIndexOutOfBoundsException aioobx) {
+        if ((u >= 0) && (u < native_scale) && (v >= 0) && (v < native_scale)) {
+            rslt.setARGB(atlas[toff + v*native_scale + u]);
+        }
+        else {
             rslt.setARGB(0);
         }
 
@@ -2885,8 +3473,7 @@ public class TexturePack {
         int custclrmult = -1;
         // If block has custom coloring
         if (hasblockcoloring) {
-            Integer idx = this.blockColoring.getBlkStateValue(blk);
-            LoadedImage img = imgs[idx.intValue()];
+            LoadedImage img = imgs[blkclridx];
             if (img.argb != null) {
                 custclrmult = mapiter.getSmoothWaterColorMultiplier(img.argb);
             }
@@ -3650,13 +4237,14 @@ public class TexturePack {
     }
     
     private String getMatIDForTileID(int txtid) {
-        String id = matIDByTileID.get(txtid);
-        if (id == null) {
-            id = "txt" + txtid;
-            matIDByTileID.put(txtid, id);
-            tileIDByMatID.put(id, txtid);
+        synchronized (matIDByTileID) {  // Called from OBJ export worker threads
+            String id = matIDByTileID.get(txtid);
+            if (id == null) {
+                id = "txt" + txtid;
+                matIDByTileID.put(txtid, id);
+                tileIDByMatID.put(id, txtid);
+            }
+            return id;
         }
-
-        return id;
     }
 }
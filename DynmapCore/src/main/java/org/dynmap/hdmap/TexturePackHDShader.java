@@ -103,7 +103,7 @@ public class TexturePackHDShader implements HDShader {
         final private Color color[];
         final private Color tmpcolor[];
         final private Color c;
-        final protected MapIterator mapiter;
+        protected MapIterator mapiter;
         final protected HDMap map;
         final private TexturePack scaledtp;
         final private HDLighting lighting;
@@ -142,6 +142,17 @@ public class TexturePackHDShader implements HDShader {
                 lightingTable = null;
             }
         }
+        /**
+         * Reuse state for new tile - texture pack and colors only depend on map and scale
+         */
+        @Override
+        public boolean resetForTile(MapChunkCache cache, MapIterator mapiter) {
+            this.mapiter = mapiter;
+            if (ctm_cache != null) {    /* Keyed by block position - not valid for new tile */
+                ctm_cache.clear();
+            }
+            return true;
+        }
         /**
          * Get our shader
          */
@@ -302,10 +313,10 @@ public class TexturePackHDShader implements HDShader {
          * Clean up state object - called after last ray completed
          */
         public void cleanup() {
-            if (ctm_cache != null) {
+            if (ctm_cache != null) {    /* Kept for reuse with next tile */
                 ctm_cache.clear();
-                ctm_cache = null;
             }
+            mapiter = null;     /* Don't hold on to chunk cache between tiles */
         }
         @Override
         public DynLongHashMap getCTMTextureCache() {
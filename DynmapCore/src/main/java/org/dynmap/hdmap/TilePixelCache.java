@@ -0,0 +1,89 @@
+package org.dynmap.hdmap;
+
+import org.dynmap.MapType;
+import org.dynmap.utils.LRULinkedHashMap;
+
+/**
+ * Bounded cache of the raw (pre-encoding) pixels of recently rendered tiles.
+ *
+ * Used to re-trace only the dirty part of a tile on update renders: the rest of the tile is taken from
+ * the cached pixels, which are only trusted while their hash still matches the stored tile.
+ */
+public class TilePixelCache {
+    private final LRULinkedHashMap<String, TilePixels> cache;
+
+    public static class TilePixels {
+        public final int[] argb;    /* Copy of tile frame buffer */
+        public final long crc;      /* Hash code of frame buffer, as stored */
+        TilePixels(int[] argb, long crc) {
+            this.argb = argb;
+            this.crc = crc;
+        }
+    }
+
+    /**
+     * @param limit - maximum number of tile images to keep (each is 64K for a 128x128 tile)
+     */
+    public TilePixelCache(int limit) {
+        cache = new LRULinkedHashMap<String, TilePixels>(limit + 1);   /* LRU evicts at limit, so allow for one more */
+    }
+
+    private static String getKey(HDMapTile tile, HDMap map, MapType.ImageVariant var) {
+        return tile.getDynmapWorld().getName() + "/" + map.getPrefix() + var.variantSuffix + "/" + tile.tx + "_" + tile.ty;
+    }
+
+    /**
+     * Get cached pixels for tile
+     * @param tile - tile
+     * @param map - map
+     * @param var - image variant
+     * @param len - expected buffer length (tile size can change with boost zoom)
+     * @return pixels, or null if not cached
+     */
+    public TilePixels get(HDMapTile tile, HDMap map, MapType.ImageVariant var, int len) {
+        TilePixels px;
+        synchronized(cache) {
+            px = cache.get(getKey(tile, map, var));
+        }
+        if ((px != null) && (px.argb.length != len)) {
+            px = null;
+        }
+        return px;
+    }
+
+    /**
+     * Save copy of rendered pixels for tile
+     * @param tile - tile
+     * @param map - map
+     * @param var - image variant
+     * @param argb - frame buffer (copied)
+     * @param crc - hash code of frame buffer
+     */
+    public void put(HDMapTile tile, HDMap map, MapType.ImageVariant var, int[] argb, long crc) {
+        TilePixels px = new TilePixels(argb.clone(), crc);
+        synchronized(cache) {
+            cache.put(getKey(tile, map, var), px);
+        }
+    }
+
+    /**
+     * Drop cached pixels for tile
+     * @param tile - tile
+     * @param map - map
+     * @param var - image variant
+     */
+    public void remove(HDMapTile tile, HDMap map, MapType.ImageVariant var) {
+        synchronized(cache) {
+            cache.remove(getKey(tile, map, var));
+        }
+    }
+
+    /**
+     * Drop all cached pixels
+     */
+    public void clear() {
+        synchronized(cache) {
+            cache.clear();
+        }
+    }
+}
@@ -158,6 +158,15 @@ public class TopoHDShader implements HDShader {
             }
             inWater = false;
         }
+        /**
+         * Reuse state for new tile
+         */
+        @Override
+        public boolean resetForTile(MapChunkCache cache, MapIterator mapiter) {
+            this.mapiter = mapiter;
+            inWater = false;
+            return true;
+        }
         /**
          * Get our shader
          */
@@ -296,6 +305,7 @@ public class TopoHDShader implements HDShader {
          * Clean up state object - called after last ray completed
          */
         public void cleanup() {
+            mapiter = null;     /* Don't hold on to chunk cache between tiles */
         }
         @Override
         public DynLongHashMap getCTMTextureCache() {
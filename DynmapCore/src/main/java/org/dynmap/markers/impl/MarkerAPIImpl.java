@@ -403,7 +403,7 @@ public class MarkerAPIImpl implements MarkerAPI, Event.Listener<DynmapWorld> {
      * @return API object
      */
     public static void completeInitializeMarkerAPI(MarkerAPIImpl api) {
-        MapManager.scheduleDelayedJob(new Runnable() {
+        MapManager.scheduleDelayedJob(MapManager.JobLane.STORAGE, new Runnable() {
         	public void run() {
                 /* Now publish marker files to the tiles directory */
                 for(MarkerIcon ico : api.getMarkerIcons()) {
@@ -669,7 +669,7 @@ public class MarkerAPIImpl implements MarkerAPI, Event.Listener<DynmapWorld> {
             }
             conf.put("playersets", psets);
             
-            MapManager.scheduleDelayedJob(new Runnable() {
+            MapManager.scheduleDelayedJob(MapManager.JobLane.STORAGE, new Runnable() {
                 public void run() {
                     /* And shift old file file out */
                     if(api.markerpersist_old.exists()) api.markerpersist_old.delete();
@@ -3193,7 +3193,7 @@ public class MarkerAPIImpl implements MarkerAPI, Event.Listener<DynmapWorld> {
         }
         worlddata.put("sets", markerdata);
 
-        MapManager.scheduleDelayedJob(new Runnable() {
+        MapManager.scheduleDelayedJob(MapManager.JobLane.STORAGE, new Runnable() {
             public void run() {
                 core.getDefaultMapStorage().setMarkerFile(wname, Json.stringifyJson(worlddata));
             }
@@ -6,9 +6,11 @@ import org.dynmap.MapType.ImageEncoding;
 import org.dynmap.PlayerFaces;
 import org.dynmap.storage.MapStorage;
 import org.dynmap.storage.MapStorageTile;
+import org.dynmap.storage.MapStorageTile.TileChannel;
 import org.dynmap.storage.MapStorageTile.TileRead;
 import org.dynmap.utils.BufferInputStream;
 import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.server.HttpOutput;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
@@ -90,6 +92,14 @@ public class MapStorageResourceHandler extends AbstractHandler {
             os.write(blankpng);
             return;
         }
+        core.mapManager.recordTileView(w, tile);
+        // If zoomed out tile is stale (lazy zoom out), build it first
+        w.freshenZoomOutTile(tile);
+        // If tile is a file, stream it rather than reading it in
+        if (tile.supportsChannel()) {
+            handleTileChannel(baseRequest, request, response, tile);
+            return;
+        }
         // Read tile
         TileRead tr = null;
         if (tile.getReadLock(5000)) {
@@ -132,6 +142,47 @@ public class MapStorageResourceHandler extends AbstractHandler {
 
     }
 
+    private void handleTileChannel(Request baseRequest, HttpServletRequest request, HttpServletResponse response, MapStorageTile tile) throws IOException {
+        TileChannel tc = null;
+        if (tile.getReadLock(5000)) {
+            tc = tile.openChannel();
+            tile.releaseReadLock();
+        }
+        try {
+            response.setHeader("Cache-Control", "max-age=0,must-revalidate");
+            // Validate using hash and file metadata - content is not read unless sent
+            String etag = "\"" + ((tc == null) ? blankpnghash : tc.hashCode) + "\"";
+            response.setHeader("ETag", etag);
+            String ifnullmatch = request.getHeader("If-None-Match");
+            if ((ifnullmatch != null) && ifnullmatch.equals(etag)) {
+                response.sendError(HttpStatus.NOT_MODIFIED_304);
+                return;
+            }
+            if (tc == null) {
+                response.setContentType("image/png");
+                response.setIntHeader("Content-Length", blankpng.length);
+                OutputStream os = response.getOutputStream();
+                os.write(blankpng);
+                return;
+            }
+            response.setDateHeader("Last-Modified", tc.lastModified);
+            response.setIntHeader("Content-Length", (int) tc.length);
+            if (tc.format == ImageEncoding.PNG) {
+                response.setContentType("image/png");
+            }
+            else {
+                response.setContentType("image/jpeg");
+            }
+            // Copy straight from file channel through Jetty's pooled buffers
+            HttpOutput out = baseRequest.getResponse().getHttpOutput();
+            out.sendContent(tc.channel);
+        } finally {
+            if (tc != null) {
+                try { tc.channel.close(); } catch (IOException x) {}
+            }
+        }
+    }
+
     private void handleFace(HttpServletResponse response, String uri) throws IOException, ServletException {
         String[] suri = uri.split("[/\\.]");
         if (suri.length < 3) {  // 3 parts : face ID, player name, png
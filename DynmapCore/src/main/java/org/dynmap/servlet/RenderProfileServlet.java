@@ -0,0 +1,53 @@
+package org.dynmap.servlet;
+
+import static org.dynmap.JSONUtils.s;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.dynmap.DynmapCore;
+import org.dynmap.hdmap.RenderProfiler;
+import org.json.simple.JSONObject;
+
+/**
+ * Render profiler results, as JSON - block states with most render time first ('max' parameter sets how many).
+ * With login support enabled, only logged in users with stats permission get results.
+ */
+public class RenderProfileServlet extends HttpServlet {
+    private static final long serialVersionUID = 2818154120385530215L;
+    private static final int DEFAULT_MAX = 100;
+    private DynmapCore core;
+
+    public RenderProfileServlet(DynmapCore core) {
+        this.core = core;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
+        if (core.isLoginSupportEnabled()) {
+            HttpSession sess = req.getSession(true);
+            String user = (String) sess.getAttribute(LoginServlet.USERID_ATTRIB);
+            if ((user == null) || user.equals(LoginServlet.USERID_GUEST) || (!core.getServer().checkPlayerPermission(user, "stats"))) {
+                JSONObject json = new JSONObject();
+                s(json, "error", "login-required");
+                JSONServlet.respond(res, json);
+                return;
+            }
+        }
+        int max = DEFAULT_MAX;
+        String m = req.getParameter("max");
+        if (m != null) {
+            try {
+                max = Integer.parseInt(m);
+            } catch (NumberFormatException nfx) {
+            }
+        }
+        res.addHeader("Expires", "Thu, 01 Dec 1994 16:00:00 GMT");
+        JSONServlet.respond(res, RenderProfiler.getJSONReport(max));
+    }
+}
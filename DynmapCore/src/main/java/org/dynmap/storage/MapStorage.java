@@ -3,7 +3,6 @@ package org.dynmap.storage;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.HashMap;
 import java.util.zip.CRC32;
 
 import org.dynmap.DynmapCore;
@@ -19,9 +18,7 @@ import org.dynmap.utils.BufferOutputStream;
  * Generic interface for map data storage (image tiles, and associated hash codes)
  */
 public abstract class MapStorage {
-    private static Object lock = new Object();
-    private static HashMap<String, Integer> filelocks = new HashMap<String, Integer>();
-    private static final Integer WRITELOCK = new Integer(-1);
+    private static final TileLockManager locks = new TileLockManager();
     protected File baseStandaloneDir;
 
     protected long serverID;
@@ -48,6 +45,12 @@ public abstract class MapStorage {
         return true;
     }
     
+    /**
+     * Write any state kept in memory to storage - called when rendering stops (shutdown or reload)
+     */
+    public void flush() {
+    }
+
     /**
      * Set server ID for map storage instance
      * @param serverID - server ID (default is zero)
@@ -352,96 +355,61 @@ public abstract class MapStorage {
 
     
     protected void releaseWriteLock(String baseFilename) {
-        synchronized(lock) {
-            Integer lockcnt = filelocks.get(baseFilename);    /* Get lock count */
-            if(lockcnt == null)
-                Log.severe("releaseWriteLock(" + baseFilename + ") on unlocked file");
-            else if(lockcnt.equals(WRITELOCK)) {
-                filelocks.remove(baseFilename);   /* Remove lock */
-                lock.notifyAll();   /* Wake up folks waiting for locks */
-            }
-            else
-                Log.severe("releaseWriteLock(" + baseFilename + ") on read-locked file");
+        if (!locks.release(TileLockManager.getKey(baseFilename), true)) {
+            Log.severe("releaseWriteLock(" + baseFilename + ") on file not write-locked");
         }
     }
 
     protected boolean getWriteLock(String baseFilename) {
-        synchronized(lock) {
-            boolean got_lock = false;
-            while(!got_lock) {
-                Integer lockcnt = filelocks.get(baseFilename);    /* Get lock count */
-                if(lockcnt != null) {   /* If any locks, can't get write lock */
-                    try {
-                        lock.wait(); 
-                    } catch (InterruptedException ix) {
-                        Log.severe("getWriteLock(" + baseFilename + ") interrupted");
-                        return false;
-                    }
-                }
-                else {
-                    filelocks.put(baseFilename, WRITELOCK);
-                    got_lock = true;
-                }
-            }
+        if (!locks.acquire(TileLockManager.getKey(baseFilename), true, -1L)) {
+            Log.severe("getWriteLock(" + baseFilename + ") interrupted");
+            return false;
         }
         return true;
     }
-    
+
     protected boolean getReadLock(String baseFilename, long timeout) {
-        synchronized(lock) {
-            boolean got_lock = false;
-            long starttime = 0;
-            if(timeout > 0)
-                starttime = System.currentTimeMillis();
-            while(!got_lock) {
-                Integer lockcnt = filelocks.get(baseFilename);    /* Get lock count */
-                if(lockcnt == null) {
-                    filelocks.put(baseFilename, Integer.valueOf(1));  /* First lock */
-                    got_lock = true;
-                }
-                else if(!lockcnt.equals(WRITELOCK)) {   /* Other read locks */
-                    filelocks.put(baseFilename, Integer.valueOf(lockcnt+1));
-                    got_lock = true;
-                }
-                else {  /* Write lock in place */
-                    try {
-                        if(timeout < 0) {
-                            lock.wait();
-                        }
-                        else {
-                            long now = System.currentTimeMillis();
-                            long elapsed = now-starttime; 
-                            if(elapsed > timeout) {   /* Give up on timeout */
-                                return false;
-                            }
-                            lock.wait(timeout-elapsed);
-                        }
-                    } catch (InterruptedException ix) {
-                        Log.severe("getReadLock(" + baseFilename + ") interrupted");
-                        return false;
-                    }
-                }
-            }
+        return locks.acquire(TileLockManager.getKey(baseFilename), false, timeout);
+    }
+
+    protected void releaseReadLock(String baseFilename) {
+        if (!locks.release(TileLockManager.getKey(baseFilename), false)) {
+            Log.severe("releaseReadLock(" + baseFilename + ") on file not read-locked");
+        }
+    }
+
+    /* Tile locks, by packed key (see TileLockManager.getTileKey()) */
+    protected void releaseWriteLock(long tilekey) {
+        if (!locks.release(tilekey, true)) {
+            Log.severe("releaseWriteLock(" + Long.toHexString(tilekey) + ") on tile not write-locked");
+        }
+    }
+
+    protected boolean getWriteLock(long tilekey) {
+        if (!locks.acquire(tilekey, true, -1L)) {
+            Log.severe("getWriteLock(" + Long.toHexString(tilekey) + ") interrupted");
+            return false;
         }
         return true;
     }
 
-    protected void releaseReadLock(String baseFilename) {
-        synchronized(lock) {
-            Integer lockcnt = filelocks.get(baseFilename);    /* Get lock count */
-            if(lockcnt == null)
-                Log.severe("releaseReadLock(" + baseFilename + ") on unlocked file");
-            else if(lockcnt.equals(WRITELOCK))
-                Log.severe("releaseReadLock(" + baseFilename + ") on write-locked file");
-            else if(lockcnt > 1) {
-                filelocks.put(baseFilename, Integer.valueOf(lockcnt-1));
-            }
-            else {
-                filelocks.remove(baseFilename);   /* Remove lock */
-                lock.notifyAll();   /* Wake up folks waiting for locks */
-            }
+    protected boolean getReadLock(long tilekey, long timeout) {
+        return locks.acquire(tilekey, false, timeout);
+    }
+
+    protected void releaseReadLock(long tilekey) {
+        if (!locks.release(tilekey, false)) {
+            Log.severe("releaseReadLock(" + Long.toHexString(tilekey) + ") on tile not read-locked");
         }
     }
+
+    /**
+     * Get tile and file lock manager (shared by all storage)
+     * @return lock manager
+     */
+    public static TileLockManager getLockManager() {
+        return locks;
+    }
     public boolean wrapStandalonePHP() {
         return true;
     }
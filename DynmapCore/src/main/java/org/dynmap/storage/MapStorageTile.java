@@ -1,6 +1,7 @@
 package org.dynmap.storage;
 
 import java.awt.image.BufferedImage;
+import java.nio.channels.FileChannel;
 
 import org.dynmap.DynmapWorld;
 import org.dynmap.MapType;
@@ -17,6 +18,7 @@ public abstract class MapStorageTile {
     public final int x, y;
     public final int zoom;
     public final MapType.ImageVariant var;
+    protected final long lockKey;    // Packed key for tile locks (see TileLockManager)
     
     public static class TileRead {
         public BufferInputStream image;    // Image bytes
@@ -25,6 +27,14 @@ public abstract class MapStorageTile {
         public long lastModified;          // Last modified timestamp (-1 = unknown)
     }
 
+    public static class TileChannel {
+        public FileChannel channel;        // Open channel on tile file (caller must close)
+        public long length;                // Length of tile file
+        public MapType.ImageEncoding format; // Image format
+        public long hashCode;              // Image hashcode (-1 = unknown)
+        public long lastModified;          // Last modified timestamp (-1 = unknown)
+    }
+
     protected MapStorageTile(DynmapWorld world, MapType map, int x, int y, int zoom, MapType.ImageVariant var) {
         this.world = world;
         this.map = map;
@@ -32,6 +42,7 @@ public abstract class MapStorageTile {
         this.y = y;
         this.zoom = zoom;
         this.var = var;
+        this.lockKey = TileLockManager.getTileKey(world.getName(), map.getPrefix(), var.ordinal(), x, y, zoom);
     }
     /**
      * Test if given tile exists in the tile storage
@@ -50,6 +61,22 @@ public abstract class MapStorageTile {
      * @return loaded Tile, or null if not read
      */
     public abstract TileRead read();
+    /**
+     * Test if tile can be opened as a file channel (storage keeps each tile in its own file)
+     * @return true if openChannel() is supported
+     */
+    public boolean supportsChannel() {
+        return false;
+    }
+    /**
+     * Open tile file for streaming, without reading content into memory.  Channel remains
+     * readable after read lock is released, even if tile is replaced.
+     *
+     * @return opened tile, or null if not found or not supported
+     */
+    public TileChannel openChannel() {
+        return null;
+    }
     /**
      * Write tile
      *
@@ -0,0 +1,246 @@
+package org.dynmap.storage;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.dynmap.utils.DynLongHashMap;
+
+/**
+ * Read/write locks for stored tiles and files, keyed by packed 64-bit keys.
+ *
+ * Keys are spread over independent stripes, each with its own lock, so unrelated tiles do not contend.
+ * Within a key, waiters are granted in arrival order (a waiting writer holds off later readers), and
+ * only waiters whose turn has come are woken.  Distinct keys that hash to the same value share a lock,
+ * which is safe since callers never hold more than one tile lock at a time.
+ */
+public class TileLockManager {
+    private static final int STRIPES = 64;   /* Must be power of 2 */
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    /* Statistics */
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitTimeNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private static class Waiter {
+        final boolean write;
+        final Condition cond;
+        boolean granted;
+        Waiter(boolean write, Condition cond) {
+            this.write = write;
+            this.cond = cond;
+        }
+    }
+
+    private static class KeyLock {
+        int readers;        /* Count of read locks held */
+        boolean writer;     /* Write lock held */
+        final ArrayDeque<Waiter> waiters = new ArrayDeque<Waiter>();
+    }
+
+    private static class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final DynLongHashMap locks = new DynLongHashMap();
+    }
+
+    public TileLockManager() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe getStripe(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return stripes[(int) (h >>> 58) & (STRIPES - 1)];
+    }
+
+    /**
+     * Acquire lock
+     * @param key - packed key
+     * @param write - true for write (exclusive) lock, false for read (shared) lock
+     * @param timeout - timeout in msec (-1 = never)
+     * @return true if locked, false if timed out or interrupted
+     */
+    public boolean acquire(long key, boolean write, long timeout) {
+        Stripe s = getStripe(key);
+        s.lock.lock();
+        try {
+            KeyLock kl = (KeyLock) s.locks.get(key);
+            if (kl == null) {
+                kl = new KeyLock();
+                s.locks.put(key, kl);
+            }
+            /* Immediate grant if nobody is waiting ahead of us */
+            if (kl.waiters.isEmpty() && canGrant(kl, write)) {
+                grant(kl, write);
+                return true;
+            }
+            Waiter w = new Waiter(write, s.lock.newCondition());
+            kl.waiters.add(w);
+            waits.incrementAndGet();
+            long start = System.nanoTime();
+            long remaining = (timeout >= 0) ? TimeUnit.MILLISECONDS.toNanos(timeout) : Long.MAX_VALUE;
+            try {
+                while (!w.granted) {
+                    if (timeout < 0) {
+                        w.cond.await();
+                    }
+                    else {
+                        if (remaining <= 0) {
+                            timeouts.incrementAndGet();
+                            abandon(s, key, kl, w);
+                            return false;
+                        }
+                        remaining = w.cond.awaitNanos(remaining);
+                    }
+                }
+            } catch (InterruptedException ix) {
+                if (w.granted) {    /* Granted as we were interrupted - keep it, but leave flag set */
+                    Thread.currentThread().interrupt();
+                    return true;
+                }
+                abandon(s, key, kl, w);
+                return false;
+            } finally {
+                waitTimeNanos.addAndGet(System.nanoTime() - start);
+            }
+            return true;
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    /**
+     * Release lock
+     * @param key - packed key
+     * @param write - true if write lock, false if read lock
+     * @return false if lock was not held in the given mode
+     */
+    public boolean release(long key, boolean write) {
+        Stripe s = getStripe(key);
+        s.lock.lock();
+        try {
+            KeyLock kl = (KeyLock) s.locks.get(key);
+            if (kl == null) {
+                return false;
+            }
+            if (write) {
+                if (!kl.writer) return false;
+                kl.writer = false;
+            }
+            else {
+                if (kl.readers <= 0) return false;
+                kl.readers--;
+            }
+            grantWaiters(s, key, kl);
+            return true;
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    private static boolean canGrant(KeyLock kl, boolean write) {
+        return write ? ((kl.readers == 0) && (!kl.writer)) : (!kl.writer);
+    }
+
+    private static void grant(KeyLock kl, boolean write) {
+        if (write)
+            kl.writer = true;
+        else
+            kl.readers++;
+    }
+
+    /* Grant waiters at head of queue, in order, as long as they are compatible - must hold stripe lock */
+    private static void grantWaiters(Stripe s, long key, KeyLock kl) {
+        Waiter w;
+        while (((w = kl.waiters.peek()) != null) && canGrant(kl, w.write)) {
+            kl.waiters.poll();
+            grant(kl, w.write);
+            w.granted = true;
+            w.cond.signal();
+        }
+        if ((kl.readers == 0) && (!kl.writer) && kl.waiters.isEmpty()) {
+            s.locks.remove(key);
+        }
+    }
+
+    /* Give up on wait - must hold stripe lock */
+    private static void abandon(Stripe s, long key, KeyLock kl, Waiter w) {
+        Iterator<Waiter> iter = kl.waiters.iterator();
+        while (iter.hasNext()) {
+            if (iter.next() == w) {
+                iter.remove();
+                break;
+            }
+        }
+        grantWaiters(s, key, kl);   /* Waiters behind us may now be grantable */
+    }
+
+    /**
+     * Get number of lock requests that had to wait
+     * @return count
+     */
+    public long getWaitCount() {
+        return waits.get();
+    }
+    /**
+     * Get total time spent waiting for locks
+     * @return msec
+     */
+    public long getWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(waitTimeNanos.get());
+    }
+    /**
+     * Get number of lock requests that timed out
+     * @return count
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+    /**
+     * Reset statistics
+     */
+    public void resetStats() {
+        waits.set(0);
+        waitTimeNanos.set(0);
+        timeouts.set(0);
+    }
+
+    /**
+     * Pack string (file name) into lock key
+     * @param s - string
+     * @return key
+     */
+    public static long getKey(String s) {
+        long h = 0xCBF29CE484222325L;   /* FNV-1a */
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        return h;
+    }
+
+    /**
+     * Pack tile identity into lock key
+     * @param world - world name
+     * @param prefix - map prefix
+     * @param variant - image variant ordinal
+     * @param x - tile X
+     * @param y - tile Y
+     * @param zoom - zoom level
+     * @return key
+     */
+    public static long getTileKey(String world, String prefix, int variant, int x, int y, int zoom) {
+        long h = world.hashCode();
+        h = (h * 0x9E3779B97F4A7C15L) + prefix.hashCode();
+        h = (h * 0x9E3779B97F4A7C15L) + variant;
+        h = (h * 0x9E3779B97F4A7C15L) + zoom;
+        h = (h * 0x9E3779B97F4A7C15L) + x;
+        h = (h * 0x9E3779B97F4A7C15L) + y;
+        return h ^ (h >>> 29);
+    }
+}
@@ -4,7 +4,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
@@ -133,6 +135,47 @@ public class FileTreeMapStorage extends MapStorage {
             return null;
         }
 
+        @Override
+        public boolean supportsChannel() {
+            return true;
+        }
+
+        @Override
+        public TileChannel openChannel() {
+            ImageEncoding fmt = map.getImageFormat().getEncoding();
+            File ff = getTileFile(fmt);
+            if (ff.exists() == false) { // Fallback and try to open other format
+                if (fmt == ImageEncoding.PNG) {
+                    fmt = ImageEncoding.JPG;
+                }
+                else {
+                    fmt = ImageEncoding.PNG;
+                }
+                ff = getTileFile(fmt);
+            }
+            if (ff.isFile() == false) {
+                return null;
+            }
+            // NIO channels allow file to be renamed or deleted while open (including on Windows), so replaceFile() is not blocked
+            FileChannel fc = null;
+            try {
+                fc = FileChannel.open(ff.toPath(), StandardOpenOption.READ);
+                TileChannel tc = new TileChannel();
+                tc.length = fc.size();
+                tc.format = fmt;
+                tc.hashCode = hashmap.getImageHashCode(world.getName() + "." + map.getPrefix(), x, y);
+                tc.lastModified = ff.lastModified();
+                tc.channel = fc;
+                return tc;
+            } catch (IOException iox) {
+                if (fc != null) {
+                    try { fc.close(); } catch (IOException x) {}
+                }
+                Log.info("open (" + ff.getPath() + ") failed = " + iox.getMessage());
+                return null;
+            }
+        }
+
         @Override
         public boolean write(long hash, BufferOutputStream encImage) {
             File ff = getTileFile(map.getImageFormat().getEncoding());
@@ -167,22 +210,22 @@ public class FileTreeMapStorage extends MapStorage {
 
         @Override
         public boolean getWriteLock() {
-            return FileTreeMapStorage.this.getWriteLock(baseFilename);
+            return FileTreeMapStorage.this.getWriteLock(lockKey);
         }
 
         @Override
         public void releaseWriteLock() {
-            FileTreeMapStorage.this.releaseWriteLock(baseFilename);
+            FileTreeMapStorage.this.releaseWriteLock(lockKey);
         }
 
         @Override
         public boolean getReadLock(long timeout) {
-            return FileTreeMapStorage.this.getReadLock(baseFilename, timeout);
+            return FileTreeMapStorage.this.getReadLock(lockKey, timeout);
         }
 
         @Override
         public void releaseReadLock() {
-            FileTreeMapStorage.this.releaseReadLock(baseFilename);
+            FileTreeMapStorage.this.releaseReadLock(lockKey);
         }
 
         @Override
@@ -241,7 +284,7 @@ public class FileTreeMapStorage extends MapStorage {
             return false;
         }
         baseTileDir = core.getTilesFolder();
-        hashmap = new TileHashManager(baseTileDir, true);
+        hashmap = new TileHashManager(baseTileDir, true, core.configuration.getInteger("storage/tilehash-cache-size", TileHashManager.DEFAULT_RESIDENT_FILES));
         return true;
     }
     
@@ -447,9 +490,15 @@ public class FileTreeMapStorage extends MapStorage {
         }
     }
 
+    @Override
+    public void flush() {
+        hashmap.flush();    // Write updated tile hashes
+    }
+
     @Override
     public void purgeMapTiles(DynmapWorld world, MapType map) {
         File base = new File(baseTileDir, world.getName()); // Get base directory for world
+        hashmap.clear();    // Drop resident hash files before they are deleted
         List<MapType> mtlist;
 
         if (map != null) {
@@ -1,21 +1,32 @@
 package org.dynmap.storage.filetree;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.RandomAccessFile;
-import java.util.Arrays;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
 
 import org.dynmap.Log;
 import org.dynmap.utils.LRULinkedHashMap;
+import org.dynmap.utils.MemoryManager;
 
 /**
  * Image hash code manager - used to reduce compression and notification of updated tiles that do not actually yield new content
  *
+ * Hash files are cached in stripes (by hash file) each with their own lock, so render threads working on
+ * different regions do not contend.  Updates are kept in the cached copy, and written to disk in batches; hash
+ * files (and their directories) are only created when first written.
  */
 public class TileHashManager {
-    private File    tiledir;    /* Base tile directory */    
+    private File    tiledir;    /* Base tile directory */
     private boolean enabled;
-    
+
+    private static final int HASHFILE_LEN = 32*32*4;
+    private static final int STRIPES = 16;   /* Must be power of 2 */
+    private static final long FLUSH_INTERVAL = 10000;  /* Msec between forcing updated hash files to disk */
+    public static final int DEFAULT_RESIDENT_FILES = 1024;
+
     /**
      * Each tile hash file is a 32x32 tile grid, with each file having a CRC32 hash code generated from its pre-compression frame buffer
      */
@@ -23,7 +34,6 @@ public class TileHashManager {
         final String key;
         final int x;  /* minimum tile coordinate / 32 */
         final int y;  /* minimum tile coordinate / 32 */
-        private File hf;
         TileHashFile(String key, int x, int y) {
             this.key = key;
             this.x = x;
@@ -34,112 +44,213 @@ public class TileHashManager {
             if(!(o instanceof TileHashFile))
                 return false;
             TileHashFile fo = (TileHashFile)o;
-            return (x == fo.x) && (y == fo.y) && key.equals(fo.key); 
+            return (x == fo.x) && (y == fo.y) && key.equals(fo.key);
         }
         @Override
         public int hashCode() {
             return key.hashCode() ^ (x << 16) ^ y;
         }
-        
+
         public File getHashFile(File tiledir) {
-            if(hf == null) {
-                String k;
-                int idx = key.lastIndexOf('.'); /* Find last '.' - world name split (allows dots in world name) */
-                if(idx > 0)
-                    k = key.substring(0, idx) + File.separatorChar + key.substring(idx+1);
-                else
-                    k = key;
-                hf = new File(tiledir, k + "_" + x + "_" + y + ".hash");
+            String k;
+            int idx = key.lastIndexOf('.'); /* Find last '.' - world name split (allows dots in world name) */
+            if(idx > 0)
+                k = key.substring(0, idx) + File.separatorChar + key.substring(idx+1);
+            else
+                k = key;
+            return new File(tiledir, k + "_" + x + "_" + y + ".hash");
+        }
+    }
+
+    /**
+     * Resident copy of hash file
+     */
+    private static class HashBuffer {
+        final File file;
+        final ByteBuffer buf;
+        boolean dirty;
+        HashBuffer(File file, ByteBuffer buf) {
+            this.file = file;
+            this.buf = buf;
+        }
+        /* Read CRC */
+        long getCRC(int tx, int ty) {
+            return buf.getInt((128 * (ty & 0x1F)) + (4 * (tx & 0x1F))) & 0xFFFFFFFFL;
+        }
+        /* Set CRC */
+        void setCRC(int tx, int ty, long crc) {
+            buf.putInt((128 * (ty & 0x1F)) + (4 * (tx & 0x1F)), (int) crc);
+            dirty = true;
+        }
+        /* Write updates to disk */
+        void flush() {
+            if (dirty) {
+                writeFile(file, buf);
             }
-            return hf;
+            dirty = false;
         }
-        /* Write to file */
-        public void writeToFile(File tiledir, byte[] crcbuf) {
-            RandomAccessFile fd = null;
-            File f = getHashFile(tiledir);
-            try {
-                try {
-                    fd = new RandomAccessFile(f, "rw");
-                } catch (FileNotFoundException nfnx) {
-                    File pf = f.getParentFile();
-                    if (pf.exists() == false) {
-                        pf.mkdirs();
+    }
+
+    /**
+     * Stripe of cache - hash files are assigned to stripes by hash code
+     */
+    private static class Stripe {
+        final LRULinkedHashMap<TileHashFile, HashBuffer> files;
+        long lastflush = System.currentTimeMillis();
+        @SuppressWarnings("serial")
+        Stripe(int limit) {
+            files = new LRULinkedHashMap<TileHashFile, HashBuffer>(limit) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<TileHashFile, HashBuffer> last) {
+                    boolean rem = super.removeEldestEntry(last);
+                    if (rem) {
+                        last.getValue().flush();
                     }
-                    fd = new RandomAccessFile(f, "rw");
-                }
-                fd.seek(0);
-                fd.write(crcbuf);
-            } catch (IOException iox) {
-                Log.severe("Error writing hash file - " + getHashFile(tiledir).getPath() + " - " + iox.getMessage());
-            } finally {
-                if(fd != null) {
-                    try { fd.close(); } catch (IOException iox) {}
-                    fd = null;
+                    return rem;
                 }
+            };
+        }
+        void flush() {
+            for (HashBuffer hb : files.values()) {
+                hb.flush();
             }
+            lastflush = System.currentTimeMillis();
         }
-        
-        /* Read from file */
-        public void readFromFile(File tiledir, byte[] crcbuf) {
-            RandomAccessFile fd = null;
-            boolean success = false;
-            try {
-                fd = new RandomAccessFile(getHashFile(tiledir), "r");
-                fd.seek(0);
-                fd.read(crcbuf);
-                success = true;
-            } catch (IOException iox) {
-            } finally {
-                if(fd != null) {
-                    try { fd.close(); } catch (IOException iox) {}
-                    fd = null;
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    /* Resident hash files can be dropped when memory is short - they're read again when next used */
+    private final MemoryManager.MemoryUser memuser = new MemoryManager.MemoryUser() {
+        @Override
+        public String getMemoryUserName() {
+            return "Tile hash files";
+        }
+        @Override
+        public long getMemoryUsed() {
+            long used = 0;
+            for (Stripe s : stripes) {
+                synchronized(s) {
+                    used += (long) HASHFILE_LEN * s.files.size();
                 }
             }
-            if (!success) {
-                Arrays.fill(crcbuf, (byte)0xFF);
-                writeToFile(tiledir, crcbuf);
-            }
+            return used;
         }
-        /* Read CRC */
-        public long getCRC(int tx, int ty, byte[] crcbuf) {
-            int off = (128 * (ty & 0x1F)) + (4 * (tx & 0x1F));
-            long crc = 0;
-            for(int i = 0; i < 4; i++)
-                crc = (crc << 8) + (0xFF & (int)crcbuf[off+i]);
-            return crc;
-        }
-        /* Set CRC */
-        public void setCRC(int tx, int ty, byte[] crcbuf, long crc) {
-            int off = (128 * (ty & 0x1F)) + (4 * (tx & 0x1F));
-            for(int i = 0; i < 4; i++)
-                crcbuf[off+i] = (byte)((crc >> ((3-i)*8)) & 0xFF);
+        @Override
+        public long releaseMemory(long bytes) {
+            long rel = 0;
+            for (int i = 0; (i < STRIPES) && (rel < bytes); i++) {
+                Stripe s = stripes[i];
+                synchronized(s) {
+                    s.flush();
+                    rel += (long) HASHFILE_LEN * s.files.size();
+                    s.files.clear();
+                }
+            }
+            return rel;
         }
-    }
-    
-    private static final int MAX_CACHED_TILEHASHFILES = 25;
-    private Object lock = new Object();
-    private LRULinkedHashMap<TileHashFile, byte[]> tilehash = new LRULinkedHashMap<TileHashFile, byte[]>(MAX_CACHED_TILEHASHFILES);
-    
+    };
+
     public TileHashManager(File tileroot, boolean enabled) {
+        this(tileroot, enabled, DEFAULT_RESIDENT_FILES);
+    }
+
+    /**
+     * @param tileroot - base tile directory
+     * @param enabled - if false, hashes are not kept
+     * @param residentfiles - number of hash files to keep resident (each is 4K)
+     */
+    public TileHashManager(File tileroot, boolean enabled, int residentfiles) {
         tiledir = tileroot;
         this.enabled = enabled;
+        int lim = Math.max(2, (residentfiles + STRIPES - 1) / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(lim + 1);   /* LRU evicts at limit, so allow for one more */
+        }
+        if (enabled) {
+            MemoryManager.register(memuser, MemoryManager.PRIORITY_CACHE);
+        }
+    }
+
+    private Stripe getStripe(TileHashFile thf) {
+        int h = thf.hashCode();
+        h ^= (h >>> 16);
+        return stripes[(h ^ (h >>> 8)) & (STRIPES - 1)];
+    }
+
+    /* Get resident buffer for hash file - must hold stripe lock */
+    private HashBuffer getBuffer(Stripe s, TileHashFile thf) {
+        HashBuffer hb = s.files.get(thf);  /* See if we have it cached */
+        if (hb == null) {    /* If not in cache, load it */
+            File f = thf.getHashFile(tiledir);
+            hb = new HashBuffer(f, readFile(f));
+            s.files.put(thf, hb);  /* Add to cache */
+        }
+        return hb;
+    }
+
+    /* Read hash file - missing (or short) file reads as all -1 */
+    private static ByteBuffer readFile(File f) {
+        ByteBuffer buf = ByteBuffer.allocate(HASHFILE_LEN);
+        FileChannel fc = null;
+        try {
+            fc = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+            while (buf.hasRemaining()) {
+                if (fc.read(buf, buf.position()) < 0) {
+                    break;
+                }
+            }
+        } catch (NoSuchFileException nsfx) {
+            /* Not created yet */
+        } catch (IOException iox) {
+            Log.severe("Error reading hash file - " + f.getPath() + " - " + iox.getMessage());
+        } finally {
+            if (fc != null) {
+                try { fc.close(); } catch (IOException iox) {}
+            }
+        }
+        for (int i = buf.position(); i < HASHFILE_LEN; i++) {
+            buf.put(i, (byte) 0xFF);    /* Fill rest with -1 */
+        }
+        buf.clear();
+        return buf;
+    }
+
+    /* Write hash file, creating it if needed */
+    private static void writeFile(File f, ByteBuffer buf) {
+        FileChannel fc = null;
+        try {
+            try {
+                fc = FileChannel.open(f.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            } catch (NoSuchFileException nsfx) {
+                File pf = f.getParentFile();
+                if (pf.exists() == false) {
+                    pf.mkdirs();
+                }
+                fc = FileChannel.open(f.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            }
+            ByteBuffer b = buf.duplicate();
+            b.clear();
+            while (b.hasRemaining()) {
+                fc.write(b, b.position());
+            }
+        } catch (IOException iox) {
+            Log.severe("Error writing hash file - " + f.getPath() + " - " + iox.getMessage());
+        } finally {
+            if (fc != null) {
+                try { fc.close(); } catch (IOException iox) {}
+            }
+        }
     }
-    
+
     /* Read cached hashcode for given tile */
     public long getImageHashCode(String key, int tx, int ty) {
         if(!enabled) {
             return -1;  /* Return value that never matches */
         }
         TileHashFile thf = new TileHashFile(key, tx >> 5, ty >> 5);
-        synchronized(lock) {
-            byte[] crcbuf = tilehash.get(thf);  /* See if we have it cached */
-            if(crcbuf == null) {    /* If not in cache, load it */
-                crcbuf = new byte[32*32*4]; /* Get our space */
-                Arrays.fill(crcbuf, (byte)0xFF);    /* Fill with -1 */
-                tilehash.put(thf, crcbuf);  /* Add to cache */
-                thf.readFromFile(tiledir, crcbuf);
-            }
-            return thf.getCRC(tx & 0x1F, ty & 0x1F, crcbuf);
+        Stripe s = getStripe(thf);
+        synchronized(s) {
+            return getBuffer(s, thf).getCRC(tx, ty);
         }
     }
 
@@ -147,17 +258,36 @@ public class TileHashManager {
     public void updateHashCode(String key, int tx, int ty, long newcrc) {
         if(!enabled)
             return;
-        synchronized(lock) {
-            /* Now, find and check existing value */
-            TileHashFile thf = new TileHashFile(key, tx >> 5, ty >> 5);
-            byte[] crcbuf = tilehash.get(thf);  /* See if we have it cached */
-            if(crcbuf == null) {    /* If not in cache, load it */
-                crcbuf = new byte[32*32*4]; /* Get our space */
-                tilehash.put(thf, crcbuf);  /* Add to cache */
-                thf.readFromFile(tiledir, crcbuf);
+        TileHashFile thf = new TileHashFile(key, tx >> 5, ty >> 5);
+        Stripe s = getStripe(thf);
+        synchronized(s) {
+            getBuffer(s, thf).setCRC(tx, ty, newcrc);   /* Update field */
+            if ((System.currentTimeMillis() - s.lastflush) > FLUSH_INTERVAL) {
+                s.flush();
             }
-            thf.setCRC(tx & 0x1F, ty & 0x1F, crcbuf, newcrc);   /* Update field */
-            thf.writeToFile(tiledir, crcbuf);   /* And write it out */
         }
-    }    
+    }
+
+    /**
+     * Write all updated hash files to disk
+     */
+    public void flush() {
+        for (Stripe s : stripes) {
+            synchronized(s) {
+                s.flush();
+            }
+        }
+    }
+
+    /**
+     * Flush and drop all resident hash files (used before hash files are deleted)
+     */
+    public void clear() {
+        for (Stripe s : stripes) {
+            synchronized(s) {
+                s.flush();
+                s.files.clear();
+            }
+        }
+    }
 }
@@ -0,0 +1,127 @@
+package org.dynmap.storage.jdbc;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounded pool of JDBC connections, each with its own prepared statement cache.
+ * Checkout is gated by a semaphore and idle connections are kept in a lock-free queue,
+ * so no global monitor is held while connections are opened or in use.
+ */
+public class JDBCConnectionPool {
+    private final String connectionString;
+    private final String userid;
+    private final String password;
+    private final Semaphore permits;
+    private final ConcurrentLinkedQueue<PooledConnection> idle = new ConcurrentLinkedQueue<PooledConnection>();
+
+    /**
+     * Pooled connection - only used by one thread between getConnection() and releaseConnection()
+     */
+    public static class PooledConnection {
+        private final Connection conn;
+        private final HashMap<String, PreparedStatement> stmts = new HashMap<String, PreparedStatement>();
+
+        PooledConnection(Connection conn) {
+            this.conn = conn;
+        }
+        /**
+         * Get prepared statement for given SQL, reusing one from an earlier call if possible.
+         * Statement must not be closed by caller - it is closed with the connection.
+         * @param sql - SQL statement
+         * @return prepared statement, with parameters cleared
+         * @throws SQLException if error preparing statement
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement stmt = stmts.get(sql);
+            if (stmt == null) {
+                stmt = conn.prepareStatement(sql);
+                stmts.put(sql, stmt);
+            }
+            else {
+                stmt.clearParameters();
+            }
+            return stmt;
+        }
+        /**
+         * Get underlying connection (for one-off statements and transaction control)
+         * @return connection
+         */
+        public Connection getConnection() {
+            return conn;
+        }
+
+        void close() {
+            for (PreparedStatement stmt : stmts.values()) {
+                try { stmt.close(); } catch (SQLException x) {}
+            }
+            stmts.clear();
+            try { conn.close(); } catch (SQLException x) {}
+        }
+    }
+
+    public JDBCConnectionPool(String connectionString, String userid, String password, int poolsize) {
+        this.connectionString = connectionString;
+        this.userid = userid;
+        this.password = password;
+        this.permits = new Semaphore(poolsize, true);
+    }
+
+    /**
+     * Get connection from pool, opening a new one if none are idle.  Blocks if pool is exhausted.
+     * @return connection
+     * @throws SQLException if error connecting, or interrupted
+     */
+    public PooledConnection getConnection() throws SQLException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException ix) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted");
+        }
+        PooledConnection pc = idle.poll();
+        if (pc == null) {
+            try {
+                pc = new PooledConnection(DriverManager.getConnection(connectionString, userid, password));
+            } catch (SQLException x) {
+                permits.release();
+                throw x;
+            } catch (RuntimeException x) {
+                permits.release();
+                throw x;
+            }
+        }
+        return pc;
+    }
+
+    /**
+     * Return connection to pool
+     * @param pc - connection (null is ignored)
+     * @param err - if true, connection had an error and is closed rather than reused
+     */
+    public void releaseConnection(PooledConnection pc, boolean err) {
+        if (pc == null) return;
+        if (err) {  // If broken, just toss it
+            pc.close();
+        }
+        else {
+            idle.offer(pc);
+        }
+        permits.release();
+    }
+
+    /**
+     * Close all idle connections
+     */
+    public void close() {
+        PooledConnection pc;
+        while ((pc = idle.poll()) != null) {
+            pc.close();
+        }
+    }
+}
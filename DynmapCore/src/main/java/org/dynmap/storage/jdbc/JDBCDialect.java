@@ -0,0 +1,96 @@
+package org.dynmap.storage.jdbc;
+
+/**
+ * SQL dialect for a JDBC map storage back end: driver, connection URL, column types and upsert syntax.
+ */
+public abstract class JDBCDialect {
+    /**
+     * Get display name of database (used in log messages)
+     * @return name
+     */
+    public abstract String getName();
+    /**
+     * Get prefix of standalone PHP files for this database (e.g. "MySQL" for MySQL_tiles.php)
+     * @return prefix
+     */
+    public abstract String getStandalonePrefix();
+    /**
+     * Get JDBC driver class name
+     * @return class name
+     */
+    public abstract String getDriverClass();
+    /**
+     * Get default port
+     * @return port
+     */
+    public abstract int getDefaultPort();
+    /**
+     * Get JDBC connection string
+     * @param hostname - host
+     * @param port - port
+     * @param database - database name
+     * @param flags - connection flags from configuration (null if not configurable)
+     * @return connection string
+     */
+    public abstract String getConnectionString(String hostname, int port, String database, String flags);
+    /**
+     * Get default connection flags, or null if flags are not configurable for this database
+     * @return flags
+     */
+    public String getDefaultFlags() {
+        return null;
+    }
+    /**
+     * Get column definition for auto-assigned integer primary key
+     * @return column definition
+     */
+    public abstract String getAutoIncrementKeyType();
+    /**
+     * Get column type for binary data
+     * @return column type
+     */
+    public abstract String getBlobType();
+    /**
+     * Get column type for text content (marker and standalone files)
+     * @return column type
+     */
+    public abstract String getTextType();
+    /**
+     * Build statement that inserts row, or updates the non-key columns if a row with the same key exists.
+     * Parameters are in order of keycols, then valcols.
+     * @param table - table name
+     * @param keycols - primary key columns
+     * @param valcols - value columns
+     * @return SQL statement
+     */
+    public abstract String getUpsertSQL(String table, String[] keycols, String[] valcols);
+    /**
+     * Check database server version supports the SQL used with this dialect
+     * @param major - server major version
+     * @param minor - server minor version
+     * @return null if supported, else reason it is not
+     */
+    public String checkServerVersion(int major, int minor) {
+        return null;
+    }
+
+    /**
+     * Build "(a,b,c) VALUES (?,?,?)" for given columns - common part of upsert statements
+     * @param keycols - key columns
+     * @param valcols - value columns
+     * @return SQL fragment
+     */
+    protected static String insertColumns(String[] keycols, String[] valcols) {
+        StringBuilder sb = new StringBuilder("(");
+        StringBuilder vals = new StringBuilder(" VALUES (");
+        for (int i = 0; i < keycols.length + valcols.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+                vals.append(',');
+            }
+            sb.append((i < keycols.length) ? keycols[i] : valcols[i - keycols.length]);
+            vals.append('?');
+        }
+        return sb.append(')').append(vals).append(')').toString();
+    }
+}
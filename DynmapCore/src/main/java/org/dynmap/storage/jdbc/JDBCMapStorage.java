@@ -0,0 +1,1129 @@
+package org.dynmap.storage.jdbc;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.dynmap.DynmapCore;
+import org.dynmap.DynmapWorld;
+import org.dynmap.Log;
+import org.dynmap.MapType;
+import org.dynmap.WebAuthManager;
+import org.dynmap.MapType.ImageVariant;
+import org.dynmap.PlayerFaces.FaceType;
+import org.dynmap.storage.MapStorage;
+import org.dynmap.storage.MapStorageTile;
+import org.dynmap.storage.MapStorageTileEnumCB;
+import org.dynmap.storage.MapStorageBaseTileEnumCB;
+import org.dynmap.storage.MapStorageTileSearchEndCB;
+import org.dynmap.storage.jdbc.JDBCConnectionPool.PooledConnection;
+import org.dynmap.utils.BufferInputStream;
+import org.dynmap.utils.BufferOutputStream;
+
+/**
+ * Map storage for client/server SQL databases (MySQL, MariaDB, PostgreSQL).  Database specific
+ * syntax is supplied by a JDBCDialect; everything else is shared.
+ */
+public abstract class JDBCMapStorage extends MapStorage {
+    private final JDBCDialect dialect;
+    private JDBCConnectionPool pool;
+    private String userid;
+    private String password;
+    private String database;
+    private String hostname;
+    private String prefix = "";
+    private String tableTiles;
+    private String tableMaps;
+    private String tableFaces;
+    private String tableMarkerIcons;
+    private String tableMarkerFiles;
+    private String tableStandaloneFiles;
+    private String tableSchemaVersion;
+    private int port;
+    /* Prepared SQL - built once tables are known */
+    private String sqlTileHash;
+    private String sqlTileRead;
+    private String sqlTileUpsert;
+    private String sqlTileDelete;
+    private String sqlTileEnum;
+    private String sqlTilePurge;
+    private String sqlMapInsert;
+    private String sqlMapQuery;
+    private String sqlFaceRead;
+    private String sqlFaceExists;
+    private String sqlFaceUpsert;
+    private String sqlFaceDelete;
+    private String sqlMarkerRead;
+    private String sqlMarkerUpsert;
+    private String sqlMarkerDelete;
+    private String sqlMarkerFileRead;
+    private String sqlMarkerFileUpsert;
+    private String sqlMarkerFileDelete;
+    private String sqlStandaloneRead;
+    private String sqlStandaloneUpsert;
+    private String sqlStandaloneDelete;
+
+    private static final int POOLSIZE = 5;
+    private static final int TILE_BATCH_SIZE = 32;  // Most tile rows written in one batch
+    private static final long TILE_BATCH_WAIT = 5;  // Milliseconds between checks by threads waiting on another's batch
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private HashMap<String, Integer> mapKey = new HashMap<String, Integer>();
+
+    /* Tile writes waiting to be batched - whichever writer gets the flushing flag writes everyone's */
+    private final ConcurrentLinkedQueue<PendingTileWrite> pendingTileWrites = new ConcurrentLinkedQueue<PendingTileWrite>();
+    private final AtomicBoolean tileWriteFlushing = new AtomicBoolean(false);
+
+    private static class PendingTileWrite {
+        final int mapkey, x, y, zoom, format;
+        final long hash, lastUpdate;
+        final BufferOutputStream encImage;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean ok;
+
+        PendingTileWrite(int mapkey, int x, int y, int zoom, long hash, int format, BufferOutputStream encImage) {
+            this.mapkey = mapkey;
+            this.x = x;
+            this.y = y;
+            this.zoom = zoom;
+            this.hash = hash;
+            this.lastUpdate = System.currentTimeMillis();
+            this.format = format;
+            this.encImage = encImage;
+        }
+    }
+
+    public class StorageTile extends MapStorageTile {
+        private Integer mapkey;
+        private String uri;
+        protected StorageTile(DynmapWorld world, MapType map, int x, int y,
+                int zoom, ImageVariant var) {
+            super(world, map, x, y, zoom, var);
+
+            mapkey = getMapKey(world, map, var);
+
+            if (zoom > 0) {
+                uri = map.getPrefix() + var.variantSuffix + "/"+ (x >> 5) + "_" + (y >> 5) + "/" + "zzzzzzzzzzzzzzzz".substring(0, zoom) + "_" + x + "_" + y + "." + map.getImageFormat().getFileExt();
+            }
+            else {
+                uri = map.getPrefix() + var.variantSuffix + "/"+ (x >> 5) + "_" + (y >> 5) + "/" + x + "_" + y + "." + map.getImageFormat().getFileExt();
+            }
+        }
+
+        @Override
+        public boolean exists() {
+            if (mapkey == null) return false;
+            boolean rslt = false;
+            PooledConnection c = null;
+            boolean err = false;
+            try {
+                c = getConnection();
+                PreparedStatement stmt = c.prepare(sqlTileHash);
+                setTileKey(stmt, 1);
+                ResultSet rs = stmt.executeQuery();
+                rslt = rs.next();
+                rs.close();
+            } catch (SQLException x) {
+                Log.severe("Tile exists error - " + x.getMessage());
+                err = true;
+            } finally {
+                releaseConnection(c, err);
+            }
+            return rslt;
+        }
+
+        @Override
+        public boolean matchesHashCode(long hash) {
+            if (mapkey == null) return false;
+            boolean rslt = false;
+            PooledConnection c = null;
+            boolean err = false;
+            try {
+                c = getConnection();
+                PreparedStatement stmt = c.prepare(sqlTileHash);
+                setTileKey(stmt, 1);
+                ResultSet rs = stmt.executeQuery();
+                if (rs.next()) {
+                    long v = rs.getLong("HashCode");
+                    rslt = (v == hash);
+                }
+                rs.close();
+            } catch (SQLException x) {
+                Log.severe("Tile matches hash error - " + x.getMessage());
+                err = true;
+            } finally {
+                releaseConnection(c, err);
+            }
+            return rslt;
+        }
+
+        @Override
+        public TileRead read() {
+            if (mapkey == null) return null;
+            TileRead rslt = null;
+            PooledConnection c = null;
+            boolean err = false;
+            try {
+                c = getConnection();
+                PreparedStatement stmt = c.prepare(sqlTileRead);
+                setTileKey(stmt, 1);
+                ResultSet rs = stmt.executeQuery();
+                if (rs.next()) {
+                    rslt = new TileRead();
+                    rslt.hashCode = rs.getLong("HashCode");
+                    rslt.lastModified = rs.getLong("LastUpdate");
+                    rslt.format = MapType.ImageEncoding.fromOrd(rs.getInt("Format"));
+                    byte[] img = rs.getBytes("Image");
+                    rslt.image = new BufferInputStream(img);
+                }
+                rs.close();
+            } catch (SQLException x) {
+                Log.severe("Tile read error - " + x.getMessage());
+                err = true;
+            } finally {
+                releaseConnection(c, err);
+            }
+            return rslt;
+        }
+
+        @Override
+        public boolean write(long hash, BufferOutputStream encImage) {
+            if (mapkey == null) return false;
+            boolean ok;
+            if (encImage == null) { // If delete
+                ok = deleteTile();
+            }
+            else {
+                ok = writeTile(new PendingTileWrite(mapkey, x, y, zoom, hash, map.getImageFormat().getEncoding().ordinal(), encImage));
+            }
+            // Signal update for zoom out
+            if (ok && (zoom == 0)) {
+                world.enqueueZoomOutUpdate(this);
+            }
+            return ok;
+        }
+
+        private boolean deleteTile() {
+            PooledConnection c = null;
+            boolean err = false;
+            int cnt = 0;
+            try {
+                c = getConnection();
+                PreparedStatement stmt = c.prepare(sqlTileDelete);
+                setTileKey(stmt, 1);
+                cnt = stmt.executeUpdate();
+            } catch (SQLException x) {
+                Log.severe("Tile write error - " + x.getMessage());
+                err = true;
+            } finally {
+                releaseConnection(c, err);
+            }
+            return (!err) && (cnt > 0);     // If it didn't exist, report failure
+        }
+
+        private void setTileKey(PreparedStatement stmt, int idx) throws SQLException {
+            stmt.setInt(idx, mapkey);
+            stmt.setInt(idx+1, x);
+            stmt.setInt(idx+2, y);
+            stmt.setInt(idx+3, zoom);
+        }
+
+        @Override
+        public boolean getWriteLock() {
+            return JDBCMapStorage.this.getWriteLock(lockKey);
+        }
+
+        @Override
+        public void releaseWriteLock() {
+            JDBCMapStorage.this.releaseWriteLock(lockKey);
+        }
+
+        @Override
+        public boolean getReadLock(long timeout) {
+            return JDBCMapStorage.this.getReadLock(lockKey, timeout);
+        }
+
+        @Override
+        public void releaseReadLock() {
+            JDBCMapStorage.this.releaseReadLock(lockKey);
+        }
+
+        @Override
+        public void cleanup() {
+        }
+
+        @Override
+        public String getURI() {
+            return uri;
+        }
+
+        @Override
+        public void enqueueZoomOutUpdate() {
+            world.enqueueZoomOutUpdate(this);
+        }
+
+        @Override
+        public MapStorageTile getZoomOutTile() {
+            int xx, yy;
+            int step = 1 << zoom;
+            if(x >= 0)
+                xx = x - (x % (2*step));
+            else
+                xx = x + (x % (2*step));
+            yy = -y;
+            if(yy >= 0)
+                yy = yy - (yy % (2*step));
+            else
+                yy = yy + (yy % (2*step));
+            yy = -yy;
+            return new StorageTile(world, map, xx, yy, zoom+1, var);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof StorageTile) {
+                StorageTile st = (StorageTile) o;
+                return uri.equals(st.uri);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return uri.hashCode();
+        }
+    }
+
+    protected JDBCMapStorage(JDBCDialect dialect) {
+        this.dialect = dialect;
+    }
+
+    @Override
+    public boolean init(DynmapCore core) {
+        if (!super.init(core)) {
+            return false;
+        }
+        database = core.configuration.getString("storage/database", "dynmap");
+        hostname = core.configuration.getString("storage/hostname", "localhost");
+        port = core.configuration.getInteger("storage/port", dialect.getDefaultPort());
+        userid = core.configuration.getString("storage/userid", "dynmap");
+        password = core.configuration.getString("storage/password", "dynmap");
+        prefix = core.configuration.getString("storage/prefix", "");
+        String flags = dialect.getDefaultFlags();
+        if (flags != null) {
+            flags = core.configuration.getString("storage/flags", flags);
+        }
+        tableTiles = prefix + "Tiles";
+        tableMaps = prefix + "Maps";
+        tableFaces = prefix + "Faces";
+        tableMarkerIcons = prefix + "MarkerIcons";
+        tableMarkerFiles = prefix + "MarkerFiles";
+        tableStandaloneFiles = prefix + "StandaloneFiles";
+        tableSchemaVersion = prefix + "SchemaVersion";
+        initSQL();
+
+        String connectionString = dialect.getConnectionString(hostname, port, database, flags);
+        Log.info("Opening " + dialect.getName() + " database " + hostname + ":" + port + "/" + database + " as map store");
+        try {
+            Class.forName(dialect.getDriverClass());
+            pool = new JDBCConnectionPool(connectionString, userid, password, POOLSIZE);
+            if (!checkServerVersion()) {
+                return false;
+            }
+            // Initialize/update tables, if needed
+            if(!initializeTables()) {
+                return false;
+            }
+        } catch (ClassNotFoundException cnfx) {
+            Log.severe(dialect.getName() + "-JDBC classes not found - " + dialect.getName() + " data source not usable");
+            return false;
+        }
+        return writeConfigPHP(core);
+    }
+
+    private void initSQL() {
+        String tilekey = " WHERE MapID=? AND x=? AND y=? AND zoom=?;";
+        sqlTileHash = "SELECT HashCode FROM " + tableTiles + tilekey;
+        sqlTileRead = "SELECT HashCode,LastUpdate,Format,Image FROM " + tableTiles + tilekey;
+        sqlTileUpsert = dialect.getUpsertSQL(tableTiles, new String[] { "MapID", "x", "y", "zoom" }, new String[] { "HashCode", "LastUpdate", "Format", "Image" });
+        sqlTileDelete = "DELETE FROM " + tableTiles + tilekey;
+        sqlTileEnum = "SELECT x,y,zoom,Format FROM " + tableTiles + " WHERE MapID=?;";
+        sqlTilePurge = "DELETE FROM " + tableTiles + " WHERE MapID=?;";
+        sqlMapInsert = "INSERT INTO " + tableMaps + " (WorldID,MapID,Variant,ServerID) VALUES (?, ?, ?, ?);";
+        sqlMapQuery = "SELECT ID FROM " + tableMaps + " WHERE WorldID = ? AND MapID = ? AND Variant = ? AND ServerID = ?;";
+        sqlFaceRead = "SELECT Image FROM " + tableFaces + " WHERE PlayerName=? AND TypeID=?;";
+        sqlFaceExists = "SELECT TypeID FROM " + tableFaces + " WHERE PlayerName=? AND TypeID=?;";
+        sqlFaceUpsert = dialect.getUpsertSQL(tableFaces, new String[] { "PlayerName", "TypeID" }, new String[] { "Image" });
+        sqlFaceDelete = "DELETE FROM " + tableFaces + " WHERE PlayerName=? AND TypeID=?;";
+        sqlMarkerRead = "SELECT Image FROM " + tableMarkerIcons + " WHERE IconName=?;";
+        sqlMarkerUpsert = dialect.getUpsertSQL(tableMarkerIcons, new String[] { "IconName" }, new String[] { "Image" });
+        sqlMarkerDelete = "DELETE FROM " + tableMarkerIcons + " WHERE IconName=?;";
+        sqlMarkerFileRead = "SELECT Content FROM " + tableMarkerFiles + " WHERE FileName=?;";
+        sqlMarkerFileUpsert = dialect.getUpsertSQL(tableMarkerFiles, new String[] { "FileName" }, new String[] { "Content" });
+        sqlMarkerFileDelete = "DELETE FROM " + tableMarkerFiles + " WHERE FileName=?;";
+        sqlStandaloneRead = "SELECT Content FROM " + tableStandaloneFiles + " WHERE FileName=? AND ServerID=?;";
+        sqlStandaloneUpsert = dialect.getUpsertSQL(tableStandaloneFiles, new String[] { "FileName", "ServerID" }, new String[] { "Content" });
+        sqlStandaloneDelete = "DELETE FROM " + tableStandaloneFiles + " WHERE FileName=? AND ServerID=?;";
+    }
+
+    private boolean writeConfigPHP(DynmapCore core) {
+        FileWriter fw = null;
+        String fname = dialect.getStandalonePrefix() + "_config.php";
+        try {
+            fw = new FileWriter(new File(baseStandaloneDir, fname));
+            fw.write("<?php\n$dbname = \'");
+            fw.write(WebAuthManager.esc(database));
+            fw.write("\';\n");
+            fw.write("$dbhost = \'");
+            fw.write(WebAuthManager.esc(hostname));
+            fw.write("\';\n");
+            fw.write("$dbport = ");
+            fw.write(Integer.toString(port));
+            fw.write(";\n");
+            fw.write("$dbuserid = \'");
+            fw.write(WebAuthManager.esc(userid));
+            fw.write("\';\n");
+            fw.write("$dbpassword = \'");
+            fw.write(WebAuthManager.esc(password));
+            fw.write("\';\n");
+            fw.write("$dbprefix = \'");
+            fw.write(WebAuthManager.esc(prefix));
+            fw.write("\';\n");
+            fw.write("$loginenabled = ");
+            fw.write(core.isLoginSupportEnabled()?"true;\n":"false;\n");
+            fw.write("?>\n");
+        } catch (IOException iox) {
+            Log.severe("Error writing " + fname, iox);
+            return false;
+        } finally {
+            if (fw != null) {
+                try { fw.close(); } catch (IOException x) {}
+            }
+        }
+        return true;
+    }
+    private int getSchemaVersion() {
+        int ver = 0;
+        boolean err = false;
+        PooledConnection c = null;
+        try {
+            c = getConnection();    // Get connection (create DB if needed)
+            Statement stmt = c.getConnection().createStatement();
+            ResultSet rs = stmt.executeQuery( "SELECT level FROM " + tableSchemaVersion + ";");
+            if (rs.next()) {
+                ver = rs.getInt("level");
+            }
+            rs.close();
+            stmt.close();
+        } catch (SQLException x) {
+            err = true;
+        } finally {
+            releaseConnection(c, err);
+        }
+        return ver;
+    }
+
+    /* Fail early, with a clear message, if the server can't run our SQL */
+    private boolean checkServerVersion() {
+        PooledConnection c = null;
+        boolean err = false;
+        try {
+            c = getConnection();
+            DatabaseMetaData md = c.getConnection().getMetaData();
+            String msg = dialect.checkServerVersion(md.getDatabaseMajorVersion(), md.getDatabaseMinorVersion());
+            if (msg != null) {
+                Log.severe(msg + " - " + dialect.getName() + " data source not usable");
+                return false;
+            }
+        } catch (SQLException x) {
+            Log.severe("Error checking " + dialect.getName() + " server version - " + x.getMessage());
+            err = true;
+            return false;
+        } finally {
+            releaseConnection(c, err);
+        }
+        return true;
+    }
+
+    private void doUpdate(PooledConnection c, String sql) throws SQLException {
+        Statement stmt = c.getConnection().createStatement();
+        stmt.executeUpdate(sql);
+        stmt.close();
+    }
+
+    private void doLoadMaps() {
+        PooledConnection c = null;
+        boolean err = false;
+
+        mapKey.clear();
+        // Read the maps table - cache results
+        try {
+            c = getConnection();
+            Statement stmt = c.getConnection().createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT * from " + tableMaps + ";");
+            while (rs.next()) {
+                int key = rs.getInt("ID");
+                String worldID = rs.getString("WorldID");
+                String mapID = rs.getString("MapID");
+                String variant = rs.getString("Variant");
+                long serverid = rs.getLong("ServerID");
+                if (serverid == serverID) { // One of ours
+                    mapKey.put(worldID + ":" + mapID + ":" + variant, key);
+                }
+            }
+            rs.close();
+            stmt.close();
+        } catch (SQLException x) {
+            Log.severe("Error loading map table - " + x.getMessage());
+            err = true;
+        } finally {
+            releaseConnection(c, err);
+        }
+    }
+
+    private Integer getMapKey(DynmapWorld w, MapType mt, ImageVariant var) {
+        String id = w.getName() + ":" + mt.getPrefix() + ":" + var.toString();
+        synchronized(mapKey) {
+            Integer k = mapKey.get(id);
+            if (k == null) {    // No hit: new value so we need to add it to table
+                PooledConnection c = null;
+                boolean err = false;
+                try {
+                    c = getConnection();
+                    // Insert row
+                    PreparedStatement stmt = c.prepare(sqlMapInsert);
+                    stmt.setString(1, w.getName());
+                    stmt.setString(2, mt.getPrefix());
+                    stmt.setString(3, var.toString());
+                    stmt.setLong(4, serverID);
+                    stmt.executeUpdate();
+                    //  Query key assigned
+                    stmt = c.prepare(sqlMapQuery);
+                    stmt.setString(1, w.getName());
+                    stmt.setString(2, mt.getPrefix());
+                    stmt.setString(3, var.toString());
+                    stmt.setLong(4, serverID);
+                    ResultSet rs = stmt.executeQuery();
+                    if (rs.next()) {
+                        k = rs.getInt("ID");
+                        mapKey.put(id, k);
+                    }
+                    rs.close();
+                } catch (SQLException x) {
+                    Log.severe("Error updating Maps table - " + x.getMessage());
+                    err = true;
+                } finally {
+                    releaseConnection(c, err);
+                }
+            }
+
+            return k;
+        }
+    }
+
+    private boolean initializeTables() {
+        PooledConnection c = null;
+        boolean err = false;
+        int version = getSchemaVersion();   // Get the existing schema version for the DB (if any)
+        String blob = dialect.getBlobType();
+        String text = dialect.getTextType();
+        // If new, add our tables
+        if (version == 0) {
+            try {
+                c = getConnection();
+                doUpdate(c, "CREATE TABLE " + tableMaps + " (ID " + dialect.getAutoIncrementKeyType() + ", WorldID VARCHAR(64) NOT NULL, MapID VARCHAR(64) NOT NULL, Variant VARCHAR(16) NOT NULL, ServerID BIGINT NOT NULL DEFAULT 0)");
+                doUpdate(c, "CREATE TABLE " + tableTiles + " (MapID INT NOT NULL, x INT NOT NULL, y INT NOT NULL, zoom INT NOT NULL, HashCode BIGINT NOT NULL, LastUpdate BIGINT NOT NULL, Format INT NOT NULL, Image " + blob + ", PRIMARY KEY(MapID, x, y, zoom))");
+                doUpdate(c, "CREATE TABLE " + tableFaces + " (PlayerName VARCHAR(64) NOT NULL, TypeID INT NOT NULL, Image " + blob + ", PRIMARY KEY(PlayerName, TypeID))");
+                doUpdate(c, "CREATE TABLE " + tableMarkerIcons + " (IconName VARCHAR(128) PRIMARY KEY NOT NULL, Image " + blob + ")");
+                doUpdate(c, "CREATE TABLE " + tableMarkerFiles + " (FileName VARCHAR(128) PRIMARY KEY NOT NULL, Content " + text + ")");
+                doUpdate(c, "CREATE TABLE " + tableStandaloneFiles + " (FileName VARCHAR(128) NOT NULL, ServerID BIGINT NOT NULL DEFAULT 0, Content " + text + ", PRIMARY KEY (FileName, ServerID))");
+                doUpdate(c, "CREATE TABLE " + tableSchemaVersion + " (level INT PRIMARY KEY NOT NULL)");
+                doUpdate(c, "INSERT INTO " + tableSchemaVersion + " (level) VALUES (3)");
+            } catch (SQLException x) {
+                Log.severe("Error creating tables - " + x.getMessage());
+                err = true;
+                return false;
+            } finally {
+                releaseConnection(c, err);
+                c = null;
+            }
+        }
+        else if (version == 1) {
+            try {
+                c = getConnection();
+                doUpdate(c, "CREATE TABLE " + tableStandaloneFiles + " (FileName VARCHAR(128) NOT NULL, ServerID BIGINT NOT NULL DEFAULT 0, Content " + text + ", PRIMARY KEY (FileName, ServerID))");
+                doUpdate(c, "ALTER TABLE " + tableMaps + " ADD COLUMN ServerID BIGINT NOT NULL DEFAULT 0 AFTER Variant");
+                doUpdate(c, "UPDATE " + tableSchemaVersion + " SET level=3 WHERE level = 1;");
+            } catch (SQLException x) {
+                Log.severe("Error creating tables - " + x.getMessage());
+                err = true;
+                return false;
+            } finally {
+                releaseConnection(c, err);
+                c = null;
+            }
+        }
+        else if (version == 2) {
+            try {
+                c = getConnection();
+                doUpdate(c, "DELETE FROM " + tableStandaloneFiles + ";");
+                doUpdate(c, "ALTER TABLE " + tableStandaloneFiles + " DROP COLUMN Content;");
+                doUpdate(c, "ALTER TABLE " + tableStandaloneFiles + " ADD COLUMN Content " + text + ";");
+                doUpdate(c, "UPDATE " + tableSchemaVersion + " SET level=3 WHERE level = 2;");
+            } catch (SQLException x) {
+                Log.severe("Error creating tables - " + x.getMessage());
+                err = true;
+                return false;
+            } finally {
+                releaseConnection(c, err);
+                c = null;
+            }
+        }
+        // Load maps table - cache results
+        doLoadMaps();
+
+        return true;
+    }
+
+    private PooledConnection getConnection() throws SQLException {
+        return pool.getConnection();
+    }
+
+    private void releaseConnection(PooledConnection c, boolean err) {
+        pool.releaseConnection(c, err);
+    }
+
+    /**
+     * Queue tile write and wait for it to complete.  Concurrent writers are grouped: the first to
+     * find no batch in progress writes all queued rows as one JDBC batch, while the others wait.
+     */
+    private boolean writeTile(PendingTileWrite pw) {
+        boolean interrupted = false;
+        pendingTileWrites.offer(pw);
+        while (pw.done.getCount() > 0) {
+            if (tileWriteFlushing.compareAndSet(false, true)) {
+                try {
+                    flushTileWrites();
+                } finally {
+                    tileWriteFlushing.set(false);
+                }
+            }
+            else {
+                try {
+                    pw.done.await(TILE_BATCH_WAIT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ix) {
+                    interrupted = true; // Caller's buffer is queued - must wait for it to be written
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return pw.ok;
+    }
+
+    private void flushTileWrites() {
+        ArrayList<PendingTileWrite> batch = new ArrayList<PendingTileWrite>();
+        PendingTileWrite pw;
+        while ((batch.size() < TILE_BATCH_SIZE) && ((pw = pendingTileWrites.poll()) != null)) {
+            batch.add(pw);
+        }
+        if (batch.isEmpty()) return;
+        PooledConnection c = null;
+        boolean err = false;
+        try {
+            c = getConnection();
+            PreparedStatement stmt = c.prepare(sqlTileUpsert);
+            if (batch.size() == 1) {
+                setTileWrite(stmt, batch.get(0));
+                stmt.executeUpdate();
+            }
+            else {
+                Connection conn = c.getConnection();
+                conn.setAutoCommit(false);
+                try {
+                    for (PendingTileWrite p : batch) {
+                        setTileWrite(stmt, p);
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                    conn.commit();
+                } catch (SQLException x) {
+                    try { conn.rollback(); } catch (SQLException rx) {}
+                    throw x;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            }
+        } catch (SQLException x) {
+            Log.severe("Tile write error - " + x.getMessage());
+            err = true;
+        } finally {
+            releaseConnection(c, err);
+            for (PendingTileWrite p : batch) {
+                p.ok = !err;
+                p.done.countDown();
+            }
+        }
+    }
+
+    private static void setTileWrite(PreparedStatement stmt, PendingTileWrite pw) throws SQLException {
+        stmt.setInt(1, pw.mapkey);
+        stmt.setInt(2, pw.x);
+        stmt.setInt(3, pw.y);
+        stmt.setInt(4, pw.zoom);
+        stmt.setLong(5, pw.hash);
+        stmt.setLong(6, pw.lastUpdate);
+        stmt.setInt(7, pw.format);
+        stmt.setBinaryStream(8, new BufferInputStream(pw.encImage.buf, pw.encImage.len), pw.encImage.len);
+    }
+
+    @Override
+    public MapStorageTile getTile(DynmapWorld world, MapType map, int x, int y,
+            int zoom, ImageVariant var) {
+        return new StorageTile(world, map, x, y, zoom, var);
+    }
+
+    @Override
+    public MapStorageTile getTile(DynmapWorld world, String uri) {
+        String[] suri = uri.split("/");
+        if (suri.length < 2) return null;
+        String mname = suri[0]; // Map URI - might include variant
+        MapType mt = null;
+        ImageVariant imgvar = null;
+        // Find matching map type and image variant
+        for (int mti = 0; (mt == null) && (mti < world.maps.size()); mti++) {
+            MapType type = world.maps.get(mti);
+            ImageVariant[] var = type.getVariants();
+            for (int ivi = 0; (imgvar == null) && (ivi < var.length); ivi++) {
+                if (mname.equals(type.getPrefix() + var[ivi].variantSuffix)) {
+                    mt = type;
+                    imgvar = var[ivi];
+                }
+            }
+        }
+        if (mt == null) {   // Not found?
+            return null;
+        }
+        // Now, take the last section and parse out coordinates and zoom
+        String fname = suri[suri.length-1];
+        String[] coord = fname.split("[_\\.]");
+        if (coord.length < 3) { // 3 or 4
+            return null;
+        }
+        int zoom = 0;
+        int x, y;
+        try {
+            if (coord[0].charAt(0) == 'z') {
+                zoom = coord[0].length();
+                x = Integer.parseInt(coord[1]);
+                y = Integer.parseInt(coord[2]);
+            }
+            else {
+                x = Integer.parseInt(coord[0]);
+                y = Integer.parseInt(coord[1]);
+            }
+            return getTile(world, mt, x, y, zoom, imgvar);
+        } catch (NumberFormatException nfx) {
+            return null;
+        }
+    }
+
+    @Override
+    public void enumMapTiles(DynmapWorld world, MapType map,
+                             MapStorageTileEnumCB cb) {
+        List<MapType> mtlist;
+
+        if (map != null) {
+            mtlist = Collections.singletonList(map);
+        }
+        else {  // Else, add all directories under world directory (for maps)
+            mtlist = new ArrayList<MapType>(world.maps);
+        }
+        for (MapType mt : mtlist) {
+            ImageVariant[] vars = mt.getVariants();
+            for (ImageVariant var : vars) {
+                processEnumMapTiles(world, mt, var, cb, null, null);
+            }
+        }
+    }
+    @Override
+    public void enumMapBaseTiles(DynmapWorld world, MapType map, MapStorageBaseTileEnumCB cbBase, MapStorageTileSearchEndCB cbEnd) {
+        List<MapType> mtlist;
+
+        if (map != null) {
+            mtlist = Collections.singletonList(map);
+        }
+        else {  // Else, add all directories under world directory (for maps)
+            mtlist = new ArrayList<MapType>(world.maps);
+        }
+        for (MapType mt : mtlist) {
+            ImageVariant[] vars = mt.getVariants();
+            for (ImageVariant var : vars) {
+                processEnumMapTiles(world, mt, var, null, cbBase, cbEnd);
+            }
+        }
+    }
+    private void processEnumMapTiles(DynmapWorld world, MapType map, ImageVariant var, MapStorageTileEnumCB cb, MapStorageBaseTileEnumCB cbBase, MapStorageTileSearchEndCB cbEnd) {
+        PooledConnection c = null;
+        boolean err = false;
+        Integer mapkey = getMapKey(world, map, var);
+        if (mapkey == null) {
+            if(cbEnd != null)
+                cbEnd.searchEnded();
+            return;
+        }
+        try {
+            c = getConnection();
+            // Query tiles for given mapkey
+            PreparedStatement stmt = c.prepare(sqlTileEnum);
+            stmt.setInt(1, mapkey);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                StorageTile st = new StorageTile(world, map, rs.getInt("x"), rs.getInt("y"), rs.getInt("zoom"), var);
+                final MapType.ImageEncoding encoding = MapType.ImageEncoding.fromOrd(rs.getInt("Format"));
+                if(cb != null)
+                    cb.tileFound(st, encoding);
+                if(cbBase != null && st.zoom == 0)
+                    cbBase.tileFound(st, encoding);
+                st.cleanup();
+            }
+            if(cbEnd != null)
+                cbEnd.searchEnded();
+            rs.close();
+        } catch (SQLException x) {
+            Log.severe("Tile enum error - " + x.getMessage());
+            err = true;
+        } finally {
+            releaseConnection(c, err);
+        }
+    }
+
+    @Override
+    public void purgeMapTiles(DynmapWorld world, MapType map) {
+        List<MapType> mtlist;
+
+        if (map != null) {
+            mtlist = Collections.singletonList(map);
+        }
+        else {  // Else, add all directories under world directory (for maps)
+            mtlist = new ArrayList<MapType>(world.maps);
+        }
+        for (MapType mt : mtlist) {
+            ImageVariant[] vars = mt.getVariants();
+            for (ImageVariant var : vars) {
+                processPurgeMapTiles(world, mt, var);
+            }
+        }
+    }
+    private void processPurgeMapTiles(DynmapWorld world, MapType map, ImageVariant var) {
+        PooledConnection c = null;
+        boolean err = false;
+        Integer mapkey = getMapKey(world, map, var);
+        if (mapkey == null) return;
+        try {
+            c = getConnection();
+            PreparedStatement stmt = c.prepare(sqlTilePurge);
+            stmt.setInt(1, mapkey);
+            stmt.executeUpdate();
+        } catch (SQLException x) {
+            Log.severe("Tile purge error - " + x.getMessage());
+            err = true;
+        } finally {
+            releaseConnection(c, err);
+        }
+    }
+
+    @Override
+    public boolean setPlayerFaceImage(String playername, FaceType facetype,
+            BufferOutputStream encImage) {
+        PooledConnection c = null;
+        boolean err = false;
+        int cnt = 0;
+        try {
+            c = getConnection();
+            PreparedStatement stmt;
+            if (encImage == null) { // If delete
+                stmt = c.prepare(sqlFaceDelete);
+            }
+            else {
+                stmt = c.prepare(sqlFaceUpsert);
+                stmt.setBinaryStream(3, new BufferInputStream(encImage.buf, encImage.len), encImage.len);
+            }
+            stmt.setString(1, playername);
+            stmt.setInt(2, facetype.typeID);
+            cnt = stmt.executeUpdate();
+        } catch (SQLException x) {
+            Log.severe("Face write error - " + x.getMessage());
+            err = true;
+        } finally {
+            releaseConnection(c, err);
+        }
+        // If delete, and didn't exist, report failure
+        return (!err) && ((encImage != null) || (cnt > 0));
+    }
+
+    @Override
+    public BufferInputStream getPlayerFaceImage(String playername,
+            FaceType facetype) {
+        PooledConnection c = null;
+        boolean err = false;
+        BufferInputStream image = null;
+        try {
+            c = getConnection();
+            PreparedStatement stmt = c.prepare(sqlFaceRead);
+            stmt.setString(1, playername);
+            stmt.setInt(2, facetype.typeID);
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                byte[] img = rs.getBytes("Image");
+                image = new BufferInputStream(img);
+            }
+            rs.close();
+        } catch (SQLException x) {
+            Log.severe("Face read error - " + x.getMessage());
+            err = true;
+        } finally {
+            releaseConnection(c, err);
+        }
+        return image;
+    }
+
+    @Override
+    public boolean hasPlayerFaceImage(String playername, FaceType facetype) {
+        PooledConnection c = null;
+        boolean err = false;
+        boolean exists = false;
+        try {
+            c = getConnection();
+            PreparedStatement stmt = c.prepare(sqlFaceExists);
+            stmt.setString(1, playername);
+            stmt.setInt(2, facetype.typeID);
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                exists = true;
+            }
+            rs.close();
+        } catch (SQLException x) {
+            Log.severe("Face exists error - " + x.getMessage());
+            err = true;
+        } finally {
+            releaseConnection(c, err);
+        }
+        return exists;
+    }
+
+    @Override
+    public boolean setMarkerImage(String markerid, BufferOutputStream encImage) {
+        PooledConnection c = null;
+        boolean err = false;
+        int cnt = 0;
+        try {
+            c = getConnection();
+            PreparedStatement stmt;
+            if (encImage == null) { // If delete
+                stmt = c.prepare(sqlMarkerDelete);
+            }
+            else {
+                stmt = c.prepare(sqlMarkerUpsert);
+                stmt.setBinaryStream(2, new BufferInputStream(encImage.buf, encImage.len), encImage.len);
+            }
+            stmt.setString(1, markerid);
+            cnt = stmt.executeUpdate();
+        } catch (SQLException x) {
+            Log.severe("Marker write error - " + x.getMessage());
+            err = true;
+        } finally {
+            releaseConnection(c, err);
+        }
+        // If delete, and didn't exist, report failure
+        return (!err) && ((encImage != null) || (cnt > 0));
+    }
+
+    @Override
+    public BufferInputStream getMarkerImage(String markerid) {
+        PooledConnection c = null;
+        boolean err = false;
+        BufferInputStream image = null;
+        try {
+            c = getConnection();
+            PreparedStatement stmt = c.prepare(sqlMarkerRead);
+            stmt.setString(1, markerid);
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                byte[] img = rs.getBytes("Image");
+                image = new BufferInputStream(img);
+            }
+            rs.close();
+        } catch (SQLException x) {
+            Log.severe("Marker read error - " + x.getMessage());
+            err = true;
+        } finally {
+            releaseConnection(c, err);
+        }
+        return image;
+    }
+
+    @Override
+    public boolean setMarkerFile(String world, String content) {
+        PooledConnection c = null;
+        boolean err = false;
+        int cnt = 0;
+        try {
+            c = getConnection();
+            PreparedStatement stmt;
+            if (content == null) { // If delete
+                stmt = c.prepare(sqlMarkerFileDelete);
+            }
+            else {
+                stmt = c.prepare(sqlMarkerFileUpsert);
+                stmt.setBytes(2, content.getBytes(UTF8));
+            }
+            stmt.setString(1, world);
+            cnt = stmt.executeUpdate();
+        } catch (SQLException x) {
+            Log.severe("Marker file write error - " + x.getMessage());
+            err = true;
+        } finally {
+            releaseConnection(c, err);
+        }
+        // If delete, and didn't exist, report failure
+        return (!err) && ((content != null) || (cnt > 0));
+    }
+
+    @Override
+    public String getMarkerFile(String world) {
+        PooledConnection c = null;
+        boolean err = false;
+        String content = null;
+        try {
+            c = getConnection();
+            PreparedStatement stmt = c.prepare(sqlMarkerFileRead);
+            stmt.setString(1, world);
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                byte[] img = rs.getBytes("Content");
+                content = new String(img, UTF8);
+            }
+            rs.close();
+        } catch (SQLException x) {
+            Log.severe("Marker file read error - " + x.getMessage());
+            err = true;
+        } finally {
+            releaseConnection(c, err);
+        }
+        return content;
+    }
+
+    @Override
+    public String getMarkersURI(boolean login_enabled) {
+        return "standalone/" + dialect.getStandalonePrefix() + "_markers.php?marker=";
+    }
+
+    @Override
+    public String getTilesURI(boolean login_enabled) {
+        return "standalone/" + dialect.getStandalonePrefix() + "_tiles.php?tile=";
+    }
+
+    @Override
+    public String getConfigurationJSONURI(boolean login_enabled) {
+        return "standalone/" + dialect.getStandalonePrefix() + "_configuration.php"; // ?serverid={serverid}";
+    }
+
+    @Override
+    public String getUpdateJSONURI(boolean login_enabled) {
+        return "standalone/" + dialect.getStandalonePrefix() + "_update.php?world={world}&ts={timestamp}"; // &serverid={serverid}";
+    }
+
+    @Override
+    public String getSendMessageURI() {
+        return "standalone/" + dialect.getStandalonePrefix() + "_sendmessage.php";
+    }
+
+    @Override
+    public BufferInputStream getStandaloneFile(String fileid) {
+        PooledConnection c = null;
+        boolean err = false;
+        BufferInputStream content = null;
+        try {
+            c = getConnection();
+            PreparedStatement stmt = c.prepare(sqlStandaloneRead);
+            stmt.setString(1, fileid);
+            stmt.setLong(2, serverID);
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                byte[] img = rs.getBytes("Content");
+                content = new BufferInputStream(img);
+            }
+            rs.close();
+        } catch (SQLException x) {
+            Log.severe("Standalone file read error - " + x.getMessage());
+            err = true;
+        } finally {
+            releaseConnection(c, err);
+        }
+        return content;
+    }
+
+    @Override
+    public boolean setStandaloneFile(String fileid, BufferOutputStream content) {
+        PooledConnection c = null;
+        boolean err = false;
+        try {
+            c = getConnection();
+            PreparedStatement stmt;
+            if (content == null) { // If delete
+                stmt = c.prepare(sqlStandaloneDelete);
+            }
+            else {
+                stmt = c.prepare(sqlStandaloneUpsert);
+                stmt.setBinaryStream(3, new BufferInputStream(content.buf, content.len), content.len);
+            }
+            stmt.setString(1, fileid);
+            stmt.setLong(2, serverID);
+            stmt.executeUpdate();
+        } catch (SQLException x) {
+            Log.severe("Standalone file write error - " + x.getMessage());
+            err = true;
+        } finally {
+            releaseConnection(c, err);
+        }
+        return !err;
+    }
+    @Override
+    public boolean wrapStandaloneJSON(boolean login_enabled) {
+        return false;
+    }
+    @Override
+    public boolean wrapStandalonePHP() {
+        return false;
+    }
+    @Override
+    public String getStandaloneLoginURI() {
+        return "standalone/" + dialect.getStandalonePrefix() + "_login.php";
+    }
+    @Override
+    public String getStandaloneRegisterURI() {
+        return "standalone/" + dialect.getStandalonePrefix() + "_register.php";
+    }
+    @Override
+    public void setLoginEnabled(DynmapCore core) {
+        writeConfigPHP(core);
+    }
+
+}
@@ -0,0 +1,25 @@
+package org.dynmap.storage.mariadb;
+
+import org.dynmap.storage.mysql.MySQLDialect;
+
+/**
+ * MariaDB dialect - MySQL syntax and standalone files, MariaDB driver
+ */
+public class MariaDBDialect extends MySQLDialect {
+    @Override
+    public String getName() {
+        return "MariaDB";
+    }
+    @Override
+    public String getDriverClass() {
+        return "org.mariadb.jdbc.Driver";
+    }
+    @Override
+    public String getDefaultFlags() {
+        return null;
+    }
+    @Override
+    public String getConnectionString(String hostname, int port, String database, String flags) {
+        return "jdbc:mariadb://" + hostname + ":" + port + "/" + database + "?allowReconnect=true&autoReconnect=true";
+    }
+}
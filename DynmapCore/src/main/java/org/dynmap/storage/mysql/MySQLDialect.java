@@ -0,0 +1,55 @@
+package org.dynmap.storage.mysql;
+
+import org.dynmap.storage.jdbc.JDBCDialect;
+
+/**
+ * MySQL dialect - also used, with a different driver, for MariaDB
+ */
+public class MySQLDialect extends JDBCDialect {
+    @Override
+    public String getName() {
+        return "MySQL";
+    }
+    @Override
+    public String getStandalonePrefix() {
+        return "MySQL";
+    }
+    @Override
+    public String getDriverClass() {
+        return "com.mysql.jdbc.Driver";
+    }
+    @Override
+    public int getDefaultPort() {
+        return 3306;
+    }
+    @Override
+    public String getDefaultFlags() {
+        return "?allowReconnect=true&autoReconnect=true";
+    }
+    @Override
+    public String getConnectionString(String hostname, int port, String database, String flags) {
+        return "jdbc:mysql://" + hostname + ":" + port + "/" + database + flags;
+    }
+    @Override
+    public String getAutoIncrementKeyType() {
+        return "INTEGER PRIMARY KEY AUTO_INCREMENT";
+    }
+    @Override
+    public String getBlobType() {
+        return "BLOB";
+    }
+    @Override
+    public String getTextType() {
+        return "MEDIUMTEXT";
+    }
+    @Override
+    public String getUpsertSQL(String table, String[] keycols, String[] valcols) {
+        StringBuilder sb = new StringBuilder("INSERT INTO ");
+        sb.append(table).append(' ').append(insertColumns(keycols, valcols)).append(" ON DUPLICATE KEY UPDATE ");
+        for (int i = 0; i < valcols.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(valcols[i]).append("=VALUES(").append(valcols[i]).append(')');
+        }
+        return sb.append(';').toString();
+    }
+}
@@ -0,0 +1,68 @@
+package org.dynmap.storage.postgresql;
+
+import org.dynmap.storage.jdbc.JDBCDialect;
+
+/**
+ * PostgreSQL dialect (upsert needs PostgreSQL 9.5 or later)
+ */
+public class PostgreSQLDialect extends JDBCDialect {
+    @Override
+    public String getName() {
+        return "PostgreSQL";
+    }
+    @Override
+    public String getStandalonePrefix() {
+        return "PostgreSQL";
+    }
+    @Override
+    public String getDriverClass() {
+        return "org.postgresql.Driver";
+    }
+    @Override
+    public int getDefaultPort() {
+        return 5432;
+    }
+    @Override
+    public String getDefaultFlags() {
+        return "?allowReconnect=true";
+    }
+    @Override
+    public String getConnectionString(String hostname, int port, String database, String flags) {
+        return "jdbc:postgresql://" + hostname + ":" + port + "/" + database + flags;
+    }
+    @Override
+    public String getAutoIncrementKeyType() {
+        return "SERIAL PRIMARY KEY";
+    }
+    @Override
+    public String getBlobType() {
+        return "BYTEA";
+    }
+    @Override
+    public String getTextType() {
+        return "BYTEA";
+    }
+    @Override
+    public String getUpsertSQL(String table, String[] keycols, String[] valcols) {
+        StringBuilder sb = new StringBuilder("INSERT INTO ");
+        sb.append(table).append(' ').append(insertColumns(keycols, valcols)).append(" ON CONFLICT (");
+        for (int i = 0; i < keycols.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(keycols[i]);
+        }
+        sb.append(") DO UPDATE SET ");
+        for (int i = 0; i < valcols.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(valcols[i]).append("=EXCLUDED.").append(valcols[i]);
+        }
+        return sb.append(';').toString();
+    }
+    @Override
+    public String checkServerVersion(int major, int minor) {
+        /* INSERT ... ON CONFLICT was added in 9.5 */
+        if ((major < 9) || ((major == 9) && (minor < 5))) {
+            return "PostgreSQL 9.5 or later is required (server is " + major + "." + minor + ")";
+        }
+        return null;
+    }
+}
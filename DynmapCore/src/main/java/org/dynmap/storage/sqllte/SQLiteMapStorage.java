@@ -199,22 +199,22 @@ public class SQLiteMapStorage extends MapStorage {
 
         @Override
         public boolean getWriteLock() {
-            return SQLiteMapStorage.this.getWriteLock(uri);
+            return SQLiteMapStorage.this.getWriteLock(lockKey);
         }
 
         @Override
         public void releaseWriteLock() {
-            SQLiteMapStorage.this.releaseWriteLock(uri);
+            SQLiteMapStorage.this.releaseWriteLock(lockKey);
         }
 
         @Override
         public boolean getReadLock(long timeout) {
-            return SQLiteMapStorage.this.getReadLock(uri, timeout);
+            return SQLiteMapStorage.this.getReadLock(lockKey, timeout);
         }
 
         @Override
         public void releaseReadLock() {
-            SQLiteMapStorage.this.releaseReadLock(uri);
+            SQLiteMapStorage.this.releaseReadLock(lockKey);
         }
 
         @Override
@@ -0,0 +1,192 @@
+package org.dynmap.utils;
+
+import org.dynmap.common.BiomeMap;
+
+/**
+ * Smoothed (3 x 3 column average) biome color multipliers for the area of a chunk cache.
+ *
+ * Each plane - one per kind of multiplier and color map - is computed on first use, as a flat array over all
+ * columns of the cache, so later lookups are a single array read.  Columns on the edge of the cache, where the
+ * average can't be computed, get 0xFFFFFF, as do any whose neighbourhood has no valid color.
+ * Not thread safe - like the chunk cache that owns it, it is used by one render thread at a time.
+ */
+public class BiomeColorPlanes {
+    private static final int GRASS = 0;
+    private static final int FOLIAGE = 1;
+    private static final int SWAMPCOLOR = 2;   /* Color map, with separate swamp color map */
+    private static final int COLORMAP = 3;
+    private static final int WATER = 4;        /* Biome water color */
+    private static final int MAX_PLANES = 16;
+
+    private final BiomeMap[][] biomemap;
+    private final byte[][] sameneighborbiomecnt;
+    private final int x_size, z_size;
+    private final Plane[] planes = new Plane[MAX_PLANES];
+    private int planecnt;
+    private int nextreplace;
+
+    private static class Plane {
+        int kind;
+        int[] colormap;
+        int[] swampmap;
+        int[] mult;     /* Index = (x * z_size) + z */
+    }
+
+    /**
+     * @param biomemap - biome for each column of cache, by relative X then Z
+     * @param sameneighborbiomecnt - number of the 8 neighbouring columns with the same biome, by relative X then Z
+     */
+    public BiomeColorPlanes(BiomeMap[][] biomemap, byte[][] sameneighborbiomecnt) {
+        this.biomemap = biomemap;
+        this.sameneighborbiomecnt = sameneighborbiomecnt;
+        this.x_size = biomemap.length;
+        this.z_size = (x_size > 0) ? biomemap[0].length : 0;
+    }
+
+    /**
+     * Get smoothed grass color multiplier
+     * @param rx - X, relative to cache
+     * @param rz - Z, relative to cache
+     * @param colormap - grass color map
+     * @return multiplier
+     */
+    public int getGrassColorMultiplier(int rx, int rz, int[] colormap) {
+        return getMultiplier(GRASS, colormap, null, rx, rz);
+    }
+
+    /**
+     * Get smoothed foliage color multiplier
+     * @param rx - X, relative to cache
+     * @param rz - Z, relative to cache
+     * @param colormap - foliage color map
+     * @return multiplier
+     */
+    public int getFoliageColorMultiplier(int rx, int rz, int[] colormap) {
+        return getMultiplier(FOLIAGE, colormap, null, rx, rz);
+    }
+
+    /**
+     * Get smoothed color multiplier, given normal and swamp color map
+     * @param rx - X, relative to cache
+     * @param rz - Z, relative to cache
+     * @param colormap - color map
+     * @param swampmap - swamp-specific color map
+     * @return multiplier
+     */
+    public int getColorMultiplier(int rx, int rz, int[] colormap, int[] swampmap) {
+        return getMultiplier(SWAMPCOLOR, colormap, swampmap, rx, rz);
+    }
+
+    /**
+     * Get smoothed color multiplier from color map
+     * @param rx - X, relative to cache
+     * @param rz - Z, relative to cache
+     * @param colormap - color map
+     * @return multiplier
+     */
+    public int getColorMultiplier(int rx, int rz, int[] colormap) {
+        return getMultiplier(COLORMAP, colormap, null, rx, rz);
+    }
+
+    /**
+     * Get smoothed biome water color multiplier
+     * @param rx - X, relative to cache
+     * @param rz - Z, relative to cache
+     * @return multiplier
+     */
+    public int getWaterColorMultiplier(int rx, int rz) {
+        return getMultiplier(WATER, null, null, rx, rz);
+    }
+
+    private int getMultiplier(int kind, int[] colormap, int[] swampmap, int rx, int rz) {
+        if ((rx < 0) || (rx >= x_size) || (rz < 0) || (rz >= z_size)) {
+            return 0xFFFFFF;
+        }
+        return getPlane(kind, colormap, swampmap)[(rx * z_size) + rz];
+    }
+
+    private int[] getPlane(int kind, int[] colormap, int[] swampmap) {
+        for (int i = 0; i < planecnt; i++) {
+            Plane p = planes[i];
+            if ((p.kind == kind) && (p.colormap == colormap) && (p.swampmap == swampmap)) {
+                return p.mult;
+            }
+        }
+        Plane p = new Plane();
+        p.kind = kind;
+        p.colormap = colormap;
+        p.swampmap = swampmap;
+        p.mult = computePlane(kind, colormap, swampmap);
+        if (planecnt < MAX_PLANES) {
+            planes[planecnt++] = p;
+        }
+        else {  /* Lots of color maps in use - replace oldest */
+            planes[nextreplace] = p;
+            nextreplace = (nextreplace + 1) % MAX_PLANES;
+        }
+        return p.mult;
+    }
+
+    /* Unsmoothed multiplier for biome */
+    private static int getRawMultiplier(int kind, BiomeMap bm, int[] colormap, int[] swampmap) {
+        switch (kind) {
+            case GRASS:
+                return bm.getModifiedGrassMultiplier(colormap[bm.biomeLookup()]);
+            case FOLIAGE:
+                return bm.getModifiedFoliageMultiplier(colormap[bm.biomeLookup()]);
+            case SWAMPCOLOR:
+                return (bm == BiomeMap.SWAMPLAND) ? swampmap[bm.biomeLookup()] : colormap[bm.biomeLookup()];
+            case COLORMAP:
+                return colormap[bm.biomeLookup()];
+            default:
+                return bm.getWaterColorMult();
+        }
+    }
+
+    private int[] computePlane(int kind, int[] colormap, int[] swampmap) {
+        int cnt = x_size * z_size;
+        int[] raw = new int[cnt];
+        boolean[] bad = null;   /* Columns with no valid color, if any */
+        for (int i = 0, idx = 0; i < x_size; i++) {
+            for (int j = 0; j < z_size; j++, idx++) {
+                try {
+                    raw[idx] = getRawMultiplier(kind, biomemap[i][j], colormap, swampmap);
+                } catch (Exception x) {
+                    if (bad == null) bad = new boolean[cnt];
+                    bad[idx] = true;
+                }
+            }
+        }
+        int[] mult = new int[cnt];
+        for (int i = 0, idx = 0; i < x_size; i++) {
+            for (int j = 0; j < z_size; j++, idx++) {
+                if (sameneighborbiomecnt[i][j] >= (byte)8) {   /* All neighbors same? */
+                    mult[idx] = ((bad != null) && bad[idx]) ? 0xFFFFFF : raw[idx];
+                }
+                else if ((i == 0) || (j == 0) || (i == (x_size - 1)) || (j == (z_size - 1))) {
+                    mult[idx] = 0xFFFFFF;
+                }
+                else {
+                    int raccum = 0;
+                    int gaccum = 0;
+                    int baccum = 0;
+                    boolean isbad = false;
+                    for (int xoff = -z_size; xoff <= z_size; xoff += z_size) {
+                        for (int zoff = -1; zoff < 2; zoff++) {
+                            int n = idx + xoff + zoff;
+                            if ((bad != null) && bad[n]) {
+                                isbad = true;
+                            }
+                            int rmult = raw[n];
+                            raccum += (rmult >> 16) & 0xFF;
+                            gaccum += (rmult >> 8) & 0xFF;
+                            baccum += rmult & 0xFF;
+                        }
+                    }
+                    mult[idx] = isbad ? 0xFFFFFF : (((raccum / 9) << 16) | ((gaccum / 9) << 8) | (baccum / 9));
+                }
+            }
+        }
+        return mult;
+    }
+}
@@ -0,0 +1,162 @@
+package org.dynmap.utils;
+
+/**
+ * Occupancy hierarchy for a map chunk cache, computed lazily as rays reach each chunk:
+ * a 64-bit mask of non-air 4x4x4 bricks for each 16x16x16 section, and a top-of-terrain
+ * bound for each 4x4 column of bricks in a chunk.  Lets ray tracers skip runs of air
+ * without reading block data for every voxel.
+ *
+ * Not thread safe - one instance per render thread, reset for each tile.
+ */
+public class BrickOccupancyMap {
+    private MapChunkCache cache;
+    private MapIterator iter;
+    private int worldheight;
+    private int sectcnt;
+    private final DynLongHashMap chunks = new DynLongHashMap();
+    /* Last chunk accessed - rays tend to stay in same chunk for many steps */
+    private long lastkey = Long.MIN_VALUE;
+    private ChunkOccupancy last;
+
+    private static class ChunkOccupancy {
+        final long[] masks;     // Brick mask, by section Y: bit (bx + 4*bz + 16*by) set if brick has non-air block
+        final boolean[] valid;  // Set if mask for section has been computed
+        final int[] top = new int[16];  // Top of highest non-air brick (exclusive) for each brick column (bx + 4*bz)
+        ChunkOccupancy(int sectcnt) {
+            masks = new long[sectcnt];
+            valid = new boolean[sectcnt];
+        }
+    }
+
+    public BrickOccupancyMap(MapChunkCache cache, int worldheight) {
+        reset(cache, worldheight);
+    }
+
+    /**
+     * Reset map for use with a new chunk cache (next tile), dropping all cached occupancy
+     * @param cache - chunk cache
+     * @param worldheight - world height
+     */
+    public void reset(MapChunkCache cache, int worldheight) {
+        this.cache = cache;
+        this.iter = cache.getIterator(0, 0, 0);
+        this.worldheight = worldheight;
+        this.sectcnt = (worldheight + 15) >> 4;
+        chunks.clear();
+        lastkey = Long.MIN_VALUE;
+        last = null;
+    }
+
+    /**
+     * Drop cached occupancy, and reference to chunk cache, until next reset
+     */
+    public void clear() {
+        cache = null;
+        iter = null;
+        chunks.clear();
+        lastkey = Long.MIN_VALUE;
+        last = null;
+    }
+
+    /**
+     * Test if block at given coordinate is known to be air (above top of terrain for its column,
+     * or in an all-air brick).  Coordinates outside the world height are never reported as air.
+     * @param x - x coord
+     * @param y - y coord
+     * @param z - z coord
+     * @return true if known air, false if block may be non-air
+     */
+    public final boolean isAir(int x, int y, int z) {
+        if ((y < 0) || (y >= worldheight)) {
+            return false;
+        }
+        ChunkOccupancy co = getChunk(x >> 4, z >> 4);
+        int bc = ((x & 0xF) >> 2) | ((z & 0xC));
+        if (y >= co.top[bc]) {
+            return true;
+        }
+        long mask = getMask(co, x >> 4, y >> 4, z >> 4);
+        return (mask & (1L << (bc | ((y & 0xC) << 2)))) == 0;
+    }
+
+    private final ChunkOccupancy getChunk(int cx, int cz) {
+        long key = (((long) cx) << 32) ^ (cz & 0xFFFFFFFFL);
+        if (key == lastkey) {
+            return last;
+        }
+        ChunkOccupancy co = (ChunkOccupancy) chunks.get(key);
+        if (co == null) {
+            co = new ChunkOccupancy(sectcnt);
+            initTops(co, cx, cz);
+            chunks.put(key, co);
+        }
+        lastkey = key;
+        last = co;
+        return co;
+    }
+
+    /* Find top bound for each brick column, scanning down from top section until all are resolved */
+    private void initTops(ChunkOccupancy co, int cx, int cz) {
+        int unresolved = 0xFFFF;
+        for (int sy = sectcnt - 1; (sy >= 0) && (unresolved != 0); sy--) {
+            long mask = getMask(co, cx, sy, cz);
+            if (mask == 0) continue;
+            for (int by = 3; (by >= 0) && (unresolved != 0); by--) {
+                int row = (int) ((mask >>> (by << 4)) & 0xFFFF) & unresolved;
+                for (int bc = 0; row != 0; bc++, row >>>= 1) {
+                    if ((row & 1) != 0) {
+                        co.top[bc] = (sy << 4) + (by << 2) + 4;
+                        unresolved &= ~(1 << bc);
+                    }
+                }
+            }
+        }
+        /* Anything left has no non-air blocks - top is zero */
+    }
+
+    private final long getMask(ChunkOccupancy co, int cx, int sy, int cz) {
+        if (!co.valid[sy]) {
+            co.masks[sy] = scanSection(cx, sy, cz);
+            co.valid[sy] = true;
+        }
+        return co.masks[sy];
+    }
+
+    /* Compute brick mask for given section */
+    private long scanSection(int cx, int sy, int cz) {
+        try {
+            if (cache.isEmptySection(cx, sy, cz)) {
+                return 0;
+            }
+            long mask = 0;
+            int x0 = cx << 4, y0 = sy << 4, z0 = cz << 4;
+            for (int bit = 0; bit < 64; bit++) {
+                int bx = x0 + ((bit & 0x3) << 2);
+                int bz = z0 + (bit & 0xC);
+                int by = y0 + ((bit & 0x30) >> 2);
+                if (by >= worldheight) break;
+                if (!isBrickAir(bx, by, bz)) {
+                    mask |= (1L << bit);
+                }
+            }
+            return mask;
+        } catch (RuntimeException x) {  // Outside cache, or section data unavailable: assume occupied
+            return -1L;
+        }
+    }
+
+    private boolean isBrickAir(int bx, int by, int bz) {
+        for (int y = by; y < (by + 4); y++) {
+            for (int z = bz; z < (bz + 4); z++) {
+                iter.initialize(bx, y, z);
+                for (int x = 0; x < 4; x++) {
+                    if (x > 0) iter.stepPosition(BlockStep.X_PLUS);
+                    if (iter.getBlockType().isNotAir()) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+}
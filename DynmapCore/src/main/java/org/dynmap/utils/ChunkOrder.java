@@ -0,0 +1,173 @@
+package org.dynmap.utils;
+
+import java.util.Arrays;
+
+/**
+ * Sequence of chunk coordinates ordered along a space-filling curve, so that neighbouring chunks (and the tiles
+ * that share them) are visited close together in time.
+ *
+ * Coordinates are taken relative to a region-aligned (32 x 32 chunk) origin, so each region - and each aligned block
+ * of regions - is visited as one contiguous run.  Curve indexes map one to one onto coordinates, so only the sorted
+ * indexes are kept.
+ */
+public class ChunkOrder {
+    public enum Curve {
+        HILBERT,
+        ZORDER
+    }
+
+    private final Curve curve;
+    private final int order;    /* Curve covers 2^order x 2^order chunks */
+    private final int x0, z0;   /* Origin of curve */
+    private final long[] idx;
+    private int next;
+
+    /**
+     * Build order for the chunks flagged in the given chunk map
+     * @param chunks - chunk map (x = chunk X, y = chunk Z)
+     * @param curve - curve to order along
+     * @param cxmin - minimum chunk X to include
+     * @param czmin - minimum chunk Z to include
+     * @param cxmax - maximum chunk X to include
+     * @param czmax - maximum chunk Z to include
+     */
+    public ChunkOrder(TileFlags chunks, Curve curve, int cxmin, int czmin, int cxmax, int czmax) {
+        this.curve = curve;
+        /* Find extent */
+        int minx = Integer.MAX_VALUE, minz = Integer.MAX_VALUE, maxx = Integer.MIN_VALUE, maxz = Integer.MIN_VALUE;
+        int cnt = 0;
+        int total = chunks.countFlags();    /* Iterator wraps around - visit each flag once */
+        TileFlags.Iterator iter = chunks.getIterator();
+        TileFlags.TileCoord c = new TileFlags.TileCoord();
+        for (int i = 0; (i < total) && iter.next(c); i++) {
+            if ((c.x < cxmin) || (c.x > cxmax) || (c.y < czmin) || (c.y > czmax)) continue;
+            if (c.x < minx) minx = c.x;
+            if (c.x > maxx) maxx = c.x;
+            if (c.y < minz) minz = c.y;
+            if (c.y > maxz) maxz = c.y;
+            cnt++;
+        }
+        if (cnt == 0) {
+            order = 0;
+            x0 = z0 = 0;
+            idx = new long[0];
+            return;
+        }
+        x0 = minx & ~0x1F;
+        z0 = minz & ~0x1F;
+        long extent = Math.max((long) maxx - x0, (long) maxz - z0) + 1;
+        int o = 5;
+        while ((1L << o) < extent) o++;
+        order = o;
+        idx = new long[cnt];
+        int n = 0;
+        iter = chunks.getIterator();
+        for (int i = 0; (i < total) && (n < cnt) && iter.next(c); i++) {
+            if ((c.x < cxmin) || (c.x > cxmax) || (c.y < czmin) || (c.y > czmax)) continue;
+            idx[n++] = toIndex(c.x - x0, c.y - z0);
+        }
+        Arrays.sort(idx, 0, n);
+    }
+
+    /**
+     * Number of chunks in order
+     * @return count
+     */
+    public int size() {
+        return idx.length;
+    }
+
+    /**
+     * Get curve used for order
+     * @return curve
+     */
+    public Curve getCurve() {
+        return curve;
+    }
+
+    /**
+     * Restart from first chunk
+     */
+    public void rewind() {
+        next = 0;
+    }
+
+    /**
+     * Get next chunk
+     * @param coord - set to chunk coordinates (x = chunk X, y = chunk Z)
+     * @return false if no more chunks
+     */
+    public boolean next(TileFlags.TileCoord coord) {
+        if (next >= idx.length) {
+            return false;
+        }
+        long d = idx[next++];
+        if (curve == Curve.ZORDER) {
+            coord.x = x0 + deinterleave(d);
+            coord.y = z0 + deinterleave(d >>> 1);
+        }
+        else {
+            int x = 0, y = 0;
+            for (long s = 1; s < (1L << order); s <<= 1) {
+                int rx = (int) ((d >>> 1) & 1);
+                int ry = (int) ((d ^ rx) & 1);
+                if (ry == 0) {  /* Rotate */
+                    if (rx == 1) {
+                        x = (int) (s - 1 - x);
+                        y = (int) (s - 1 - y);
+                    }
+                    int t = x; x = y; y = t;
+                }
+                x += (int) (s * rx);
+                y += (int) (s * ry);
+                d >>>= 2;
+            }
+            coord.x = x0 + x;
+            coord.y = z0 + y;
+        }
+        return true;
+    }
+
+    private long toIndex(int x, int y) {
+        if (curve == Curve.ZORDER) {
+            return interleave(x) | (interleave(y) << 1);
+        }
+        long d = 0;
+        int n = 1 << order;
+        for (int s = n >>> 1; s > 0; s >>>= 1) {
+            int rx = ((x & s) != 0) ? 1 : 0;
+            int ry = ((y & s) != 0) ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            if (ry == 0) {  /* Rotate */
+                if (rx == 1) {
+                    x = n - 1 - x;
+                    y = n - 1 - y;
+                }
+                int t = x; x = y; y = t;
+            }
+        }
+        return d;
+    }
+
+    /* Spread low 32 bits of value to even bits */
+    private static long interleave(int v) {
+        long x = v & 0xFFFFFFFFL;
+        x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x << 2)) & 0x3333333333333333L;
+        x = (x | (x << 1)) & 0x5555555555555555L;
+        return x;
+    }
+
+    /* Gather even bits of value */
+    private static int deinterleave(long x) {
+        x &= 0x5555555555555555L;
+        x = (x | (x >>> 1)) & 0x3333333333333333L;
+        x = (x | (x >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x >>> 4)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x >>> 8)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x >>> 16)) & 0x00000000FFFFFFFFL;
+        return (int) x;
+    }
+}
@@ -6,47 +6,147 @@ import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferInt;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DynmapBufferedImage {
     public BufferedImage buf_img;
     public int[] argb_buf;
     public int width;
     public int height;
+    private boolean dirty;  /* Buffer may have been written since it was last cleared */
+    private Thread owner;   /* Thread that allocated image, while in use */
     
-    /* BufferedImage cache - we use the same things a lot... */
-    private static Object lock = new Object();
-    private static HashMap<Long, LinkedList<DynmapBufferedImage>> imgcache = 
-        new HashMap<Long, LinkedList<DynmapBufferedImage>>(); /* Indexed by resolution - X<<32+Y */
-    private static final int CACHE_LIMIT = 10;
+    /* BufferedImage cache - we use the same things a lot, so each thread keeps a few of each size, with
+     * a shared pool behind them for images freed by a different thread than allocated them (or in excess) */
+    private static final int THREAD_LIMIT = 4;      /* Per size, per thread */
+    private static final int CACHE_LIMIT = 32;      /* Per size, shared */
+
+    private static class SizePool {
+        final long key;
+        final DynmapBufferedImage[] imgs = new DynmapBufferedImage[THREAD_LIMIT];
+        int cnt;
+        SizePool(long key) {
+            this.key = key;
+        }
+    }
+    private static class SharedPool {
+        final ConcurrentLinkedQueue<DynmapBufferedImage> imgs = new ConcurrentLinkedQueue<DynmapBufferedImage>();
+        final AtomicInteger cnt = new AtomicInteger();
+    }
+    private static final ThreadLocal<ArrayList<SizePool>> threadpool = new ThreadLocal<ArrayList<SizePool>>() {
+        @Override
+        protected ArrayList<SizePool> initialValue() {
+            return new ArrayList<SizePool>();
+        }
+    };
+    private static final ConcurrentHashMap<Long, SharedPool> imgcache =
+        new ConcurrentHashMap<Long, SharedPool>(); /* Indexed by resolution - X<<32+Y */
+
+    /* Shared pools give up images when memory is short - per thread pools are small, and owned by their threads */
+    private static final MemoryManager.MemoryUser memuser = new MemoryManager.MemoryUser() {
+        @Override
+        public String getMemoryUserName() {
+            return "Image buffer pool";
+        }
+        @Override
+        public long getMemoryUsed() {
+            long used = 0;
+            for (Map.Entry<Long, SharedPool> ent : imgcache.entrySet()) {
+                used += getImageBytes(ent.getKey()) * ent.getValue().cnt.get();
+            }
+            return used;
+        }
+        @Override
+        public long releaseMemory(long bytes) {
+            long rel = 0;
+            for (Map.Entry<Long, SharedPool> ent : imgcache.entrySet()) {
+                SharedPool shp = ent.getValue();
+                while ((rel < bytes) && (shp.imgs.poll() != null)) {
+                    shp.cnt.decrementAndGet();
+                    rel += getImageBytes(ent.getKey());
+                }
+            }
+            return rel;
+        }
+    };
+    static {
+        MemoryManager.register(memuser, MemoryManager.PRIORITY_POOL);
+    }
+
+    private static long getImageBytes(long k) {
+        return 4L * (k >> 32) * (k & 0xFFFFFFFFL);
+    }
+
+    private static long getKey(int x, int y) {
+        return (((long) x) << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    private static SizePool getThreadPool(long k) {
+        ArrayList<SizePool> pools = threadpool.get();
+        for (int i = 0; i < pools.size(); i++) {    /* Only a handful of sizes in use */
+            SizePool sp = pools.get(i);
+            if (sp.key == k) {
+                return sp;
+            }
+        }
+        SizePool sp = new SizePool(k);
+        pools.add(sp);
+        return sp;
+    }
 
     /**
      * Allocate buffered image from pool, if possible
      * @param x - x dimension
      * @param y - y dimension
-     * @return buffer from pool
+     * @return buffer from pool (all pixels zero)
      */
     public static DynmapBufferedImage allocateBufferedImage(int x, int y) {
+        return allocateBufferedImage(x, y, true);
+    }
+
+    /**
+     * Allocate buffered image from pool, if possible
+     * @param x - x dimension
+     * @param y - y dimension
+     * @param clear - if true, pixels are zeroed; if false, contents are undefined (for callers that write every pixel)
+     * @return buffer from pool
+     */
+    public static DynmapBufferedImage allocateBufferedImage(int x, int y, boolean clear) {
+        long k = getKey(x, y);
         DynmapBufferedImage img = null;
-        synchronized(lock) {
-            long k = (x<<16) + y;
-            LinkedList<DynmapBufferedImage> ll = imgcache.get(k);
-            if(ll != null) {
-                img = ll.poll();
+        SizePool sp = getThreadPool(k);
+        if (sp.cnt > 0) {
+            img = sp.imgs[--sp.cnt];
+            sp.imgs[sp.cnt] = null;
+        }
+        else {
+            SharedPool shp = imgcache.get(k);
+            if (shp != null) {
+                img = shp.imgs.poll();
+                if (img != null) {
+                    shp.cnt.decrementAndGet();
+                }
             }
         }
-        if(img != null) {   /* Got it - reset it for use */
-            Arrays.fill(img.argb_buf, 0);
+        if(img != null) {   /* Got it - reset it for use, if needed */
+            if (clear && img.dirty) {
+                Arrays.fill(img.argb_buf, 0);
+                img.dirty = false;
+            }
         }
         else {
             img = new DynmapBufferedImage();
             img.width = x;
             img.height = y;
             img.argb_buf = new int[x*y];
+            img.buf_img = createBufferedImage(img.argb_buf, img.width, img.height);
         }
-        img.buf_img = createBufferedImage(img.argb_buf, img.width, img.height);
+        img.owner = Thread.currentThread();
         return img;
     }
     
@@ -55,20 +155,32 @@ public class DynmapBufferedImage {
      * @param img - image to return to pool
      */
     public static void freeBufferedImage(DynmapBufferedImage img) {
-        img.buf_img.flush();
-        img.buf_img = null; /* Toss bufferedimage - seems to hold on to other memory */
-        synchronized(lock) {
-            long k = (img.width<<16) + img.height;
-            LinkedList<DynmapBufferedImage> ll = imgcache.get(k);
-            if(ll == null) {
-                ll = new LinkedList<DynmapBufferedImage>();
-                imgcache.put(k, ll);
+        img.buf_img.flush();    /* Drop any cached surface - raster and image are kept for reuse */
+        img.dirty = true;
+        long k = getKey(img.width, img.height);
+        boolean own = (img.owner == Thread.currentThread());
+        img.owner = null;
+        if (own) {  /* Freed by allocating thread - keep it for that thread, if there is room */
+            SizePool sp = getThreadPool(k);
+            if (sp.cnt < THREAD_LIMIT) {
+                sp.imgs[sp.cnt++] = img;
+                return;
             }
-            if(ll.size() < CACHE_LIMIT) {
-                ll.add(img);
-                img = null;
+        }
+        SharedPool shp = imgcache.get(k);
+        if (shp == null) {
+            shp = new SharedPool();
+            SharedPool prev = imgcache.putIfAbsent(k, shp);
+            if (prev != null) {
+                shp = prev;
             }
         }
+        if (shp.cnt.incrementAndGet() <= CACHE_LIMIT) {
+            shp.imgs.add(img);
+        }
+        else {
+            shp.cnt.decrementAndGet();
+        }
     }    
     
     /* ARGB band masks */
@@ -60,6 +60,27 @@ public abstract class MapChunkCache {
      * @return true if empty
      */
     public abstract boolean isEmptySection(int sx, int sy, int sz);
+    /**
+     * Get fingerprint of the content of the given chunk that affects rendering (block states,
+     * light levels, biomes and tile entity render data), as held in this cache's snapshot
+     * @param cx - chunk X
+     * @param cz - chunk Z
+     * @return fingerprint, or 0 if not available
+     */
+    public long getChunkFingerprint(int cx, int cz) {
+        return 0;
+    }
+    /**
+     * Mix value into running fingerprint
+     * @param h - fingerprint so far
+     * @param v - value to add
+     * @return updated fingerprint
+     */
+    public static final long mixFingerprint(long h, long v) {
+        h ^= v * 0x9E3779B97F4A7C15L;
+        h = Long.rotateLeft(h, 29) * 0xBF58476D1CE4E5B9L;
+        return h ^ (h >>> 31);
+    }
     /**
      * Get cache iterator
      * @param x - x coord
@@ -112,4 +112,11 @@ public interface MapIterator extends MapDataContext {
      * @return ticks inhabited
      */
     long getInhabitedTicks();
+    /**
+     * Get highest block Y for current column, from the chunk height map - only available if highest block Y data was requested
+     * @return highest block Y, or -1 if not available
+     */
+    default int getHighestBlockY() {
+        return -1;
+    }
 }
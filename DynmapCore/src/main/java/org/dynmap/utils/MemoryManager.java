@@ -0,0 +1,282 @@
+package org.dynmap.utils;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.dynmap.Log;
+
+/**
+ * Central accounting for Dynmap's larger memory users (caches, pools, render state).
+ *
+ * Users register with a release priority, and report an estimate of the memory they hold.  Periodic checks compare
+ * the total against the configured budget, and the Java heap against its limit as measured after the last garbage
+ * collection; when either is exceeded, users are asked to release memory, lowest priority value (cheapest to
+ * rebuild) first.  As heap use after GC only changes when the collector runs, the heap limit is only acted on again
+ * once another collection has happened since the last release it caused.  Users that can't release anything are
+ * still listed in the report.
+ *
+ * Registration is weak - users must be kept reachable by their owner.
+ */
+public class MemoryManager {
+    /** Release priority - pools of reusable buffers */
+    public static final int PRIORITY_POOL = 0;
+    /** Release priority - caches of data that can be read again */
+    public static final int PRIORITY_CACHE = 10;
+    /** Release priority - derived data that is costly to rebuild */
+    public static final int PRIORITY_DERIVED = 20;
+    /** Release priority - state that can't be released (reported only) */
+    public static final int PRIORITY_NONE = 100;
+
+    private static final double MB = 1048576.0;
+
+    /**
+     * Memory user - registered cache or other large consumer
+     */
+    public interface MemoryUser {
+        /**
+         * Get name for memory report
+         * @return name
+         */
+        String getMemoryUserName();
+        /**
+         * Get estimate of memory held
+         * @return bytes, or -1 if not known
+         */
+        long getMemoryUsed();
+        /**
+         * Release memory, if possible
+         * @param bytes - number of bytes wanted
+         * @return estimate of bytes released
+         */
+        long releaseMemory(long bytes);
+    }
+
+    private static class Registration {
+        final WeakReference<MemoryUser> user;
+        final int priority;
+        Registration(MemoryUser user, int priority) {
+            this.user = new WeakReference<MemoryUser>(user);
+            this.priority = priority;
+        }
+    }
+
+    private static final ArrayList<Registration> users = new ArrayList<Registration>();   /* Ordered by priority */
+    private static long budget = 0;             /* Budget for registered users, in bytes - 0 if none */
+    private static double heaplimit = 0.85;     /* Fraction of maximum heap still in use after GC to start releasing */
+    private static long released, releasecnt;   /* Statistics */
+    private static long lastreleasegc = -1;     /* Collection count at last release for heap limit */
+
+    /**
+     * Register memory user
+     * @param user - user (must be kept reachable by caller)
+     * @param priority - release priority (PRIORITY_*): lower values are released first
+     */
+    public static void register(MemoryUser user, int priority) {
+        synchronized (users) {
+            int i = 0;
+            while ((i < users.size()) && (users.get(i).priority <= priority)) {
+                i++;
+            }
+            users.add(i, new Registration(user, priority));
+        }
+    }
+
+    /**
+     * Unregister memory user
+     * @param user - user
+     */
+    public static void unregister(MemoryUser user) {
+        synchronized (users) {
+            for (Iterator<Registration> iter = users.iterator(); iter.hasNext(); ) {
+                MemoryUser u = iter.next().user.get();
+                if ((u == null) || (u == user)) {
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Set memory limits
+     * @param budgetbytes - budget for registered users, in bytes (0 = no budget)
+     * @param heapfraction - fraction of maximum heap, in use after garbage collection, at which memory is released (0 = never)
+     */
+    public static void setLimits(long budgetbytes, double heapfraction) {
+        budget = Math.max(0, budgetbytes);
+        heaplimit = heapfraction;
+    }
+
+    /* Get live registrations, dropping collected ones */
+    private static List<Registration> getUsers() {
+        synchronized (users) {
+            ArrayList<Registration> rslt = new ArrayList<Registration>(users.size());
+            for (Iterator<Registration> iter = users.iterator(); iter.hasNext(); ) {
+                Registration r = iter.next();
+                if (r.user.get() == null) {
+                    iter.remove();
+                }
+                else {
+                    rslt.add(r);
+                }
+            }
+            return rslt;
+        }
+    }
+
+    private static long getUsed(MemoryUser u) {
+        try {
+            return u.getMemoryUsed();
+        } catch (RuntimeException x) {
+            return -1;
+        }
+    }
+
+    /**
+     * Get total memory reported by registered users
+     * @return bytes
+     */
+    public static long getTotalUsed() {
+        long total = 0;
+        for (Registration r : getUsers()) {
+            MemoryUser u = r.user.get();
+            long used = (u != null) ? getUsed(u) : -1;
+            if (used > 0) {
+                total += used;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Get heap in use after the last garbage collection
+     * @return bytes, or -1 if not available
+     */
+    public static long getHeapUsedAfterGC() {
+        long used = 0;
+        boolean found = false;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if ((pool.getType() == MemoryType.HEAP) && pool.isCollectionUsageThresholdSupported()) {
+                MemoryUsage mu = pool.getCollectionUsage();
+                if (mu != null) {
+                    used += mu.getUsed();
+                    found = true;
+                }
+            }
+        }
+        return found ? used : -1;
+    }
+
+    /**
+     * Get number of garbage collections so far, over all collectors
+     * @return count, or -1 if not available
+     */
+    public static long getCollectionCount() {
+        long cnt = 0;
+        boolean found = false;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            long c = gc.getCollectionCount();
+            if (c >= 0) {
+                cnt += c;
+                found = true;
+            }
+        }
+        return found ? cnt : -1;
+    }
+
+    /**
+     * Check limits, and release memory from registered users if they are exceeded - called periodically
+     * @return bytes released
+     */
+    public static long checkLimits() {
+        long want = 0;
+        if (budget > 0) {
+            long total = getTotalUsed();
+            if (total > budget) {
+                want = total - budget;
+            }
+        }
+        if (heaplimit > 0) {
+            long max = Runtime.getRuntime().maxMemory();
+            long gccnt = getCollectionCount();
+            /* Usage after GC is stale until the collector runs again - don't release for the same reading twice */
+            boolean fresh = (gccnt < 0) || (gccnt != lastreleasegc);
+            long heapused = fresh ? getHeapUsedAfterGC() : -1;
+            if ((max != Long.MAX_VALUE) && (heapused > 0) && (heapused > (long) (max * heaplimit))) {
+                /* Heap is tight: at least get back below limit, and take a good part of what we have */
+                want = Math.max(want, Math.max(heapused - (long) (max * heaplimit), getTotalUsed() / 4));
+                lastreleasegc = gccnt;
+            }
+        }
+        if (want <= 0) {
+            return 0;
+        }
+        return releaseMemory(want);
+    }
+
+    /**
+     * Release memory from registered users, lowest priority value first
+     * @param bytes - bytes wanted
+     * @return estimate of bytes released
+     */
+    public static long releaseMemory(long bytes) {
+        long rel = 0;
+        for (Registration r : getUsers()) {
+            if ((rel >= bytes) || (r.priority >= PRIORITY_NONE)) {
+                break;
+            }
+            MemoryUser u = r.user.get();
+            if (u == null) continue;
+            try {
+                rel += Math.max(0, u.releaseMemory(bytes - rel));
+            } catch (RuntimeException x) {
+                Log.warning("Error releasing memory from " + u.getMemoryUserName() + ": " + x);
+            }
+        }
+        if (rel > 0) {
+            synchronized (users) {
+                released += rel;
+                releasecnt++;
+            }
+            Log.verboseinfo(String.format("Released %.1f MB of cached data (%.1f MB wanted)", rel / MB, bytes / MB));
+        }
+        return rel;
+    }
+
+    /**
+     * Get memory report
+     * @return report lines
+     */
+    public static List<String> getReport() {
+        ArrayList<String> lines = new ArrayList<String>();
+        long total = 0;
+        for (Registration r : getUsers()) {
+            MemoryUser u = r.user.get();
+            if (u == null) continue;
+            long used = getUsed(u);
+            if (used >= 0) {
+                total += used;
+                lines.add(String.format("  %s: %.1f MB", u.getMemoryUserName(), used / MB));
+            }
+            else {
+                lines.add(String.format("  %s: not known", u.getMemoryUserName()));
+            }
+        }
+        Runtime rt = Runtime.getRuntime();
+        long heapused = getHeapUsedAfterGC();
+        lines.add(0, String.format("Dynmap memory: %.1f MB tracked%s", total / MB,
+            (budget > 0) ? String.format(" (budget %.1f MB)", budget / MB) : ""));
+        lines.add(String.format("Heap: %.1f MB used, %.1f MB after last GC, %.1f MB max", (rt.totalMemory() - rt.freeMemory()) / MB,
+            heapused / MB, rt.maxMemory() / MB));
+        synchronized (users) {
+            lines.add(String.format("Released: %.1f MB in %d releases", released / MB, releasecnt));
+        }
+        return lines;
+    }
+}
@@ -166,6 +166,11 @@ public class TileFlags {
     public int countFlags() {
         return count;
     }
+
+    // Estimated memory used, in bytes (64 x 64 flag rows, plus map entry)
+    public long getMemoryUsed() {
+        return (long) chunkmap.size() * (64 * 8 + 80);
+    }
     
     public Iterator getIterator() {
         return new Iterator();
@@ -0,0 +1,107 @@
+package org.dynmap.storage.postgresql;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * PostgreSQL dialect checks.  Upserts are run against an in-memory SQLite database, which accepts the same
+ * INSERT ... ON CONFLICT (...) DO UPDATE SET col=EXCLUDED.col syntax as PostgreSQL 9.5+.
+ */
+public class PostgreSQLDialectTest {
+    private final PostgreSQLDialect dialect = new PostgreSQLDialect();
+    private Connection conn;
+
+    @Before
+    public void open() throws SQLException {
+        conn = DriverManager.getConnection("jdbc:sqlite::memory:");
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate("CREATE TABLE Tiles (MapID INT NOT NULL, x INT NOT NULL, y INT NOT NULL, zoom INT NOT NULL, HashCode BIGINT NOT NULL, LastUpdate BIGINT NOT NULL, Format INT NOT NULL, Image " + dialect.getBlobType() + ", PRIMARY KEY(MapID, x, y, zoom))");
+        stmt.executeUpdate("CREATE TABLE MarkerFiles (FileName VARCHAR(128) PRIMARY KEY NOT NULL, Content " + dialect.getTextType() + ")");
+        stmt.close();
+    }
+
+    @After
+    public void close() throws SQLException {
+        conn.close();
+    }
+
+    @Test
+    public void rejectsServersWithoutUpsert() {
+        assertNotNull(dialect.checkServerVersion(8, 4));
+        assertNotNull(dialect.checkServerVersion(9, 4));
+        assertNull(dialect.checkServerVersion(9, 5));
+        assertNull(dialect.checkServerVersion(9, 6));
+        assertNull(dialect.checkServerVersion(12, 0));
+    }
+
+    @Test
+    public void tileUpsertInsertsThenUpdates() throws SQLException {
+        String sql = dialect.getUpsertSQL("Tiles", new String[] { "MapID", "x", "y", "zoom" }, new String[] { "HashCode", "LastUpdate", "Format", "Image" });
+        upsertTile(sql, 1, 2, 3, 0, 100L, new byte[] { 1, 2, 3 });
+        upsertTile(sql, 1, 2, 3, 0, 200L, new byte[] { 4, 5 });
+        upsertTile(sql, 1, 2, 4, 0, 300L, new byte[] { 6 });
+
+        assertEquals(2, count("Tiles"));
+        ResultSet rs = conn.createStatement().executeQuery("SELECT HashCode,Image FROM Tiles WHERE MapID=1 AND x=2 AND y=3 AND zoom=0");
+        assertTrue(rs.next());
+        assertEquals(200L, rs.getLong("HashCode"));
+        assertArrayEquals(new byte[] { 4, 5 }, rs.getBytes("Image"));
+        assertFalse(rs.next());
+        rs.close();
+    }
+
+    @Test
+    public void singleKeyUpsertReplacesContent() throws SQLException {
+        String sql = dialect.getUpsertSQL("MarkerFiles", new String[] { "FileName" }, new String[] { "Content" });
+        for (String content : new String[] { "first", "second" }) {
+            PreparedStatement stmt = conn.prepareStatement(sql);
+            stmt.setString(1, "marker_world.json");
+            stmt.setBytes(2, content.getBytes(StandardCharsets.UTF_8));
+            stmt.executeUpdate();
+            stmt.close();
+        }
+        assertEquals(1, count("MarkerFiles"));
+        ResultSet rs = conn.createStatement().executeQuery("SELECT Content FROM MarkerFiles");
+        assertTrue(rs.next());
+        assertEquals("second", new String(rs.getBytes("Content"), StandardCharsets.UTF_8));
+        rs.close();
+    }
+
+    private void upsertTile(String sql, int mapid, int x, int y, int zoom, long hash, byte[] img) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        stmt.setInt(1, mapid);
+        stmt.setInt(2, x);
+        stmt.setInt(3, y);
+        stmt.setInt(4, zoom);
+        stmt.setLong(5, hash);
+        stmt.setLong(6, System.currentTimeMillis());
+        stmt.setInt(7, 0);
+        stmt.setBytes(8, img);
+        stmt.executeUpdate();
+        stmt.close();
+    }
+
+    private int count(String table) throws SQLException {
+        ResultSet rs = conn.createStatement().executeQuery("SELECT COUNT(*) FROM " + table);
+        rs.next();
+        int cnt = rs.getInt(1);
+        rs.close();
+        return cnt;
+    }
+}
@@ -456,7 +456,7 @@ public class MapChunkCache115 extends AbstractMapChunkCache {
             ssr.ss = ss;
             ssr.inhabitedTicks = inhabited_ticks;
             ssr.tileData = tileData;
-            SnapshotCache.sscache.putSnapshot(dw.getName(), chunk.x, chunk.z, ssr, blockdata, biome, biomeraw, highesty);
+            SnapshotCache.sscache.putSnapshot(dw.getName(), chunk.x, chunk.z, ssr, dw.worldheight >> 4, blockdata, biome, biomeraw, highesty);
             snaparray[idx] = ss;
             snaptile[idx] = ssr.tileData;
             inhabitedTicks[idx] = inhabited_ticks;
@@ -25,6 +25,7 @@ import org.dynmap.renderer.RenderPatchFactory;
 import org.dynmap.utils.DynIntHashMap;
 import org.dynmap.utils.MapChunkCache;
 import org.dynmap.utils.MapIterator;
+import org.dynmap.utils.BiomeColorPlanes;
 import org.dynmap.utils.BlockStep;
 import org.dynmap.utils.VisibilityLimit;
 
@@ -74,6 +75,7 @@ public abstract class AbstractMapChunkCache extends MapChunkCache {
     protected DynIntHashMap[] snaptile;
     private byte[][] sameneighborbiomecnt;
     private BiomeMap[][] biomemap;
+    private BiomeColorPlanes colorplanes;  /* Smoothed biome color multipliers, computed on first use */
     private boolean[][] isSectionNotEmpty; /* Indexed by snapshot index, then by section index */
     protected long[] inhabitedTicks;  /* Index = (x-x_min) + ((z-z_min)*x_dim) */
     private static final BiomeMap[] nullBiomeMap = { BiomeMap.NULL };
@@ -222,6 +224,7 @@ public abstract class AbstractMapChunkCache extends MapChunkCache {
                     sameneighborbiomecnt[i][j] = (byte)cnt;
                 }
             }
+            colorplanes = new BiomeColorPlanes(biomemap, sameneighborbiomecnt);
         }
         @Override
         public final BiomeMap getBiome() {
@@ -233,161 +236,44 @@ public abstract class AbstractMapChunkCache extends MapChunkCache {
         }
         @Override
         public final int getSmoothGrassColorMultiplier(int[] colormap) {
-            int mult = 0xFFFFFF;
             try {
-                int rx = x - x_base;
-                int rz = z - z_base;
-                BiomeMap bm = biomemap[rx][rz];
-                if(sameneighborbiomecnt[rx][rz] >= (byte)8) {   /* All neighbors same? */
-                    mult = bm.getModifiedGrassMultiplier(colormap[bm.biomeLookup()]);
-                }
-                else {
-                    int raccum = 0;
-                    int gaccum = 0;
-                    int baccum = 0;
-                    for(int xoff = -1; xoff < 2; xoff++) {
-                        for(int zoff = -1; zoff < 2; zoff++) {
-                            bm = biomemap[rx+xoff][rz+zoff];
-                            int rmult = bm.getModifiedGrassMultiplier(colormap[bm.biomeLookup()]);
-                            raccum += (rmult >> 16) & 0xFF;
-                            gaccum += (rmult >> 8) & 0xFF;
-                            baccum += rmult & 0xFF;
-                        }
-                    }
-                    mult = ((raccum / 9) << 16) | ((gaccum / 9) << 8) | (baccum / 9);
-                }
+                return colorplanes.getGrassColorMultiplier(x - x_base, z - z_base, colormap);
             } catch (Exception x) {
-                mult = 0xFFFFFF;
+                return 0xFFFFFF;
             }
-            return mult;
         }
         @Override
         public final int getSmoothFoliageColorMultiplier(int[] colormap) {
-            int mult = 0xFFFFFF;
             try {
-                int rx = x - x_base;
-                int rz = z - z_base;
-                BiomeMap bm = biomemap[rx][rz];
-                if(sameneighborbiomecnt[rx][rz] >= (byte)8) {   /* All neighbors same? */
-                    mult = bm.getModifiedFoliageMultiplier(colormap[bm.biomeLookup()]);
-                }
-                else {
-                    int raccum = 0;
-                    int gaccum = 0;
-                    int baccum = 0;
-                    for(int xoff = -1; xoff < 2; xoff++) {
-                        for(int zoff = -1; zoff < 2; zoff++) {
-                            bm = biomemap[rx+xoff][rz+zoff];
-                            int rmult = bm.getModifiedFoliageMultiplier(colormap[bm.biomeLookup()]);
-                            raccum += (rmult >> 16) & 0xFF;
-                            gaccum += (rmult >> 8) & 0xFF;
-                            baccum += rmult & 0xFF;
-                        }
-                    }
-                    mult = ((raccum / 9) << 16) | ((gaccum / 9) << 8) | (baccum / 9);
-                }
+                return colorplanes.getFoliageColorMultiplier(x - x_base, z - z_base, colormap);
             } catch (Exception x) {
-                mult = 0xFFFFFF;
+                return 0xFFFFFF;
             }
-            return mult;
         }
         @Override
         public final int getSmoothColorMultiplier(int[] colormap, int[] swampmap) {
-            int mult = 0xFFFFFF;
             try {
-                int rx = x - x_base;
-                int rz = z - z_base;
-                BiomeMap bm = biomemap[rx][rz];
-                if(sameneighborbiomecnt[rx][rz] >= (byte)8) {   /* All neighbors same? */
-                    if(bm == BiomeMap.SWAMPLAND) {
-                        mult = swampmap[bm.biomeLookup()];
-                    }
-                    else {
-                        mult = colormap[bm.biomeLookup()];
-                    }
-                }
-                else {
-                    int raccum = 0;
-                    int gaccum = 0;
-                    int baccum = 0;
-                    for(int xoff = -1; xoff < 2; xoff++) {
-                        for(int zoff = -1; zoff < 2; zoff++) {
-                            bm = biomemap[rx+xoff][rz+zoff];
-                            int rmult;
-                            if(bm == BiomeMap.SWAMPLAND) {
-                                rmult = swampmap[bm.biomeLookup()];
-                            }
-                            else {
-                                rmult = colormap[bm.biomeLookup()];
-                            }
-                            raccum += (rmult >> 16) & 0xFF;
-                            gaccum += (rmult >> 8) & 0xFF;
-                            baccum += rmult & 0xFF;
-                        }
-                    }
-                    mult = ((raccum / 9) << 16) | ((gaccum / 9) << 8) | (baccum / 9);
-                }
+                return colorplanes.getColorMultiplier(x - x_base, z - z_base, colormap, swampmap);
             } catch (Exception x) {
-                mult = 0xFFFFFF;
+                return 0xFFFFFF;
             }
-            return mult;
         }
         @Override
         public final int getSmoothWaterColorMultiplier() {
             try {
-                int rx = x - x_base;
-                int rz = z - z_base;
-                BiomeMap bm = biomemap[rx][rz];
-                if(sameneighborbiomecnt[rx][rz] >= (byte)8) {   /* All neighbors same? */
-                    return bm.getWaterColorMult();
-                }
-                int raccum = 0;
-                int gaccum = 0;
-                int baccum = 0;
-                for(int xoff = -1; xoff < 2; xoff++) {
-                    for(int zoff = -1; zoff < 2; zoff++) {
-                        bm = biomemap[rx+xoff][rz+zoff];
-                        int mult = bm.getWaterColorMult();
-                        raccum += (mult >> 16) & 0xFF;
-                        gaccum += (mult >> 8) & 0xFF;
-                        baccum += mult & 0xFF;
-                    }
-                }
-                return ((raccum / 9) << 16) | ((gaccum / 9) << 8) | (baccum / 9);
+                return colorplanes.getWaterColorMultiplier(x - x_base, z - z_base);
             } catch (Exception x) {
                 return 0xFFFFFF;
             }
         }
         @Override
         public final int getSmoothWaterColorMultiplier(int[] colormap) {
-            int mult = 0xFFFFFF;
             try {
-                int rx = x - x_base;
-                int rz = z - z_base;
-                BiomeMap bm = biomemap[rx][rz];
-                if(sameneighborbiomecnt[rx][rz] >= (byte)8) {   /* All neighbors same? */
-                    mult = colormap[bm.biomeLookup()];
-                }
-                else {
-                    int raccum = 0;
-                    int gaccum = 0;
-                    int baccum = 0;
-                    for(int xoff = -1; xoff < 2; xoff++) {
-                        for(int zoff = -1; zoff < 2; zoff++) {
-                            bm = biomemap[rx+xoff][rz+zoff];
-                            int rmult = colormap[bm.biomeLookup()];
-                            raccum += (rmult >> 16) & 0xFF;
-                            gaccum += (rmult >> 8) & 0xFF;
-                            baccum += rmult & 0xFF;
-                        }
-                    }
-                    mult = ((raccum / 9) << 16) | ((gaccum / 9) << 8) | (baccum / 9);
-                }
+                return colorplanes.getColorMultiplier(x - x_base, z - z_base, colormap);
             } catch (Exception x) {
             	Log.warning("Water colormult exception", x);
-                mult = 0xFFFFFF;
+                return 0xFFFFFF;
             }
-            return mult;
         }
         /**
          * Step current position in given direction
@@ -594,6 +480,17 @@ public abstract class AbstractMapChunkCache extends MapChunkCache {
             return null;
         }
         @Override
+        public int getHighestBlockY() {
+            if (!highesty) {
+                return -1;
+            }
+            try {
+                return snap.getHighestBlockYAt(bx, bz);
+            } catch (Exception x) {
+                return -1;
+            }
+        }
+        @Override
         public long getInhabitedTicks() {
             try {
                 return inhabitedTicks[chunkindex];
@@ -874,7 +771,7 @@ public abstract class AbstractMapChunkCache extends MapChunkCache {
                         ssr.ss = ss;
                         ssr.inhabitedTicks = inhabited_ticks;
                         ssr.tileData = tileData;
-                        SnapshotCache.sscache.putSnapshot(dw.getName(), chunk.x, chunk.z, ssr, blockdata, biome, biomeraw, highesty);
+                        SnapshotCache.sscache.putSnapshot(dw.getName(), chunk.x, chunk.z, ssr, nsect, blockdata, biome, biomeraw, highesty);
                     }
                 }
                 int chunkIndex = (chunk.x-x_min) + (chunk.z - z_min)*x_dim;
@@ -980,6 +877,68 @@ public abstract class AbstractMapChunkCache extends MapChunkCache {
         return !isSectionNotEmpty[idx][sy];
     }
 
+    /**
+     * Get fingerprint of snapshot content for given chunk
+     */
+    @Override
+    public long getChunkFingerprint(int cx, int cz) {
+        if ((snaparray == null) || (cx < x_min) || (cx > x_max) || (cz < z_min) || (cz > z_max)) {
+            return 0;
+        }
+        int idx = (cx - x_min) + (cz - z_min) * x_dim;
+        Snapshot ss = snaparray[idx];
+        if (ss == null) {
+            return 0;
+        }
+        Long fp = SnapshotCache.sscache.getFingerprint(ss, biome);
+        if (fp == null) {
+            try {
+                fp = computeFingerprint(ss, snaptile[idx]);
+            } catch (RuntimeException x) {  // Snapshot missing data: no fingerprint
+                return 0;
+            }
+            SnapshotCache.sscache.putFingerprint(ss, biome, fp);
+        }
+        return fp;
+    }
+
+    private long computeFingerprint(Snapshot ss, DynIntHashMap tiledata) {
+        long h = 0x5DEECE66DL;
+        if ((tiledata != null) && tiledata.isEmpty()) {
+            tiledata = null;
+        }
+        for (int sy = 0; sy < nsect; sy++) {
+            if (ss.isSectionEmpty(sy)) {
+                h = mixFingerprint(h, -1 - sy);
+                continue;
+            }
+            for (int y = (sy << 4); y < ((sy + 1) << 4); y++) {
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        long v = ss.getBlockType(x, y, z).globalStateIndex;
+                        v = (v << 8) | (ss.getBlockSkyLight(x, y, z) << 4) | ss.getBlockEmittedLight(x, y, z);
+                        h = mixFingerprint(h, v);
+                        if (tiledata != null) {
+                            Object td = tiledata.get(getIndexInChunk(x, y, z));
+                            if (td instanceof Object[]) {
+                                h = mixFingerprint(h, Arrays.deepHashCode((Object[]) td));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        if (biome) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    Biome b = ss.getBiome(x, z);
+                    h = mixFingerprint(h, (b != null) ? b.ordinal() : -1);
+                }
+            }
+        }
+        return (h != 0) ? h : 1;
+    }
+
     /**
      * Get cache iterator
      */
@@ -8,7 +8,6 @@ import java.io.RandomAccessFile;
 import java.util.Arrays;
 import java.util.List;
 
-import org.bukkit.Chunk;
 import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.permissions.Permission;
@@ -188,19 +187,24 @@ public class BukkitWorld extends DynmapWorld {
         return world;
     }
     
-    // Return false if unimplemented
+    // Return chunks saved in region files of world's dimension (-1 if not found) - safe off the server thread,
+    // but chunks not saved yet are not included
     @Override
     public int getChunkMap(TileFlags map) {
         map.clear();
         if (world == null) return -1;
         int cnt = 0;
-        // Mark loaded chunks
-        for(Chunk c : world.getLoadedChunks()) {
-            map.setFlag(c.getX(), c.getZ(), true);
-            cnt++;
-        }
         File f = world.getWorldFolder();
-        File regiondir = new File(f, "region");
+        File regiondir;
+        if (env == World.Environment.NETHER)
+            regiondir = new File(f, "DIM-1" + File.separator + "region");
+        else if (env.toString().equals("THE_END"))
+            regiondir = new File(f, "DIM1" + File.separator + "region");
+        else
+            regiondir = new File(f, "region");
+        if (!regiondir.isDirectory()) {     /* Not vanilla layout - can't list chunks */
+            return -1;
+        }
         File[] lst = regiondir.listFiles();
         if(lst != null) {
             byte[] hdr = new byte[4096];
@@ -0,0 +1,304 @@
+package org.dynmap.bukkit.helper;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.bukkit.block.Biome;
+import org.dynmap.bukkit.helper.AbstractMapChunkCache.Snapshot;
+import org.dynmap.renderer.DynmapBlockState;
+
+/**
+ * Chunk snapshot in the compact serialized form kept by the off-heap snapshot cache.
+ *
+ * Block states are stored as a palette of global state indexes for each section, with 8 or 16 bit indexes
+ * into it, and light as nibbles (or a single value, for sections with uniform light).  Reads come straight
+ * from the serialized bytes - only the palettes are decoded up front.
+ */
+public class CompactSnapshot implements Snapshot {
+    private static final int FORMAT_VERSION = 1;
+    /* Chunk flags */
+    private static final int F_HIGHESTY = 0x01;
+    private static final int F_BIOME = 0x02;
+    /* Section flags */
+    private static final int S_BLOCKS = 0x01;       /* Not all air - has palette */
+    private static final int S_SHORTINDEX = 0x02;   /* Palette indexes are 16 bit */
+    private static final int S_UNIFORMLIGHT = 0x04; /* Single sky and emitted light level */
+
+    private static final int BLOCKS_PER_SECTION = 16 * 16 * 16;
+    private static final int COLUMNS_PER_CHUNK = 16 * 16;
+    private static final Biome[] biomes = Biome.values();
+
+    private final byte[] data;
+    private final int nsect;
+    private final int highestOff;       /* Offset of highest Y values, or -1 */
+    private final int biomeOff;         /* Offset of biome values, or -1 */
+    private final DynmapBlockState[][] palette; /* By section: null if all air */
+    private final int[] indexOff;       /* By section: offset of palette indexes, or -1 if single state */
+    private final boolean[] shortIndex;
+    private final int[] lightOff;       /* By section: offset of sky light nibbles (emitted follow), or -1 if uniform */
+    private final byte[] uniformLight;  /* By section: sky light << 4 | emitted light, if uniform */
+    private final Object[] biomebase;
+    final long[] fingerprints;          /* Shared with cache entry */
+
+    /**
+     * Wrap serialized snapshot
+     * @param data - serialized form, from encode()
+     * @param biomebase - raw biome data (kept on heap), or null
+     * @param fingerprints - content fingerprints for chunk (index 0 = without biome, 1 = with biome)
+     */
+    public CompactSnapshot(byte[] data, Object[] biomebase, long[] fingerprints) {
+        this.data = data;
+        this.biomebase = biomebase;
+        this.fingerprints = fingerprints;
+        int off = 0;
+        if (data[off++] != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Bad snapshot format");
+        }
+        int flags = data[off++];
+        nsect = getShort(off); off += 2;
+        if ((flags & F_HIGHESTY) != 0) {
+            highestOff = off;
+            off += 2 * COLUMNS_PER_CHUNK;
+        }
+        else {
+            highestOff = -1;
+        }
+        if ((flags & F_BIOME) != 0) {
+            biomeOff = off;
+            off += 2 * COLUMNS_PER_CHUNK;
+        }
+        else {
+            biomeOff = -1;
+        }
+        palette = new DynmapBlockState[nsect][];
+        indexOff = new int[nsect];
+        shortIndex = new boolean[nsect];
+        lightOff = new int[nsect];
+        uniformLight = new byte[nsect];
+        for (int s = 0; s < nsect; s++) {
+            int sflags = data[off++];
+            indexOff[s] = -1;
+            if ((sflags & S_BLOCKS) != 0) {
+                int cnt = getShort(off); off += 2;
+                DynmapBlockState[] pal = new DynmapBlockState[cnt];
+                for (int i = 0; i < cnt; i++, off += 4) {
+                    pal[i] = DynmapBlockState.getStateByGlobalIndex(getInt(off));
+                }
+                palette[s] = pal;
+                if (cnt > 1) {
+                    indexOff[s] = off;
+                    shortIndex[s] = (sflags & S_SHORTINDEX) != 0;
+                    off += shortIndex[s] ? (2 * BLOCKS_PER_SECTION) : BLOCKS_PER_SECTION;
+                }
+            }
+            if ((sflags & S_UNIFORMLIGHT) != 0) {
+                lightOff[s] = -1;
+                uniformLight[s] = data[off++];
+            }
+            else {
+                lightOff[s] = off;
+                off += BLOCKS_PER_SECTION;  /* Sky and emitted, as nibbles */
+            }
+        }
+    }
+
+    private int getShort(int off) {
+        return (short) (((data[off] & 0xFF) << 8) | (data[off + 1] & 0xFF));
+    }
+
+    private int getInt(int off) {
+        return ((data[off] & 0xFF) << 24) | ((data[off + 1] & 0xFF) << 16) | ((data[off + 2] & 0xFF) << 8) | (data[off + 3] & 0xFF);
+    }
+
+    @Override
+    public DynmapBlockState getBlockType(int x, int y, int z) {
+        int s = y >> 4;
+        if ((s < 0) || (s >= nsect) || (palette[s] == null)) {
+            return DynmapBlockState.AIR;
+        }
+        int off = indexOff[s];
+        if (off < 0) {
+            return palette[s][0];
+        }
+        int i = ((y & 0xF) << 8) | (z << 4) | x;
+        if (shortIndex[s]) {
+            return palette[s][getShort(off + 2 * i) & 0xFFFF];
+        }
+        return palette[s][data[off + i] & 0xFF];
+    }
+
+    @Override
+    public int getBlockSkyLight(int x, int y, int z) {
+        int s = y >> 4;
+        if ((s < 0) || (s >= nsect)) {
+            return 15;
+        }
+        int off = lightOff[s];
+        if (off < 0) {
+            return (uniformLight[s] >> 4) & 0xF;
+        }
+        off += ((y & 0xF) << 7) | (z << 3) | (x >> 1);
+        return (data[off] >> (4 * (x & 1))) & 0xF;
+    }
+
+    @Override
+    public int getBlockEmittedLight(int x, int y, int z) {
+        int s = y >> 4;
+        if ((s < 0) || (s >= nsect)) {
+            return 0;
+        }
+        int off = lightOff[s];
+        if (off < 0) {
+            return uniformLight[s] & 0xF;
+        }
+        off += (BLOCKS_PER_SECTION / 2) + (((y & 0xF) << 7) | (z << 3) | (x >> 1));
+        return (data[off] >> (4 * (x & 1))) & 0xF;
+    }
+
+    @Override
+    public int getHighestBlockYAt(int x, int z) {
+        if (highestOff < 0) {
+            return 0;
+        }
+        return getShort(highestOff + 2 * ((z << 4) | x));
+    }
+
+    @Override
+    public Biome getBiome(int x, int z) {
+        if (biomeOff < 0) {
+            return null;
+        }
+        int b = getShort(biomeOff + 2 * ((z << 4) | x));
+        return ((b >= 0) && (b < biomes.length)) ? biomes[b] : null;
+    }
+
+    @Override
+    public boolean isSectionEmpty(int sy) {
+        return (sy < 0) || (sy >= nsect) || (palette[sy] == null);
+    }
+
+    @Override
+    public Object[] getBiomeBaseFromSnapshot() {
+        return biomebase;
+    }
+
+    /**
+     * Serializer for snapshots - not thread safe, as it reuses its buffers
+     */
+    public static class Encoder {
+        private ByteBuffer buf = ByteBuffer.allocate(0);
+        private int[] palidx = new int[0];      /* Palette index by global state index, or -1 */
+        private final int[] palette = new int[BLOCKS_PER_SECTION];
+        private final short[] idx = new short[BLOCKS_PER_SECTION];
+        private final byte[] sky = new byte[BLOCKS_PER_SECTION / 2];
+        private final byte[] emit = new byte[BLOCKS_PER_SECTION / 2];
+
+        /**
+         * Serialize snapshot
+         * @param ss - snapshot
+         * @param nsect - number of sections
+         * @param highesty - include highest block Y values
+         * @param biome - include biomes
+         * @return serialized form
+         */
+        public byte[] encode(Snapshot ss, int nsect, boolean highesty, boolean biome) {
+            /* Worst case: header, columns, and each section with 16 bit indexes into a full palette */
+            int maxlen = 4 + 4 * COLUMNS_PER_CHUNK + nsect * (3 + 6 * BLOCKS_PER_SECTION + 2 * BLOCKS_PER_SECTION + BLOCKS_PER_SECTION);
+            if (buf.capacity() < maxlen) {
+                buf = ByteBuffer.allocate(maxlen);
+            }
+            int gmax = DynmapBlockState.getGlobalIndexMax();
+            if (palidx.length < gmax) {
+                palidx = new int[gmax];
+                Arrays.fill(palidx, -1);
+            }
+            buf.clear();
+            buf.put((byte) FORMAT_VERSION);
+            buf.put((byte) ((highesty ? F_HIGHESTY : 0) | (biome ? F_BIOME : 0)));
+            buf.putShort((short) nsect);
+            if (highesty) {
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        buf.putShort((short) ss.getHighestBlockYAt(x, z));
+                    }
+                }
+            }
+            if (biome) {
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        Biome b = ss.getBiome(x, z);
+                        buf.putShort((short) ((b != null) ? b.ordinal() : -1));
+                    }
+                }
+            }
+            for (int s = 0; s < nsect; s++) {
+                encodeSection(ss, s);
+            }
+            return Arrays.copyOf(buf.array(), buf.position());
+        }
+
+        private void encodeSection(Snapshot ss, int s) {
+            int sflags = 0;
+            int cnt = 0;
+            int y0 = s << 4;
+            if (!ss.isSectionEmpty(s)) {
+                for (int i = 0; i < BLOCKS_PER_SECTION; i++) {
+                    int g = ss.getBlockType(i & 0xF, y0 + (i >> 8), (i >> 4) & 0xF).globalStateIndex;
+                    int p = (g < palidx.length) ? palidx[g] : -1;
+                    if (p < 0) {
+                        if (g >= palidx.length) {   /* Block states registered since we sized the table */
+                            int oldlen = palidx.length;
+                            palidx = Arrays.copyOf(palidx, g + 1);
+                            Arrays.fill(palidx, oldlen, palidx.length, -1);
+                        }
+                        p = cnt++;
+                        palidx[g] = p;
+                        palette[p] = g;
+                    }
+                    idx[i] = (short) p;
+                }
+                for (int i = 0; i < cnt; i++) {     /* Reset lookup for next section */
+                    palidx[palette[i]] = -1;
+                }
+                sflags |= S_BLOCKS;
+                if (cnt > 256) sflags |= S_SHORTINDEX;
+            }
+            boolean uniform = true;
+            for (int i = 0; i < BLOCKS_PER_SECTION; i += 2) {
+                int x = i & 0xF, y = y0 + (i >> 8), z = (i >> 4) & 0xF;
+                int sl = (ss.getBlockSkyLight(x, y, z) & 0xF) | ((ss.getBlockSkyLight(x + 1, y, z) & 0xF) << 4);
+                int el = (ss.getBlockEmittedLight(x, y, z) & 0xF) | ((ss.getBlockEmittedLight(x + 1, y, z) & 0xF) << 4);
+                sky[i >> 1] = (byte) sl;
+                emit[i >> 1] = (byte) el;
+                if ((sl != (sky[0] & 0xFF)) || (el != (emit[0] & 0xFF)) || ((sl >> 4) != (sl & 0xF)) || ((el >> 4) != (el & 0xF))) {
+                    uniform = false;
+                }
+            }
+            if (uniform) sflags |= S_UNIFORMLIGHT;
+            buf.put((byte) sflags);
+            if (cnt > 0) {
+                buf.putShort((short) cnt);
+                for (int i = 0; i < cnt; i++) {
+                    buf.putInt(palette[i]);
+                }
+                if (cnt > 256) {
+                    for (int i = 0; i < BLOCKS_PER_SECTION; i++) {
+                        buf.putShort(idx[i]);
+                    }
+                }
+                else if (cnt > 1) {
+                    for (int i = 0; i < BLOCKS_PER_SECTION; i++) {
+                        buf.put((byte) idx[i]);
+                    }
+                }
+            }
+            if (uniform) {
+                buf.put((byte) (((sky[0] & 0xF) << 4) | (emit[0] & 0xF)));
+            }
+            else {
+                buf.put(sky);
+                buf.put(emit);
+            }
+        }
+    }
+}
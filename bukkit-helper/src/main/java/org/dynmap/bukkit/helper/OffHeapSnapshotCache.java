@@ -0,0 +1,372 @@
+package org.dynmap.bukkit.helper;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import org.dynmap.Log;
+import org.dynmap.bukkit.helper.SnapshotCache.SnapshotRec;
+import org.dynmap.utils.DynIntHashMap;
+import org.dynmap.utils.DynLongHashMap;
+
+/**
+ * Chunk snapshot cache with a fixed memory budget, holding snapshots in compact serialized form outside of the Java heap.
+ *
+ * Memory is allocated as direct buffer slabs, carved into pages, up to the budget; least recently used snapshots are
+ * evicted to make room.  Since encoding costs more than the server thread should spend, new snapshots are held
+ * (and served) as-is until a background thread has encoded and stored them.
+ */
+public class OffHeapSnapshotCache {
+    private static final int PAGE_SIZE = 8192;
+    private static final int PAGES_PER_SLAB = 128;      /* 1MB slabs */
+    private static final int MAX_PENDING = 64;          /* Snapshots waiting to be encoded */
+
+    private final int maxPages;
+    private final ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    private int[] freePages = new int[0];
+    private int freeCnt;
+    private long bytesUsed;
+
+    private final DynLongHashMap entries = new DynLongHashMap();
+    private final Entry lru = new Entry();      /* List head: next = least recently used */
+    private int entryCnt;
+    private final DynLongHashMap pending = new DynLongHashMap();
+    private int pendingCnt;
+    private final HashMap<String, Integer> worldIDs = new HashMap<String, Integer>();
+    private final ExecutorService encoder;
+    private final CompactSnapshot.Encoder enc = new CompactSnapshot.Encoder();   /* Only used on encoder thread */
+    /* Statistics */
+    private long hits, misses, evictions, dropped;
+
+    private static class Entry {
+        long key;
+        int[] pages;
+        int length;
+        boolean hasbiome, hasrawbiome, hasblockdata, hashighesty;
+        long inhabitedTicks;
+        DynIntHashMap tileData;
+        Object[] biomebase;
+        long[] fingerprints = new long[2];
+        Entry prev = this, next = this;
+    }
+
+    private static class PendingRec {
+        SnapshotRec ssr;
+        int nsect;
+        boolean hasbiome, hasrawbiome, hasblockdata, hashighesty;
+    }
+
+    /**
+     * @param budget - maximum bytes of snapshot data
+     */
+    public OffHeapSnapshotCache(long budget) {
+        maxPages = (int) Math.min(Integer.MAX_VALUE, Math.max(PAGES_PER_SLAB, budget / PAGE_SIZE));
+        encoder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Dynmap snapshot cache");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+    private long getKey(String w, int cx, int cz) {
+        Integer id = worldIDs.get(w);
+        if (id == null) {
+            id = worldIDs.size();
+            worldIDs.put(w, id);
+        }
+        return (((long) id) << 48) | ((cx & 0xFFFFFFL) << 24) | (cz & 0xFFFFFFL);
+    }
+
+    /**
+     * Look for chunk snapshot in cache
+     */
+    public synchronized SnapshotRec getSnapshot(String w, int chunkx, int chunkz,
+            boolean blockdata, boolean biome, boolean biomeraw, boolean highesty) {
+        long key = getKey(w, chunkx, chunkz);
+        PendingRec pr = (PendingRec) pending.get(key);
+        if (pr != null) {
+            if ((blockdata && (!pr.hasblockdata)) || (biome && (!pr.hasbiome)) ||
+                    (biomeraw && (!pr.hasrawbiome)) || (highesty && (!pr.hashighesty))) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return pr.ssr;
+        }
+        Entry e = (Entry) entries.get(key);
+        if ((e == null) || (blockdata && (!e.hasblockdata)) || (biome && (!e.hasbiome)) ||
+                (biomeraw && (!e.hasrawbiome)) || (highesty && (!e.hashighesty))) {
+            misses++;
+            return null;
+        }
+        hits++;
+        unlink(e);
+        link(e);
+        byte[] data = new byte[e.length];
+        read(e.pages, data, e.length);
+        SnapshotRec ssr = new SnapshotRec();
+        ssr.ss = new CompactSnapshot(data, e.biomebase, e.fingerprints);
+        ssr.inhabitedTicks = e.inhabitedTicks;
+        ssr.tileData = e.tileData;
+        return ssr;
+    }
+
+    /**
+     * Add chunk snapshot to cache - encoded and stored in the background
+     */
+    public synchronized void putSnapshot(String w, int chunkx, int chunkz, SnapshotRec ssr, int nsect,
+            boolean blockdata, boolean biome, boolean biomeraw, boolean highesty) {
+        final long key = getKey(w, chunkx, chunkz);
+        remove(key);
+        if (pendingCnt >= MAX_PENDING) {   /* Encoder is behind - don't cache */
+            dropped++;
+            return;
+        }
+        final PendingRec pr = new PendingRec();
+        pr.ssr = ssr;
+        pr.nsect = nsect;
+        pr.hasblockdata = blockdata;
+        pr.hasbiome = biome;
+        pr.hasrawbiome = biomeraw;
+        pr.hashighesty = highesty;
+        pending.put(key, pr);
+        pendingCnt++;
+        try {
+            encoder.execute(new Runnable() {
+                public void run() {
+                    encodePending(key, pr);
+                }
+            });
+        } catch (RejectedExecutionException rx) {   /* Shut down */
+            pending.remove(key);
+            pendingCnt--;
+        }
+    }
+
+    /* Encode pending snapshot and store it, unless it was invalidated or replaced meanwhile - on encoder thread */
+    private void encodePending(long key, PendingRec pr) {
+        byte[] data;
+        try {
+            data = enc.encode(pr.ssr.ss, pr.nsect, pr.hashighesty, pr.hasbiome);
+        } catch (Exception x) {
+            Log.severe("Error encoding chunk snapshot", x);
+            data = null;
+        }
+        Object[] biomebase = pr.hasrawbiome ? pr.ssr.ss.getBiomeBaseFromSnapshot() : null;
+        SnapshotCache sc = SnapshotCache.sscache;  /* Carry over fingerprints already computed */
+        Long fp0 = (sc != null) ? sc.getFingerprint(pr.ssr.ss, false) : null;
+        Long fp1 = (sc != null) ? sc.getFingerprint(pr.ssr.ss, true) : null;
+        synchronized(this) {
+            if (pending.get(key) != pr) {
+                return;
+            }
+            pending.remove(key);
+            pendingCnt--;
+            if (data == null) {
+                return;
+            }
+            int[] pages = allocate(data.length);
+            if (pages == null) {    /* Bigger than whole budget */
+                dropped++;
+                return;
+            }
+            write(pages, data, data.length);
+            Entry e = new Entry();
+            e.key = key;
+            e.pages = pages;
+            e.length = data.length;
+            e.hasblockdata = pr.hasblockdata;
+            e.hasbiome = pr.hasbiome;
+            e.hasrawbiome = pr.hasrawbiome;
+            e.hashighesty = pr.hashighesty;
+            e.inhabitedTicks = pr.ssr.inhabitedTicks;
+            e.tileData = pr.ssr.tileData;
+            e.biomebase = biomebase;
+            if (fp0 != null) e.fingerprints[0] = fp0;
+            if (fp1 != null) e.fingerprints[1] = fp1;
+            entries.put(key, e);
+            link(e);
+            entryCnt++;
+            bytesUsed += data.length;
+        }
+    }
+
+    /**
+     * Invalidate cached snapshot, if in cache
+     */
+    public synchronized void invalidateSnapshot(String w, int x, int y, int z) {
+        remove(getKey(w, x >> 4, z >> 4));
+    }
+
+    /**
+     * Invalidate cached snapshots, if in cache
+     */
+    public synchronized void invalidateSnapshot(String w, int x0, int y0, int z0, int x1, int y1, int z1) {
+        for (int xx = (x0 >> 4); xx <= (x1 >> 4); xx++) {
+            for (int zz = (z0 >> 4); zz <= (z1 >> 4); zz++) {
+                remove(getKey(w, xx, zz));
+            }
+        }
+    }
+
+    /* Remove entry and any pending snapshot for key - must hold lock */
+    private void remove(long key) {
+        if (pending.remove(key) != null) {
+            pendingCnt--;
+        }
+        Entry e = (Entry) entries.remove(key);
+        if (e != null) {
+            release(e);
+        }
+    }
+
+    /* Unlink entry and free its pages - must hold lock */
+    private void release(Entry e) {
+        unlink(e);
+        for (int p : e.pages) {
+            freePages[freeCnt++] = p;
+        }
+        entryCnt--;
+        bytesUsed -= e.length;
+    }
+
+    private void link(Entry e) {   /* Add as most recently used */
+        e.next = lru;
+        e.prev = lru.prev;
+        lru.prev.next = e;
+        lru.prev = e;
+    }
+
+    private void unlink(Entry e) {
+        e.prev.next = e.next;
+        e.next.prev = e.prev;
+        e.prev = e.next = e;
+    }
+
+    /* Allocate pages for given length, evicting least recently used entries as needed - must hold lock */
+    private int[] allocate(int len) {
+        int cnt = (len + PAGE_SIZE - 1) / PAGE_SIZE;
+        if (cnt > maxPages) {
+            return null;
+        }
+        while (freeCnt < cnt) {
+            int allocated = slabs.size() * PAGES_PER_SLAB;
+            if (allocated < maxPages) {    /* Room for another slab */
+                int n = Math.min(PAGES_PER_SLAB, maxPages - allocated);
+                slabs.add(ByteBuffer.allocateDirect(n * PAGE_SIZE));
+                if (freePages.length < (allocated + n)) {   /* Room for every page to be free */
+                    int[] fp = new int[Math.min(maxPages, Math.max(allocated + n, 2 * freePages.length))];
+                    System.arraycopy(freePages, 0, fp, 0, freeCnt);
+                    freePages = fp;
+                }
+                for (int i = n - 1; i >= 0; i--) {
+                    freePages[freeCnt++] = allocated + i;
+                }
+            }
+            else {
+                Entry e = lru.next;
+                entries.remove(e.key);
+                release(e);
+                evictions++;
+            }
+        }
+        int[] pages = new int[cnt];
+        for (int i = 0; i < cnt; i++) {
+            pages[i] = freePages[--freeCnt];
+        }
+        return pages;
+    }
+
+    private void write(int[] pages, byte[] src, int len) {
+        for (int i = 0, off = 0; off < len; i++, off += PAGE_SIZE) {
+            ByteBuffer slab = slabs.get(pages[i] / PAGES_PER_SLAB);
+            slab.position((pages[i] % PAGES_PER_SLAB) * PAGE_SIZE);
+            slab.put(src, off, Math.min(PAGE_SIZE, len - off));
+        }
+    }
+
+    private void read(int[] pages, byte[] dst, int len) {
+        for (int i = 0, off = 0; off < len; i++, off += PAGE_SIZE) {
+            ByteBuffer slab = slabs.get(pages[i] / PAGES_PER_SLAB);
+            slab.position((pages[i] % PAGES_PER_SLAB) * PAGE_SIZE);
+            slab.get(dst, off, Math.min(PAGE_SIZE, len - off));
+        }
+    }
+
+    /**
+     * Get bytes of snapshot data held
+     * @return bytes
+     */
+    public synchronized long getBytesUsed() {
+        return bytesUsed;
+    }
+
+    /**
+     * Evict least recently used snapshots - pages are kept for reuse, rather than returned
+     * @param bytes - bytes of snapshot data to evict
+     * @return bytes evicted
+     */
+    public synchronized long evict(long bytes) {
+        long rel = 0;
+        while ((rel < bytes) && (lru.next != lru)) {
+            Entry e = lru.next;
+            rel += e.length;
+            entries.remove(e.key);
+            release(e);
+            evictions++;
+        }
+        return rel;
+    }
+
+    /**
+     * Get hit rate (percent)
+     */
+    public synchronized double getHitRate() {
+        long attempts = hits + misses;
+        if (attempts > 0) {
+            return (100.0 * hits) / (double) attempts;
+        }
+        return 0.0;
+    }
+
+    /**
+     * Get statistics summary
+     */
+    public synchronized String getStats() {
+        return String.format("%d chunks, %.1f of %.1f MB used, %d hits, %d misses, %d evictions, %d not cached",
+            entryCnt, bytesUsed / 1048576.0, ((long) maxPages * PAGE_SIZE) / 1048576.0, hits, misses, evictions, dropped);
+    }
+
+    /**
+     * Reset cache stats
+     */
+    public synchronized void resetStats() {
+        hits = misses = evictions = dropped = 0;
+    }
+
+    /**
+     * Cleanup - drops all snapshots and releases memory
+     */
+    public void cleanup() {
+        encoder.shutdownNow();
+        synchronized(this) {
+            pending.clear();
+            pendingCnt = 0;
+            entries.clear();
+            lru.next = lru.prev = lru;
+            entryCnt = 0;
+            bytesUsed = 0;
+            slabs.clear();
+            freePages = new int[0];
+            freeCnt = 0;
+        }
+    }
+}
@@ -4,11 +4,14 @@ import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.lang.ref.SoftReference;
+import java.util.Collections;
 import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.WeakHashMap;
 
 import org.dynmap.utils.DynIntHashMap;
+import org.dynmap.utils.MemoryManager;
 import org.dynmap.bukkit.helper.AbstractMapChunkCache.Snapshot;
 
 public class SnapshotCache {
@@ -22,10 +25,30 @@ public class SnapshotCache {
     };
 
     private CacheHashMap snapcache;
+    private OffHeapSnapshotCache offheap;   /* Budgeted off-heap cache, if enabled (in place of snapcache) */
+    /* Content fingerprints, by snapshot (index 0 = without biome, 1 = with biome) - live as long as snapshot */
+    private final Map<Snapshot, long[]> fingerprints = Collections.synchronizedMap(new WeakHashMap<Snapshot, long[]>());
     private ReferenceQueue<SnapshotRec> refqueue;
     private long cache_attempts;
     private long cache_success;
     private boolean softref;
+    /* Off-heap cache reports and evicts snapshot data; soft references are left to the garbage collector */
+    private final MemoryManager.MemoryUser memuser = new MemoryManager.MemoryUser() {
+        @Override
+        public String getMemoryUserName() {
+            return "Chunk snapshot cache";
+        }
+        @Override
+        public long getMemoryUsed() {
+            OffHeapSnapshotCache oh = offheap;
+            return (oh != null) ? oh.getBytesUsed() : -1;
+        }
+        @Override
+        public long releaseMemory(long bytes) {
+            OffHeapSnapshotCache oh = offheap;
+            return (oh != null) ? oh.evict(bytes) : 0;
+        }
+    };
     
     private static class CacheRec {
         Reference<SnapshotRec> ref;
@@ -58,9 +81,22 @@ public class SnapshotCache {
      * Create snapshot cache
      */
     public SnapshotCache(int max_size, boolean softref) {
+        this(max_size, softref, 0);
+    }
+    /**
+     * Create snapshot cache
+     * @param max_size - maximum chunks (soft/weak reference cache)
+     * @param softref - use soft references, else weak (soft/weak reference cache)
+     * @param memory_mb - memory budget for off-heap cache, in MB: if 0, soft/weak reference cache is used instead
+     */
+    public SnapshotCache(int max_size, boolean softref, int memory_mb) {
+        if (memory_mb > 0) {
+            offheap = new OffHeapSnapshotCache(memory_mb * 1048576L);
+        }
         snapcache = new CacheHashMap(max_size);
         refqueue = new ReferenceQueue<SnapshotRec>();
         this.softref = softref;
+        MemoryManager.register(memuser, MemoryManager.PRIORITY_CACHE);
     }
     private String getKey(String w, int cx, int cz) {
         return w + ":" + cx + ":" + cz;
@@ -69,6 +105,10 @@ public class SnapshotCache {
      * Invalidate cached snapshot, if in cache
      */
     public void invalidateSnapshot(String w, int x, int y, int z) {
+        if (offheap != null) {
+            offheap.invalidateSnapshot(w, x, y, z);
+            return;
+        }
         String key = getKey(w, x>>4, z>>4);
         CacheRec rec = snapcache.remove(key);
         if(rec != null) {
@@ -81,6 +121,10 @@ public class SnapshotCache {
      * Invalidate cached snapshot, if in cache
      */
     public void invalidateSnapshot(String w, int x0, int y0, int z0, int x1, int y1, int z1) {
+        if (offheap != null) {
+            offheap.invalidateSnapshot(w, x0, y0, z0, x1, y1, z1);
+            return;
+        }
         for(int xx = (x0>>4); xx <= (x1>>4); xx++) {
             for(int zz = (z0>>4); zz <= (z1>>4); zz++) {
                 String key = getKey(w, xx, zz);
@@ -98,6 +142,9 @@ public class SnapshotCache {
      */
     public SnapshotRec getSnapshot(String w, int chunkx, int chunkz, 
             boolean blockdata, boolean biome, boolean biomeraw, boolean highesty) {
+        if (offheap != null) {
+            return offheap.getSnapshot(w, chunkx, chunkz, blockdata, biome, biomeraw, highesty);
+        }
         String key = getKey(w, chunkx, chunkz);
         processRefQueue();
         SnapshotRec ss = null;
@@ -124,9 +171,14 @@ public class SnapshotCache {
     }
     /**
      * Add chunk snapshot to cache
+     * @param nsect - number of 16 block high sections in world
      */
-    public void putSnapshot(String w, int chunkx, int chunkz, SnapshotRec ss, 
+    public void putSnapshot(String w, int chunkx, int chunkz, SnapshotRec ss, int nsect,
             boolean blockdata, boolean biome, boolean biomeraw, boolean highesty) {
+        if (offheap != null) {
+            offheap.putSnapshot(w, chunkx, chunkz, ss, nsect, blockdata, biome, biomeraw, highesty);
+            return;
+        }
         String key = getKey(w, chunkx, chunkz);
         processRefQueue();
         CacheRec rec = new CacheRec();
@@ -144,6 +196,34 @@ public class SnapshotCache {
         }
         snapcache.reverselookup.put(rec.ref, key);
     }
+    /**
+     * Get content fingerprint previously computed for snapshot
+     * @return fingerprint, or null if not computed
+     */
+    public Long getFingerprint(Snapshot ss, boolean withbiome) {
+        long[] fp = (ss instanceof CompactSnapshot) ? ((CompactSnapshot) ss).fingerprints : fingerprints.get(ss);
+        if ((fp == null) || (fp[withbiome ? 1 : 0] == 0)) {
+            return null;
+        }
+        return fp[withbiome ? 1 : 0];
+    }
+    /**
+     * Remember content fingerprint for snapshot
+     */
+    public void putFingerprint(Snapshot ss, boolean withbiome, long val) {
+        if (ss instanceof CompactSnapshot) {    /* Kept with cache entry */
+            ((CompactSnapshot) ss).fingerprints[withbiome ? 1 : 0] = val;
+            return;
+        }
+        synchronized (fingerprints) {
+            long[] fp = fingerprints.get(ss);
+            if (fp == null) {
+                fp = new long[2];
+                fingerprints.put(ss, fp);
+            }
+            fp[withbiome ? 1 : 0] = val;
+        }
+    }
     /**
      * Process reference queue
      */
@@ -160,6 +240,9 @@ public class SnapshotCache {
      * Get hit rate (percent)
      */
     public double getHitRate() {
+        if (offheap != null) {
+            return offheap.getHitRate();
+        }
         if(cache_attempts > 0) {
             return (100.0*cache_success)/(double)cache_attempts;
         }
@@ -169,12 +252,27 @@ public class SnapshotCache {
      * Reset cache stats
      */
     public void resetStats() {
+        if (offheap != null) {
+            offheap.resetStats();
+        }
         cache_attempts = cache_success = 0;
     }
+    /**
+     * Get cache statistics summary
+     * @return summary, or null if not available
+     */
+    public String getStats() {
+        return (offheap != null) ? offheap.getStats() : null;
+    }
     /**
      * Cleanup
      */
     public void cleanup() {
+        MemoryManager.unregister(memuser);
+        if (offheap != null) {
+            offheap.cleanup();
+            offheap = null;
+        }
         if(snapcache != null) {
             snapcache.clear();
             snapcache.reverselookup.clear();
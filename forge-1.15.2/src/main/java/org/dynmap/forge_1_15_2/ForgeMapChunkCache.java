@@ -48,6 +48,7 @@ import org.dynmap.renderer.RenderPatchFactory;
 import org.dynmap.utils.DynIntHashMap;
 import org.dynmap.utils.MapChunkCache;
 import org.dynmap.utils.MapIterator;
+import org.dynmap.utils.BiomeColorPlanes;
 import org.dynmap.utils.BlockStep;
 import org.dynmap.utils.VisibilityLimit;
 
@@ -83,6 +84,7 @@ public class ForgeMapChunkCache extends MapChunkCache
     private DynIntHashMap[] snaptile;
     private byte[][] sameneighborbiomecnt;
     private BiomeMap[][] biomemap;
+    private BiomeColorPlanes colorplanes;  /* Smoothed biome color multipliers, computed on first use */
     private boolean[][] isSectionNotEmpty; /* Indexed by snapshot index, then by section index */
 
     
@@ -237,6 +239,7 @@ public class ForgeMapChunkCache extends MapChunkCache
                     sameneighborbiomecnt[i][j] = (byte)cnt;
                 }
             }
+            colorplanes = new BiomeColorPlanes(biomemap, sameneighborbiomecnt);
         }
         @Override
         public final BiomeMap getBiome()
@@ -253,180 +256,45 @@ public class ForgeMapChunkCache extends MapChunkCache
         @Override
         public final int getSmoothGrassColorMultiplier(int[] colormap)
         {
-            int mult = 0xFFFFFF;
-
             try
             {
-                int rx = x - x_base;
-                int rz = z - z_base;
-                BiomeMap bm = biomemap[rx][rz];
-
-                if (sameneighborbiomecnt[rx][rz] >= (byte)8)    /* All neighbors same? */
-                {
-                    mult = bm.getModifiedGrassMultiplier(colormap[bm.biomeLookup()]);
-                }
-                else
-                {
-                    int raccum = 0;
-                    int gaccum = 0;
-                    int baccum = 0;
-
-                    for (int xoff = -1; xoff < 2; xoff++)
-                    {
-                        for (int zoff = -1; zoff < 2; zoff++)
-                        {
-                            bm = biomemap[rx + xoff][rz + zoff];
-                            int rmult = bm.getModifiedGrassMultiplier(colormap[bm.biomeLookup()]);
-                            raccum += (rmult >> 16) & 0xFF;
-                            gaccum += (rmult >> 8) & 0xFF;
-                            baccum += rmult & 0xFF;
-                        }
-                    }
-
-                    mult = ((raccum / 9) << 16) | ((gaccum / 9) << 8) | (baccum / 9);
-                }
+                return colorplanes.getGrassColorMultiplier(x - x_base, z - z_base, colormap);
             }
             catch (Exception x)
             {
-                mult = 0xFFFFFF;
+                return 0xFFFFFF;
             }
-
-            return mult;
         }
         @Override
         public final int getSmoothFoliageColorMultiplier(int[] colormap)
         {
-            int mult = 0xFFFFFF;
-
             try
             {
-                int rx = x - x_base;
-                int rz = z - z_base;
-                BiomeMap bm = biomemap[rx][rz];
-
-                if (sameneighborbiomecnt[rx][rz] >= (byte)8)    /* All neighbors same? */
-                {
-                    mult = bm.getModifiedFoliageMultiplier(colormap[bm.biomeLookup()]);
-                }
-                else
-                {
-                    int raccum = 0;
-                    int gaccum = 0;
-                    int baccum = 0;
-
-                    for (int xoff = -1; xoff < 2; xoff++)
-                    {
-                        for (int zoff = -1; zoff < 2; zoff++)
-                        {
-                            bm = biomemap[rx + xoff][rz + zoff];
-                            int rmult = bm.getModifiedFoliageMultiplier(colormap[bm.biomeLookup()]);
-                            raccum += (rmult >> 16) & 0xFF;
-                            gaccum += (rmult >> 8) & 0xFF;
-                            baccum += rmult & 0xFF;
-                        }
-                    }
-
-                    mult = ((raccum / 9) << 16) | ((gaccum / 9) << 8) | (baccum / 9);
-                }
+                return colorplanes.getFoliageColorMultiplier(x - x_base, z - z_base, colormap);
             }
             catch (Exception x)
             {
-                mult = 0xFFFFFF;
+                return 0xFFFFFF;
             }
-
-            return mult;
         }
         @Override
         public final int getSmoothColorMultiplier(int[] colormap, int[] swampmap)
         {
-            int mult = 0xFFFFFF;
-
             try
             {
-                int rx = x - x_base;
-                int rz = z - z_base;
-                BiomeMap bm = biomemap[rx][rz];
-
-                if (sameneighborbiomecnt[rx][rz] >= (byte)8)    /* All neighbors same? */
-                {
-                    if (bm == BiomeMap.SWAMPLAND)
-                    {
-                        mult = swampmap[bm.biomeLookup()];
-                    }
-                    else
-                    {
-                        mult = colormap[bm.biomeLookup()];
-                    }
-                }
-                else
-                {
-                    int raccum = 0;
-                    int gaccum = 0;
-                    int baccum = 0;
-
-                    for (int xoff = -1; xoff < 2; xoff++)
-                    {
-                        for (int zoff = -1; zoff < 2; zoff++)
-                        {
-                            bm = biomemap[rx + xoff][rz + zoff];
-                            int rmult;
-
-                            if (bm == BiomeMap.SWAMPLAND)
-                            {
-                                rmult = swampmap[bm.biomeLookup()];
-                            }
-                            else
-                            {
-                                rmult = colormap[bm.biomeLookup()];
-                            }
-
-                            raccum += (rmult >> 16) & 0xFF;
-                            gaccum += (rmult >> 8) & 0xFF;
-                            baccum += rmult & 0xFF;
-                        }
-                    }
-
-                    mult = ((raccum / 9) << 16) | ((gaccum / 9) << 8) | (baccum / 9);
-                }
+                return colorplanes.getColorMultiplier(x - x_base, z - z_base, colormap, swampmap);
             }
             catch (Exception x)
             {
-                mult = 0xFFFFFF;
+                return 0xFFFFFF;
             }
-
-            return mult;
         }
         @Override
         public final int getSmoothWaterColorMultiplier()
         {
             try
             {
-                int rx = x - x_base;
-                int rz = z - z_base;
-                BiomeMap bm = biomemap[rx][rz];
-
-                if (sameneighborbiomecnt[rx][rz] >= (byte)8)    /* All neighbors same? */
-                {
-                    return bm.getWaterColorMult();
-                }
-
-                int raccum = 0;
-                int gaccum = 0;
-                int baccum = 0;
-
-                for (int xoff = -1; xoff < 2; xoff++)
-                {
-                    for (int zoff = -1; zoff < 2; zoff++)
-                    {
-                        bm = biomemap[rx + xoff][rz + zoff];
-                        int mult = bm.getWaterColorMult();
-                        raccum += (mult >> 16) & 0xFF;
-                        gaccum += (mult >> 8) & 0xFF;
-                        baccum += mult & 0xFF;
-                    }
-                }
-
-                return ((raccum / 9) << 16) | ((gaccum / 9) << 8) | (baccum / 9);
+                return colorplanes.getWaterColorMultiplier(x - x_base, z - z_base);
             }
             catch (Exception x)
             {
@@ -436,45 +304,14 @@ public class ForgeMapChunkCache extends MapChunkCache
         @Override
         public final int getSmoothWaterColorMultiplier(int[] colormap)
         {
-            int mult = 0xFFFFFF;
-
             try
             {
-                int rx = x - x_base;
-                int rz = z - z_base;
-                BiomeMap bm = biomemap[rx][rz];
-
-                if (sameneighborbiomecnt[rx][rz] >= (byte)8)    /* All neighbors same? */
-                {
-                    mult = colormap[bm.biomeLookup()];
-                }
-                else
-                {
-                    int raccum = 0;
-                    int gaccum = 0;
-                    int baccum = 0;
-
-                    for (int xoff = -1; xoff < 2; xoff++)
-                    {
-                        for (int zoff = -1; zoff < 2; zoff++)
-                        {
-                            bm = biomemap[rx + xoff][rz + zoff];
-                            int rmult = colormap[bm.biomeLookup()];
-                            raccum += (rmult >> 16) & 0xFF;
-                            gaccum += (rmult >> 8) & 0xFF;
-                            baccum += rmult & 0xFF;
-                        }
-                    }
-
-                    mult = ((raccum / 9) << 16) | ((gaccum / 9) << 8) | (baccum / 9);
-                }
+                return colorplanes.getColorMultiplier(x - x_base, z - z_base, colormap);
             }
             catch (Exception x)
             {
-                mult = 0xFFFFFF;
+                return 0xFFFFFF;
             }
-
-            return mult;
         }
         /**
          * Step current position in given direction
@@ -408,6 +408,10 @@ public class DynmapPlugin extends JavaPlugin implements DynmapAPI {
             SnapshotCache.sscache.resetStats();
         }
         @Override
+        public String getCacheStats() {
+            return SnapshotCache.sscache.getStats();
+        }
+        @Override
         public DynmapWorld getWorldByName(String wname) {
             return DynmapPlugin.this.getWorldByName(wname);
         }
@@ -963,7 +967,7 @@ public class DynmapPlugin extends JavaPlugin implements DynmapAPI {
             return;
         }
         playerList = core.playerList;
-        SnapshotCache.sscache = new SnapshotCache(core.getSnapShotCacheSize(), core.useSoftRefInSnapShotCache());
+        SnapshotCache.sscache = new SnapshotCache(core.getSnapShotCacheSize(), core.useSoftRefInSnapShotCache(), core.getSnapShotCacheMemory());
 
         /* Get map manager from core */
         mapManager = core.getMapManager();